@@ -0,0 +1,206 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.benchmark;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.reference.FastaSequenceIndexCreator;
+import org.broad.igv.Globals;
+import org.broad.igv.feature.genome.GenomeManager;
+import org.broad.igv.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Generates synthetic alignment fixtures for the benchmarks: a random reference sequence (fasta), and coordinate
+ * sorted, indexed BAM and CRAM files of reads sampled from it at a fixed depth and read length.  Reads carry
+ * occasional mismatches, small insertions and deletions, and soft clips so that counting and rendering exercise the
+ * same paths as real data.  Generation is deterministic for a given depth and read length.
+ * <p/>
+ * Fixtures are written once per JVM to a temporary directory and shared by all benchmarks.
+ * <p/>
+ * {@link org.broad.igv.tools.TestFileGenerator} writes numeric track files (cn, igv, gct, wig) for fixed hg18
+ * chromosome sizes, with no reference sequence or reads, so alignment fixtures are generated here instead.
+ */
+public class SyntheticAlignments {
+
+    public static final String CHR = "chr1";
+    public static final int REFERENCE_LENGTH = 50000;
+
+    /**
+     * The loaded region, away from the ends of the reference so that depth is uniform
+     */
+    public static final int START = 20000;
+    public static final int END = 30000;
+
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+    private static final double MISMATCH_RATE = 0.01;
+    private static final double INDEL_RATE = 0.1;       // per read
+    private static final double SOFT_CLIP_RATE = 0.05;  // per read
+
+    private static File directory;
+    private static File reference;
+    private static byte[] referenceBases;
+    private static final Map<String, File> fixtures = new HashMap<>();
+
+    /**
+     * Return the path to a fixture, generating it if needed.  The reference is loaded as the current genome, which
+     * CRAM decoding and mismatch rendering require.
+     *
+     * @param format "bam" or "cram"
+     */
+    public static synchronized String getPath(String format, int depth, int readLength) throws IOException {
+
+        if (directory == null) {
+            Globals.setHeadless(true);
+            Globals.setSuppressMessages(true);
+            directory = java.nio.file.Files.createTempDirectory("igv-benchmark").toFile();
+            final File dir = directory;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteDir(dir)));
+            reference = writeReference(new File(directory, "reference.fa"));
+            GenomeManager.getInstance().loadGenome(reference.getAbsolutePath(), null);
+        }
+
+        String key = format + "_" + depth + "_" + readLength;
+        File file = fixtures.get(key);
+        if (file == null) {
+            file = new File(directory, "synthetic_" + key + "." + format);
+            write(file, format, depth, readLength);
+            fixtures.put(key, file);
+        }
+        return file.getAbsolutePath();
+    }
+
+    private static File writeReference(File file) throws IOException {
+        Random random = new Random(1);
+        referenceBases = new byte[REFERENCE_LENGTH];
+        for (int i = 0; i < REFERENCE_LENGTH; i++) {
+            referenceBases[i] = BASES[random.nextInt(4)];
+        }
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println(">" + CHR);
+            for (int i = 0; i < REFERENCE_LENGTH; i += 60) {
+                pw.println(new String(referenceBases, i, Math.min(60, REFERENCE_LENGTH - i)));
+            }
+        }
+        FastaSequenceIndexCreator.create(file.toPath(), true);
+        return file;
+    }
+
+    private static void write(File file, String format, int depth, int readLength) throws IOException {
+
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        header.addSequence(new SAMSequenceRecord(CHR, REFERENCE_LENGTH));
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("synthetic");
+        readGroup.setSample("synthetic");
+        readGroup.setLibrary("synthetic");
+        header.addReadGroup(readGroup);
+
+        SAMFileWriterFactory factory = new SAMFileWriterFactory().setCreateIndex(true);
+        SAMFileWriter writer = "cram".equals(format) ?
+                factory.makeCRAMWriter(header, true, file, reference) :
+                factory.makeBAMWriter(header, true, file);
+
+        // Reads cover the loaded region, plus one read length either side, at the requested depth
+        Random random = new Random(depth * 31L + readLength);
+        int first = Math.max(0, START - 2 * readLength);
+        int last = Math.min(REFERENCE_LENGTH - 2 * readLength, END + readLength);
+        int readCount = (int) ((long) depth * (last - first) / readLength);
+        int[] starts = new int[readCount];
+        for (int i = 0; i < readCount; i++) {
+            starts[i] = first + random.nextInt(last - first);
+        }
+        Arrays.sort(starts);
+
+        try {
+            for (int i = 0; i < readCount; i++) {
+                writer.addAlignment(createRecord(header, "read" + i, starts[i], readLength, random));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static SAMRecord createRecord(SAMFileHeader header, String readName, int start, int readLength, Random random) {
+
+        List<CigarElement> cigar = new ArrayList<>();
+        int softClip = random.nextDouble() < SOFT_CLIP_RATE ? 1 + random.nextInt(Math.max(1, readLength / 10)) : 0;
+        if (softClip > 0) {
+            cigar.add(new CigarElement(softClip, CigarOperator.S));
+        }
+        int aligned = readLength - softClip;
+        if (random.nextDouble() < INDEL_RATE && aligned > 20) {
+            int left = aligned / 2;
+            int indelLength = 1 + random.nextInt(3);
+            CigarOperator indel = random.nextBoolean() ? CigarOperator.I : CigarOperator.D;
+            cigar.add(new CigarElement(left, CigarOperator.M));
+            cigar.add(new CigarElement(indelLength, indel));
+            cigar.add(new CigarElement(aligned - left - (indel == CigarOperator.I ? indelLength : 0), CigarOperator.M));
+        } else {
+            cigar.add(new CigarElement(aligned, CigarOperator.M));
+        }
+
+        // Read bases follow the reference, consuming it for M and D, with random bases for clips and insertions
+        byte[] bases = new byte[readLength];
+        byte[] qualities = new byte[readLength];
+        int readIdx = 0;
+        int refIdx = start;
+        for (CigarElement e : cigar) {
+            for (int k = 0; k < e.getLength(); k++) {
+                switch (e.getOperator()) {
+                    case M:
+                        bases[readIdx++] = random.nextDouble() < MISMATCH_RATE ?
+                                BASES[random.nextInt(4)] : referenceBases[refIdx];
+                        refIdx++;
+                        break;
+                    case D:
+                        refIdx++;
+                        break;
+                    default:
+                        bases[readIdx++] = BASES[random.nextInt(4)];
+                }
+            }
+        }
+        for (int i = 0; i < readLength; i++) {
+            qualities[i] = (byte) (20 + random.nextInt(20));
+        }
+
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(readName);
+        record.setReferenceName(CHR);
+        record.setAlignmentStart(start + 1);
+        record.setCigar(new Cigar(cigar));
+        record.setReadBases(bases);
+        record.setBaseQualities(qualities);
+        record.setMappingQuality(60);
+        record.setReadNegativeStrandFlag(random.nextBoolean());
+        record.setAttribute("RG", "synthetic");
+        return record;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.broad.igv.benchmark.SyntheticAlignments.END;
+import static org.broad.igv.benchmark.SyntheticAlignments.START;
+
+/**
+ * Benchmarks coverage counting, {@link DenseAlignmentCounts#incCounts}, over the alignments of a loaded synthetic
+ * interval.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class AlignmentCountsBenchmark {
+
+    @Param({"100", "1000"})
+    public int depth;
+
+    @Param({"150", "10000"})
+    public int readLength;
+
+    private List<Alignment> alignments;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        alignments = AlignmentLoadBenchmark.loadInterval(depth, readLength).getAlignments();
+    }
+
+    @Benchmark
+    public AlignmentCounts incCounts() {
+        DenseAlignmentCounts counts = new DenseAlignmentCounts(START, END, null);
+        for (Alignment alignment : alignments) {
+            counts.incCounts(alignment);
+        }
+        counts.finish();
+        return counts;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.broad.igv.benchmark.SyntheticAlignments;
+import org.broad.igv.sam.reader.AlignmentReaderFactory;
+import org.broad.igv.util.ResourceLocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.broad.igv.benchmark.SyntheticAlignments.*;
+
+/**
+ * Benchmarks {@link AlignmentTileLoader#loadTile} over synthetic BAM and CRAM files, with and without downsampling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class AlignmentLoadBenchmark {
+
+    @Param({"bam", "cram"})
+    public String format;
+
+    @Param({"100", "1000"})
+    public int depth;
+
+    @Param({"150", "10000"})
+    public int readLength;
+
+    private AlignmentTileLoader loader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        loader = createLoader(SyntheticAlignments.getPath(format, depth, readLength));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        loader.close();
+    }
+
+    @Benchmark
+    public AlignmentTileLoader.AlignmentTile loadTile() {
+        return loader.loadTile(CHR, START, END, null, new AlignmentDataManager.DownsampleOptions(false, 50, 100), null, null);
+    }
+
+    @Benchmark
+    public AlignmentTileLoader.AlignmentTile loadTileDownsampled() {
+        return loader.loadTile(CHR, START, END, null, new AlignmentDataManager.DownsampleOptions(true, 50, 100), null, null);
+    }
+
+    static AlignmentTileLoader createLoader(String path) throws IOException {
+        return new AlignmentTileLoader(AlignmentReaderFactory.getReader(new ResourceLocator(path)));
+    }
+
+    /**
+     * Load the benchmark region of a BAM fixture, without downsampling, as input for the packing, counting and
+     * rendering benchmarks.
+     */
+    static AlignmentInterval loadInterval(int depth, int readLength) throws IOException {
+        AlignmentTileLoader loader = createLoader(SyntheticAlignments.getPath("bam", depth, readLength));
+        try {
+            AlignmentTileLoader.AlignmentTile tile = loader.loadTile(CHR, START, END, null,
+                    new AlignmentDataManager.DownsampleOptions(false, 50, 100), null, null);
+            return new AlignmentInterval(CHR, START, END, tile.getAlignments(), tile.getCounts(), null,
+                    tile.getDownsampledIntervals());
+        } finally {
+            loader.close();
+        }
+    }
+}
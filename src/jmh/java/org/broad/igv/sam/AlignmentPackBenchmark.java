@@ -0,0 +1,71 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link AlignmentPacker#packAlignments} over a loaded synthetic interval, ungrouped and grouped by strand.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class AlignmentPackBenchmark {
+
+    @Param({"100", "1000"})
+    public int depth;
+
+    @Param({"150", "10000"})
+    public int readLength;
+
+    private AlignmentInterval interval;
+    private AlignmentTrack.RenderOptions renderOptions;
+    private AlignmentTrack.RenderOptions groupedRenderOptions;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        interval = AlignmentLoadBenchmark.loadInterval(depth, readLength);
+        renderOptions = new AlignmentTrack.RenderOptions();
+        groupedRenderOptions = new AlignmentTrack.RenderOptions();
+        groupedRenderOptions.setGroupByOption(AlignmentTrack.GroupOption.STRAND);
+    }
+
+    @Benchmark
+    public PackedAlignments packAlignments() {
+        return new AlignmentPacker().packAlignments(interval, renderOptions);
+    }
+
+    @Benchmark
+    public PackedAlignments packAlignmentsGrouped() {
+        return new AlignmentPacker().packAlignments(interval, groupedRenderOptions);
+    }
+}
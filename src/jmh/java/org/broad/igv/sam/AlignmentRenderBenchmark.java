@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.broad.igv.benchmark.SyntheticAlignments;
+import org.broad.igv.feature.genome.GenomeManager;
+import org.broad.igv.track.RenderContext;
+import org.broad.igv.ui.panel.ReferenceFrame;
+import org.broad.igv.util.ResourceLocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.broad.igv.benchmark.SyntheticAlignments.CHR;
+import static org.broad.igv.benchmark.SyntheticAlignments.START;
+
+/**
+ * Benchmarks painting the packed rows of a loaded synthetic interval with {@link AlignmentRenderer}, as
+ * AlignmentTrack does, into an offscreen image.  The view is zoomed to base level, where mismatches and
+ * insertions are drawn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class AlignmentRenderBenchmark {
+
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1000;
+    private static final int VIEW_LENGTH = 2000;
+
+    @Param({"100", "1000"})
+    public int depth;
+
+    @Param({"150", "10000"})
+    public int readLength;
+
+    private AlignmentInterval interval;
+    private PackedAlignments packedAlignments;
+    private AlignmentRenderer renderer;
+    private AlignmentTrack.RenderOptions renderOptions;
+    private ReferenceFrame frame;
+    private BufferedImage image;
+    private int rowHeight;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        interval = AlignmentLoadBenchmark.loadInterval(depth, readLength);
+
+        ResourceLocator locator = new ResourceLocator(SyntheticAlignments.getPath("bam", depth, readLength));
+        AlignmentDataManager dataManager = new AlignmentDataManager(locator, GenomeManager.getInstance().getCurrentGenome());
+        AlignmentTrack track = new AlignmentTrack(locator, dataManager, GenomeManager.getInstance().getCurrentGenome());
+        renderer = new AlignmentRenderer(track);
+        renderOptions = track.renderOptions;
+        packedAlignments = new AlignmentPacker().packAlignments(interval, renderOptions);
+
+        frame = new ReferenceFrame("benchmark");
+        frame.setBounds(0, WIDTH);
+        frame.jumpTo(CHR, START, START + VIEW_LENGTH);
+
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        // Squished rows, so that all rows fit the image as at high depth in IGV
+        rowHeight = Math.max(1, Math.min(5, HEIGHT / Math.max(1, packedAlignments.getNLevels())));
+    }
+
+    @Benchmark
+    public BufferedImage renderAlignments() {
+        Graphics2D g = image.createGraphics();
+        Rectangle visibleRect = new Rectangle(0, 0, WIDTH, HEIGHT);
+        RenderContext context = new RenderContext(null, g, frame, visibleRect);
+        try {
+            int y = 0;
+            for (List<Row> rows : packedAlignments.values()) {
+                for (Row row : rows) {
+                    if (y >= HEIGHT) break;
+                    Rectangle rowRect = new Rectangle(0, y, WIDTH, rowHeight);
+                    renderer.renderAlignments(row.alignments, interval.getCounts(), context, rowRect, renderOptions);
+                    y += rowHeight;
+                }
+            }
+        } finally {
+            context.dispose();
+            g.dispose();
+        }
+        return image;
+    }
+}
@@ -32,6 +32,8 @@ import org.broad.igv.Globals;
 import org.broad.igv.feature.Chromosome;
 import org.broad.igv.feature.LocusScore;
 import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.prefs.Constants;
+import org.broad.igv.prefs.PreferencesManager;
 import org.broad.igv.tdf.Accumulator;
 import org.broad.igv.track.WindowFunction;
 import org.broad.igv.ui.panel.FrameManager;
@@ -191,7 +193,8 @@ public abstract class AbstractDataSource implements DataSource {
                 int tileStart = (int) (t * tileWidth);
                 int tileEnd = Math.min(chrLength, (int) ((t + 1) * tileWidth));
 
-                String key = chr + "_" + z + "_" + t + getWindowFunction();
+                String key = chr + "_" + z + "_" + t + getWindowFunction() + "_" +
+                        PreferencesManager.getPreferences().getAsBoolean(Constants.CHART_PERCENTILE_SKETCH);
                 SummaryTile summaryTile = summaryTileCache.get(key);
                 if (summaryTile == null) {
 
@@ -266,7 +269,8 @@ public abstract class AbstractDataSource implements DataSource {
                 List<LocusScore> scores = new ArrayList(nBins);
                 double scale = (double) (endLocation - startLocation) / nBins;
 
-                Accumulator accumulator = new Accumulator(windowFunction, 5);
+                boolean useSketch = PreferencesManager.getPreferences().getAsBoolean(Constants.CHART_PERCENTILE_SKETCH);
+                Accumulator accumulator = new Accumulator(windowFunction, 5, useSketch);
                 int accumulatedStart = -1;
                 int accumulatedEnd = -1;
                 int lastEndBin = 0;
@@ -300,7 +304,7 @@ public abstract class AbstractDataSource implements DataSource {
                     if (endBin > lastEndBin || endBin > startBin) {
                         if (accumulator.hasData()) {
                             scores.add(getCompositeScore(accumulator, accumulatedStart, accumulatedEnd));
-                            accumulator = new Accumulator(windowFunction, 5);
+                            accumulator = new Accumulator(windowFunction, 5, useSketch);
                         }
                     }
 
@@ -196,6 +196,17 @@ public class SpliceJunctionFeature extends BasicFeature {
         this.endFlankingRegionDepthArray = endFlankingRegionDepthArray;
     }
 
+    /**
+     * Set the depth of coverage over both flanking regions, extending the feature to cover them.  Equivalent to
+     * adding the reads one by one with {@link #addRead(int, int)}.  A null array is an empty flanking region.
+     */
+    public void setFlankingRegionDepthArrays(int[] startFlankingRegionDepthArray, int[] endFlankingRegionDepthArray) {
+        this.startFlankingRegionDepthArray = startFlankingRegionDepthArray;
+        this.endFlankingRegionDepthArray = endFlankingRegionDepthArray;
+        start = junctionStart - (startFlankingRegionDepthArray == null ? 0 : startFlankingRegionDepthArray.length);
+        end = junctionEnd + (endFlankingRegionDepthArray == null ? 0 : endFlankingRegionDepthArray.length);
+    }
+
     public boolean hasFlankingRegionDepthArrays() {
         return ((startFlankingRegionDepthArray != null) && (endFlankingRegionDepthArray != null));
     }
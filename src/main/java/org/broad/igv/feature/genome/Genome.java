@@ -46,6 +46,7 @@ import org.broad.igv.util.ResourceLocator;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Simple model of a genome.  Keeps an ordered list of Chromosomes, an alias table, and genome position offsets
@@ -56,7 +57,6 @@ public class Genome {
     private static Logger log = Logger.getLogger(Genome.class);
     public static final int MAX_WHOLE_GENOME_LONG = 100;
 
-    private static Object aliasLock = new Object();
 
     private String id;
     private String displayName;
@@ -85,7 +85,7 @@ public class Genome {
     public Genome(String id, String displayName, Sequence sequence, boolean chromosOrdered) {
         this.id = id;
         this.displayName = displayName;
-        this.chrAliasTable = new HashMap<>();
+        this.chrAliasTable = new ConcurrentHashMap<>();
         this.sequence = (sequence instanceof InMemorySequence) ? sequence : new SequenceWrapper(sequence);
         chromosomeNames = sequence.getChromosomeNames();
         this.ucscID = ucsdIDMap.containsKey(id) ? ucsdIDMap.get(id) : id;
@@ -125,7 +125,7 @@ public class Genome {
     public Genome(String id, List<Chromosome> chromosomes) {
         this.id = id;
         this.displayName = id;
-        this.chrAliasTable = new HashMap<String, String>();
+        this.chrAliasTable = new ConcurrentHashMap<>();
         this.sequence = null;
 
         chromosomeNames = new ArrayList<String>(chromosomes.size());
@@ -139,17 +139,16 @@ public class Genome {
     }
 
 
+    /**
+     * Thread safe, alignments are built on decoder threads
+     */
     public String getCanonicalChrName(String str) {
         if (str == null) {
             return str;
-        } else if (chrAliasTable.containsKey(str)) {
-            return chrAliasTable.get(str);
         } else {
-            // Add entry, which effectively interns the string
-            synchronized (aliasLock) {
-                chrAliasTable.put(str, str);
-            }
-            return str;
+            // Add entry if missing, which effectively interns the string
+            String chr = chrAliasTable.putIfAbsent(str, str);
+            return chr == null ? str : chr;
         }
     }
 
@@ -166,7 +165,7 @@ public class Genome {
     public void addChrAliases(Collection<Collection<String>> synonymsList) {
 
         if (synonymsList == null) return;
-        if (chrAliasTable == null) chrAliasTable = new HashMap<>();
+        if (chrAliasTable == null) chrAliasTable = new ConcurrentHashMap<>();
 
         // Convert names to a set for fast "contains" testing.
         Set<String> chrNameSet = new HashSet<String>(chromosomeNames);
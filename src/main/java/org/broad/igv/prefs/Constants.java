@@ -55,6 +55,8 @@ final public class Constants {
     public static final String CRAM_CACHE_SEQUENCES = "CRAM.CACHE_SEQUENCES";
     public static final String CRAM_CACHE_DIRECTORY = "CRAM.CACHE_DIRECTORY";
     public static final String CRAM_CACHE_SIZE = "CRAM.CACHE_SIZE";
+    public static final String CRAM_REFERENCE_MAPPED_SIZE = "CRAM.REFERENCE_MAPPED_SIZE";
+    public static final String CRAM_REFERENCE_DISK_SIZE = "CRAM.REFERENCE_DISK_SIZE";
 
     // Search ("go to") options
     public static final String SEARCH_ZOOM = "SEARCH_ZOOM";
@@ -92,6 +94,7 @@ final public class Constants {
     public static final String CHART_COLOR_TRACK_NAME = "CHART.COLOR_TRACK_NAME";
     public static final String CHART_AUTOSCALE = "CHART.AUTOSCALE";
     public static final String CHART_SHOW_DATA_RANGE = "CHART.SHOW_DATA_RANGE";
+    public static final String CHART_PERCENTILE_SKETCH = "CHART.PERCENTILE_SKETCH";
 
     // Alignment options
     public static final String SAM_ALLELE_THRESHOLD = "SAM.ALLELE_THRESHOLD";
@@ -152,6 +155,21 @@ final public class Constants {
     public static final String SAM_CLIPPING_THRESHOLD = "SAM.CLIPPING_THRESHOLD";
     public static final String SAM_SHOW_GROUP_SEPARATOR = "SAM.SHOW_GROUP_SEPARATOR";
     public static final String SAM_REDUCED_MEMORY_MODE = "SAM.REDUCED_MEMORY_MODE";
+    public static final String SAM_DECODE_THREADS = "SAM.DECODE_THREADS";
+    public static final String SAM_SPLIT_QUERY_COUNT = "SAM.SPLIT_QUERY_COUNT";
+    public static final String SAM_SPLIT_QUERY_MIN_SIZE = "SAM.SPLIT_QUERY_MIN_SIZE";
+    public static final String SAM_READER_POOL_SIZE = "SAM.READER_POOL_SIZE";
+    public static final String SAM_READER_POOL_GLOBAL_SIZE = "SAM.READER_POOL_GLOBAL_SIZE";
+    public static final String SAM_READER_POOL_IDLE_TIME = "SAM.READER_POOL_IDLE_TIME";
+    public static final String SAM_READER_POOL_WAIT_TIME = "SAM.READER_POOL_WAIT_TIME";
+    public static final String SAM_INDEX_CACHE_SIZE = "SAM.INDEX_CACHE_SIZE";
+    public static final String SAM_COMPACT_MEMORY_MODE = "SAM.COMPACT_MEMORY_MODE";
+    public static final String SAM_COMPACT_MEMORY_BUDGET = "SAM.COMPACT_MEMORY_BUDGET";
+    public static final String SAM_LAYOUT_CACHE_SIZE = "SAM.LAYOUT_CACHE_SIZE";
+    public static final String SAM_PREFETCH = "SAM.PREFETCH";
+    public static final String SAM_PREFETCH_MEMORY = "SAM.PREFETCH_MEMORY";
+    public static final String SAM_COMPACT_COUNTS = "SAM.COMPACT_COUNTS";
+    public static final String SAM_STRAND_COUNTS = "SAM.STRAND_COUNTS";
     public static final String SAM_HIDE_SMALL_INDEL = "SAM.HIDE_SMALL_INDEL";
     public static final String SAM_SMALL_INDEL_BP_THRESHOLD = "SAM.SMALL_INDEL_BP_THRESHOLD";
     public static final String SAM_SHOW_ALIGNMENT_TRACK = "SAM.SHOW_ALIGNMENT_TRACK";
@@ -218,6 +236,9 @@ final public class Constants {
     public static final String PROBE_MAPPING_FILE = "PROBE_MAPPING_FILE";
     public static final String USE_PROBE_MAPPING_FILE = "USE_PROBE_MAPPING_FILE";
 
+    // TDF settings
+    public static final String TDF_TILE_CACHE_SIZE = "TDF.TILE_CACHE_SIZE";
+
     // Genome space
     public static final String GENOME_SPACE_ENABLE = "GENOME_SPACE_ENABLE";
     public static final String GENOME_SPACE_DM_SERVER = "GENOME_SPACE_DM_SERVER";
@@ -286,7 +307,10 @@ final public class Constants {
             SAM_FILTER_SUPPLEMENTARY_ALIGNMENTS,
             SAM_JUNCTION_MIN_FLANKING_WIDTH,
             SAM_JUNCTION_MIN_COVERAGE,
-            SAM_BASEMOD_THRESHOLD
+            SAM_BASEMOD_THRESHOLD,
+            SAM_ALLELE_USE_QUALITY,
+            SAM_COMPACT_COUNTS,
+            SAM_STRAND_COUNTS
     );
 
     /**
@@ -34,7 +34,6 @@ import org.broad.igv.feature.Strand;
 import org.broad.igv.track.WindowFunction;
 
 import java.awt.*;
-import java.util.Map;
 
 /**
  * @author jrobinso
@@ -131,7 +130,7 @@ public interface Alignment extends LocusScore {
 
     default int getHapDistance() {return 0;}
 
-    default Map<Integer, BaseModification> getBaseModificationMap() { return null;}
+    default BaseModificationSet getBaseModificationSet() { return null;}
 
     default String getAlignmentValueString(double position, int mouseX, AlignmentTrack.RenderOptions renderOptions) {
         return getValueString(position, mouseX, (WindowFunction) null);
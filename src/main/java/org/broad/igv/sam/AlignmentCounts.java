@@ -25,6 +25,7 @@
 
 package org.broad.igv.sam;
 
+import htsjdk.samtools.SAMRecord;
 import htsjdk.tribble.Feature;
 
 /**
@@ -35,6 +36,15 @@ public interface AlignmentCounts extends Feature {
 
     void incCounts(Alignment alignment);
 
+    /**
+     * Count a mapped read directly from its SAM record, without building an alignment.
+     *
+     * @return false if the record was not counted and must be built into an alignment to be counted
+     */
+    default boolean incCounts(SAMRecord record) {
+        return false;
+    }
+
     int getTotalCount(int pos);
 
     int getTotalQuality(int pos);
@@ -38,6 +38,7 @@ import org.broad.igv.prefs.PreferencesManager;
 import org.broad.igv.sam.AlignmentTrack.SortOption;
 import org.broad.igv.sam.reader.AlignmentReader;
 import org.broad.igv.sam.reader.AlignmentReaderFactory;
+import org.broad.igv.sashimi.SashimiJunctionRenderer;
 import org.broad.igv.track.Track;
 import org.broad.igv.ui.panel.FrameManager;
 import org.broad.igv.ui.panel.ReferenceFrame;
@@ -70,6 +71,8 @@ public class AlignmentDataManager implements IGVEventObserver {
     private Map<String, PEStats> peStats;
     private SpliceJunctionHelper.LoadOptions loadOptions;
     private Range currentlyLoading;
+    private AlignmentPrefetcher prefetcher;
+    private SpliceJunctionSidecar junctionSidecar;
 
     public AlignmentDataManager(ResourceLocator locator, Genome genome) throws IOException {
         this.locator = locator;
@@ -78,6 +81,7 @@ public class AlignmentDataManager implements IGVEventObserver {
         // mechanism to refresh expired presigned URLs.
         reader = AlignmentReaderFactory.getReader(locator);
         loader = new AlignmentTileLoader(reader);
+        junctionSidecar = SpliceJunctionSidecar.find(locator);
         peStats = new HashMap();
         initLoadOptions();
         initChrMap(genome);
@@ -105,6 +109,7 @@ public class AlignmentDataManager implements IGVEventObserver {
     public void unsubscribe(Track track) {
         subscribedTracks.remove(track);
         if (subscribedTracks.isEmpty()) {
+            if (prefetcher != null) prefetcher.clear();
             dispose();
             dumpAlignments();
             IGVEventBus.getInstance().unsubscribe(this);
@@ -256,15 +261,17 @@ public class AlignmentDataManager implements IGVEventObserver {
     }
 
     public AlignmentInterval getLoadedInterval(ReferenceFrame frame, boolean includeOverlaps) {
+        // Intervals loaded from the junction file alone are no use once alignments or coverage are shown
+        boolean junctionsOnly = isJunctionsOnly();
         for (AlignmentInterval interval : intervalCache) {
-            if (interval.contains(frame.getCurrentRange())) {
+            if (interval.contains(frame.getCurrentRange()) && (junctionsOnly || !interval.isJunctionsOnly())) {
                 return interval;
             }
         }
         // No contains, look for overlap
         if (includeOverlaps) {
             for (AlignmentInterval interval : intervalCache) {
-                if (interval.overlaps(frame.getCurrentRange())) {
+                if (interval.overlaps(frame.getCurrentRange()) && (junctionsOnly || !interval.isJunctionsOnly())) {
                     return interval;
                 }
             }
@@ -320,9 +327,50 @@ public class AlignmentDataManager implements IGVEventObserver {
         }
     }
 
+    /**
+     * Repack currently loaded alignments, discarding cached layouts
+     *
+     * @param renderOptions
+     */
+    void repackAlignments(AlignmentTrack.RenderOptions renderOptions) {
+        for (AlignmentInterval interval : intervalCache) {
+            interval.repackAlignments(renderOptions);
+        }
+    }
+
 
     public boolean isLoaded(ReferenceFrame frame) {
-        return getLoadedInterval(frame) != null;
+        AlignmentInterval interval = getLoadedInterval(frame);
+        AlignmentPrefetcher prefetcher = getPrefetcher();
+        if (prefetcher != null) {
+            AlignmentTrack.RenderOptions renderOptions = alignmentTrack == null ? null : alignmentTrack.renderOptions;
+            if (interval == null && renderOptions != null) {
+                interval = prefetcher.take(frame);
+                if (interval != null) {
+                    intervalCache.add(interval);
+                    interval.packAlignments(renderOptions);
+                }
+            }
+            if (interval != null && renderOptions != null) {
+                prefetcher.frameChecked(frame, interval, renderOptions);
+            }
+        }
+        return interval != null;
+    }
+
+    /**
+     * Return the prefetcher, or null if prefetching is disabled
+     */
+    synchronized AlignmentPrefetcher getPrefetcher() {
+        if (PreferencesManager.getPreferences().getAsBoolean(SAM_PREFETCH)) {
+            if (prefetcher == null) {
+                prefetcher = new AlignmentPrefetcher(this);
+            }
+        } else if (prefetcher != null) {
+            prefetcher.clear();
+            prefetcher = null;
+        }
+        return prefetcher;
     }
 
     public void load(ReferenceFrame frame,
@@ -364,6 +412,9 @@ public class AlignmentDataManager implements IGVEventObserver {
             }
 
             AlignmentInterval loadedInterval = loadInterval(chr, adjustedStart, adjustedEnd, renderOptions);
+            if (Thread.currentThread().isInterrupted()) {
+                return;  // Load was interrupted, the interval is partial
+            }
 
             trimCache();
 
@@ -388,6 +439,8 @@ public class AlignmentDataManager implements IGVEventObserver {
         for (AlignmentInterval interval : intervalCache) {
             if (intervalInView(interval)) {
                 trimmedIntervals.add(interval);
+            } else if (prefetcher != null && !interval.isJunctionsOnly()) {
+                prefetcher.retain(interval);
             }
         }
         intervalCache = trimmedIntervals;
@@ -406,6 +459,60 @@ public class AlignmentDataManager implements IGVEventObserver {
 
 
     AlignmentInterval loadInterval(String chr, int start, int end, AlignmentTrack.RenderOptions renderOptions) {
+        if (isJunctionsOnly()) {
+            return loadJunctions(chr, start, end);
+        }
+        return loadInterval(chr, start, end, renderOptions, getLoader(), peStats);
+    }
+
+    /**
+     * @return true if junctions are all that is displayed, and a current junction file is available to load them from
+     */
+    boolean isJunctionsOnly() {
+        if (junctionSidecar == null || !junctionSidecar.isCurrent(loadOptions.minReadFlankingWidth)) {
+            return false;
+        }
+        boolean junctionsVisible = false;
+        synchronized (subscribedTracks) {
+            for (Track track : subscribedTracks) {
+                if (!track.isVisible()) {
+                    continue;
+                }
+                // The Sashimi plot draws coverage, computed from the alignments, as well as junctions
+                if (!(track instanceof SpliceJunctionTrack) ||
+                        ((SpliceJunctionTrack) track).getRenderer() instanceof SashimiJunctionRenderer) {
+                    return false;
+                }
+                junctionsVisible = true;
+            }
+        }
+        return junctionsVisible;
+    }
+
+    /**
+     * Load an interval with junctions read from the junction file, without reading the alignments
+     */
+    private AlignmentInterval loadJunctions(String chr, int start, int end) {
+
+        String sequence = chrMappings.containsKey(chr) ? chrMappings.get(chr) : chr;
+
+        SpliceJunctionHelper spliceJunctionHelper = new SpliceJunctionHelper(this.loadOptions);
+        try {
+            spliceJunctionHelper.addJunctions(chr, junctionSidecar.getJunctions(sequence, start, end));
+        } catch (IOException e) {
+            log.error("Error reading junction file " + junctionSidecar.getPath(), e);
+        }
+
+        AlignmentCounts counts = new SparseAlignmentCounts(start, end, null);
+        counts.finish();
+        AlignmentInterval interval = new AlignmentInterval(chr, start, end, new ArrayList<>(), counts,
+                spliceJunctionHelper, new ArrayList<>());
+        interval.setJunctionsOnly(true);
+        return interval;
+    }
+
+    AlignmentInterval loadInterval(String chr, int start, int end, AlignmentTrack.RenderOptions renderOptions,
+                                   AlignmentTileLoader loader, Map<String, PEStats> peStats) {
 
         String sequence = chrMappings.containsKey(chr) ? chrMappings.get(chr) : chr;
 
@@ -416,13 +523,31 @@ public class AlignmentDataManager implements IGVEventObserver {
 
         SpliceJunctionHelper spliceJunctionHelper = new SpliceJunctionHelper(this.loadOptions);
 
-        AlignmentTileLoader.AlignmentTile t = getLoader().loadTile(sequence, start, end, spliceJunctionHelper,
-                downsampleOptions, peStats, bisulfiteContext);
+        // Use precomputed junctions if available, rather than computing them from the alignments
+        boolean useSidecar = junctionSidecar != null && junctionSidecar.isCurrent(this.loadOptions.minReadFlankingWidth);
+
+        AlignmentTileLoader.AlignmentTile t = loader.loadTile(sequence, start, end,
+                useSidecar ? null : spliceJunctionHelper, downsampleOptions, peStats, bisulfiteContext);
+
+        if (useSidecar) {
+            try {
+                spliceJunctionHelper.addJunctions(chr, junctionSidecar.getJunctions(sequence, start, end));
+            } catch (IOException e) {
+                log.error("Error reading junction file " + junctionSidecar.getPath(), e);
+            }
+        }
       List<Alignment> alignments = t.getAlignments();
         List<DownsampledInterval> downsampledIntervals = t.getDownsampledIntervals();
         return new AlignmentInterval(chr, start, end, alignments, t.getCounts(), spliceJunctionHelper, downsampledIntervals);
     }
 
+    /**
+     * Create an additional loader for this file, for loads that must be cancellable independently
+     */
+    AlignmentTileLoader createLoader() {
+        return new AlignmentTileLoader(reader);
+    }
+
     public AlignmentTrack.ExperimentType inferType() {
         ReadStats readStats = new ReadStats();
         List<Alignment> sample = AlignmentUtils.firstAlignments(reader, 1000);
@@ -460,6 +585,8 @@ public class AlignmentDataManager implements IGVEventObserver {
 
     public void clear() {
         intervalCache.clear();
+        // Recent and prefetched intervals were loaded with the old settings
+        if (prefetcher != null) prefetcher.clear();
     }
 
     public void dumpAlignments() {
@@ -534,6 +661,13 @@ public class AlignmentDataManager implements IGVEventObserver {
                 log.error("Error closing AlignmentQueryReader. ", ex);
             }
         }
+        if (junctionSidecar != null) {
+            try {
+                junctionSidecar.close();
+            } catch (IOException ex) {
+                log.error("Error closing junction file. ", ex);
+            }
+        }
     }
 
     public void updatePEStats(AlignmentTrack.RenderOptions renderOptions) {
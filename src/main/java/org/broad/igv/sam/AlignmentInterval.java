@@ -30,9 +30,13 @@ import org.broad.igv.feature.Locus;
 import org.broad.igv.feature.Range;
 import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.feature.genome.GenomeManager;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.util.collections.LRUCache;
 
 import java.util.*;
 
+import static org.broad.igv.prefs.Constants.SAM_LAYOUT_CACHE_SIZE;
+
 /**
  * @author jrobinso
  */
@@ -45,8 +49,20 @@ public class AlignmentInterval extends Locus {
     private List<Alignment> alignments;
     private SpliceJunctionHelper spliceJunctionHelper;
     private List<DownsampledInterval> downsampledIntervals;
+    private boolean junctionsOnly;
     private PackedAlignments packedAlignments;
 
+    /**
+     * Previously packed layouts, keyed by the render options that determine the layout
+     */
+    private LRUCache<String, PackedAlignments> layoutCache;
+
+    /**
+     * All intervals, so cached layouts can be released when memory is low
+     */
+    private static final Set<AlignmentInterval> allIntervals =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
     public AlignmentInterval(String chr, int start, int end,
                              List<Alignment> alignments,
                              AlignmentCounts counts,
@@ -59,6 +75,18 @@ public class AlignmentInterval extends Locus {
         this.counts = counts;
         this.spliceJunctionHelper = spliceJunctionHelper;
         this.downsampledIntervals = downsampledIntervals;
+        allIntervals.add(this);
+    }
+
+    /**
+     * @return true if this interval holds junctions read from a junction file, and no alignments or coverage
+     */
+    public boolean isJunctionsOnly() {
+        return junctionsOnly;
+    }
+
+    void setJunctionsOnly(boolean junctionsOnly) {
+        this.junctionsOnly = junctionsOnly;
     }
 
     static Alignment getFeatureContaining(List<Alignment> features, int right) {
@@ -163,10 +191,92 @@ public class AlignmentInterval extends Locus {
         return new Range(getChr(), getStart(), getEnd());
     }
 
-    public void packAlignments(AlignmentTrack.RenderOptions renderOptions) {
+    /**
+     * Pack alignments into rows.  A layout previously packed with the same grouping, pairing, and linking options is
+     * reused, as is any row sort applied to it.
+     */
+    public synchronized void packAlignments(AlignmentTrack.RenderOptions renderOptions) {
+
+        final String key = getLayoutKey(renderOptions);
+        int cacheSize = PreferencesManager.getPreferences().getAsInt(SAM_LAYOUT_CACHE_SIZE);
+        if (key == null || cacheSize <= 0) {
+            layoutCache = null;
+        } else {
+            if (layoutCache == null) {
+                layoutCache = new LRUCache<>(cacheSize);
+            } else {
+                layoutCache.setMaxEntries(cacheSize);
+            }
+            PackedAlignments cached = layoutCache.get(key);
+            if (cached != null) {
+                this.packedAlignments = cached;
+                return;
+            }
+        }
 
         final AlignmentPacker alignmentPacker = new AlignmentPacker();
         this.packedAlignments = alignmentPacker.packAlignments(this, renderOptions);
+
+        if (layoutCache != null) {
+            layoutCache.put(key, packedAlignments);
+        }
+    }
+
+    /**
+     * Pack alignments into rows, discarding any cached layouts.
+     */
+    public synchronized void repackAlignments(AlignmentTrack.RenderOptions renderOptions) {
+        layoutCache = null;
+        packAlignments(renderOptions);
+    }
+
+    /**
+     * Return a key identifying the layout produced by these render options, or null if the layout depends on state
+     * that can change without a change in options (haplotype grouping, which follows re-clustering).
+     */
+    static String getLayoutKey(AlignmentTrack.RenderOptions renderOptions) {
+        AlignmentTrack.GroupOption groupBy = renderOptions.getGroupByOption();
+        if (groupBy == AlignmentTrack.GroupOption.HAPLOTYPE) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(groupBy);
+        if (groupBy == AlignmentTrack.GroupOption.TAG) {
+            key.append(':').append(renderOptions.getGroupByTag());
+        } else if (groupBy == AlignmentTrack.GroupOption.BASE_AT_POS) {
+            Range pos = renderOptions.getGroupByPos();
+            key.append(':').append(pos == null ? null : pos.getChr() + ":" + pos.getStart());
+        } else if (groupBy == AlignmentTrack.GroupOption.PAIR_ORIENTATION) {
+            // Pair orientation groups depend on the expected orientation of each library, which changes as
+            // paired-end stats accumulate
+            Map<String, PEStats> peStats = renderOptions.peStats;
+            if (peStats != null) {
+                for (String library : new TreeSet<>(peStats.keySet())) {
+                    PEStats stats = peStats.get(library);
+                    key.append(':').append(library).append('=').append(stats == null ? null : stats.getOrientation());
+                }
+            }
+        }
+        key.append('|').append(renderOptions.isViewPairs());
+        if (renderOptions.isLinkedReads()) {
+            key.append('|').append(renderOptions.getLinkByTag());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Release cached layouts other than the current one of each interval.  Called when memory is low.
+     */
+    public static void releaseCachedLayouts() {
+        List<AlignmentInterval> intervals;
+        synchronized (allIntervals) {
+            intervals = new ArrayList<>(allIntervals);
+        }
+        for (AlignmentInterval interval : intervals) {
+            synchronized (interval) {
+                interval.layoutCache = null;
+            }
+        }
     }
 
     public PackedAlignments getPackedAlignments() {
@@ -176,6 +286,7 @@ public class AlignmentInterval extends Locus {
     public void dumpAlignments() {
         if (this.alignments != null) this.alignments.clear();
         this.packedAlignments = null;
+        this.layoutCache = null;
     }
 
 
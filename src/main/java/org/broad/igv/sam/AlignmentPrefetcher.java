@@ -0,0 +1,357 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.feature.Range;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.ui.panel.ReferenceFrame;
+import org.broad.igv.util.RuntimeUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.broad.igv.prefs.Constants.SAM_PREFETCH_MEMORY;
+
+/**
+ * Speculative loading of alignment intervals for an {@link AlignmentDataManager}.
+ * <p/>
+ * The prefetcher follows the origin of each reference frame as it is rendered.  Once a frame moves, the interval
+ * that would be loaded for a view centered on the edge of the current interval, in the direction of travel, is
+ * loaded on a single low priority background thread.  A change of direction or chromosome cancels a prefetch in
+ * progress.
+ * <p/>
+ * Prefetched intervals, and intervals that have scrolled out of view, are kept in a ring of recent intervals bounded
+ * by an estimated memory budget (SAM.PREFETCH_MEMORY, MB).  The data manager looks here before loading, and clears
+ * the prefetcher along with its own cache when alignments must be reloaded.
+ * <p/>
+ * Prefetches use quiet loaders: they show no messages and give up, rather than cancelling other loads, when
+ * memory is low.
+ */
+public class AlignmentPrefetcher {
+
+    private static Logger log = Logger.getLogger(AlignmentPrefetcher.class);
+
+    private static final AtomicLong prefetchCount = new AtomicLong();
+    private static final AtomicLong cancelCount = new AtomicLong();
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong recentHitCount = new AtomicLong();
+    private static final AtomicLong wastedBytes = new AtomicLong();
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "alignment-prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static final Set<AlignmentPrefetcher> allPrefetchers =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private final AlignmentDataManager dataManager;
+
+    // Most recently used first
+    private final LinkedList<Entry> recent = new LinkedList<>();
+    private long recentBytes = 0;
+
+    private final Map<String, FrameState> frameStates = new HashMap<>();
+    private PrefetchTask pending;
+
+    AlignmentPrefetcher(AlignmentDataManager dataManager) {
+        this.dataManager = dataManager;
+        allPrefetchers.add(this);
+    }
+
+    /**
+     * Called whenever the frame is checked for loaded data, which happens on every repaint.  Tracks the direction
+     * of movement and schedules a prefetch of the next interval when the frame has moved.
+     *
+     * @param interval the loaded interval containing the frame's current range
+     */
+    synchronized void frameChecked(ReferenceFrame frame, AlignmentInterval interval,
+                                   AlignmentTrack.RenderOptions renderOptions) {
+
+        String chr = frame.getChrName();
+        double origin = frame.getOrigin();
+        FrameState state = frameStates.get(frame.getName());
+        if (state == null || !chr.equals(state.chr)) {
+            if (state != null) {
+                cancelPending();
+            }
+            frameStates.put(frame.getName(), new FrameState(chr, origin));
+            return;
+        }
+
+        double delta = origin - state.origin;
+        if (delta == 0) {
+            return;
+        }
+        state.origin = origin;
+        int direction = delta > 0 ? 1 : -1;
+        if (direction != state.direction) {
+            state.direction = direction;
+            cancelPending();
+        }
+
+        int length = interval.getEnd() - interval.getStart();
+        int edge = direction > 0 ? interval.getEnd() : interval.getStart();
+        int start = Math.max(0, edge - length / 2);
+        int end = Math.min(frame.getChromosomeLength(), edge + length / 2);
+        if (end <= start) {
+            return;
+        }
+        Range target = new Range(interval.getChr(), start, end);
+        if (isCovered(target)) {
+            return;
+        }
+        schedule(target, renderOptions);
+    }
+
+    private boolean isCovered(Range target) {
+        if (pending != null && !pending.done && pending.range.contains(target)) {
+            return true;
+        }
+        for (Entry e : recent) {
+            if (e.interval.contains(target)) {
+                return true;
+            }
+        }
+        for (AlignmentInterval interval : dataManager.getLoadedIntervals()) {
+            if (interval.contains(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void schedule(Range target, AlignmentTrack.RenderOptions renderOptions) {
+        cancelPending();
+        PrefetchTask task = new PrefetchTask(target, renderOptions);
+        task.future = executor.submit(task);
+        pending = task;
+    }
+
+    private void cancelPending() {
+        if (pending != null && !pending.done) {
+            pending.cancel();
+            cancelCount.incrementAndGet();
+        }
+        pending = null;
+    }
+
+    /**
+     * Remove and return a recent or prefetched interval containing the frame's current range, if any
+     */
+    synchronized AlignmentInterval take(ReferenceFrame frame) {
+        Range range = frame.getCurrentRange();
+        Iterator<Entry> iter = recent.iterator();
+        while (iter.hasNext()) {
+            Entry e = iter.next();
+            if (e.interval.contains(range)) {
+                iter.remove();
+                recentBytes -= e.bytes;
+                if (e.prefetched) {
+                    hitCount.incrementAndGet();
+                } else {
+                    recentHitCount.incrementAndGet();
+                }
+                return e.interval;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep an interval that has scrolled out of view
+     */
+    synchronized void retain(AlignmentInterval interval) {
+        add(new Entry(interval, false));
+    }
+
+    private void add(Entry entry) {
+        recent.addFirst(entry);
+        recentBytes += entry.bytes;
+        long budget = (long) PreferencesManager.getPreferences().getAsInt(SAM_PREFETCH_MEMORY) * 1000000;
+        while (recentBytes > budget && !recent.isEmpty()) {
+            Entry e = recent.removeLast();
+            recentBytes -= e.bytes;
+            if (e.prefetched) {
+                // Prefetched but never viewed
+                wastedBytes.addAndGet(e.bytes);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        cancelPending();
+        for (Entry e : recent) {
+            if (e.prefetched) {
+                wastedBytes.addAndGet(e.bytes);
+            }
+        }
+        recent.clear();
+        recentBytes = 0;
+        frameStates.clear();
+    }
+
+    /**
+     * Release all recent and prefetched intervals.  Called when memory is low.
+     */
+    public static void releaseAll() {
+        List<AlignmentPrefetcher> prefetchers;
+        synchronized (allPrefetchers) {
+            prefetchers = new ArrayList<>(allPrefetchers);
+        }
+        for (AlignmentPrefetcher p : prefetchers) {
+            p.clear();
+        }
+    }
+
+    public static long getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    public static long getCancelCount() {
+        return cancelCount.get();
+    }
+
+    /**
+     * @return number of prefetched intervals that were subsequently viewed
+     */
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of views served from recently viewed (not prefetched) intervals
+     */
+    public static long getRecentHitCount() {
+        return recentHitCount.get();
+    }
+
+    /**
+     * @return fraction of completed prefetches that were viewed
+     */
+    public static double getHitRate() {
+        long n = prefetchCount.get();
+        return n == 0 ? 0 : ((double) hitCount.get()) / n;
+    }
+
+    /**
+     * @return estimated bytes of prefetched intervals discarded without being viewed
+     */
+    public static long getWastedBytes() {
+        return wastedBytes.get();
+    }
+
+    /**
+     * Rough heap footprint of an interval, for the memory budget.  Compact alignments keep most of their data
+     * outside the heap, but it is counted here too.
+     */
+    static long estimateBytes(AlignmentInterval interval) {
+        List<Alignment> alignments = interval.getAlignments();
+        if (alignments == null || alignments.isEmpty()) {
+            return 0;
+        }
+        int bytesPerAlignment = alignments.get(0) instanceof CompactAlignment ? 300 : 1000;
+        return (long) alignments.size() * bytesPerAlignment;
+    }
+
+    private static class Entry {
+        final AlignmentInterval interval;
+        final boolean prefetched;
+        final long bytes;
+
+        Entry(AlignmentInterval interval, boolean prefetched) {
+            this.interval = interval;
+            this.prefetched = prefetched;
+            this.bytes = estimateBytes(interval);
+        }
+    }
+
+    private static class FrameState {
+        final String chr;
+        double origin;
+        int direction = 0;
+
+        FrameState(String chr, double origin) {
+            this.chr = chr;
+            this.origin = origin;
+        }
+    }
+
+    private class PrefetchTask implements Runnable {
+
+        final Range range;
+        final AlignmentTrack.RenderOptions renderOptions;
+        // Each prefetch has its own loader so cancelling it does not affect foreground loads
+        final AlignmentTileLoader loader;
+        Future<?> future;
+        volatile boolean cancelled = false;
+        volatile boolean done = false;
+
+        PrefetchTask(Range range, AlignmentTrack.RenderOptions renderOptions) {
+            this.range = range;
+            this.renderOptions = renderOptions;
+            this.loader = dataManager.createLoader();
+            this.loader.setQuiet(true);
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+            loader.cancelLoad();
+        }
+
+        public void run() {
+            try {
+                if (cancelled || RuntimeUtils.getAvailableMemoryFraction() < 0.3) {
+                    return;
+                }
+                AlignmentInterval interval = dataManager.loadInterval(range.getChr(), range.getStart(), range.getEnd(),
+                        renderOptions, loader, null);
+                if (cancelled || loader.isIncomplete()) {
+                    // Partial result
+                    return;
+                }
+                interval.packAlignments(renderOptions);
+                synchronized (AlignmentPrefetcher.this) {
+                    if (!cancelled) {
+                        prefetchCount.incrementAndGet();
+                        add(new Entry(interval, true));
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error prefetching alignments", e);
+            } finally {
+                done = true;
+            }
+        }
+    }
+}
@@ -880,8 +880,8 @@ public class AlignmentRenderer {
 
         // Base modification
         if (renderOptions.getColorOption() == ColorOption.BASE_MODIFICATION) {
-            Map<Integer, BaseModification> baseModifications = alignment.getBaseModificationMap();
-            if (baseModifications != null) {
+            BaseModificationSet baseModifications = alignment.getBaseModificationSet();
+            if (baseModifications != null && baseModifications.size() > 0) {
                 double threshold = 256 * PreferencesManager.getPreferences().getAsFloat("SAM.BASEMOD_THRESHOLD");
                 for (AlignmentBlock block : alignment.getAlignmentBlocks()) {
                     // Compute bounds
@@ -890,35 +890,37 @@ public class AlignmentRenderer {
                     dX = (int) Math.max(1, (1.0 / locScale));
                     Graphics g = context.getGraphics();
 
-                    for (int i = block.getBases().startOffset; i < block.getBases().startOffset + block.getBases().length; i++) {
+                    int blockOffset = block.getBases().startOffset;
+                    int blockEnd = blockOffset + block.getBases().length;
+                    for (int m = baseModifications.firstIndex(blockOffset); m < baseModifications.size(); m++) {
 
-                        if (baseModifications.containsKey(i)) {
+                        int i = baseModifications.getPosition(m);
+                        if (i >= blockEnd) break;
 
-                            BaseModification mod = baseModifications.get(i);
-                            int l = Byte.toUnsignedInt(mod.likelihood);
-                            if(l < threshold) continue;
+                        byte likelihood = baseModifications.getLikelihood(m);
+                        int l = Byte.toUnsignedInt(likelihood);
+                        if(l < threshold) continue;
 
-                            Color c = BaseModification.getModColor(mod.modification, mod.likelihood);
-                            g.setColor(c);
+                        Color c = BaseModification.getModColor(baseModifications.getModification(m), likelihood);
+                        g.setColor(c);
 
-                            int blockIdx = i - block.getBases().startOffset;
-                            int pX = (int) ((block.getStart() + blockIdx - bpStart) / locScale);
+                        int blockIdx = i - blockOffset;
+                        int pX = (int) ((block.getStart() + blockIdx - bpStart) / locScale);
 
-                            // Don't draw out of clipping rect
-                            if (pX > rowRect.getMaxX()) {
-                                break;
-                            } else if (pX + dX < rowRect.getX()) {
-                                continue;
-                            }
-
-                            // Expand narrow width to make more visible
-                            if(dX < 3) {
-                                dX = 3;
-                                pX--;
-                            }
+                        // Don't draw out of clipping rect
+                        if (pX > rowRect.getMaxX()) {
+                            break;
+                        } else if (pX + dX < rowRect.getX()) {
+                            continue;
+                        }
 
-                            g.fillRect(pX, pY, dX, Math.max(1, dY-2));
+                        // Expand narrow width to make more visible
+                        if(dX < 3) {
+                            dX = 3;
+                            pX--;
                         }
+
+                        g.fillRect(pX, pY, dX, Math.max(1, dY-2));
                     }
                 }
             }
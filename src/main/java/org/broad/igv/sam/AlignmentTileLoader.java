@@ -25,7 +25,9 @@
 
 package org.broad.igv.sam;
 
+import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.CloseableIterator;
 import org.apache.log4j.Logger;
 import org.broad.igv.Globals;
@@ -38,7 +40,6 @@ import org.broad.igv.event.IGVEventBus;
 import org.broad.igv.event.IGVEventObserver;
 import org.broad.igv.event.StopEvent;
 import org.broad.igv.ui.util.MessageUtils;
-import org.broad.igv.util.ObjectCache;
 import org.broad.igv.util.RuntimeUtils;
 
 import javax.swing.*;
@@ -46,6 +47,8 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
 
 import static org.broad.igv.prefs.Constants.*;
 
@@ -68,7 +71,9 @@ public class AlignmentTileLoader implements IGVEventObserver {
     private boolean corruptIndex = false;
 
     private AlignmentReader reader;
-    private boolean cancel = false;
+    private volatile boolean cancel = false;
+    private boolean quiet = false;
+    private volatile boolean incomplete = false;
     private boolean pairedEnd = false;
     private boolean tenX = false;
     private boolean phased = false;
@@ -98,6 +103,28 @@ public class AlignmentTileLoader implements IGVEventObserver {
         reader.close();
     }
 
+    /**
+     * Cancel a load in progress on this loader.  Other loaders are not affected.
+     */
+    void cancelLoad() {
+        cancel = true;
+    }
+
+    /**
+     * A quiet loader, used for background loads, reports neither progress nor errors to the user.  When memory is
+     * low it abandons its own load rather than releasing caches and cancelling other loads.
+     */
+    void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    /**
+     * @return true if the last load stopped early, because it was cancelled, ran low on memory, or failed
+     */
+    boolean isIncomplete() {
+        return incomplete;
+    }
+
     public SAMFileHeader getFileHeader() {
         return this.reader.getFileHeader();
     }
@@ -127,17 +154,12 @@ public class AlignmentTileLoader implements IGVEventObserver {
                            AlignmentTrack.BisulfiteContext bisulfiteContext) {
 
         final IGVPreferences prefMgr = PreferencesManager.getPreferences();
-        boolean filterFailedReads = prefMgr.getAsBoolean(SAM_FILTER_FAILED_READS);
-        boolean filterSecondaryAlignments = prefMgr.getAsBoolean(SAM_FILTER_SECONDARY_ALIGNMENTS);
-        boolean filterSupplementaryAlignments = prefMgr.getAsBoolean(SAM_FILTER_SUPPLEMENTARY_ALIGNMENTS);
-        ReadGroupFilter filter = ReadGroupFilter.getFilter();
-        boolean filterDuplicates = prefMgr.getAsBoolean(SAM_FILTER_DUPLICATES);
-        int qualityThreshold = prefMgr.getAsInt(SAM_QUALITY_THRESHOLD);
-        int alignmentScoreTheshold = prefMgr.getAsInt(SAM_ALIGNMENT_SCORE_THRESHOLD);
+        RecordFilter recordFilter = new RecordFilter(prefMgr);
 
         boolean reducedMemory = prefMgr.getAsBoolean(SAM_REDUCED_MEMORY_MODE);
+        boolean compactMemory = !reducedMemory && prefMgr.getAsBoolean(SAM_COMPACT_MEMORY_MODE);
 
-        AlignmentTile t = new AlignmentTile(start, end, spliceJunctionHelper, downsampleOptions, bisulfiteContext, reducedMemory);
+        AlignmentTile t = new AlignmentTile(start, end, spliceJunctionHelper, downsampleOptions, bisulfiteContext, reducedMemory, compactMemory);
 
         //assert (tiles.size() > 0);
         if (corruptIndex) {
@@ -145,129 +167,121 @@ public class AlignmentTileLoader implements IGVEventObserver {
         }
 
         CloseableIterator<Alignment> iter = null;
+        CloseableIterator<SAMRecord> recordIter = null;
+        incomplete = false;
 
         //log.debug("Loading : " + start + " - " + end);
         int alignmentCount = 0;
         WeakReference<AlignmentTileLoader> ref = new WeakReference(this);
         try {
-            ObjectCache<String, Alignment> mappedMates = new ObjectCache<String, Alignment>(1000);
-            ObjectCache<String, Alignment> unmappedMates = new ObjectCache<String, Alignment>(1000);
+            MateResolver mateResolver = MateResolver.forInterval(start, end);
 
             activeLoaders.add(ref);
             IGVEventBus.getInstance().subscribe(StopEvent.class, this);
 
-            if (IGV.hasInstance()) {
+            if (!quiet && IGV.hasInstance()) {
                 IGV.getInstance().enableStopButton(true);
             }
 
-            MessageUtils.setStatusBarMessage("Reading...");
+            setStatusBarMessage("Reading...");
 
-            iter = reader.query(chr, start, end, false);
-            MessageUtils.setStatusBarMessage("Iterating...");
+            // When downsampling most reads of a deep region are discarded.  Read raw records so that only reads
+            // entering the sampling reservoir are built into alignments.
+            if (t.downsample) {
+                recordIter = reader.queryRecords(chr, start, end);
+            }
+            if (recordIter == null) {
+                iter = reader.query(chr, start, end, false);
+            }
+            setStatusBarMessage("Iterating...");
 
-            while (iter != null && iter.hasNext()) {
+            while (recordIter != null && recordIter.hasNext()) {
 
                 if (cancel) {
+                    incomplete = true;
                     break;
                 }
 
-                Alignment record = iter.next();
+                SAMRecord record = recordIter.next();
 
-                // Set mate sequence of unmapped mates
-                // Put a limit on the total size of this collection.
-                String readName = record.getReadName();
-                if (record.isPaired()) {
+                // Records taking part in mate resolution are built now, and added as alignments below
+                Alignment alignment = null;
+                if (record.getReadPairedFlag()) {
                     pairedEnd = true;
-                    if (record.isMapped()) {
-                        if (!record.getMate().isMapped()) {
-                            // record is mapped, mate is not
-                            Alignment mate = unmappedMates.get(readName);
-                            if (mate == null) {
-                                mappedMates.put(readName, record);
-                            } else {
-                                record.setMateSequence(mate.getReadSequence());
-                                unmappedMates.remove(readName);
-                                mappedMates.remove(readName);
-                            }
-
-                        }
-                    } else if (record.getMate().isMapped()) {
-                        // record not mapped, mate is
-                        Alignment mappedMate = mappedMates.get(readName);
-                        if (mappedMate == null) {
-                            unmappedMates.put(readName, record);
-                        } else {
-                            mappedMate.setMateSequence(record.getReadSequence());
-                            unmappedMates.remove(readName);
-                            mappedMates.remove(readName);
-                        }
+                    if (record.getReadUnmappedFlag() != record.getMateUnmappedFlag()) {
+                        alignment = new SAMAlignment(record);
+                        mateResolver.add(alignment);
                     }
                 }
 
-                if (!ycTags && record.getAttribute("YC") != null) {
-                    ycTags = true;
+                if (recordFilter.filter(record)) {
+                    continue;
                 }
 
-                // TODO -- this is not reliable tests for TenX.  Other platforms might use BX
-                if (!tenX && record.getAttribute("BX") != null) {
-                    tenX = true;
-                }
-                if (tenX && !phased && record.getAttribute("HP") != null) {
-                    phased = true;
+                // File-level tag flags are checked on records that pass the filters, as for alignments below, except
+                // that records discarded by downsampling are skipped.  Their tags are not decoded: counting and the
+                // pair statistics read only the undecoded tag data.  Exceptions are records built for mate
+                // resolution, and the read group and alignment score filters, which when enabled decode the tags of
+                // every record.
+                if (alignment != null) {
+                    checkTags(alignment::getAttribute);
+                    Alignment stored = t.addRecord(alignment, reducedMemory);
+                    if (stored != alignment) {
+                        mateResolver.replace(alignment, stored);
+                    }
+                } else if (t.addRecord(record, reducedMemory) != null) {
+                    checkTags(record::getAttribute);
                 }
 
+                alignmentCount++;
+                if (alignmentCount % progressInterval() == 0 && checkProgress(alignmentCount)) {
+                    t.finish();
+                    return t;
+                }
 
-                if (!record.isMapped() ||
-                        (filterDuplicates && record.isDuplicate()) ||
-                        (filterFailedReads && record.isVendorFailedRead()) ||
-                        (filterSecondaryAlignments && !record.isPrimary()) ||
-                        (filterSupplementaryAlignments && record.isSupplementary()) ||
-                        record.getMappingQuality() < qualityThreshold ||
-                        (filter != null && filter.filterAlignment(record))) {
-                    continue;
+                // Update pe stats
+                if (peStats != null && record.getReadPairedFlag() && record.getProperPairFlag()) {
+                    getPEStats(peStats, RawTags.getLibrary(record))
+                            .update(record.getInferredInsertSize(), SAMAlignment.getPairOrientation(record));
                 }
+            }
 
-                // Alignment score (optional tag)
-                if (alignmentScoreTheshold > 0) {
+            while (iter != null && iter.hasNext()) {
 
-                    Object alignmentScoreObj = record.getAttribute("AS");
+                if (cancel) {
+                    incomplete = true;
+                    break;
+                }
 
-                    if (alignmentScoreObj != null) {
-                        int as = ((Number) alignmentScoreObj).intValue();
-                        if (as < alignmentScoreTheshold) {
-                            continue;
-                        }
-                    }
+                Alignment record = iter.next();
 
+                // Set mate sequence of unmapped mates
+                if (record.isPaired()) {
+                    pairedEnd = true;
+                    mateResolver.add(record);
                 }
 
-                t.addRecord(record, reducedMemory);
+                if (recordFilter.filter(record)) {
+                    continue;
+                }
+
+                checkTags(record::getAttribute);
+
+                Alignment stored = t.addRecord(record, reducedMemory);
+                if (stored != record) {
+                    // The mate sequence, if found later, must be set on the stored copy
+                    mateResolver.replace(record, stored);
+                }
 
                 alignmentCount++;
-                int interval = Globals.isTesting() ? 100000 : 1000;
-                if (alignmentCount % interval == 0) {
-                    String msg = "Reads loaded: " + alignmentCount;
-                    //System.out.println(msg);
-                    MessageUtils.setStatusBarMessage(msg);
-                    if (memoryTooLow()) {
-                        Runtime.getRuntime().gc();
-                        cancelReaders();
-                        t.finish();
-                        return t;
-                    }
+                if (alignmentCount % progressInterval() == 0 && checkProgress(alignmentCount)) {
+                    t.finish();
+                    return t;
                 }
 
                 // Update pe stats
                 if (peStats != null && record.isPaired() && record.isProperPair()) {
-                    String lb = record.getLibrary();
-                    if (lb == null) lb = "null";
-                    PEStats stats = peStats.get(lb);
-                    if (stats == null) {
-                        stats = new PEStats(lb);
-                        peStats.put(lb, stats);
-                    }
-                    stats.update(record);
-
+                    getPEStats(peStats, record.getLibrary()).update(record);
                 }
             }
             // End iteration over alignments
@@ -283,16 +297,6 @@ public class AlignmentTileLoader implements IGVEventObserver {
                 }
             }
 
-            // Clean up any remaining unmapped mate sequences
-            for (String mappedMateName : mappedMates.getKeys()) {
-                Alignment mappedMate = mappedMates.get(mappedMateName);
-                if (mappedMate != null) {
-                    Alignment mate = unmappedMates.get(mappedMate.getReadName());
-                    if (mate != null) {
-                        mappedMate.setMateSequence(mate.getReadSequence());
-                    }
-                }
-            }
             t.finish();
 
             // TODO -- make this optional (on a preference)
@@ -302,15 +306,21 @@ public class AlignmentTileLoader implements IGVEventObserver {
         } catch (java.nio.BufferUnderflowException e) {
             // This almost always indicates a corrupt BAM index, or less frequently a corrupt bam file
             corruptIndex = true;
-            MessageUtils.showMessage("<html>Error encountered querying alignments: " + e.toString() +
+            incomplete = true;
+            showMessage("<html>Error encountered querying alignments: " + e.toString() +
                     "<br>This is often caused by a corrupt index file.");
 
+        } catch (CancellationException e) {
+            // Interrupted, not an error.  The interrupt flag is set so the caller can discard the partial tile.
+            incomplete = true;
         } catch (htsjdk.samtools.cram.CRAMException e) {
             log.error("Error loading alignment data", e);
-            MessageUtils.showMessage("<html>Error - possible sequence mismatch (wrong reference for this file): " + e.toString());
+            incomplete = true;
+            showMessage("<html>Error - possible sequence mismatch (wrong reference for this file): " + e.toString());
         } catch (Exception e) {
             log.error("Error loading alignment data", e);
-            MessageUtils.showMessage("<html>Error encountered querying alignments: " + e.toString());
+            incomplete = true;
+            showMessage("<html>Error encountered querying alignments: " + e.toString());
         } finally {
             // reset cancel flag.  It doesn't matter how we got here,  the read is complete and this flag is reset
             // for the next time
@@ -327,7 +337,10 @@ public class AlignmentTileLoader implements IGVEventObserver {
             if (iter != null) {
                 iter.close();
             }
-            if (!Globals.isHeadless()) {
+            if (recordIter != null) {
+                recordIter.close();
+            }
+            if (!quiet && !Globals.isHeadless()) {
                 IGV.getInstance().resetStatusMessage();
             }
         }
@@ -338,9 +351,12 @@ public class AlignmentTileLoader implements IGVEventObserver {
 
 
     private static boolean memoryTooLow() {
-        if (RuntimeUtils.getAvailableMemoryFraction() < 0.2) {
+        if (RuntimeUtils.getAvailableMemoryFraction() < 0.2 || compactStoresOverBudget()) {
+            // Cached layouts and prefetched intervals can be rebuilt, release them before giving up on the load
+            AlignmentInterval.releaseCachedLayouts();
+            AlignmentPrefetcher.releaseAll();
             System.gc();
-            if (RuntimeUtils.getAvailableMemoryFraction() < 0.2) {
+            if (RuntimeUtils.getAvailableMemoryFraction() < 0.2 || compactStoresOverBudget()) {
                 String msg = "Memory is low, reading terminating.";
                 MessageUtils.showMessage(msg);
                 return true;
@@ -350,6 +366,132 @@ public class AlignmentTileLoader implements IGVEventObserver {
         return false;
     }
 
+    /**
+     * Compact memory mode keeps alignments in direct buffers, which the heap check above does not see.
+     *
+     * @return true if the alignment stores hold more direct memory than the configured budget
+     */
+    private static boolean compactStoresOverBudget() {
+        long budget = (long) PreferencesManager.getPreferences().getAsInt(SAM_COMPACT_MEMORY_BUDGET) * 1000000;
+        return ColumnarAlignmentStore.getAllocatedBytes() > budget;
+    }
+
+    private static int progressInterval() {
+        return Globals.isTesting() ? 100000 : 1000;
+    }
+
+    /**
+     * Report the number of reads loaded.
+     *
+     * @return true if memory is too low to continue loading
+     */
+    private boolean checkProgress(int alignmentCount) {
+        if (quiet) {
+            if (RuntimeUtils.getAvailableMemoryFraction() < 0.2 || compactStoresOverBudget()) {
+                incomplete = true;
+                return true;
+            }
+            return false;
+        }
+        String msg = "Reads loaded: " + alignmentCount;
+        //System.out.println(msg);
+        MessageUtils.setStatusBarMessage(msg);
+        if (memoryTooLow()) {
+            Runtime.getRuntime().gc();
+            cancelReaders();
+            incomplete = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void setStatusBarMessage(String msg) {
+        if (!quiet) {
+            MessageUtils.setStatusBarMessage(msg);
+        }
+    }
+
+    private void showMessage(String msg) {
+        if (!quiet) {
+            MessageUtils.showMessage(msg);
+        }
+    }
+
+    private void checkTags(Function<String, Object> attributes) {
+        if (!ycTags && attributes.apply("YC") != null) {
+            ycTags = true;
+        }
+
+        // TODO -- this is not reliable tests for TenX.  Other platforms might use BX
+        if (!tenX && attributes.apply("BX") != null) {
+            tenX = true;
+        }
+        if (tenX && !phased && attributes.apply("HP") != null) {
+            phased = true;
+        }
+    }
+
+    private static PEStats getPEStats(Map<String, PEStats> peStats, String lb) {
+        if (lb == null) lb = "null";
+        PEStats stats = peStats.get(lb);
+        if (stats == null) {
+            stats = new PEStats(lb);
+            peStats.put(lb, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Read filters from preferences, applicable to alignments or to raw records
+     */
+    static class RecordFilter {
+
+        final boolean filterFailedReads;
+        final boolean filterSecondaryAlignments;
+        final boolean filterSupplementaryAlignments;
+        final ReadGroupFilter filter;
+        final boolean filterDuplicates;
+        final int qualityThreshold;
+        final int alignmentScoreTheshold;
+
+        RecordFilter(IGVPreferences prefMgr) {
+            filterFailedReads = prefMgr.getAsBoolean(SAM_FILTER_FAILED_READS);
+            filterSecondaryAlignments = prefMgr.getAsBoolean(SAM_FILTER_SECONDARY_ALIGNMENTS);
+            filterSupplementaryAlignments = prefMgr.getAsBoolean(SAM_FILTER_SUPPLEMENTARY_ALIGNMENTS);
+            filter = ReadGroupFilter.getFilter();
+            filterDuplicates = prefMgr.getAsBoolean(SAM_FILTER_DUPLICATES);
+            qualityThreshold = prefMgr.getAsInt(SAM_QUALITY_THRESHOLD);
+            alignmentScoreTheshold = prefMgr.getAsInt(SAM_ALIGNMENT_SCORE_THRESHOLD);
+        }
+
+        boolean filter(Alignment record) {
+            return !record.isMapped() ||
+                    (filterDuplicates && record.isDuplicate()) ||
+                    (filterFailedReads && record.isVendorFailedRead()) ||
+                    (filterSecondaryAlignments && !record.isPrimary()) ||
+                    (filterSupplementaryAlignments && record.isSupplementary()) ||
+                    record.getMappingQuality() < qualityThreshold ||
+                    (filter != null && filter.filterAlignment(record)) ||
+                    (alignmentScoreTheshold > 0 && belowAlignmentScore(record.getAttribute("AS")));
+        }
+
+        boolean filter(SAMRecord record) {
+            return record.getReadUnmappedFlag() ||
+                    (filterDuplicates && record.getDuplicateReadFlag()) ||
+                    (filterFailedReads && record.getReadFailsVendorQualityCheckFlag()) ||
+                    (filterSecondaryAlignments && record.isSecondaryAlignment()) ||
+                    (filterSupplementaryAlignments && record.getSupplementaryAlignmentFlag()) ||
+                    record.getMappingQuality() < qualityThreshold ||
+                    (filter != null && filter.filterRecord(record)) ||
+                    (alignmentScoreTheshold > 0 && belowAlignmentScore(record.getAttribute("AS")));
+        }
+
+        // Alignment score (optional tag)
+        private boolean belowAlignmentScore(Object alignmentScoreObj) {
+            return alignmentScoreObj != null && ((Number) alignmentScoreObj).intValue() < alignmentScoreTheshold;
+        }
+    }
+
 
     /**
      * Does this file contain paired end data?  Assume not until proven otherwise.
@@ -421,6 +563,11 @@ public class AlignmentTileLoader implements IGVEventObserver {
          */
         IndexableMap<String, Alignment> imAlignments;
 
+        /**
+         * Off-heap storage for alignments in compact memory mode, null otherwise
+         */
+        private ColumnarAlignmentStore compactStore;
+
         private int downsampledCount = 0;
         private int offset = 0;
         private int indelLimit;
@@ -431,11 +578,22 @@ public class AlignmentTileLoader implements IGVEventObserver {
                       AlignmentDataManager.DownsampleOptions downsampleOptions,
                       AlignmentTrack.BisulfiteContext bisulfiteContext,
                       boolean reducedMemory) {
+            this(start, end, spliceJunctionHelper, downsampleOptions, bisulfiteContext, reducedMemory, false);
+        }
+
+        AlignmentTile(int start,
+                      int end,
+                      SpliceJunctionHelper spliceJunctionHelper,
+                      AlignmentDataManager.DownsampleOptions downsampleOptions,
+                      AlignmentTrack.BisulfiteContext bisulfiteContext,
+                      boolean reducedMemory,
+                      boolean compactMemory) {
             this.start = start;
             this.end = end;
             this.downsampledIntervals = new ArrayList<DownsampledInterval>();
 
-            this.indelLimit = PreferencesManager.getPreferences().getAsInt(SAM_SMALL_INDEL_BP_THRESHOLD);
+            final IGVPreferences prefs = PreferencesManager.getPreferences();
+            this.indelLimit = prefs.getAsInt(SAM_SMALL_INDEL_BP_THRESHOLD);
 
             long seed = System.currentTimeMillis();
             //System.out.println("seed: " + seed);
@@ -446,6 +604,9 @@ public class AlignmentTileLoader implements IGVEventObserver {
                 this.counts = new ReducedMemoryAlignment.ReducedMemoryAlignmentCounts(start, end, 25);
             } else if ((end - start) > 10000000) {
                 this.counts = new SparseAlignmentCounts(start, end, bisulfiteContext);
+            } else if (prefs.getAsBoolean(SAM_COMPACT_COUNTS)) {
+                this.counts = new CompactAlignmentCounts(start, end, bisulfiteContext,
+                        prefs.getAsBoolean(SAM_STRAND_COUNTS), prefs.getAsBoolean(SAM_ALLELE_USE_QUALITY));
             } else {
                 this.counts = new DenseAlignmentCounts(start, end, bisulfiteContext);
             }
@@ -462,6 +623,10 @@ public class AlignmentTileLoader implements IGVEventObserver {
 
             this.spliceJunctionHelper = spliceJunctionHelper;
 
+            if (compactMemory) {
+                compactStore = new ColumnarAlignmentStore();
+            }
+
             if (this.downsample) {
                 imAlignments = new IndexableMap<String, Alignment>(8000);
             } else {
@@ -483,8 +648,10 @@ public class AlignmentTileLoader implements IGVEventObserver {
          * Add an alignment record to this tile.  This record is not necessarily retained after down-sampling.
          * <p/>
          * // * @param alignment
+         *
+         * @return the alignment as stored in the tile, which in reduced or compact memory mode is a copy
          */
-        public void addRecord(Alignment alignment, boolean reducedMemory) {
+        public Alignment addRecord(Alignment alignment, boolean reducedMemory) {
 
             if (reducedMemory) {
                 alignment = new ReducedMemoryAlignment(alignment, this.indelLimit);
@@ -496,13 +663,12 @@ public class AlignmentTileLoader implements IGVEventObserver {
                 spliceJunctionHelper.addAlignment(alignment);
             }
 
-            if (downsample) {
-                final int alignmentStart = alignment.getAlignmentStart();
-                int currentSamplingBucketEnd = currentSamplingWindowStart + samplingWindowSize;
-                if (currentSamplingWindowStart < 0 || alignmentStart >= currentSamplingBucketEnd) {
-                    setCurrentSamplingBucket(alignmentStart);
-                }
+            if (compactStore != null && alignment instanceof SAMAlignment) {
+                alignment = compactStore.add((SAMAlignment) alignment);
+            }
 
+            if (downsample) {
+                updateSamplingBucket(alignment.getAlignmentStart());
                 attemptAddRecordDownsampled(alignment);
 
             } else {
@@ -510,6 +676,63 @@ public class AlignmentTileLoader implements IGVEventObserver {
             }
 
             alignment.finish();
+            return alignment;
+        }
+
+        /**
+         * Add a raw SAM record to this tile.  When downsampling, the sampling decision is made from the record's
+         * start and read name before an alignment is built, and records that do not enter the reservoir are counted
+         * directly from the record.  The result is the same as adding an alignment built from the record.
+         *
+         * @return the alignment as stored in the tile, or null if the record was discarded by downsampling
+         */
+        public Alignment addRecord(SAMRecord record, boolean reducedMemory) {
+
+            if (!downsample) {
+                return addRecord(new SAMAlignment(record), reducedMemory);
+            }
+
+            updateSamplingBucket(record.getAlignmentStart() - 1);
+            String readName = record.getReadName();
+            int slot = reservoirSlot(readName);
+
+            if (slot == REJECTED) {
+                Alignment alignment = null;
+                if (!counts.incCounts(record)) {
+                    alignment = buildAlignment(record, reducedMemory);
+                    counts.incCounts(alignment);
+                }
+                // Only skipped regions (cigar N) contribute splice junctions
+                if (spliceJunctionHelper != null && record.getCigar().containsOperator(CigarOperator.N)) {
+                    spliceJunctionHelper.addAlignment(alignment == null ? buildAlignment(record, reducedMemory) : alignment);
+                }
+                return null;
+            }
+
+            Alignment alignment = buildAlignment(record, reducedMemory);
+            counts.incCounts(alignment);
+            if (spliceJunctionHelper != null) {
+                spliceJunctionHelper.addAlignment(alignment);
+            }
+            if (compactStore != null && alignment instanceof SAMAlignment) {
+                alignment = compactStore.add((SAMAlignment) alignment);
+            }
+            storeDownsampled(readName, alignment, slot);
+
+            alignment.finish();
+            return alignment;
+        }
+
+        private Alignment buildAlignment(SAMRecord record, boolean reducedMemory) {
+            Alignment alignment = new SAMAlignment(record);
+            return reducedMemory ? new ReducedMemoryAlignment(alignment, this.indelLimit) : alignment;
+        }
+
+        private void updateSamplingBucket(int alignmentStart) {
+            int currentSamplingBucketEnd = currentSamplingWindowStart + samplingWindowSize;
+            if (currentSamplingWindowStart < 0 || alignmentStart >= currentSamplingBucketEnd) {
+                setCurrentSamplingBucket(alignmentStart);
+            }
         }
 
         /**
@@ -526,6 +749,21 @@ public class AlignmentTileLoader implements IGVEventObserver {
             //A simple way to turn off the same-readName-checking is to replace the read name with a random string
             //so that there are no repeats
             //readName = String.format("%s%d", readName, RAND.nextInt());
+            int slot = reservoirSlot(readName);
+            if (slot != REJECTED) {
+                storeDownsampled(readName, alignment, slot);
+            }
+        }
+
+        private static final int REJECTED = -1;
+        private static final int APPEND = -2;
+
+        /**
+         * Make the sampling decision for a read, which needs only its name.  Rejections are recorded here.
+         *
+         * @return REJECTED, APPEND to add the read under its name, or the reservoir index of a read to replace
+         */
+        private int reservoirSlot(String readName) {
 
             //There are 3 possibilities: other-kept, other-rejected, other-unknown (haven't seen)
             //If we kept or rejected the another read with the same name, we do the same for this one
@@ -535,32 +773,41 @@ public class AlignmentTileLoader implements IGVEventObserver {
                 boolean haveOther = mateAlignments != null;
                 if (haveOther) {
                     //We keep the alignment if others have been kept
-                    imAlignments.append(readName, alignment);
+                    return APPEND;
                 } else {
                     currentDownsampledInterval.incCount();
+                    return REJECTED;
                 }
             } else {
                 if (curEffSamplingWindowDepth < samplingDepth) {
-                    imAlignments.append(readName, alignment);
                     curEffSamplingWindowDepth++;
+                    return APPEND;
                 } else {
-                    double samplingProb = ((double) samplingDepth) / (samplingDepth + downsampledCount + 1);
+                    downsampledCount++;
+                    double samplingProb = ((double) samplingDepth) / (samplingDepth + downsampledCount);
                     if (RAND.nextDouble() < samplingProb) {
                         int rndInt = (int) (RAND.nextDouble() * (samplingDepth - 1));
-                        int idx = offset + rndInt;
-                        // Replace random record with this one
-                        List<Alignment> removedValues = imAlignments.replace(idx, readName, alignment);
-                        incrementDownsampledIntervals(removedValues);
+                        return offset + rndInt;
                     } else {
                         //Mark that record was not kept
                         imAlignments.markNull(readName);
                         currentDownsampledInterval.incCount();
+                        return REJECTED;
                     }
-                    downsampledCount++;
                 }
             }
         }
 
+        private void storeDownsampled(String readName, Alignment alignment, int slot) {
+            if (slot == APPEND) {
+                imAlignments.append(readName, alignment);
+            } else {
+                // Replace random record with this one
+                List<Alignment> removedValues = imAlignments.replace(slot, readName, alignment);
+                incrementDownsampledIntervals(removedValues);
+            }
+        }
+
         private void setCurrentSamplingBucket(int alignmentStart) {
             curEffSamplingWindowDepth = 0;
             downsampledCount = 0;
@@ -656,7 +903,12 @@ public class AlignmentTileLoader implements IGVEventObserver {
             //If we downsampled,  we need to sort
             if (downsample) {
                 sortFilterDownsampled();
+                if (compactStore != null) {
+                    // Release the space held by alignments discarded by downsampling
+                    ColumnarAlignmentStore.compact(alignments);
+                }
             }
+            compactStore = null;
             finalizeSpliceJunctions();
             counts.finish();
         }
@@ -801,7 +801,7 @@ public class AlignmentTrack extends AbstractTrack implements IGVEventObserver {
     }
 
     public void packAlignments() {
-        dataManager.packAlignments(renderOptions);
+        dataManager.repackAlignments(renderOptions);
     }
 
     /**
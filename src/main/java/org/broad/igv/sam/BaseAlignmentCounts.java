@@ -25,6 +25,9 @@
 
 package org.broad.igv.sam;
 
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.tribble.readers.AsciiLineReader;
 import org.apache.log4j.Logger;
 import org.broad.igv.Globals;
@@ -184,6 +187,83 @@ abstract public class BaseAlignmentCounts implements AlignmentCounts {
         }
     }
 
+    /**
+     * Count a read from its SAM record.  The result is the same as counting a SAMAlignment built from the record,
+     * but the CIGAR is walked directly and no alignment blocks are created.  Reads with base modification tags, and
+     * all reads in bisulfite mode, need a full alignment and are not counted here.  The tag check reads the record's
+     * binary data, so the tags are not decoded.
+     */
+    @Override
+    public boolean incCounts(SAMRecord record) {
+
+        if (bisulfiteCounts != null || record.getCigarLength() == 0 ||
+                RawTags.hasTag(record, "MM") || RawTags.hasTag(record, "Mm")) {
+            return false;
+        }
+
+        final boolean isNegativeStrand = record.getReadNegativeStrandFlag();
+        final byte[] bases = record.getReadBases();
+        final byte[] qualities = record.getBaseQualities();
+        final boolean hasQualities = qualities != null && qualities.length > 0;
+
+        List<CigarElement> elements = record.getCigar().getCigarElements();
+        int blockStart = record.getAlignmentStart() - 1;
+        int readIdx = 0;
+        int padding = 0;
+        for (int i = 0; i < elements.size(); i++) {
+            CigarOperator op = elements.get(i).getOperator();
+            int nBases = elements.get(i).getLength();
+            // Consecutive operators of the same type form a single block, as in SAMAlignment
+            while (i + 1 < elements.size() && elements.get(i + 1).getOperator() == op) {
+                nBases += elements.get(++i).getLength();
+            }
+            switch (op) {
+                case M:
+                case EQ:
+                case X:
+                    if (blockStart + nBases >= start && blockStart <= end) {
+                        for (int k = 0; k < nBases; k++) {
+                            int idx = readIdx + k;
+                            byte n = idx < bases.length ? bases[idx] : (byte) '?';
+                            byte q = hasQualities && idx < qualities.length ? qualities[idx] : (byte) 126;
+                            incPositionCount(blockStart + k, n, q, isNegativeStrand);
+                        }
+                    }
+                    blockStart += nBases;
+                    readIdx += nBases;
+                    break;
+                case S:
+                    readIdx += nBases;
+                    break;
+                case D:
+                    for (int pos = blockStart; pos < blockStart + nBases; pos++) {
+                        incrementDeletion(pos, isNegativeStrand);
+                    }
+                    blockStart += nBases;
+                    break;
+                case N:
+                    blockStart += nBases;
+                    break;
+                case I:
+                    if (blockStart + nBases + padding >= start && blockStart <= end) {
+                        AlignmentBlockImpl insBlock = new AlignmentBlockImpl(blockStart, bases, qualities, readIdx, nBases, SAMAlignment.INSERTION);
+                        insBlock.setPadding(padding);
+                        incrementInsertion(insBlock);
+                    }
+                    readIdx += nBases;
+                    padding = 0;
+                    break;
+                case P:
+                    padding += nBases;
+                    break;
+                default:
+                    // Hard clips
+                    break;
+            }
+        }
+        return true;
+    }
+
     public String getValueStringAt(int pos) {
 
         if (pos < getStart() || pos >= getEnd()) return null;
@@ -41,6 +41,7 @@ public class BaseModification {
     public BaseModification(String modification, char strand, int position, byte likelihood) {
         this.likelihood = likelihood;
         this.modification = modification;
+        this.strand = strand;
         this.position = position;
     }
 
@@ -50,89 +51,17 @@ public class BaseModification {
                 ((codeValues.containsKey(modification)) ? codeValues.get(modification) : "Uknown") + " (" + l + "%)";
     }
 
+    /**
+     * Decode the MM and ML tags into a list of modifications, in tag order.  For display and counting use the
+     * compact form, {@link BaseModificationSet}.
+     */
     public static List<BaseModification> getBaseModifications(String mm, byte[] ml, byte[] sequence, boolean isNegativeStrand) {
-        byte[] origSequence = sequence;
-        if (isNegativeStrand) {
-            sequence = AlignmentUtils.reverseComplementCopy(sequence);
+        BaseModificationSet.Calls calls = BaseModificationSet.parse(mm, ml, sequence, isNegativeStrand);
+        List<BaseModification> mods = new ArrayList<>(calls.size);
+        for (int i = 0; i < calls.size; i++) {
+            String modification = calls.modifications.get(calls.types[i] & 0xff);
+            mods.add(new BaseModification(modification, calls.strands[i], calls.positions[i], calls.likelihoods[i]));
         }
-
-        List<BaseModification> mods = new ArrayList<>();
-
-        String[] mmTokens = mm.split(";");
-
-        int mlIdx = 0;
-
-        for (String mmi : mmTokens) {
-
-            String[] tokens = mmi.split(","); //Globals.commaPattern.split(mm);
-            if (tokens.length > 1) {
-
-                char strand = tokens[0].charAt(1);
-                char base = tokens[0].charAt(0);
-
-                String modificationString = tokens[0].substring(2);
-                String[] modifications = null;
-
-                if (modificationString.length() > 1) {
-                    // If string can be converted to a number assume its a ChEBI code
-                    boolean isChEBI = true;
-                    try {
-                        Integer.parseInt(modificationString);
-                    } catch (NumberFormatException e) {
-                        isChEBI = false;
-                    }
-                    if (isChEBI) {
-                        modifications = new String[]{modificationString};
-                    } else {
-                        modifications = new String[modificationString.length()];
-                        for (int i = 0; i < modificationString.length(); i++) {
-                            modifications[i] = modificationString.substring(i, i + 1);
-                        }
-                    }
-                } else {
-                    modifications = new String[]{modificationString};
-                }
-
-
-                int idx = 0;
-                int s = 0;
-
-                int[] positions = new int[tokens.length - 1];
-                int skip = Integer.parseInt(tokens[idx + 1]);
-                int matchCount = 0;
-
-                while (idx < positions.length) {
-                    if (s >= sequence.length) {
-                        System.err.println("Ran out of sequence");
-                        System.out.println(isNegativeStrand);
-                        System.out.println(mm);
-                        System.out.println(new String(origSequence));
-                        System.out.println(new String(sequence));
-                        break;
-                    }
-                    if (base == 'N' || sequence[s] == base) {
-                        if (matchCount == skip) {
-                            int position = isNegativeStrand ? sequence.length - 1 - s : s;
-                            for (String modification : modifications) {
-                                byte likelihood = ml == null ? (byte) 255 : ml[mlIdx];
-                                mods.add(new BaseModification(modification, strand, position, likelihood));
-                                mlIdx++;
-                            }
-                            if (idx + 1 == positions.length) {
-                                break;
-                            }
-                            idx++;
-                            skip = Integer.parseInt(tokens[idx + 1]);
-                            matchCount = 0;
-                        } else {
-                            matchCount++;
-                        }
-                    }
-                    s++;
-                }
-            }
-        }
-
         return mods;
     }
 
@@ -0,0 +1,274 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Base modifications of a read, decoded from the MM and ML tags into primitive arrays.  There is at most one call
+ * per read position, the one with the highest likelihood (the first in tag order on ties).  Calls are sorted by
+ * position, each with the index of its modification code and its likelihood.
+ * <p/>
+ * Positions are offsets into the read sequence as stored in the record, i.e. reverse complemented for reads on the
+ * negative strand.
+ */
+public class BaseModificationSet {
+
+    private static Logger log = Logger.getLogger(BaseModificationSet.class);
+
+    private final String[] modifications;
+    private final int[] positions;
+    private final byte[] types;
+    private final byte[] likelihoods;
+
+    private BaseModificationSet(String[] modifications, int[] positions, byte[] types, byte[] likelihoods) {
+        this.modifications = modifications;
+        this.positions = positions;
+        this.types = types;
+        this.likelihoods = likelihoods;
+    }
+
+    public static BaseModificationSet decode(String mm, byte[] ml, byte[] sequence, boolean isNegativeStrand) {
+
+        Calls calls = parse(mm, ml, sequence, isNegativeStrand);
+        int n = calls.size;
+
+        // Sort by position, then tag order
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) calls.positions[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] positions = new int[n];
+        byte[] types = new byte[n];
+        byte[] likelihoods = new byte[n];
+        int size = 0;
+        for (long key : keys) {
+            int i = (int) key;
+            int position = calls.positions[i];
+            if (size > 0 && positions[size - 1] == position) {
+                if (Byte.toUnsignedInt(calls.likelihoods[i]) > Byte.toUnsignedInt(likelihoods[size - 1])) {
+                    types[size - 1] = calls.types[i];
+                    likelihoods[size - 1] = calls.likelihoods[i];
+                }
+            } else {
+                positions[size] = position;
+                types[size] = calls.types[i];
+                likelihoods[size] = calls.likelihoods[i];
+                size++;
+            }
+        }
+        if (size < n) {
+            positions = Arrays.copyOf(positions, size);
+            types = Arrays.copyOf(types, size);
+            likelihoods = Arrays.copyOf(likelihoods, size);
+        }
+        return new BaseModificationSet(calls.modifications.toArray(new String[0]), positions, types, likelihoods);
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    public int getPosition(int i) {
+        return positions[i];
+    }
+
+    public String getModification(int i) {
+        return modifications[types[i] & 0xff];
+    }
+
+    public byte getLikelihood(int i) {
+        return likelihoods[i];
+    }
+
+    /**
+     * @return index of the first call at or after the read position
+     */
+    public int firstIndex(int position) {
+        int lo = 0;
+        int hi = positions.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions[mid] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the call at the read position, or -1 if there is none
+     */
+    public int indexOf(int position) {
+        int i = firstIndex(position);
+        return i < positions.length && positions[i] == position ? i : -1;
+    }
+
+    public String valueString(int i) {
+        return new BaseModification(getModification(i), ' ', positions[i], likelihoods[i]).valueString();
+    }
+
+    /**
+     * Parse the MM and ML tags.  Calls are returned in tag order, including several calls at a position.
+     */
+    static Calls parse(String mm, byte[] ml, byte[] sequence, boolean isNegativeStrand) {
+
+        Calls calls = new Calls();
+        int[] skips = new int[16];
+        int mlIdx = 0;
+        int len = mm.length();
+        int segmentStart = 0;
+
+        while (segmentStart < len) {
+            int segmentEnd = mm.indexOf(';', segmentStart);
+            if (segmentEnd < 0) segmentEnd = len;
+
+            int comma = mm.indexOf(',', segmentStart);
+            if (comma > segmentStart + 2 && comma < segmentEnd - 1) {
+
+                char base = mm.charAt(segmentStart);
+                char strand = mm.charAt(segmentStart + 1);
+
+                // Optional skip mode suffix, "." or "?"
+                int codesEnd = comma;
+                char last = mm.charAt(codesEnd - 1);
+                if ((last == '.' || last == '?') && codesEnd - 1 > segmentStart + 2) {
+                    codesEnd--;
+                }
+                String modificationString = mm.substring(segmentStart + 2, codesEnd);
+                int[] types;
+                if (modificationString.length() > 1 && !isChEBI(modificationString)) {
+                    types = new int[modificationString.length()];
+                    for (int i = 0; i < types.length; i++) {
+                        types[i] = calls.typeIndex(modificationString.substring(i, i + 1));
+                    }
+                } else {
+                    types = new int[]{calls.typeIndex(modificationString)};
+                }
+
+                int nSkips = 0;
+                int p = comma + 1;
+                while (p < segmentEnd) {
+                    int next = mm.indexOf(',', p);
+                    if (next < 0 || next > segmentEnd) next = segmentEnd;
+                    if (next > p) {
+                        if (nSkips == skips.length) skips = Arrays.copyOf(skips, 2 * nSkips);
+                        skips[nSkips++] = Integer.parseInt(mm.substring(p, next).trim());
+                    }
+                    p = next + 1;
+                }
+
+                int idx = 0;
+                int matchCount = 0;
+                int seqLength = sequence.length;
+                for (int s = 0; idx < nSkips; s++) {
+                    if (s >= seqLength) {
+                        log.error("Ran out of sequence: " + mm);
+                        break;
+                    }
+                    byte b = isNegativeStrand ?
+                            AlignmentUtils.complement(sequence[seqLength - 1 - s]) :
+                            sequence[s];
+                    if (base == 'N' || b == base) {
+                        if (matchCount == skips[idx]) {
+                            int position = isNegativeStrand ? seqLength - 1 - s : s;
+                            for (int type : types) {
+                                if (ml != null && mlIdx >= ml.length) {
+                                    log.error("Too few ML values for MM tag: " + mm);
+                                    return calls;
+                                }
+                                byte likelihood = ml == null ? (byte) 255 : ml[mlIdx];
+                                calls.add(type, strand, position, likelihood);
+                                mlIdx++;
+                            }
+                            idx++;
+                            matchCount = 0;
+                        } else {
+                            matchCount++;
+                        }
+                    }
+                }
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return calls;
+    }
+
+    // If string can be converted to a number assume its a ChEBI code
+    private static boolean isChEBI(String modificationString) {
+        for (int i = 0; i < modificationString.length(); i++) {
+            if (!Character.isDigit(modificationString.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls in tag order
+     */
+    static class Calls {
+
+        List<String> modifications = new ArrayList<>();
+        int size;
+        int[] positions = new int[16];
+        byte[] types = new byte[16];
+        char[] strands = new char[16];
+        byte[] likelihoods = new byte[16];
+
+        int typeIndex(String modification) {
+            int idx = modifications.indexOf(modification);
+            if (idx < 0) {
+                idx = modifications.size();
+                modifications.add(modification);
+            }
+            return idx;
+        }
+
+        void add(int type, char strand, int position, byte likelihood) {
+            if (size == positions.length) {
+                int n = 2 * size;
+                positions = Arrays.copyOf(positions, n);
+                types = Arrays.copyOf(types, n);
+                strands = Arrays.copyOf(strands, n);
+                likelihoods = Arrays.copyOf(likelihoods, n);
+            }
+            positions[size] = position;
+            types[size] = (byte) type;
+            strands[size] = strand;
+            likelihoods[size] = likelihood;
+            size++;
+        }
+    }
+}
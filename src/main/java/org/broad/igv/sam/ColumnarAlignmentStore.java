@@ -0,0 +1,589 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Column oriented, off-heap storage for the alignments of one tile.  Each record occupies a fixed width row of
+ * int fields, with read names, cigars, bases, qualities and tags appended to variable length columns.  All columns
+ * are direct buffers, so the only per-record heap cost is the {@link CompactAlignment} view, which holds just the
+ * store, the row index and a soft reference to anything decoded from the row.  Measured at 24 bytes per read
+ * (compressed oops), the view is the one object per read the packed rows need, which hold alignments by reference.
+ * <p/>
+ * Bases are packed 4 bits per base using the BAM encoding, which covers the IUPAC codes as well as ACGTN.  Sequences
+ * containing any other character (lower case bases for example) are stored unpacked.
+ * <p/>
+ * Records are appended by the loading thread only.  Once loading completes the store is read only, apart from the
+ * display start and end which can be changed through {@link CompactAlignment#setStart(int)} and
+ * {@link CompactAlignment#setEnd(int)}, and the haplotype assignment.
+ */
+public class ColumnarAlignmentStore {
+
+    // Fixed width fields
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int ALIGNMENT_START = 2;
+    private static final int ALIGNMENT_END = 3;
+    private static final int FLAGS = 4;
+    private static final int MAPQ = 5;
+    private static final int CHR = 6;
+    private static final int REF_NAME = 7;
+    private static final int MATE_CHR = 8;
+    private static final int MATE_REF_NAME = 9;
+    private static final int MATE_START = 10;
+    private static final int INSERT_SIZE = 11;
+    private static final int NAME_OFFSET = 12;
+    private static final int NAME_LENGTH = 13;
+    private static final int CIGAR_OFFSET = 14;
+    private static final int CIGAR_LENGTH = 15;
+    private static final int SEQ_OFFSET = 16;
+    private static final int SEQ_LENGTH = 17;
+    private static final int QUAL_OFFSET = 18;
+    private static final int TAG_OFFSET = 19;
+    private static final int TAG_LENGTH = 20;
+    private static final int HAP_NAME = 21;
+    private static final int HAP_DISTANCE = 22;
+    private static final int N_FIELDS = 23;
+
+    // Flag in the SEQ_LENGTH field marking an unpacked sequence
+    private static final int UNPACKED = 1 << 30;
+
+    private static final byte[] BASES = "=ACMGRSVTWYHKDBN".getBytes();
+    private static final String CIGAR_OPERATORS = "MIDNSHP=X";
+    private static final byte[] BASE_CODES = new byte[256];
+
+    static {
+        Arrays.fill(BASE_CODES, (byte) -1);
+        for (int i = 0; i < BASES.length; i++) {
+            BASE_CODES[BASES[i]] = (byte) i;
+        }
+    }
+
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+
+    private ByteBuffer fields = allocate(1024 * N_FIELDS * 4);
+    private ByteBuffer names = allocate(16 * 1024);
+    private ByteBuffer cigars = allocate(16 * 1024);
+    private ByteBuffer bases = allocate(64 * 1024);
+    private ByteBuffer qualities = allocate(128 * 1024);
+    private ByteBuffer tags = allocate(64 * 1024);
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIndeces = new HashMap<>();
+    private Map<Integer, String> mateSequences;
+    private final List<String> haplotypeNames = new ArrayList<>();
+
+    private SAMFileHeader header;
+    private int size = 0;
+
+    private final ByteArrayOutputStream tagBuffer = new ByteArrayOutputStream();
+    private final BinaryTagCodec tagCodec = new BinaryTagCodec(new BinaryCodec(tagBuffer));
+
+    /**
+     * Copy an alignment into the store.  The alignment should not be retained by the caller, use the returned view
+     * instead.
+     */
+    public CompactAlignment add(SAMAlignment alignment) {
+
+        SAMRecord record = alignment.getRecord();
+        if (header == null) {
+            header = record.getHeader();
+        }
+
+        final int row = addRow();
+        setField(row, START, alignment.getStart());
+        setField(row, END, alignment.getEnd());
+        setField(row, ALIGNMENT_START, record.getAlignmentStart());
+        setField(row, ALIGNMENT_END, record.getAlignmentEnd());
+        setField(row, FLAGS, record.getFlags());
+        setField(row, MAPQ, record.getMappingQuality());
+        setField(row, CHR, stringIndex(alignment.getChr()));
+        setField(row, REF_NAME, stringIndex(record.getReferenceName()));
+        ReadMate mate = alignment.getMate();
+        setField(row, MATE_CHR, mate == null ? -1 : stringIndex(mate.getChr()));
+        setField(row, MATE_REF_NAME, stringIndex(record.getMateReferenceName()));
+        setField(row, MATE_START, record.getMateAlignmentStart());
+        setField(row, INSERT_SIZE, record.getInferredInsertSize());
+
+        byte[] nameBytes = record.getReadName().getBytes();
+        names = ensureCapacity(names, nameBytes.length);
+        setField(row, NAME_OFFSET, names.position());
+        setField(row, NAME_LENGTH, nameBytes.length);
+        names.put(nameBytes);
+
+        Cigar cigar = record.getCigar();
+        cigars = ensureCapacity(cigars, cigar.numCigarElements() * 4);
+        setField(row, CIGAR_OFFSET, cigars.position() / 4);
+        setField(row, CIGAR_LENGTH, cigar.numCigarElements());
+        for (CigarElement element : cigar.getCigarElements()) {
+            cigars.putInt(element.getLength() << 4 | CigarOperator.enumToBinary(element.getOperator()));
+        }
+
+        addBases(row, record.getReadBases());
+
+        byte[] quals = record.getBaseQualities();
+        if (quals == null || quals.length == 0) {
+            setField(row, QUAL_OFFSET, -1);
+        } else {
+            qualities = ensureCapacity(qualities, quals.length);
+            setField(row, QUAL_OFFSET, qualities.position());
+            qualities.put(quals);
+        }
+
+        tagBuffer.reset();
+        for (SAMRecord.SAMTagAndValue tv : record.getAttributes()) {
+            tagCodec.writeTag(SAMTag.makeBinaryTag(tv.tag), tv.value, record.isUnsignedArrayAttribute(tv.tag));
+        }
+        tags = ensureCapacity(tags, tagBuffer.size());
+        setField(row, TAG_OFFSET, tags.position());
+        setField(row, TAG_LENGTH, tagBuffer.size());
+        tags.put(tagBuffer.toByteArray());
+
+        setHaplotypeName(size, alignment.getHaplotypeName());
+        setField(row, HAP_DISTANCE, alignment.getHapDistance());
+
+        return new CompactAlignment(this, size++);
+    }
+
+    private void addBases(int row, byte[] readBases) {
+        int length = readBases == null ? 0 : readBases.length;
+        boolean packable = true;
+        for (int i = 0; i < length; i++) {
+            if (BASE_CODES[readBases[i] & 0xff] < 0) {
+                packable = false;
+                break;
+            }
+        }
+        if (packable) {
+            bases = ensureCapacity(bases, (length + 1) / 2);
+            setField(row, SEQ_OFFSET, bases.position());
+            setField(row, SEQ_LENGTH, length);
+            for (int i = 0; i < length; i += 2) {
+                int hi = BASE_CODES[readBases[i]] << 4;
+                int lo = i + 1 < length ? BASE_CODES[readBases[i + 1]] : 0;
+                bases.put((byte) (hi | lo));
+            }
+        } else {
+            bases = ensureCapacity(bases, length);
+            setField(row, SEQ_OFFSET, bases.position());
+            setField(row, SEQ_LENGTH, length | UNPACKED);
+            bases.put(readBases);
+        }
+    }
+
+    /**
+     * Copy the records referenced by {@code views} into a new store, and point the views at it.  Used after
+     * downsampling to release the space held by discarded records.
+     */
+    public static void compact(List<? extends Alignment> views) {
+        ColumnarAlignmentStore newStore = new ColumnarAlignmentStore();
+        for (Alignment a : views) {
+            if (a instanceof CompactAlignment) {
+                CompactAlignment view = (CompactAlignment) a;
+                view.relocate(newStore, newStore.copyRecord(view.store, view.index));
+            }
+        }
+    }
+
+    private int copyRecord(ColumnarAlignmentStore src, int index) {
+
+        if (header == null) {
+            header = src.header;
+        }
+        final int srcRow = index * N_FIELDS;
+        final int row = addRow();
+        for (int f = 0; f < N_FIELDS; f++) {
+            setField(row, f, src.getField(srcRow, f));
+        }
+        for (int f : new int[]{CHR, REF_NAME, MATE_CHR, MATE_REF_NAME}) {
+            int s = src.getField(srcRow, f);
+            setField(row, f, s < 0 ? -1 : stringIndex(src.strings.get(s)));
+        }
+
+        int nameLength = src.getField(srcRow, NAME_LENGTH);
+        setField(row, NAME_OFFSET, names.position());
+        names = copy(src.names, src.getField(srcRow, NAME_OFFSET), nameLength, names);
+
+        int cigarLength = src.getField(srcRow, CIGAR_LENGTH);
+        setField(row, CIGAR_OFFSET, cigars.position() / 4);
+        cigars = copy(src.cigars, src.getField(srcRow, CIGAR_OFFSET) * 4, cigarLength * 4, cigars);
+
+        int seqLength = src.getField(srcRow, SEQ_LENGTH);
+        int seqBytes = (seqLength & UNPACKED) != 0 ? seqLength & ~UNPACKED : (seqLength + 1) / 2;
+        setField(row, SEQ_OFFSET, bases.position());
+        bases = copy(src.bases, src.getField(srcRow, SEQ_OFFSET), seqBytes, bases);
+
+        int qualOffset = src.getField(srcRow, QUAL_OFFSET);
+        if (qualOffset >= 0) {
+            setField(row, QUAL_OFFSET, qualities.position());
+            qualities = copy(src.qualities, qualOffset, seqLength & ~UNPACKED, qualities);
+        }
+
+        setField(row, TAG_OFFSET, tags.position());
+        tags = copy(src.tags, src.getField(srcRow, TAG_OFFSET), src.getField(srcRow, TAG_LENGTH), tags);
+
+        setHaplotypeName(size, src.getHaplotypeName(index));
+
+        String mateSequence = src.getMateSequence(index);
+        if (mateSequence != null) {
+            setMateSequence(size, mateSequence);
+        }
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of direct memory currently held by all stores
+     */
+    public static long getAllocatedBytes() {
+        Cleanup.expunge();
+        return allocatedBytes.get();
+    }
+
+    int getStart(int index) {
+        return getField(index * N_FIELDS, START);
+    }
+
+    void setStart(int index, int start) {
+        setField(index * N_FIELDS, START, start);
+    }
+
+    int getEnd(int index) {
+        return getField(index * N_FIELDS, END);
+    }
+
+    void setEnd(int index, int end) {
+        setField(index * N_FIELDS, END, end);
+    }
+
+    /**
+     * @return 1-based alignment start, as in the SAM record
+     */
+    int getAlignmentStart(int index) {
+        return getField(index * N_FIELDS, ALIGNMENT_START);
+    }
+
+    int getAlignmentEnd(int index) {
+        return getField(index * N_FIELDS, ALIGNMENT_END);
+    }
+
+    int getFlags(int index) {
+        return getField(index * N_FIELDS, FLAGS);
+    }
+
+    int getMappingQuality(int index) {
+        return getField(index * N_FIELDS, MAPQ);
+    }
+
+    int getInferredInsertSize(int index) {
+        return getField(index * N_FIELDS, INSERT_SIZE);
+    }
+
+    String getChr(int index) {
+        return strings.get(getField(index * N_FIELDS, CHR));
+    }
+
+    ReadMate getMate(int index) {
+        final int row = index * N_FIELDS;
+        int mateChr = getField(row, MATE_CHR);
+        if (mateChr < 0) {
+            return null;
+        }
+        int flags = getField(row, FLAGS);
+        return new ReadMate(strings.get(mateChr),
+                getField(row, MATE_START) - 1,
+                (flags & SAMFlag.MATE_REVERSE_STRAND.intValue()) != 0,
+                (flags & SAMFlag.MATE_UNMAPPED.intValue()) != 0);
+    }
+
+    String getReadName(int index) {
+        final int row = index * N_FIELDS;
+        byte[] bytes = new byte[getField(row, NAME_LENGTH)];
+        get(names, getField(row, NAME_OFFSET), bytes);
+        return new String(bytes);
+    }
+
+    String getCigarString(int index) {
+        return decodeCigar(index).toString();
+    }
+
+    private Cigar decodeCigar(int index) {
+        final int row = index * N_FIELDS;
+        int offset = getField(row, CIGAR_OFFSET) * 4;
+        int length = getField(row, CIGAR_LENGTH);
+        List<CigarElement> elements = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            int c = cigars.getInt(offset + i * 4);
+            elements.add(new CigarElement(c >>> 4, CigarOperator.binaryToEnum(c & 0xf)));
+        }
+        return new Cigar(elements);
+    }
+
+    /**
+     * Return the cigar as a list of operators, with consecutive operators of the same type merged as in
+     * {@link SAMAlignment#buildOperators(String)}, or null if the record has no cigar.
+     */
+    List<SAMAlignment.CigarOperator> getCigarOperators(int index) {
+        final int row = index * N_FIELDS;
+        int offset = getField(row, CIGAR_OFFSET) * 4;
+        int length = getField(row, CIGAR_LENGTH);
+        if (length == 0) {
+            return null;
+        }
+        List<SAMAlignment.CigarOperator> operators = new ArrayList<>(length);
+        SAMAlignment.CigarOperator prev = null;
+        for (int i = 0; i < length; i++) {
+            int c = cigars.getInt(offset + i * 4);
+            char op = CIGAR_OPERATORS.charAt(c & 0xf);
+            if (prev != null && prev.operator == op) {
+                prev.nBases += c >>> 4;
+            } else {
+                prev = new SAMAlignment.CigarOperator(c >>> 4, op);
+                operators.add(prev);
+            }
+        }
+        return operators;
+    }
+
+    byte[] getReadBases(int index) {
+        final int row = index * N_FIELDS;
+        int offset = getField(row, SEQ_OFFSET);
+        int length = getField(row, SEQ_LENGTH);
+        if ((length & UNPACKED) != 0) {
+            byte[] readBases = new byte[length & ~UNPACKED];
+            get(bases, offset, readBases);
+            return readBases;
+        }
+        byte[] readBases = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int b = bases.get(offset + i / 2);
+            readBases[i] = BASES[(i % 2 == 0 ? b >> 4 : b) & 0xf];
+        }
+        return readBases;
+    }
+
+    byte[] getBaseQualities(int index) {
+        final int row = index * N_FIELDS;
+        int offset = getField(row, QUAL_OFFSET);
+        if (offset < 0) {
+            return SAMRecord.NULL_QUALS;
+        }
+        byte[] quals = new byte[getField(row, SEQ_LENGTH) & ~UNPACKED];
+        get(qualities, offset, quals);
+        return quals;
+    }
+
+    /**
+     * Decode the tag column of a record.  Callers cache the result, see {@link CompactAlignment#getAttribute(String)}.
+     *
+     * @return the first tag of a linked list, or null if the record has no tags
+     */
+    SAMBinaryTagAndValue getTags(int index) {
+        final int row = index * N_FIELDS;
+        int tagLength = getField(row, TAG_LENGTH);
+        if (tagLength == 0) {
+            return null;
+        }
+        byte[] tagBytes = new byte[tagLength];
+        get(tags, getField(row, TAG_OFFSET), tagBytes);
+        return BinaryTagCodec.readTags(tagBytes, 0, tagLength, ValidationStringency.SILENT);
+    }
+
+    SAMReadGroupRecord getReadGroup(String id) {
+        return id == null || header == null ? null : header.getReadGroup(id);
+    }
+
+    synchronized String getHaplotypeName(int index) {
+        int s = getField(index * N_FIELDS, HAP_NAME);
+        return s < 0 ? null : haplotypeNames.get(s);
+    }
+
+    /**
+     * Haplotype names are assigned after loading, on another thread than the readers of the string column, so they
+     * are kept in their own table
+     */
+    synchronized void setHaplotypeName(int index, String name) {
+        int s = -1;
+        if (name != null) {
+            s = haplotypeNames.indexOf(name);
+            if (s < 0) {
+                s = haplotypeNames.size();
+                haplotypeNames.add(name);
+            }
+        }
+        setField(index * N_FIELDS, HAP_NAME, s);
+    }
+
+    int getHapDistance(int index) {
+        return getField(index * N_FIELDS, HAP_DISTANCE);
+    }
+
+    void setHapDistance(int index, int distance) {
+        setField(index * N_FIELDS, HAP_DISTANCE, distance);
+    }
+
+    synchronized String getMateSequence(int index) {
+        return mateSequences == null ? null : mateSequences.get(index);
+    }
+
+    synchronized void setMateSequence(int index, String sequence) {
+        if (mateSequences == null) {
+            mateSequences = new HashMap<>();
+        }
+        mateSequences.put(index, sequence);
+    }
+
+    /**
+     * Rebuild the SAM record for an alignment.
+     */
+    SAMRecord getRecord(int index) {
+
+        final int row = index * N_FIELDS;
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(getReadName(index));
+        record.setFlags(getField(row, FLAGS));
+        record.setReferenceName(strings.get(getField(row, REF_NAME)));
+        record.setAlignmentStart(getField(row, ALIGNMENT_START));
+        record.setMappingQuality(getField(row, MAPQ));
+        record.setCigar(decodeCigar(index));
+        record.setMateReferenceName(strings.get(getField(row, MATE_REF_NAME)));
+        record.setMateAlignmentStart(getField(row, MATE_START));
+        record.setInferredInsertSize(getField(row, INSERT_SIZE));
+        record.setReadBases(getReadBases(index));
+        record.setBaseQualities(getBaseQualities(index));
+
+        for (SAMBinaryTagAndValue tv = getTags(index); tv != null; tv = tv.getNext()) {
+            String tag = SAMTag.makeStringTag(tv.tag);
+            if (tv.isUnsignedArray()) {
+                record.setUnsignedArrayAttribute(tag, tv.value);
+            } else {
+                record.setAttribute(tag, tv.value);
+            }
+        }
+        return record;
+    }
+
+    private int addRow() {
+        fields = ensureCapacity(fields, N_FIELDS * 4);
+        fields.position(fields.position() + N_FIELDS * 4);
+        return size * N_FIELDS;
+    }
+
+    private int stringIndex(String s) {
+        Integer idx = stringIndeces.get(s);
+        if (idx == null) {
+            idx = strings.size();
+            strings.add(s);
+            stringIndeces.put(s, idx);
+        }
+        return idx;
+    }
+
+    private int getField(int row, int field) {
+        return fields.getInt((row + field) * 4);
+    }
+
+    private void setField(int row, int field, int value) {
+        fields.putInt((row + field) * 4, value);
+    }
+
+    private static void get(ByteBuffer buffer, int offset, byte[] dest) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.get(dest);
+    }
+
+    private static ByteBuffer copy(ByteBuffer src, int offset, int length, ByteBuffer dest) {
+        dest = ensureCapacity(dest, length);
+        ByteBuffer b = src.duplicate();
+        b.position(offset).limit(offset + length);
+        dest.put(b);
+        return dest;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        allocatedBytes.addAndGet(capacity);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        // Direct memory is released when the buffer is collected, keep the accounting in step
+        Cleanup.register(buffer, capacity);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer with room for {@code needed} more bytes after the current position, growing (doubling) the
+     * buffer if required.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() < needed) {
+            long newCapacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + needed);
+            if (newCapacity > Integer.MAX_VALUE) {
+                throw new OutOfMemoryError("Alignment store column exceeds 2GB");
+            }
+            ByteBuffer newBuffer = allocate((int) newCapacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+        return buffer;
+    }
+
+    private static class Cleanup extends java.lang.ref.PhantomReference<ByteBuffer> {
+
+        private static final java.lang.ref.ReferenceQueue<ByteBuffer> queue = new java.lang.ref.ReferenceQueue<>();
+        private static final Set<Cleanup> pending = Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<>());
+
+        private final int capacity;
+
+        private Cleanup(ByteBuffer buffer, int capacity) {
+            super(buffer, queue);
+            this.capacity = capacity;
+        }
+
+        static void register(ByteBuffer buffer, int capacity) {
+            expunge();
+            pending.add(new Cleanup(buffer, capacity));
+        }
+
+        static void expunge() {
+            Cleanup c;
+            while ((c = (Cleanup) queue.poll()) != null) {
+                pending.remove(c);
+                allocatedBytes.addAndGet(-c.capacity);
+            }
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMBinaryTagAndValue;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMTag;
+import org.apache.log4j.Logger;
+import org.broad.igv.feature.Strand;
+import org.broad.igv.prefs.Constants;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.ui.color.ColorUtilities;
+
+import java.awt.*;
+import java.lang.ref.SoftReference;
+import java.util.List;
+
+/**
+ * A lightweight view of an alignment held in a {@link ColumnarAlignmentStore}.  Position, flags, mapping quality,
+ * name, pair orientation and haplotype assignment are read directly from the store.  Blocks, gaps, insertions and
+ * tags are decoded from the store columns on first use and held through a single soft reference, so they are
+ * retained while the alignment is being drawn or colored but can be reclaimed under memory pressure.  Only the popup
+ * text and SAM string rebuild a full {@link SAMAlignment}.
+ */
+public class CompactAlignment implements Alignment {
+
+    private static final Logger log = Logger.getLogger(CompactAlignment.class);
+
+    ColumnarAlignmentStore store;
+    int index;
+
+    private SoftReference<Decoded> decoded;
+
+    CompactAlignment(ColumnarAlignmentStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    synchronized void relocate(ColumnarAlignmentStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    /**
+     * Values derived from the store columns, each filled in on first use and rebuilt if reclaimed.  Fields are
+     * guarded by the instance.
+     */
+    private static class Decoded {
+        SAMAlignment.Blocks blocks;
+        SAMBinaryTagAndValue tags;
+        boolean tagsDecoded;
+        Color ycColor;
+        boolean ycColorDecoded;
+        BaseModificationSet baseModificationSet;
+        boolean baseModificationsDecoded;
+        SAMAlignment materialized;
+    }
+
+    private synchronized Decoded decoded() {
+        Decoded d = decoded == null ? null : decoded.get();
+        if (d == null) {
+            d = new Decoded();
+            decoded = new SoftReference<>(d);
+        }
+        return d;
+    }
+
+    private Decoded cachedDecoded() {
+        SoftReference<Decoded> ref = decoded;
+        return ref == null ? null : ref.get();
+    }
+
+    private SAMAlignment.Blocks getBlocks() {
+        Decoded d = decoded();
+        synchronized (d) {
+            if (d.blocks == null) {
+                boolean showSoftClipped = PreferencesManager.getPreferences().getAsBoolean(Constants.SAM_SHOW_SOFT_CLIPPED);
+                // Blocks start from the alignment start, the stored start already includes any soft clip
+                d.blocks = SAMAlignment.buildBlocks(store.getCigarOperators(index), store.getReadBases(index),
+                        store.getBaseQualities(index), getAlignmentStart(), getAlignmentEnd(), showSoftClipped);
+            }
+            return d.blocks;
+        }
+    }
+
+    /**
+     * Return the value of a tag, decoding the tag column once rather than on each call
+     */
+    private Object getTag(String tag) {
+        Decoded d = decoded();
+        SAMBinaryTagAndValue tv;
+        synchronized (d) {
+            if (!d.tagsDecoded) {
+                d.tags = store.getTags(index);
+                d.tagsDecoded = true;
+            }
+            tv = d.tags;
+        }
+        short binaryTag = SAMTag.makeBinaryTag(tag);
+        for (; tv != null; tv = tv.getNext()) {
+            if (tv.tag == binaryTag) {
+                return tv.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the full alignment for this view, rebuilding it from the store if it is not currently cached.
+     */
+    public SAMAlignment materialize() {
+        Decoded d = decoded();
+        synchronized (d) {
+            if (d.materialized == null) {
+                SAMAlignment alignment = new SAMAlignment(store.getRecord(index));
+                // Start and end might differ from the record's if soft clips are shown
+                alignment.setStart(store.getStart(index));
+                alignment.setEnd(store.getEnd(index));
+                alignment.setChr(store.getChr(index));
+                String mateSequence = store.getMateSequence(index);
+                if (mateSequence != null) {
+                    alignment.setMateSequence(mateSequence);
+                }
+                d.materialized = alignment;
+            }
+            return d.materialized;
+        }
+    }
+
+    private SAMAlignment cachedMaterialized() {
+        Decoded d = cachedDecoded();
+        if (d == null) {
+            return null;
+        }
+        synchronized (d) {
+            return d.materialized;
+        }
+    }
+
+    private boolean isFlagSet(SAMFlag flag) {
+        return (store.getFlags(index) & flag.intValue()) != 0;
+    }
+
+    public String getReadName() {
+        return store.getReadName(index);
+    }
+
+    public String getReadSequence() {
+        return new String(store.getReadBases(index));
+    }
+
+    // Declared by Alignment, but also overrides the deprecated Feature.getChr()
+    @SuppressWarnings("deprecation")
+    public String getChr() {
+        return store.getChr(index);
+    }
+
+    public String getContig() {
+        return store.getChr(index);
+    }
+
+    public int getStart() {
+        return store.getStart(index);
+    }
+
+    public void setStart(int start) {
+        store.setStart(index, start);
+        SAMAlignment alignment = cachedMaterialized();
+        if (alignment != null) alignment.setStart(start);
+    }
+
+    public int getEnd() {
+        return store.getEnd(index);
+    }
+
+    public void setEnd(int end) {
+        store.setEnd(index, end);
+        SAMAlignment alignment = cachedMaterialized();
+        if (alignment != null) alignment.setEnd(end);
+    }
+
+    public int getAlignmentStart() {
+        return store.getAlignmentStart(index) - 1;
+    }
+
+    public int getAlignmentEnd() {
+        return store.getAlignmentEnd(index);
+    }
+
+    public boolean contains(double location) {
+        return location >= getStart() && location < getEnd();
+    }
+
+    public float getScore() {
+        return getMappingQuality();
+    }
+
+    public int getMappingQuality() {
+        return store.getMappingQuality(index);
+    }
+
+    public int getInferredInsertSize() {
+        return store.getInferredInsertSize(index);
+    }
+
+    public String getCigarString() {
+        return store.getCigarString(index);
+    }
+
+    public ReadMate getMate() {
+        return store.getMate(index);
+    }
+
+    public Strand getReadStrand() {
+        return isNegativeStrand() ? Strand.NEGATIVE : Strand.POSITIVE;
+    }
+
+    public boolean isProperPair() {
+        return isPaired() && isFlagSet(SAMFlag.PROPER_PAIR);
+    }
+
+    public boolean isMapped() {
+        return !isFlagSet(SAMFlag.READ_UNMAPPED);
+    }
+
+    public boolean isPaired() {
+        return isFlagSet(SAMFlag.READ_PAIRED);
+    }
+
+    public boolean isFirstOfPair() {
+        return isPaired() && isFlagSet(SAMFlag.FIRST_OF_PAIR);
+    }
+
+    public boolean isSecondOfPair() {
+        return isPaired() && isFlagSet(SAMFlag.SECOND_OF_PAIR);
+    }
+
+    public boolean isNegativeStrand() {
+        return isFlagSet(SAMFlag.READ_REVERSE_STRAND);
+    }
+
+    public boolean isDuplicate() {
+        return isFlagSet(SAMFlag.DUPLICATE_READ);
+    }
+
+    public boolean isPrimary() {
+        return !isFlagSet(SAMFlag.SECONDARY_ALIGNMENT);
+    }
+
+    public boolean isSupplementary() {
+        return isFlagSet(SAMFlag.SUPPLEMENTARY_ALIGNMENT);
+    }
+
+    public boolean isVendorFailedRead() {
+        return isFlagSet(SAMFlag.READ_FAILS_VENDOR_QUALITY_CHECK);
+    }
+
+    public void setMateSequence(String sequence) {
+        store.setMateSequence(index, sequence);
+        SAMAlignment alignment = cachedMaterialized();
+        if (alignment != null) alignment.setMateSequence(sequence);
+    }
+
+    public AlignmentBlock[] getAlignmentBlocks() {
+        return getBlocks().alignmentBlocks;
+    }
+
+    public AlignmentBlock[] getInsertions() {
+        return getBlocks().insertions;
+    }
+
+    public AlignmentBlock getInsertionAt(int position) {
+        for (AlignmentBlock block : getInsertions()) {
+            if (block.getStart() == position) return block;
+            if (block.getStart() > position) return null;  // Blocks increase linearly
+        }
+        return null;
+    }
+
+    public List<Gap> getGaps() {
+        return getBlocks().gaps;
+    }
+
+    public byte getBase(double position) {
+        int basePosition = (int) position;
+        for (AlignmentBlock block : getAlignmentBlocks()) {
+            if (block.contains(basePosition)) {
+                return block.getBase(basePosition - block.getStart());
+            }
+        }
+        return 0;
+    }
+
+    public byte getPhred(double position) {
+        int basePosition = (int) position;
+        for (AlignmentBlock block : getAlignmentBlocks()) {
+            if (block.contains(basePosition)) {
+                return block.getQuality(basePosition - block.getStart());
+            }
+        }
+        return 0;
+    }
+
+    public Object getAttribute(String key) {
+        // SAM alignment tag keys must be of length 2
+        if (key == null) {
+            return null;
+        } else {
+            return key.length() == 2 ? getTag(key) :
+                    (key.equals("TEMPLATE_ORIENTATION") ? getPairOrientation() : null);
+        }
+    }
+
+    public String getPairOrientation() {
+        ReadMate mate = getMate();
+        if (isPaired() && isMapped() && mate != null && mate.isMapped() && getChr().equals(mate.getChr())) {
+            return SAMAlignment.pairOrientation(store.getFlags(index), mate.isNegativeStrand(), getInferredInsertSize(),
+                    getAlignmentStart(), getAlignmentEnd(), mate.getStart());
+        }
+        return "";
+    }
+
+    public Strand getFirstOfPairStrand() {
+        if (!isPaired() || isFirstOfPair()) {
+            return getReadStrand();
+        }
+        // If we have a mate, the mate must be the firstOfPair
+        ReadMate mate = getMate();
+        return mate != null && mate.isMapped() ? mate.getStrand() : Strand.NONE;
+    }
+
+    public Strand getSecondOfPairStrand() {
+        if (!isPaired()) {
+            return Strand.NONE;
+        }
+        if (isSecondOfPair()) {
+            return getReadStrand();
+        }
+        ReadMate mate = getMate();
+        return mate != null && mate.isMapped() && isProperPair() ? mate.getStrand() : Strand.NONE;
+    }
+
+    public Color getYcColor() {
+        Decoded d = decoded();
+        synchronized (d) {
+            if (!d.ycColorDecoded) {
+                Object colorTag = getTag("YC");
+                if (colorTag != null) {
+                    try {
+                        d.ycColor = ColorUtilities.stringToColor(colorTag.toString(), null);
+                    } catch (Exception e) {
+                        log.error("Error interpreting color tag: " + colorTag, e);
+                    }
+                }
+                d.ycColorDecoded = true;
+            }
+            return d.ycColor;
+        }
+    }
+
+    private SAMReadGroupRecord getReadGroupRecord() {
+        Object id = getTag("RG");
+        return store.getReadGroup(id == null ? null : id.toString());
+    }
+
+    public String getSample() {
+        SAMReadGroupRecord readGroup = getReadGroupRecord();
+        return readGroup == null ? null : readGroup.getSample();
+    }
+
+    public String getReadGroup() {
+        SAMReadGroupRecord readGroup = getReadGroupRecord();
+        return readGroup == null ? null : readGroup.getId();
+    }
+
+    public String getLibrary() {
+        SAMReadGroupRecord readGroup = getReadGroupRecord();
+        return readGroup == null ? null : readGroup.getLibrary();
+    }
+
+    public BaseModificationSet getBaseModificationSet() {
+        Decoded d = decoded();
+        synchronized (d) {
+            if (!d.baseModificationsDecoded) {
+                Object mm = getTag("Mm");
+                if (mm == null) {
+                    mm = getTag("MM");
+                }
+                if (mm != null) {
+                    Object ml = getTag("Ml");
+                    if (ml == null) {
+                        ml = getTag("ML");
+                    }
+                    d.baseModificationSet = BaseModificationSet.decode(mm.toString(), (byte[]) ml,
+                            store.getReadBases(index), isNegativeStrand());
+                }
+                d.baseModificationsDecoded = true;
+            }
+            return d.baseModificationSet;
+        }
+    }
+
+    public String getAlignmentValueString(double position, int mouseX, AlignmentTrack.RenderOptions renderOptions) {
+        SAMAlignment alignment = materialize();
+        alignment.setHaplotypeName(getHaplotypeName());
+        alignment.setHapDistance(getHapDistance());
+        return alignment.getAlignmentValueString(position, mouseX, renderOptions);
+    }
+
+    public String getClipboardString(double location, int mouseX) {
+        return getAlignmentValueString(location, mouseX, null);
+    }
+
+    public void finish() {
+    }
+
+    public void setHaplotypeName(String hap) {
+        store.setHaplotypeName(index, hap);
+    }
+
+    public String getHaplotypeName() {
+        return store.getHaplotypeName(index);
+    }
+
+    public void setHapDistance(int dist) {
+        store.setHapDistance(index, dist);
+    }
+
+    public int getHapDistance() {
+        return store.getHapDistance(index);
+    }
+
+    @Override
+    public String toString() {
+        return materialize().toString();
+    }
+}
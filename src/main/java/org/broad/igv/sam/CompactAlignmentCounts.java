@@ -0,0 +1,500 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A memory efficient alternative to {@link DenseAlignmentCounts}.
+ * <p/>
+ * Counts are held in chunks of {@link #CHUNK_SIZE} positions, allocated on first use, so positions without coverage
+ * cost nothing.  Each chunk starts with byte cells and is promoted to short, then int, cells only when a value in
+ * that chunk overflows.  Values returned are identical to those of DenseAlignmentCounts.
+ * <p/>
+ * Base counts are stored for both strands combined, with negative strand counts kept alongside only if strand
+ * counts are requested; positive strand counts are the difference.  Quality sums are stored only if quality
+ * weighting is requested.  Without them {@link #getQuality(int, byte)} and {@link #getTotalQuality(int)} return
+ * counts, so quality weighted allele fractions become count weighted.
+ */
+public class CompactAlignmentCounts extends BaseAlignmentCounts {
+
+    private static Logger log = Logger.getLogger(CompactAlignmentCounts.class);
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Base order for the per base cells:  A, C, G, T, N
+    private static final int A = 0;
+    private static final int C = 1;
+    private static final int G = 2;
+    private static final int T = 3;
+    private static final int N = 4;
+
+    private final int nPts;
+    private final boolean strandCounts;
+    private final boolean qualityCounts;
+
+    private final Cells[] counts;
+    private final Cells[] negCounts;
+    private final Cells[] quality;
+    private final Cells total;
+    private final Cells negTotal;
+    private final Cells totalQ;
+    private final Cells del;
+    private final Cells ins;
+
+    /**
+     * Maximum total count per interval of {@link DenseAlignmentCounts#MAX_COUNT_INTERVAL} positions, for autoscaling
+     */
+    private final int[] maxCounts;
+
+    public CompactAlignmentCounts(int start, int end, AlignmentTrack.BisulfiteContext bisulfiteContext,
+                                  boolean strandCounts, boolean qualityCounts) {
+        super(start, end, bisulfiteContext);
+
+        this.nPts = end - start;
+        this.strandCounts = strandCounts;
+        this.qualityCounts = qualityCounts;
+
+        counts = newCells(5);
+        negCounts = strandCounts ? newCells(5) : null;
+        quality = qualityCounts ? newCells(5) : null;
+        total = new Cells(nPts);
+        negTotal = strandCounts ? new Cells(nPts) : null;
+        totalQ = qualityCounts ? new Cells(nPts) : null;
+        del = new Cells(nPts);
+        ins = new Cells(nPts);
+
+        maxCounts = new int[(nPts / DenseAlignmentCounts.MAX_COUNT_INTERVAL) + 1];
+    }
+
+    private Cells[] newCells(int n) {
+        Cells[] cells = new Cells[n];
+        for (int i = 0; i < n; i++) {
+            cells[i] = new Cells(nPts);
+        }
+        return cells;
+    }
+
+    public boolean hasStrandCounts() {
+        return strandCounts;
+    }
+
+    public boolean hasQualityCounts() {
+        return qualityCounts;
+    }
+
+    /**
+     * @return bytes currently allocated for count cells
+     */
+    public long getAllocatedBytes() {
+        long bytes = total.getAllocatedBytes() + del.getAllocatedBytes() + ins.getAllocatedBytes();
+        for (Cells c : counts) bytes += c.getAllocatedBytes();
+        if (strandCounts) {
+            bytes += negTotal.getAllocatedBytes();
+            for (Cells c : negCounts) bytes += c.getAllocatedBytes();
+        }
+        if (qualityCounts) {
+            bytes += totalQ.getAllocatedBytes();
+            for (Cells c : quality) bytes += c.getAllocatedBytes();
+        }
+        return bytes;
+    }
+
+    public int getNumberOfPoints() {
+        return nPts;
+    }
+
+    @Override
+    public int getMaxCount(int strt, int end) {
+
+        if (maxCounts.length == 0) return 1;
+
+        strt = Math.max(0, strt);
+        end = Math.min(getEnd(), end);
+        int startMCI = Math.max(0, (strt - this.start) / DenseAlignmentCounts.MAX_COUNT_INTERVAL);
+        int endMCI = Math.max(0, (end - this.start) / DenseAlignmentCounts.MAX_COUNT_INTERVAL);
+        endMCI = Math.min(endMCI, maxCounts.length - 1);
+
+        int max = 1;
+        for (int mci = startMCI; mci <= endMCI; mci++) {
+            max = Math.max(max, maxCounts[mci]);
+        }
+        return max;
+    }
+
+    public void finish() {
+        // Noop
+    }
+
+    private int getOffset(int pos) {
+        int offset = pos - start;
+        if (offset < 0 || offset >= nPts) {
+            if (log.isDebugEnabled()) {
+                log.debug("Position out of range: " + pos + " (valid range - " + start + "-" + end);
+            }
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * @return index of the nucleotide in the per base cells, or -1 if it is not one of ACGTN
+     */
+    private static int baseIndex(byte b) {
+        switch (b) {
+            case 'a':
+            case 'A':
+                return A;
+            case 'c':
+            case 'C':
+                return C;
+            case 'g':
+            case 'G':
+                return G;
+            case 't':
+            case 'T':
+                return T;
+            case 'n':
+            case 'N':
+                return N;
+            default:
+                return -1;
+        }
+    }
+
+    public int getTotalCount(int pos) {
+        int offset = getOffset(pos);
+        return offset < 0 ? 0 : total.get(offset);
+    }
+
+    public int getTotalQuality(int pos) {
+        int offset = getOffset(pos);
+        if (offset < 0) {
+            return 0;
+        }
+        return qualityCounts ? totalQ.get(offset) : total.get(offset);
+    }
+
+    public int getCount(int pos, byte b) {
+        int offset = getOffset(pos);
+        if (offset < 0) {
+            return 0;
+        }
+        int idx = baseIndex(b);
+        if (idx < 0) {
+            log.debug("Unknown nucleotide: " + b);
+            return 0;
+        }
+        return counts[idx].get(offset);
+    }
+
+    /**
+     * @return the negative strand count, or 0 if strand counts are not stored
+     */
+    public int getNegCount(int pos, byte b) {
+        int offset = getOffset(pos);
+        if (offset < 0) {
+            return 0;
+        }
+        int idx = baseIndex(b);
+        if (idx < 0) {
+            log.error("Unknown nucleotide: " + b);
+            return 0;
+        }
+        return strandCounts ? negCounts[idx].get(offset) : 0;
+    }
+
+    /**
+     * @return the positive strand count, or the count for both strands if strand counts are not stored
+     */
+    public int getPosCount(int pos, byte b) {
+        int offset = getOffset(pos);
+        if (offset < 0) {
+            return 0;
+        }
+        int idx = baseIndex(b);
+        if (idx < 0) {
+            log.error("Unknown nucleotide: " + b);
+            return 0;
+        }
+        int count = counts[idx].get(offset);
+        return strandCounts ? count - negCounts[idx].get(offset) : count;
+    }
+
+    public int getDelCount(int pos) {
+        int offset = getOffset(pos);
+        return offset < 0 ? 0 : del.get(offset);
+    }
+
+    public int getInsCount(int pos) {
+        int offset = getOffset(pos);
+        return offset < 0 ? 0 : ins.get(offset);
+    }
+
+    public int getQuality(int pos, byte b) {
+        int offset = getOffset(pos);
+        if (offset < 0) {
+            return 32;
+        }
+        int idx = baseIndex(b);
+        if (idx < 0) {
+            log.error("Unknown nucleotide: " + b);
+            return 0;
+        }
+        return qualityCounts ? quality[idx].get(offset) : counts[idx].get(offset);
+    }
+
+    @Override
+    public String getValueStringAt(int pos) {
+
+        if (strandCounts) {
+            return super.getValueStringAt(pos);
+        }
+
+        if (pos < getStart() || pos >= getEnd()) return null;
+
+        // Without strand counts omit the +/- breakdown
+        StringBuffer buf = new StringBuffer();
+        int totalCount = getTotalCount(pos);
+        buf.append("Total count: " + totalCount);
+        for (char c : nucleotides) {
+            int count = getCount(pos, (byte) c);
+            int percent = (int) Math.round(((float) count) * 100 / totalCount);
+            char cU = Character.toUpperCase(c);
+            buf.append("<br>" + cU + "      : " + count);
+            if (count != 0) {
+                buf.append("  (" + percent + "%)");
+            }
+        }
+        int delCount = getDelCount(pos);
+        int insCount = getInsCount(pos);
+        if (delCount > 0 || insCount > 0) {
+            buf.append("<br>---------------");
+            buf.append("<br>DEL: " + delCount);
+            buf.append("<br>INS: " + insCount);
+        }
+
+        return buf.toString();
+    }
+
+    protected void incrementDeletion(int pos, boolean negativeStrand) {
+        int offset = pos - start;
+        if (offset >= 0 && offset < nPts) {
+            del.add(offset, 1);
+            if (countDeletedBasesCovered) {
+                total.add(offset, 1);
+                if (negativeStrand && strandCounts) {
+                    negTotal.add(offset, 1);
+                }
+            }
+        }
+    }
+
+    protected void incrementInsertion(AlignmentBlock insBlock) {
+        int offset = insBlock.getStart() - start;
+        // Insertions are between bases.  increment count at position just before insertion
+        if (offset >= 0 && offset < nPts) {
+            ins.add(offset, 1);
+        }
+    }
+
+    protected void incBlockCounts(AlignmentBlock block, boolean isNegativeStrand) {
+        int start = block.getStart();
+        ByteSubarray bases = block.getBases();
+        if (bases != null) {
+            for (int i = 0; i < bases.length; i++) {
+                incPositionCount(start + i, bases.getByte(i), block.getQuality(i), isNegativeStrand);
+            }
+        }
+    }
+
+    protected void incPositionCount(int pos, byte b, byte q, boolean isNegativeStrand) {
+
+        int offset = pos - start;
+        if (offset >= 0 && offset < nPts) {
+            // Everything other than ACGT is counted as "N".  This might be an actual "N",  or an ambiguity code
+            int idx = baseIndex(b);
+            if (idx < 0) idx = N;
+
+            counts[idx].add(offset, 1);
+            int tmp = total.add(offset, 1);
+            if (isNegativeStrand && strandCounts) {
+                negCounts[idx].add(offset, 1);
+                negTotal.add(offset, 1);
+            }
+            if (qualityCounts) {
+                quality[idx].add(offset, q);
+                totalQ.add(offset, q);
+            }
+
+            int maxCountInt = offset / DenseAlignmentCounts.MAX_COUNT_INTERVAL;
+            if (tmp > maxCounts[maxCountInt]) {
+                maxCounts[maxCountInt] = tmp;
+            }
+        }
+    }
+
+    /**
+     * An array of non-negative counters stored in lazily allocated chunks of adaptive width.  A chunk is promoted
+     * from byte to short to int cells when a value no longer fits; negative values also promote to int, so any
+     * sequence of additions gives the same result as an int[].
+     */
+    static final class Cells {
+
+        private static final byte EMPTY = 0;
+        private static final byte BYTE = 1;
+        private static final byte SHORT = 2;
+        private static final byte INT = 4;
+
+        private final int length;
+        private final byte[] widths;
+        private final byte[][] byteChunks;
+        private final short[][] shortChunks;
+        private final int[][] intChunks;
+
+        Cells(int length) {
+            this.length = length;
+            int nChunks = (length + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+            widths = new byte[nChunks];
+            byteChunks = new byte[nChunks][];
+            shortChunks = new short[nChunks][];
+            intChunks = new int[nChunks][];
+        }
+
+        int get(int i) {
+            int c = i >>> CHUNK_BITS;
+            switch (widths[c]) {
+                case BYTE:
+                    return byteChunks[c][i & CHUNK_MASK] & 0xFF;
+                case SHORT:
+                    return shortChunks[c][i & CHUNK_MASK] & 0xFFFF;
+                case INT:
+                    return intChunks[c][i & CHUNK_MASK];
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Add delta to cell i
+         *
+         * @return the new value
+         */
+        int add(int i, int delta) {
+            int c = i >>> CHUNK_BITS;
+            int o = i & CHUNK_MASK;
+            int value = get(i) + delta;
+            switch (widths[c]) {
+                case BYTE:
+                    if ((value & ~0xFF) == 0) {
+                        byteChunks[c][o] = (byte) value;
+                        return value;
+                    }
+                    break;
+                case SHORT:
+                    if ((value & ~0xFFFF) == 0) {
+                        shortChunks[c][o] = (short) value;
+                        return value;
+                    }
+                    break;
+                case INT:
+                    intChunks[c][o] = value;
+                    return value;
+                default:
+                    if (value == 0) {
+                        return value;
+                    }
+            }
+            promote(c, value);
+            set(c, o, value);
+            return value;
+        }
+
+        private void set(int c, int o, int value) {
+            switch (widths[c]) {
+                case BYTE:
+                    byteChunks[c][o] = (byte) value;
+                    break;
+                case SHORT:
+                    shortChunks[c][o] = (short) value;
+                    break;
+                default:
+                    intChunks[c][o] = value;
+            }
+        }
+
+        /**
+         * Widen chunk c until it can hold value
+         */
+        private void promote(int c, int value) {
+            int size = Math.min(CHUNK_SIZE, length - (c << CHUNK_BITS));
+            byte width = (value & ~0xFF) == 0 ? BYTE : (value & ~0xFFFF) == 0 ? SHORT : INT;
+            switch (widths[c]) {
+                case EMPTY:
+                    if (width == BYTE) {
+                        byteChunks[c] = new byte[size];
+                    } else if (width == SHORT) {
+                        shortChunks[c] = new short[size];
+                    } else {
+                        intChunks[c] = new int[size];
+                    }
+                    break;
+                case BYTE:
+                    byte[] bytes = byteChunks[c];
+                    byteChunks[c] = null;
+                    if (width == SHORT) {
+                        short[] shorts = new short[size];
+                        for (int j = 0; j < size; j++) shorts[j] = (short) (bytes[j] & 0xFF);
+                        shortChunks[c] = shorts;
+                    } else {
+                        int[] ints = new int[size];
+                        for (int j = 0; j < size; j++) ints[j] = bytes[j] & 0xFF;
+                        intChunks[c] = ints;
+                    }
+                    break;
+                case SHORT:
+                    short[] shorts = shortChunks[c];
+                    shortChunks[c] = null;
+                    int[] ints = new int[size];
+                    for (int j = 0; j < size; j++) ints[j] = shorts[j] & 0xFFFF;
+                    intChunks[c] = ints;
+                    break;
+            }
+            widths[c] = width;
+        }
+
+        long getAllocatedBytes() {
+            long bytes = 0;
+            for (int c = 0; c < widths.length; c++) {
+                int size = Math.min(CHUNK_SIZE, length - (c << CHUNK_BITS));
+                bytes += (long) widths[c] * size;
+            }
+            return bytes;
+        }
+    }
+}
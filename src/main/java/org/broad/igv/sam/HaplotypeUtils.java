@@ -6,10 +6,15 @@ import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.ui.util.MessageUtils;
 
 import java.util.*;
+import java.util.stream.IntStream;
 
 
 /**
  * Experimental class for phasing alignments for high ploidy regions.
+ * <p/>
+ * Alignments spanning the variant positions are labeled by their bases at these positions.  Each distinct label is
+ * a haplotype, stored bit-packed, and the haplotypes are clustered with k-means over Hamming distances, computed
+ * with popcounts of the packed words.  Labeling and cluster assignment run in parallel.
  *
  * @author Jim Robinson
  */
@@ -18,6 +23,21 @@ public class HaplotypeUtils {
 
     private static Logger log = Logger.getLogger(HaplotypeUtils.class);
 
+    // Label symbols, in the order ties are broken when computing a cluster consensus
+    static final String SYMBOLS = "actg_";
+    static final byte GAP = 4;
+    private static final byte[] BASE_CODES = new byte[256];
+
+    static {
+        Arrays.fill(BASE_CODES, GAP);
+        BASE_CODES['a'] = BASE_CODES['A'] = 0;
+        BASE_CODES['c'] = BASE_CODES['C'] = 1;
+        BASE_CODES['t'] = BASE_CODES['T'] = 2;
+        BASE_CODES['g'] = BASE_CODES['G'] = 3;
+    }
+
+    private static final int MAX_ITERATIONS = 50;
+
     private final AlignmentInterval alignmentInterval;
     Genome genome;
 
@@ -52,82 +72,31 @@ public class HaplotypeUtils {
             start = snpPos.get(0) - 1;
             end = snpPos.get(snpPos.size() - 1) + 1;
 
+            List<Alignment> alignments = this.alignmentInterval.getAlignments();
+            if (alignments == null) {
+                alignments = Collections.emptyList();
+            }
+
             // Clear any existing names
-            for(Alignment a : this.alignmentInterval.getAlignments()) {
+            for (Alignment a : alignments) {
                 a.setHaplotypeName("NONE");
             }
 
             // Label alignments
-            Map<String, List<Alignment>> labelAlignmentMap = labelAlignments(start, end, snpPos, reference, this.alignmentInterval.getAlignmentIterator());
-            List<String> labels = new ArrayList(labelAlignmentMap.keySet());
-            if (labels.size() < nClasses) {
-                MessageUtils.showMessage("Not enough features to create " + nClasses + " classes. Max # of classes = " + labels.size());
+            int[] positions = snpPos.stream().mapToInt(Integer::intValue).toArray();
+            Haplotypes haplotypes = labelAlignments(start, end, positions, alignments);
+            if (haplotypes.size() < nClasses) {
+                MessageUtils.showMessage("Not enough features to create " + nClasses + " classes. Max # of classes = " + haplotypes.size());
                 return false;
             }
 
-            // Sort labels (entries) by # of associated alignments
-            labels.sort((o1, o2) -> {
-                return labelAlignmentMap.get(o2).size() - labelAlignmentMap.get(o1).size();
-            });
-
-            // Create initial cluster centroids
-            List<V> clusters = new ArrayList<>();
-            for (int i = 0; i < nClasses; i++) {
-                String label = labels.get(i);
-                V v = new V(i + 1, label);
-                clusters.add(v);
-            }
-
-            // Now assign all labels to a cluster
-
-            int n = 0;
-            int max = 50;
-            while (true) {
-                for (String label : labels) {
-
-                    double min = Double.MAX_VALUE;
-                    V centroid = null;
-
-                    for (V c : clusters) {
-                        double dist = c.distance(label);
-                        if (dist < min) {
-                            centroid = c;
-                            min = dist;
-                        }
-                    }
-
-                    if (centroid != null) {
-                        centroid.add(label);
-                    }
-                }
-
-                boolean movement = false;
-                for (V c : clusters) {
-                    if (c.movement()) {
-                        movement = true;
-                        break;
-                    }
-                }
-
-                if (movement && n++ < max) {
-                    for (V c : clusters) {
-                        c.reset();
-                    }
-                } else {
-                    break;
-                }
-            }
+            int[] clusters = cluster(haplotypes.labels, haplotypes.n, nClasses);
 
             // Now label alignments by cluster
-            for (int i = 0; i < clusters.size(); i++) {
-                V c = clusters.get(i);
-                String label = "" + c.id;
-                for (String l : c.allLabels) {
-
-                    List<Alignment> alignments = labelAlignmentMap.get(l);
-                    for (Alignment a : alignments) {
-                        a.setHaplotypeName(label);
-                    }
+            for (int h = 0; h < haplotypes.size(); h++) {
+                String label = "" + (clusters[h] + 1);
+                for (Alignment a : haplotypes.alignments.get(h)) {
+                    a.setHaplotypeName(label);
                 }
             }
             return true;
@@ -156,50 +125,164 @@ public class HaplotypeUtils {
     }
 
     /**
-     * Label the alignments by the base value at each snp position over the region defined by [start, end].
+     * Label the alignments spanning the region defined by [start, end] by the base value at each snp position.
+     * Bases other than a, c, g, t, and positions not covered by an aligned base, are labeled "_".
      *
      * @param start
      * @param end
-     * @param positions
-     * @param reference
-     * @param iter
-     * @return a map of label -> alignment.
+     * @param positions snp positions, ascending
+     * @param alignments
+     * @return the distinct labels, most frequent first, and their alignments
      */
-    public Map<String, List<Alignment>> labelAlignments(int start, int end, List<Integer> positions, byte[] reference, Iterator<Alignment> iter) {
+    static Haplotypes labelAlignments(int start, int end, int[] positions, List<Alignment> alignments) {
 
-        Map<String, List<Alignment>> alignmentMap = new HashMap<>();
-        while (iter.hasNext()) {
-            Alignment alignment = iter.next();
+        Haplotype[] encoded = new Haplotype[alignments.size()];
+        IntStream.range(0, encoded.length).parallel().forEach(i -> {
+            Alignment alignment = alignments.get(i);
             if (start >= alignment.getStart() && end <= alignment.getEnd()) {
-                String hapName = "";
-                for (Integer pos : positions) {
-                    boolean found = false;
-                    for (AlignmentBlock block : alignment.getAlignmentBlocks()) {
-                        if (block.isSoftClip()) continue;
-                        if (block.contains(pos)) {
-                            int blockOffset = pos - block.getStart();
-                            hapName += (char) block.getBase(blockOffset);
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        hapName += "_";
-                    }
+                encoded[i] = encode(alignment, positions);
+            }
+        });
+
+        Map<Haplotype, Integer> index = new HashMap<>();
+        List<Haplotype> distinct = new ArrayList<>();
+        List<List<Alignment>> members = new ArrayList<>();
+        for (int i = 0; i < encoded.length; i++) {
+            Haplotype h = encoded[i];
+            if (h == null) continue;
+            Integer idx = index.get(h);
+            if (idx == null) {
+                idx = distinct.size();
+                index.put(h, idx);
+                distinct.add(h);
+                members.add(new ArrayList<>());
+            }
+            members.get(idx).add(alignments.get(i));
+        }
+
+        // Order labels by # of alignments, most frequent first.  The sort is stable, so ties keep the order labels
+        // were first seen in the alignment list.  The order determines the initial cluster centroids.
+        List<Integer> order = new ArrayList<>(distinct.size());
+        for (int h = 0; h < distinct.size(); h++) {
+            order.add(h);
+        }
+        order.sort((o1, o2) -> members.get(o2).size() - members.get(o1).size());
+
+        Haplotype[] labels = new Haplotype[order.size()];
+        List<List<Alignment>> orderedMembers = new ArrayList<>(order.size());
+        for (int h : order) {
+            labels[orderedMembers.size()] = distinct.get(h);
+            orderedMembers.add(members.get(h));
+        }
+        return new Haplotypes(positions.length, labels, orderedMembers);
+    }
+
+    private static Haplotype encode(Alignment alignment, int[] positions) {
+        Haplotype h = new Haplotype(positions.length);
+        for (AlignmentBlock block : alignment.getAlignmentBlocks()) {
+            if (block.isSoftClip()) continue;
+            int blockStart = block.getStart();
+            int blockEnd = blockStart + block.getLength();
+            int i = Arrays.binarySearch(positions, blockStart);
+            if (i < 0) i = -i - 1;
+            for (; i < positions.length && positions[i] < blockEnd; i++) {
+                if (!h.isSet(i)) {
+                    h.set(i, BASE_CODES[block.getBase(positions[i] - blockStart) & 0xff]);
                 }
+            }
+        }
+        return h;
+    }
 
-                hapName = hapName.toLowerCase();
+    /**
+     * Cluster labels with k-means over Hamming distance (k-modes).  The first nClasses labels are the initial
+     * centroids.  Each pass assigns every label to its nearest centroid, then replaces each centroid with the
+     * consensus of its labels, until assignments no longer change.  Ties go to the lowest numbered centroid.
+     *
+     * @param labels labels, most frequent first
+     * @param n      label length
+     * @return the cluster index of each label
+     */
+    static int[] cluster(Haplotype[] labels, int n, int nClasses) {
+
+        Haplotype[] centroids = new Haplotype[nClasses];
+        for (int c = 0; c < nClasses; c++) {
+            centroids[c] = labels[c];
+        }
 
-                List<Alignment> alignments = alignmentMap.get(hapName);
-                if (alignments == null) {
-                    alignments = new ArrayList<>();
-                    alignmentMap.put(hapName, alignments);
+        int[] assignments = new int[labels.length];
+        Arrays.fill(assignments, -1);
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+
+            boolean movement = false;
+            int[] next = new int[labels.length];
+            IntStream.range(0, labels.length).parallel().forEach(l -> next[l] = nearest(labels[l], centroids));
+            for (int l = 0; l < labels.length; l++) {
+                if (next[l] != assignments[l]) {
+                    movement = true;
+                    break;
                 }
-                alignments.add(alignment);
+            }
+            assignments = next;
+            if (!movement) {
+                break;
+            }
+
+            for (int c = 0; c < nClasses; c++) {
+                Haplotype consensus = consensus(labels, assignments, c, n);
+                if (consensus != null) {
+                    centroids[c] = consensus;
+                }
+            }
+        }
+        return assignments;
+    }
 
+    private static int nearest(Haplotype label, Haplotype[] centroids) {
+        int min = Integer.MAX_VALUE;
+        int centroid = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            int dist = label.distance(centroids[c]);
+            if (dist < min) {
+                centroid = c;
+                min = dist;
+            }
+        }
+        return centroid;
+    }
+
+    /**
+     * Return the label with the most frequent symbol at each position over the labels assigned to a cluster, or null
+     * if there are none.  Ties go to the first symbol in {@link #SYMBOLS}.
+     */
+    static Haplotype consensus(Haplotype[] labels, int[] assignments, int cluster, int n) {
+        int[] counts = new int[SYMBOLS.length() * n];
+        boolean empty = true;
+        for (int l = 0; l < labels.length; l++) {
+            if (assignments[l] == cluster) {
+                empty = false;
+                for (int i = 0; i < n; i++) {
+                    counts[labels[l].get(i) * n + i]++;
+                }
             }
         }
-        return alignmentMap;
+        if (empty) {
+            return null;
+        }
+        Haplotype consensus = new Haplotype(n);
+        for (int i = 0; i < n; i++) {
+            int max = 0;
+            int symbol = 0;
+            for (int s = 0; s < SYMBOLS.length(); s++) {
+                int count = counts[s * n + i];
+                if (count > max) {
+                    max = count;
+                    symbol = s;
+                }
+            }
+            consensus.set(i, symbol);
+        }
+        return consensus;
     }
 
 
@@ -220,181 +303,96 @@ public class HaplotypeUtils {
 
     }
 
-//    List<V> combineClusters(List<V> clusters) {
-//
-//        List<Pair<Integer, Integer>> combine = new ArrayList<>();
-//        for (int i = 0; i < clusters.size(); i++) {
-//            for (int j = i + 1; j < clusters.size(); j++) {
-//                V c1 = clusters.get(i);
-//                V c2 = clusters.get(j);
-//                double d = c1.distance(c2);
-//                //System.out.println("" + c1.id + " - " + c2.id + "  =  " + d);
-//                if (d == 0) {
-//                    combine.add(new Pair(i, j));
-//                }
-//            }
-//        }
-//    }
-
-
-    static class V {
-
-        static byte[] foo = {'a', 'c', 't', 'g', '_'};
-
-        int id;
-        int n;
-        int total;
-        Map<Byte, int[]> counts;
-        byte[] label;
-
-        Set<String> allLabels;
-        Set<String> previousLabels;
-
-        public V(int id, String s) {
-            this.id = id;
-            this.label = s.toLowerCase().getBytes();
-
-            n = label.length;
-
-            counts = new HashMap<>();
-            for (byte b : foo) {
-                counts.put(b, new int[n]);
-            }
+    /**
+     * Distinct labels, most frequent first, and the alignments with each label
+     */
+    static class Haplotypes {
 
-            allLabels = new HashSet<>();
-            previousLabels = new HashSet();
+        final int n;
+        final Haplotype[] labels;
+        final List<List<Alignment>> alignments;
 
-            add(s);
+        Haplotypes(int n, Haplotype[] labels, List<List<Alignment>> alignments) {
+            this.n = n;
+            this.labels = labels;
+            this.alignments = alignments;
         }
 
-        public void add(String s) {
-
-            byte[] m = s.getBytes();
-
-            if (m.length != n) {
-                System.err.println("Wrong length");
-                return;
-            }
-
-            total++;
-
-            for (int i = 0; i < n; i++) {
-
-                byte b = m[i];
-                if (b < 95) b += 32;  // a fast "toLowercase"
-
-                int[] cts = counts.get(b);
-                if (cts != null) {
-                    cts[i]++;
-                } else {
-                    System.err.println("Unknown nuc: " + ((char) m[i]));
-                }
-            }
-
-            updateLabel();
-
-            allLabels.add(s);
+        int size() {
+            return labels.length;
         }
+    }
 
-        void updateLabel() {
-
-            for (int i = 0; i < n; i++) {
+    /**
+     * A label packed as two bit planes holding the 2 bit base code of each position, and a bit per position set if
+     * the position has a base.  Position i is bit i % 64 of word i / 64 in each plane.
+     */
+    static final class Haplotype {
 
-                byte bMax = 0;
-                int cMax = 0;
-
-                for (byte b : foo) {
-                    if (b < 95) b += 32;  // a fast "toLowercase"
-                    int[] cts = counts.get(b);
-                    if (cts == null) {
-                        System.out.println("Null: " + ((char) b));
-                    }
-                    if (cts[i] > cMax) {
-                        cMax = counts.get(b)[i];
-                        bMax = b;
-                    }
-                }
+        final long[] lo;
+        final long[] hi;
+        final long[] covered;
 
-                label[i] = bMax;
-            }
+        Haplotype(int n) {
+            int words = (n + 63) >>> 6;
+            lo = new long[words];
+            hi = new long[words];
+            covered = new long[words];
         }
 
-        double distance(String s) {
+        boolean isSet(int i) {
+            return (covered[i >>> 6] & (1L << i)) != 0;
+        }
 
-            if (s.length() != n) {
-                System.out.println("Unequal lengths");
-                return -Integer.MAX_VALUE;
+        void set(int i, int code) {
+            if (code != GAP) {
+                long bit = 1L << i;
+                if ((code & 1) != 0) lo[i >>> 6] |= bit;
+                if ((code & 2) != 0) hi[i >>> 6] |= bit;
+                covered[i >>> 6] |= bit;
             }
+        }
 
-            // Lowercase
-            byte[] b = s.toLowerCase().getBytes();
-
-            double d = 0;
-            for (int i = 0; i < b.length; i++) {
-
-                // Uncomment for Hamming distance
-                //  char c = (char) label[i];
-                //   char c1 = s.charAt(i);
-                //  if(c != c1) {
-                //      d += 1.0;
-                //  }
-
-                // % of counts matching
-                int[] cts = counts.get(b[i]);
-                double pct = cts[i] / ((double) total);
-                d += 1 - pct;
-
+        int get(int i) {
+            if (!isSet(i)) {
+                return GAP;
             }
-            return d;
+            int lowBit = (int) (lo[i >>> 6] >>> i) & 1;
+            int highBit = (int) (hi[i >>> 6] >>> i) & 1;
+            return highBit << 1 | lowBit;
         }
 
-        double distance(V v) {
-
-            byte[] s = v.label;
-
-            if (s.length != n) {
-                System.out.println("Unequal lengths");
-                return -Integer.MAX_VALUE;
-            }
-
-            double d = 0;
-            for (int i = 0; i < s.length; i++) {
-                byte c = label[i];
-                byte c1 = s[i];
-                if (c != c1) {
-                    d += 1.0;
-                }
+        /**
+         * @return the number of positions at which the symbols differ.  A gap matches only a gap.
+         */
+        int distance(Haplotype h) {
+            int d = 0;
+            for (int w = 0; w < covered.length; w++) {
+                long bothCovered = covered[w] & h.covered[w];
+                long baseDiff = ((lo[w] ^ h.lo[w]) | (hi[w] ^ h.hi[w])) & bothCovered;
+                d += Long.bitCount(covered[w] ^ h.covered[w]) + Long.bitCount(baseDiff);
             }
             return d;
         }
 
-        public void reset() {
-
-            counts = new HashMap<>();
-            for (byte b : foo) {
-                counts.put(b, new int[n]);
-            }
-
-            previousLabels = new HashSet(allLabels);
-            allLabels = new HashSet<>();
-
-            for (int i = 0; i < label.length; i++) {
-                counts.get(label[i])[i] = 1;
+        String toLabel(int n) {
+            char[] chars = new char[n];
+            for (int i = 0; i < n; i++) {
+                chars[i] = SYMBOLS.charAt(get(i));
             }
-
-            total = 1;
-
+            return new String(chars);
         }
 
-        public boolean movement() {
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Haplotype)) return false;
+            Haplotype h = (Haplotype) o;
+            return Arrays.equals(lo, h.lo) && Arrays.equals(hi, h.hi) && Arrays.equals(covered, h.covered);
+        }
 
-            if (allLabels.size() != previousLabels.size()) {
-                return true;
-            }
-            for (String l : previousLabels) {
-                if (!allLabels.contains(l)) return true;
-            }
-            return false;
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(lo) + Arrays.hashCode(hi)) + Arrays.hashCode(covered);
         }
     }
 
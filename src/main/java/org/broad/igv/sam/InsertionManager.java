@@ -31,6 +31,7 @@ import org.broad.igv.feature.genome.GenomeManager;
 import org.broad.igv.prefs.PreferencesManager;
 
 import java.util.*;
+import java.util.stream.IntStream;
 
 import static org.broad.igv.prefs.Constants.SAM_HIDE_SMALL_INDEL;
 import static org.broad.igv.prefs.Constants.SAM_SMALL_INDEL_BP_THRESHOLD;
@@ -39,13 +40,20 @@ import static org.broad.igv.prefs.Constants.SAM_SMALL_INDEL_BP_THRESHOLD;
  * Created by jrobinso on 12/22/16.
  * <p>
  * Experimental class to test strategies for drawing insertions
+ * <p>
+ * Insertion markers for each chromosome are held in position sorted arrays, replaced as a whole when a tile is
+ * merged, so range queries are a binary search and need no locking.
  */
 public class InsertionManager {
 
     private static InsertionManager theInstance = new InsertionManager();
 
-    private Map<String, Map<Integer, InsertionMarker>> insertionMaps;
-    private Map<String, List<Integer>> positionsMap;
+    /**
+     * Alignments per task when collecting insertions in parallel
+     */
+    static final int CHUNK_SIZE = 2000;
+
+    private Map<String, ChrInsertions> insertionMaps;
     private Map<String, Integer> selectedInsertions;
 
     public static InsertionManager getInstance() {
@@ -54,34 +62,21 @@ public class InsertionManager {
 
     private InsertionManager() {
         this.insertionMaps = Collections.synchronizedMap(new HashMap<>(100));
-        this.positionsMap = Collections.synchronizedMap(new HashMap<>(100));
         this.selectedInsertions = Collections.synchronizedMap(new HashMap<>(100));
     }
 
     public void clear() {
         this.insertionMaps.clear();
-        this.positionsMap.clear();
-        this.selectedInsertions.clear();;
+        this.selectedInsertions.clear();
     }
 
+    /**
+     * @return insertion markers with start <= position <= end, in position order, or null if no alignments
+     * have been processed for the chromosome
+     */
     public List<InsertionMarker> getInsertions(String chrName, double start, double end) {
-
-
-        Map<Integer, InsertionMarker> insertionMap = insertionMaps.get(chrName);
-        List<Integer> positions = positionsMap.get(chrName);
-        if(insertionMap == null || positions == null) return null;
-
-        List<InsertionMarker> insertionMarkers = new ArrayList<>();
-        for (int i = 0; i < positions.size(); i++) {
-            final Integer key = positions.get(i);
-            if (key > end) break;
-            if (key >= start) {
-                final InsertionMarker insertionMarker = insertionMap.get(key);
-                insertionMarkers.add(insertionMarker);
-            }
-        }
-        return insertionMarkers;
-
+        ChrInsertions insertions = insertionMaps.get(chrName);
+        return insertions == null ? null : insertions.getRange(start, end);
     }
 
     public void setSelected(String chrName, int position) {
@@ -94,53 +89,202 @@ public class InsertionManager {
 
     public InsertionMarker getSelectedInsertion(String chrName) {
         Integer selectedInsertion = selectedInsertions.get(chrName);
-        Map<Integer, InsertionMarker> insertionMap = insertionMaps.get(chrName);
-        return (selectedInsertion == null  || insertionMap == null) ? null : insertionMap.get(selectedInsertion);
+        ChrInsertions insertions = insertionMaps.get(chrName);
+        return (selectedInsertion == null || insertions == null) ? null : insertions.get(selectedInsertion);
     }
 
-    
-    public synchronized void processAlignments(String chr, List<Alignment> alignments) {
+
+    public void processAlignments(String chr, List<Alignment> alignments) {
 
         Genome genome = GenomeManager.getInstance().getCurrentGenome();
         chr = genome == null ? chr : genome.getCanonicalChrName(chr);
 
-        Map<Integer, InsertionMarker> insertionMap = insertionMaps.get(chr);
-        if(insertionMap == null) {
-            insertionMap =  Collections.synchronizedMap(new HashMap<>());
-            insertionMaps.put(chr, insertionMap);
-        }
-        List<Integer> positions = positionsMap.get(chr);
-        if(positions == null) {
-            positions = new ArrayList<>();
-            positionsMap.put(chr, positions);
-        }
-
         int minLength = 0;
         if (PreferencesManager.getPreferences().getAsBoolean(SAM_HIDE_SMALL_INDEL)) {
             minLength = PreferencesManager.getPreferences().getAsInt(SAM_SMALL_INDEL_BP_THRESHOLD);
         }
 
+        long[] insertions = collectInsertions(alignments, minLength);
+
+        synchronized (this) {
+            ChrInsertions chrInsertions = insertionMaps.get(chr);
+            if (chrInsertions == null) {
+                chrInsertions = new ChrInsertions();
+                insertionMaps.put(chr, chrInsertions);
+            }
+            chrInsertions.merge(insertions);
+        }
+    }
+
+    /**
+     * Collect the insertions of all alignments, in parallel for large lists.
+     *
+     * @return packed (position, length) pairs, one per distinct position with the maximum length, sorted by position
+     */
+    static long[] collectInsertions(List<Alignment> alignments, int minLength) {
+
+        int nChunks = (alignments.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream chunks = IntStream.range(0, nChunks);
+        if (nChunks > 1) {
+            chunks = chunks.parallel();
+        }
+        long[] packed = chunks.collect(LongList::new, (result, c) -> {
+            int from = c * CHUNK_SIZE;
+            int to = Math.min(alignments.size(), from + CHUNK_SIZE);
+            collectInsertions(alignments.subList(from, to), minLength, result);
+        }, LongList::addAll).toArray();
+
+        // Sort by position, then length.  The last entry for each position has the maximum length.
+        if (packed.length > 100000) {
+            Arrays.parallelSort(packed);
+        } else {
+            Arrays.sort(packed);
+        }
+        int n = 0;
+        for (int i = 0; i < packed.length; i++) {
+            if (i + 1 < packed.length && position(packed[i + 1]) == position(packed[i])) continue;
+            packed[n++] = packed[i];
+        }
+        return Arrays.copyOf(packed, n);
+    }
+
+    private static void collectInsertions(List<Alignment> alignments, int minLength, LongList result) {
         for (Alignment a : alignments) {
             AlignmentBlock[] blocks = a.getInsertions();
             if (blocks != null) {
                 for (AlignmentBlock block : blocks) {
                     if (block.getBases() == null || block.getBases().length < minLength) continue;
-                    Integer key = block.getStart();
-                    InsertionMarker insertionMarker = insertionMap.get(key);
-                    if (insertionMarker == null) {
-                        insertionMarker = new InsertionMarker(block.getStart(), block.getLength());
-                        insertionMap.put(key, insertionMarker);
-                        positions.add(block.getStart());
-                    } else {
-                        insertionMarker.size = Math.max(insertionMarker.size, block.getLength());
-                    }
+                    result.add(pack(block.getStart(), block.getLength()));
                 }
             }
         }
+    }
+
+    private static long pack(int position, int length) {
+        return ((long) position << 32) | (length & 0xFFFFFFFFL);
+    }
 
-        positions.addAll(insertionMap.keySet());
-        positions.sort((o1, o2) -> o1 - o2);
+    private static int position(long packed) {
+        return (int) (packed >> 32);
     }
 
+    private static int length(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Position sorted insertion markers for a chromosome.  Arrays are replaced, never modified, so readers can use
+     * a snapshot without locking.  Existing markers are updated in place when a longer insertion is seen.
+     */
+    static class ChrInsertions {
+
+        private static class Snapshot {
+            final int[] positions;
+            final InsertionMarker[] markers;
 
+            Snapshot(int[] positions, InsertionMarker[] markers) {
+                this.positions = positions;
+                this.markers = markers;
+            }
+        }
+
+        private volatile Snapshot snapshot = new Snapshot(new int[0], new InsertionMarker[0]);
+
+        int size() {
+            return snapshot.positions.length;
+        }
+
+        InsertionMarker get(int position) {
+            Snapshot s = snapshot;
+            int idx = Arrays.binarySearch(s.positions, position);
+            return idx < 0 ? null : s.markers[idx];
+        }
+
+        List<InsertionMarker> getRange(double start, double end) {
+            Snapshot s = snapshot;
+            int from = lowerBound(s.positions, start);
+            int to = lowerBound(s.positions, Math.floor(end) + 1);
+            return from >= to ? Collections.emptyList() :
+                    Collections.unmodifiableList(Arrays.asList(s.markers).subList(from, to));
+        }
+
+        /**
+         * @return index of the first position >= value
+         */
+        private static int lowerBound(int[] positions, double value) {
+            int lo = 0;
+            int hi = positions.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (positions[mid] < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Merge sorted, distinct (position, length) pairs.  Callers must synchronize.
+         */
+        void merge(long[] insertions) {
+            if (insertions.length == 0) {
+                return;
+            }
+            Snapshot s = snapshot;
+            int[] positions = new int[s.positions.length + insertions.length];
+            InsertionMarker[] markers = new InsertionMarker[positions.length];
+            int i = 0, j = 0, n = 0;
+            while (i < s.positions.length || j < insertions.length) {
+                if (j == insertions.length || (i < s.positions.length && s.positions[i] < position(insertions[j]))) {
+                    positions[n] = s.positions[i];
+                    markers[n++] = s.markers[i++];
+                } else if (i == s.positions.length || position(insertions[j]) < s.positions[i]) {
+                    positions[n] = position(insertions[j]);
+                    markers[n++] = new InsertionMarker(position(insertions[j]), length(insertions[j]));
+                    j++;
+                } else {
+                    InsertionMarker marker = s.markers[i];
+                    marker.size = Math.max(marker.size, length(insertions[j]));
+                    positions[n] = s.positions[i];
+                    markers[n++] = marker;
+                    i++;
+                    j++;
+                }
+            }
+            if (n == s.positions.length) {
+                // No new positions
+                return;
+            }
+            snapshot = new Snapshot(Arrays.copyOf(positions, n), Arrays.copyOf(markers, n));
+        }
+    }
+
+    /**
+     * Minimal growable long array
+     */
+    private static class LongList {
+        long[] values = new long[16];
+        int size;
+
+        void add(long v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = v;
+        }
+
+        void addAll(LongList other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(2 * values.length, size + other.size));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
 }
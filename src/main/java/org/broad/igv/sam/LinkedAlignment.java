@@ -185,6 +185,9 @@ public class LinkedAlignment implements Alignment {
                     if (a instanceof SAMAlignment) {
                         buffer.append("<br>");
                         buffer.append(((SAMAlignment) a).getSynopsisString());
+                    } else if (a instanceof CompactAlignment) {
+                        buffer.append("<br>");
+                        buffer.append(((CompactAlignment) a).materialize().getSynopsisString());
                     }
                 }
             }
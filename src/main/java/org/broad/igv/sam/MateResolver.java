@@ -0,0 +1,232 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+/**
+ * Attaches the sequence of unmapped mates to their mapped partners while alignments are loaded.  Each paired read
+ * whose mate is in the opposite mapping state waits here, keyed by a 64-bit hash of its read name, until the other
+ * half of the pair arrives.
+ * <p/>
+ * The table is open addressing with linear probing over primitive arrays.  It starts at a size proportional to the
+ * interval and grows as needed, so no pairs are dropped however deep the region.  Read names are compared only when
+ * hashes match, so a hash collision can not produce a false pair.
+ * <p/>
+ * An unmapped mate stays in the table after it is matched, so supplementary alignments of the mapped read arriving
+ * later also receive the sequence.  Not thread safe.
+ */
+class MateResolver {
+
+    private static final byte EMPTY = 0;
+    private static final byte MAPPED = 1;     // mapped read waiting for its unmapped mate
+    private static final byte UNMAPPED = 2;   // unmapped read, sequence available to mapped mates
+
+    private static final int MIN_CAPACITY = 256;
+    private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
+    private long[] hashes;
+    private byte[] states;
+    private Alignment[] alignments;
+    private int size;
+    private int mask;
+
+    MateResolver() {
+        this(MIN_CAPACITY);
+    }
+
+    MateResolver(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize && capacity < MAX_INITIAL_CAPACITY) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Size the table for an interval.  Roughly one read in a few hundred bases of a deep region has an unmapped mate.
+     */
+    static MateResolver forInterval(int start, int end) {
+        return new MateResolver(Math.max(0, end - start) / 256);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        states = new byte[capacity];
+        alignments = new Alignment[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Offer a paired alignment.  Alignments whose mate is in the same mapping state are ignored.
+     */
+    void add(Alignment record) {
+
+        ReadMate mate = record.getMate();
+        if (!record.isPaired() || mate == null) {
+            return;
+        }
+        boolean mapped = record.isMapped();
+        if (mapped == mate.isMapped()) {
+            return;
+        }
+
+        String readName = record.getReadName();
+        long hash = hash(readName);
+
+        if (mapped) {
+            // record is mapped, mate is not
+            int slot = find(hash, readName, UNMAPPED, slot(hash));
+            if (slot >= 0) {
+                record.setMateSequence(alignments[slot].getReadSequence());
+            } else {
+                insert(hash, MAPPED, record);
+            }
+        } else {
+            // record not mapped, mate is.  Resolve every mapped alignment waiting for this read
+            String sequence = null;
+            int slot = find(hash, readName, MAPPED, slot(hash));
+            while (slot >= 0) {
+                if (sequence == null) {
+                    sequence = record.getReadSequence();
+                }
+                alignments[slot].setMateSequence(sequence);
+                remove(slot);
+                // Removal shifts later entries back, so search again from the same slot
+                slot = find(hash, readName, MAPPED, slot);
+            }
+            if (find(hash, readName, UNMAPPED, slot(hash)) < 0) {
+                insert(hash, UNMAPPED, record);
+            }
+        }
+    }
+
+    /**
+     * A waiting alignment has been replaced by a copy (e.g. in a compact store); the mate sequence must be set
+     * on the copy.
+     */
+    void replace(Alignment record, Alignment copy) {
+        if (!record.isPaired() || !record.isMapped() || record.getMate() == null || record.getMate().isMapped()) {
+            return;
+        }
+        long hash = hash(record.getReadName());
+        for (int i = slot(hash); states[i] != EMPTY; i = (i + 1) & mask) {
+            if (alignments[i] == record) {
+                alignments[i] = copy;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param from slot to begin probing at.  All entries of the probe sequence before this slot must be known
+     *             not to match.
+     * @return the slot of an entry for the read name in the given state, or -1
+     */
+    private int find(long hash, String readName, byte state, int from) {
+        int i = from;
+        while (states[i] != EMPTY) {
+            if (hashes[i] == hash && states[i] == state && readName.equals(alignments[i].getReadName())) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long hash, byte state, Alignment alignment) {
+        if (2 * (size + 1) > hashes.length) {
+            grow();
+        }
+        int i = slot(hash);
+        while (states[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        states[i] = state;
+        alignments[i] = alignment;
+        size++;
+    }
+
+    /**
+     * Remove the entry at slot i, shifting later entries of the probe sequence back so no tombstones are needed
+     */
+    private void remove(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (states[j] == EMPTY) {
+                break;
+            }
+            int home = slot(hashes[j]);
+            // Move entry j to the hole at i unless its home slot lies cyclically in (i, j]
+            boolean inRange = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!inRange) {
+                hashes[i] = hashes[j];
+                states[i] = states[j];
+                alignments[i] = alignments[j];
+                i = j;
+            }
+        }
+        states[i] = EMPTY;
+        alignments[i] = null;
+        size--;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        byte[] oldStates = states;
+        Alignment[] oldAlignments = alignments;
+        allocate(2 * oldHashes.length);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldStates[i] != EMPTY) {
+                insert(oldHashes[i], oldStates[i], oldAlignments[i]);
+            }
+        }
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the read name, with a final avalanche so low bits are usable as a table index
+     */
+    static long hash(String readName) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < readName.length(); i++) {
+            h ^= readName.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
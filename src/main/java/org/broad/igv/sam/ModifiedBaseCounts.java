@@ -33,6 +33,9 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 
 /**
+ * Counts of modified bases by genomic position, for each modification.  Counts are accumulated from the compact
+ * {@link BaseModificationSet} of each alignment into primitive arrays.
+ *
  * @author Jim Robinson
  * @date 2/6/12
  */
@@ -40,7 +43,7 @@ public class ModifiedBaseCounts {
 
 
     LinkedHashSet<String> allModifications = new LinkedHashSet<>();
-    Map<String, Map<Integer, Integer>> counts;
+    Map<String, PositionCounts> counts;
 
     public ModifiedBaseCounts() {
         counts = new HashMap<>();
@@ -51,29 +54,31 @@ public class ModifiedBaseCounts {
         // Only works with block formats
         if (alignment.getAlignmentBlocks() == null) return;
 
-        Map<Integer, BaseModification> baseModifications = alignment.getBaseModificationMap();
-        if (baseModifications != null) {
+        BaseModificationSet baseModifications = alignment.getBaseModificationSet();
+        if (baseModifications != null && baseModifications.size() > 0) {
+
+            double threshold = 256 * PreferencesManager.getPreferences().getAsFloat("SAM.BASEMOD_THRESHOLD");
 
             for (AlignmentBlock block : alignment.getAlignmentBlocks()) {
-                for (int i = block.getBases().startOffset; i < block.getBases().startOffset + block.getBases().length; i++) {
-                    if (baseModifications.containsKey(i)) {
-                        BaseModification mod = baseModifications.get(i);
-                        double threshold = 256 * PreferencesManager.getPreferences().getAsFloat("SAM.BASEMOD_THRESHOLD");
-                        int l = Byte.toUnsignedInt(mod.likelihood);
-                        if(l < threshold) continue;
-
-                        int blockIdx = i - block.getBases().startOffset;
-                        int position = block.getStart() + blockIdx;   // genomic position
-                        Map<Integer, Integer> modCounts = counts.get(mod.modification);
-                        if (modCounts == null) {
-                            modCounts = new HashMap<>();
-                            counts.put(mod.modification, modCounts);
-                        }
-                        int c = modCounts.containsKey(position) ? modCounts.get(position) + 1 : 1;
-                        modCounts.put(position, c);
-
-                        allModifications.add(mod.modification);
+                int blockOffset = block.getBases().startOffset;
+                int blockEnd = blockOffset + block.getBases().length;
+                for (int m = baseModifications.firstIndex(blockOffset); m < baseModifications.size(); m++) {
+                    int i = baseModifications.getPosition(m);
+                    if (i >= blockEnd) break;
+
+                    int l = Byte.toUnsignedInt(baseModifications.getLikelihood(m));
+                    if (l < threshold) continue;
+
+                    int blockIdx = i - blockOffset;
+                    int position = block.getStart() + blockIdx;   // genomic position
+                    String modification = baseModifications.getModification(m);
+                    PositionCounts modCounts = counts.get(modification);
+                    if (modCounts == null) {
+                        modCounts = new PositionCounts();
+                        counts.put(modification, modCounts);
+                        allModifications.add(modification);
                     }
+                    modCounts.increment(position);
                 }
             }
         }
@@ -81,12 +86,8 @@ public class ModifiedBaseCounts {
 
     public int getCount(int position, String modification) {
 
-        Map<Integer, Integer> modCounts = counts.get(modification);
-        if (modCounts != null && modCounts.containsKey(position)) {
-            return modCounts.get(position);
-        } else {
-            return 0;
-        }
+        PositionCounts modCounts = counts.get(modification);
+        return modCounts == null ? 0 : modCounts.get(position);
     }
 
     public Collection<String> getAllModifications() {
@@ -95,11 +96,11 @@ public class ModifiedBaseCounts {
 
     public String getValueString(int position) {
         StringBuffer buffer = new StringBuffer();
-        for (Map.Entry<String, Map<Integer, Integer>> entry : counts.entrySet()) {
+        for (Map.Entry<String, PositionCounts> entry : counts.entrySet()) {
             String modification = entry.getKey();
-            Map<Integer, Integer> modCounts = entry.getValue();
-            if (modCounts.containsKey(position)) {
-                buffer.append("Modification: " + modification + " (" + modCounts.get(position) + ")<br>");
+            int count = entry.getValue().get(position);
+            if (count > 0) {
+                buffer.append("Modification: " + modification + " (" + count + ")<br>");
             }
         }
         return buffer.toString();
@@ -109,17 +110,56 @@ public class ModifiedBaseCounts {
      * For debugging
      */
     public void dump() {
-        for (Map.Entry<String, Map<Integer, Integer>> entry : counts.entrySet()) {
+        for (Map.Entry<String, PositionCounts> entry : counts.entrySet()) {
 
             String modification = entry.getKey();
-            Map<Integer, Integer> modCounts = entry.getValue();
+            PositionCounts modCounts = entry.getValue();
 
             System.out.println("Modification: " + modification);
-            for (Map.Entry<Integer, Integer> modKey : modCounts.entrySet()) {
-                System.out.println(modKey.getKey() + "  " + modKey.getValue());
+            for (int i = 0; i < modCounts.counts.length; i++) {
+                if (modCounts.counts[i] > 0) {
+                    System.out.println((modCounts.origin + i) + "  " + modCounts.counts[i]);
+                }
             }
 
         }
     }
 
+    /**
+     * Counts over a range of positions, grown as needed
+     */
+    static class PositionCounts {
+
+        int origin;
+        int[] counts;
+
+        void increment(int position) {
+            if (counts == null) {
+                origin = position;
+                counts = new int[1024];
+            } else if (position < origin || position >= origin + counts.length) {
+                grow(position);
+            }
+            counts[position - origin]++;
+        }
+
+        int get(int position) {
+            int idx = position - origin;
+            return counts != null && idx >= 0 && idx < counts.length ? counts[idx] : 0;
+        }
+
+        private void grow(int position) {
+            int start = Math.min(origin, position);
+            int end = Math.max(origin + counts.length, position + 1);
+            int length = Math.max(end - start, 2 * counts.length);
+            if (position < origin) {
+                start = end - length;
+            }
+            int[] newCounts = new int[length];
+            System.arraycopy(counts, 0, newCounts, origin - start, counts.length);
+            counts = newCounts;
+            origin = start;
+        }
+    }
+
 }
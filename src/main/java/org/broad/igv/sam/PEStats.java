@@ -79,34 +79,41 @@ public class PEStats {
     public void update(Alignment alignment) {
 
         if (alignment.isProperPair()) {
-            insertSizes.add(Math.abs(alignment.getInferredInsertSize()));
-            String po = alignment.getPairOrientation();
-            if (po != null && po.length() == 4) {
-                if (po.charAt(0) == 'F') {
-                    if (po.charAt(2) == 'F') {
-                        if (po.charAt(1) == '1') {
-                            f1f2Count++;
-                        } else {
-                            f2f1Count++;
-                        }
-                    } else if (po.charAt(2) == 'R') {
-                        frCount++;
+            update(alignment.getInferredInsertSize(), alignment.getPairOrientation());
+        }
+    }
 
+    /**
+     * Update with a proper pair described by its insert size and pair orientation
+     */
+    public void update(int insertSize, String po) {
+
+        insertSizes.add(Math.abs(insertSize));
+        if (po != null && po.length() == 4) {
+            if (po.charAt(0) == 'F') {
+                if (po.charAt(2) == 'F') {
+                    if (po.charAt(1) == '1') {
+                        f1f2Count++;
+                    } else {
+                        f2f1Count++;
                     }
-                } else if (po.charAt(0) == 'R') {
-                    if (po.charAt(2) == 'F') {
-                        rfCount++;
-                    } else if (po.charAt(2) == 'R') {
-                        if (po.charAt(1) == '1') {
-                            f2f1Count++;
-                        } else {
-                            f1f2Count++;
-                        }
+                } else if (po.charAt(2) == 'R') {
+                    frCount++;
+
+                }
+            } else if (po.charAt(0) == 'R') {
+                if (po.charAt(2) == 'F') {
+                    rfCount++;
+                } else if (po.charAt(2) == 'R') {
+                    if (po.charAt(1) == '1') {
+                        f2f1Count++;
+                    } else {
+                        f1f2Count++;
                     }
                 }
             }
-            totalCount++;
         }
+        totalCount++;
     }
 
     public void computeInsertSize(double minPercentile, double maxPercentile) {
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Look up tags of a BAM record in its undecoded binary data.  htsjdk decodes every tag of a record on the first
+ * tag access, which costs more than the rest of the record for reads that are then discarded by downsampling.
+ * Records from other formats, and BAM records whose binary data is no longer current, fall back to the decoded
+ * attributes.
+ */
+final class RawTags {
+
+    private static final int NOT_FOUND = -1;
+    private static final int UNKNOWN = -2;      // Tag block could not be parsed, use the decoded attributes
+
+    private RawTags() {
+    }
+
+    static boolean hasTag(SAMRecord record, String tag) {
+        byte[] data = binaryData(record);
+        int pos = data == null ? UNKNOWN : find(data, tagsOffset(record, data), tag);
+        return pos == UNKNOWN ? record.hasAttribute(tag) : pos >= 0;
+    }
+
+    /**
+     * @return the value of a string (Z) tag, or null if absent
+     */
+    static String getString(SAMRecord record, String tag) {
+        byte[] data = binaryData(record);
+        int pos = data == null ? UNKNOWN : find(data, tagsOffset(record, data), tag);
+        if (pos == UNKNOWN || (pos >= 0 && data[pos] != 'Z')) {
+            Object value = record.getAttribute(tag);
+            return value == null ? null : value.toString();
+        } else if (pos == NOT_FOUND) {
+            return null;
+        }
+        int end = pos + 1;
+        while (end < data.length && data[end] != 0) end++;
+        return new String(data, pos + 1, end - pos - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the library of the record's read group, or null
+     */
+    static String getLibrary(SAMRecord record) {
+        String readGroupId = getString(record, "RG");
+        if (readGroupId == null || record.getHeader() == null) {
+            return null;
+        }
+        SAMReadGroupRecord readGroup = record.getHeader().getReadGroup(readGroupId);
+        return readGroup == null ? null : readGroup.getLibrary();
+    }
+
+    private static byte[] binaryData(SAMRecord record) {
+        if (record instanceof BAMRecord) {
+            BAMRecord bamRecord = (BAMRecord) record;
+            byte[] data = bamRecord.getVariableBinaryRepresentation();
+            if (data != null && bamRecord.getAttributesBinarySize() >= 0) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    private static int tagsOffset(SAMRecord record, byte[] data) {
+        return data.length - ((BAMRecord) record).getAttributesBinarySize();
+    }
+
+    /**
+     * @return the position of the tag's type byte, NOT_FOUND, or UNKNOWN if the tag block is malformed
+     */
+    static int find(byte[] data, int offset, String tag) {
+        final byte c1 = (byte) tag.charAt(0);
+        final byte c2 = (byte) tag.charAt(1);
+        int p = offset;
+        while (p + 3 <= data.length) {
+            if (data[p] == c1 && data[p + 1] == c2) {
+                return p + 2;
+            }
+            byte type = data[p + 2];
+            p += 3;
+            switch (type) {
+                case 'A':
+                case 'c':
+                case 'C':
+                    p += 1;
+                    break;
+                case 's':
+                case 'S':
+                    p += 2;
+                    break;
+                case 'i':
+                case 'I':
+                case 'f':
+                    p += 4;
+                    break;
+                case 'Z':
+                case 'H':
+                    while (p < data.length && data[p] != 0) p++;
+                    p++;
+                    break;
+                case 'B':
+                    if (p + 5 > data.length) return UNKNOWN;
+                    int size = valueSize(data[p]);
+                    if (size < 0) return UNKNOWN;
+                    long count = (data[p + 1] & 0xffL) | (data[p + 2] & 0xffL) << 8 |
+                            (data[p + 3] & 0xffL) << 16 | (data[p + 4] & 0xffL) << 24;
+                    p += 5 + count * size;
+                    break;
+                default:
+                    return UNKNOWN;
+            }
+        }
+        return p == data.length ? NOT_FOUND : UNKNOWN;
+    }
+
+    private static int valueSize(byte type) {
+        switch (type) {
+            case 'c':
+            case 'C':
+                return 1;
+            case 's':
+            case 'S':
+                return 2;
+            case 'i':
+            case 'I':
+            case 'f':
+                return 4;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Greedy allocation of alignments to non-overlapping rows, working on primitive arrays.  Alignments are bucketed by
+ * start position; each row is filled left to right by repeatedly taking an alignment from the first non-empty bucket
+ * at or after the next free position.
+ * <p/>
+ * Each bucket is a binary min-heap of alignment indeces, ordered by end position (longest first).  The heaps are
+ * maintained with exactly the sift-up / sift-down steps of {@link java.util.PriorityQueue}, so alignments with equal
+ * ends are taken in the same order as the previous PriorityQueue based implementation and layouts are identical.
+ * <p/>
+ * Buffers grow as needed and are kept for the next pack.  An instance is not thread safe, see
+ * {@link AlignmentPacker}.
+ */
+class RowAllocator {
+
+    private int rangeStart;
+    private int rangeEnd;
+    private int bucketLimit;
+
+    // Alignments, and their end positions at allocation time
+    private Alignment[] items = new Alignment[1024];
+    private int[] ends = new int[1024];
+    private int itemCount;
+
+    // Bucket key (start offset) -> bucket id, open addressing.  Entries are valid only if the stamp is current.
+    private int[] hashKeys = new int[2048];
+    private int[] hashValues = new int[2048];
+    private int[] hashStamps = new int[2048];
+    private int stamp = 0;
+
+    // Per bucket heap, stored as a segment of heapPool
+    private int[] bucketKeys = new int[512];
+    private int[] heapOffsets = new int[512];
+    private int[] heapSizes = new int[512];
+    private int[] heapCapacities = new int[512];
+    private int bucketCount;
+    private int[] heapPool = new int[4096];
+    private int poolSize;
+
+    // Allocation scratch
+    private long[] sortBuffer = new long[512];
+    private int[] sortedKeys = new int[512];
+    private int[] sortedIds = new int[512];
+    private int[] nextNonEmpty = new int[513];
+    private int[] rowItems = new int[1024];
+    private int[] rowEnds = new int[64];
+
+    /**
+     * Prepare for a new pack
+     *
+     * @param rangeStart  start of the packing range.  Alignments starting before this are assigned to the first bucket.
+     * @param rangeEnd    end of the packing range
+     * @param bucketLimit alignments starting at or after rangeStart + bucketLimit are rejected
+     */
+    void reset(int rangeStart, int rangeEnd, int bucketLimit) {
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.bucketLimit = bucketLimit;
+        this.itemCount = 0;
+        this.bucketCount = 0;
+        this.poolSize = 0;
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(hashStamps, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Add an alignment to the bucket for its start position.
+     *
+     * @return false if the alignment is out of bounds and was not added
+     */
+    boolean add(Alignment alignment) {
+
+        // Negative bucket keys can arise with soft clips at the left edge of the chromosome.  Allocate
+        // these alignments to the first bucket.
+        int key = Math.max(0, alignment.getStart() - rangeStart);
+        if (key >= bucketLimit) {
+            return false;
+        }
+
+        if (itemCount == items.length) {
+            items = Arrays.copyOf(items, 2 * itemCount);
+        }
+        int item = itemCount++;
+        items[item] = alignment;
+
+        int bucket = getBucket(key);
+        if (heapSizes[bucket] == heapCapacities[bucket]) {
+            growHeap(bucket);
+        }
+        siftUp(heapOffsets[bucket], heapSizes[bucket]++, item);
+        return true;
+    }
+
+    /**
+     * Allocate all added alignments to rows, appending the rows to {@code rows}.
+     */
+    void allocate(List<Row> rows) {
+
+        if (ends.length < itemCount) {
+            ends = new int[items.length];
+        }
+        // Pairs are complete by now, ends no longer change
+        for (int i = 0; i < itemCount; i++) {
+            ends[i] = items[i].getEnd();
+        }
+
+        sortBuckets();
+
+        if (rowItems.length < itemCount) {
+            rowItems = new int[items.length];
+        }
+        int allocatedCount = 0;
+        int rowCount = 0;
+        while (allocatedCount < itemCount) {
+            int nextStart = rangeStart;
+            int rowStart = allocatedCount;
+            while (true) {
+                int b = findNonEmpty(lowerBound(nextStart - rangeStart));
+                if (b == bucketCount) {
+                    break;
+                }
+                int item = poll(sortedIds[b]);
+                if (heapSizes[sortedIds[b]] == 0) {
+                    nextNonEmpty[b] = b + 1;
+                }
+                rowItems[allocatedCount++] = item;
+                nextStart = ends[item] + AlignmentPacker.MIN_ALIGNMENT_SPACING;
+                if (nextStart > rangeEnd) {
+                    break;
+                }
+            }
+            if (allocatedCount > rowStart) {
+                if (rowCount == rowEnds.length) {
+                    rowEnds = Arrays.copyOf(rowEnds, 2 * rowCount);
+                }
+                rowEnds[rowCount++] = allocatedCount;
+            }
+        }
+
+        // Only now create the row objects
+        int idx = 0;
+        for (int r = 0; r < rowCount; r++) {
+            Row row = new Row();
+            for (; idx < rowEnds[r]; idx++) {
+                row.addAlignment(items[rowItems[idx]]);
+            }
+            rows.add(row);
+        }
+
+        // Do not hold on to alignments between packs
+        Arrays.fill(items, 0, itemCount, null);
+        itemCount = 0;
+    }
+
+    private int getBucket(int key) {
+        int mask = hashKeys.length - 1;
+        int h = mix(key) & mask;
+        while (hashStamps[h] == stamp) {
+            if (hashKeys[h] == key) {
+                return hashValues[h];
+            }
+            h = (h + 1) & mask;
+        }
+
+        int bucket = bucketCount++;
+        if (bucket == bucketKeys.length) {
+            int n = 2 * bucket;
+            bucketKeys = Arrays.copyOf(bucketKeys, n);
+            heapOffsets = Arrays.copyOf(heapOffsets, n);
+            heapSizes = Arrays.copyOf(heapSizes, n);
+            heapCapacities = Arrays.copyOf(heapCapacities, n);
+        }
+        bucketKeys[bucket] = key;
+        heapOffsets[bucket] = 0;
+        heapSizes[bucket] = 0;
+        heapCapacities[bucket] = 0;
+
+        hashStamps[h] = stamp;
+        hashKeys[h] = key;
+        hashValues[h] = bucket;
+        if (2 * bucketCount > hashKeys.length) {
+            rehash();
+        }
+        return bucket;
+    }
+
+    private void rehash() {
+        int n = 2 * hashKeys.length;
+        hashKeys = new int[n];
+        hashValues = new int[n];
+        hashStamps = new int[n];
+        stamp = 1;
+        int mask = n - 1;
+        for (int b = 0; b < bucketCount; b++) {
+            int h = mix(bucketKeys[b]) & mask;
+            while (hashStamps[h] == stamp) {
+                h = (h + 1) & mask;
+            }
+            hashStamps[h] = stamp;
+            hashKeys[h] = bucketKeys[b];
+            hashValues[h] = b;
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Move a full heap to the end of the pool with double the capacity.  The old segment is abandoned; the pool is
+     * reset on the next pack.
+     */
+    private void growHeap(int bucket) {
+        int size = heapSizes[bucket];
+        int capacity = Math.max(4, 2 * size);
+        if (poolSize + capacity > heapPool.length) {
+            heapPool = Arrays.copyOf(heapPool, Math.max(2 * heapPool.length, poolSize + capacity));
+        }
+        System.arraycopy(heapPool, heapOffsets[bucket], heapPool, poolSize, size);
+        heapOffsets[bucket] = poolSize;
+        heapCapacities[bucket] = capacity;
+        poolSize += capacity;
+    }
+
+    /**
+     * Heap order: the alignment with the greater end comes first.  This is the ordering of the former comparator,
+     * {@code (end2 - start2) - (end1 - start2)}, which reduces to {@code end2 - end1}.
+     */
+    private static int compare(int end1, int end2) {
+        return end2 - end1;
+    }
+
+    private void siftUp(int offset, int k, int item) {
+        // Ends can still change during insertion (paired alignments), so use the current values
+        int end = items[item].getEnd();
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            int p = heapPool[offset + parent];
+            if (compare(end, items[p].getEnd()) >= 0) {
+                break;
+            }
+            heapPool[offset + k] = p;
+            k = parent;
+        }
+        heapPool[offset + k] = item;
+    }
+
+    private int poll(int bucket) {
+        int offset = heapOffsets[bucket];
+        int result = heapPool[offset];
+        int n = --heapSizes[bucket];
+        if (n > 0) {
+            int x = heapPool[offset + n];
+            int k = 0;
+            int half = n >>> 1;
+            while (k < half) {
+                int child = (k << 1) + 1;
+                int c = heapPool[offset + child];
+                int right = child + 1;
+                if (right < n && compare(ends[c], ends[heapPool[offset + right]]) > 0) {
+                    c = heapPool[offset + (child = right)];
+                }
+                if (compare(ends[x], ends[c]) <= 0) {
+                    break;
+                }
+                heapPool[offset + k] = c;
+                k = child;
+            }
+            heapPool[offset + k] = x;
+        }
+        return result;
+    }
+
+    /**
+     * Order buckets by key and initialize the next-non-empty links
+     */
+    private void sortBuckets() {
+        if (sortBuffer.length < bucketCount) {
+            int n = bucketKeys.length;
+            sortBuffer = new long[n];
+            sortedKeys = new int[n];
+            sortedIds = new int[n];
+            nextNonEmpty = new int[n + 1];
+        }
+        for (int b = 0; b < bucketCount; b++) {
+            sortBuffer[b] = ((long) bucketKeys[b] << 32) | b;
+        }
+        Arrays.sort(sortBuffer, 0, bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            sortedKeys[i] = (int) (sortBuffer[i] >>> 32);
+            sortedIds[i] = (int) sortBuffer[i];
+            nextNonEmpty[i] = i;
+        }
+        nextNonEmpty[bucketCount] = bucketCount;
+    }
+
+    /**
+     * @return index of the first sorted bucket with key >= key
+     */
+    private int lowerBound(int key) {
+        int lo = 0;
+        int hi = bucketCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedKeys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the first non-empty sorted bucket at or after i, or bucketCount if there is none.  Links are
+     * compressed as they are followed.
+     */
+    private int findNonEmpty(int i) {
+        int root = i;
+        while (nextNonEmpty[root] != root) {
+            root = nextNonEmpty[root];
+        }
+        while (nextNonEmpty[i] != root) {
+            int next = nextNonEmpty[i];
+            nextNonEmpty[i] = root;
+            i = next;
+        }
+        return root;
+    }
+}
@@ -101,7 +101,7 @@ public class SAMAlignment implements Alignment {
     public AlignmentBlockImpl[] insertions;
     List<Gap> gaps;
     char[] gapTypes;
-    private Map<Integer, BaseModification> baseModificationMap;
+    private BaseModificationSet baseModificationSet;
 
     protected String mateSequence = null;
     protected String pairOrientation = "";
@@ -318,22 +318,14 @@ public class SAMAlignment implements Alignment {
     }
 
     @Override
-    public synchronized Map<Integer, BaseModification> getBaseModificationMap() {
+    public synchronized BaseModificationSet getBaseModificationSet() {
 
-        if (baseModificationMap == null && (record.hasAttribute("Mm") || record.hasAttribute("MM"))) {
+        if (baseModificationSet == null && (record.hasAttribute("Mm") || record.hasAttribute("MM"))) {
             Object mm = record.hasAttribute("Mm") ? record.getAttribute("Mm") : record.getAttribute("MM");
             byte[] ml = (byte[]) (record.hasAttribute("Ml") ? record.getAttribute("Ml") : record.getAttribute("ML"));
-            List<BaseModification> baseModifications = BaseModification.getBaseModifications(mm.toString(), ml, record.getReadBases(), isNegativeStrand());
-            baseModificationMap = new HashMap<>();
-            for (BaseModification mod : baseModifications) {
-                Integer p = mod.position;
-                if (!baseModificationMap.containsKey(p) || Byte.toUnsignedInt(mod.likelihood) > Byte.toUnsignedInt(baseModificationMap.get(p).likelihood)) {
-                    baseModificationMap.put(p, mod);
-                }
-
-            }
+            baseModificationSet = BaseModificationSet.decode(mm.toString(), ml, record.getReadBases(), isNegativeStrand());
         }
-        return baseModificationMap;
+        return baseModificationSet;
     }
 
     /**
@@ -382,17 +374,50 @@ public class SAMAlignment implements Alignment {
     private void createAlignmentBlocks() {
 
         String cigarString = record.getCigarString();
-        byte[] readBases = record.getReadBases();
-        byte[] readBaseQualities = record.getBaseQualities();
+        boolean showSoftClipped = PreferencesManager.getPreferences().getAsBoolean(Constants.SAM_SHOW_SOFT_CLIPPED);
+        Blocks b = buildBlocks(cigarString.equals("*") ? null : buildOperators(cigarString),
+                record.getReadBases(), record.getBaseQualities(), start, end, showSoftClipped);
+        alignmentBlocks = b.alignmentBlocks;
+        insertions = b.insertions;
+        gaps = b.gaps;
+        gapTypes = b.gapTypes;
+        start = b.start;
+        end = b.end;
+    }
+
+    /**
+     * Alignment blocks, insertions and gaps of one alignment, with its start and end adjusted to include soft
+     * clipped bases when those are shown.
+     */
+    static class Blocks {
+        AlignmentBlockImpl[] alignmentBlocks;
+        AlignmentBlockImpl[] insertions;
+        List<Gap> gaps;
+        char[] gapTypes;
+        int start;
+        int end;
+    }
 
-        if (cigarString.equals("*")) {
+    /**
+     * Build the alignment blocks for an alignment from its cigar operators, or from the bases alone if
+     * {@code operators} is null (cigar "*").
+     *
+     * @param start 0-based alignment start
+     * @param end   alignment end (exclusive)
+     */
+    static Blocks buildBlocks(List<CigarOperator> operators, byte[] readBases, byte[] readBaseQualities,
+                              int start, int end, boolean showSoftClipped) {
+
+        Blocks result = new Blocks();
+        AlignmentBlockImpl[] alignmentBlocks;
+        AlignmentBlockImpl[] insertions = null;
+        List<Gap> gaps = null;
+        char[] gapTypes = null;
+
+        if (operators == null) {
             alignmentBlocks = new AlignmentBlockImpl[1];
-            alignmentBlocks[0] = new AlignmentBlockImpl(getStart(), readBases, readBaseQualities, 0, readBases.length, '*');
+            alignmentBlocks[0] = new AlignmentBlockImpl(start, readBases, readBaseQualities, 0, readBases.length, '*');
         } else {
-            // Create list of cigar operators
-            java.util.List<CigarOperator> operators = buildOperators(cigarString);
-
-            boolean showSoftClipped = PreferencesManager.getPreferences().getAsBoolean(Constants.SAM_SHOW_SOFT_CLIPPED);
 
             int nInsertions = 0;
             int nBlocks = 0;
@@ -531,6 +556,14 @@ public class SAMAlignment implements Alignment {
                 }
             }
         }
+
+        result.alignmentBlocks = alignmentBlocks;
+        result.insertions = insertions;
+        result.gaps = gaps;
+        result.gapTypes = gapTypes;
+        result.start = start;
+        result.end = end;
+        return result;
     }
 
 
@@ -541,7 +574,7 @@ public class SAMAlignment implements Alignment {
      * @param cigarString
      * @return
      */
-    private static List<CigarOperator> buildOperators(String cigarString) {
+    static List<CigarOperator> buildOperators(String cigarString) {
 
         java.util.List<CigarOperator> operators = new ArrayList();
         StringBuilder buffer = new StringBuilder(4);
@@ -613,9 +646,9 @@ public class SAMAlignment implements Alignment {
             for (AlignmentBlock block : this.alignmentBlocks) {
                 if (block.contains((int) position)) {
                     int p = (int) (position - block.getStart()) + block.getBasesOffset();
-                    if (baseModificationMap != null && baseModificationMap.containsKey(p)) {
-                        BaseModification mod = baseModificationMap.get(p);
-                        return mod.valueString();
+                    int idx = baseModificationSet == null ? -1 : baseModificationSet.indexOf(p);
+                    if (idx >= 0) {
+                        return baseModificationSet.valueString(idx);
                     }
                 }
             }
@@ -963,46 +996,73 @@ public class SAMAlignment implements Alignment {
          */
 
         if (isPaired() && isMapped() && mate != null && mate.isMapped() && getChr().equals(mate.getChr())) {   // && name === mate.name
+            pairOrientation = pairOrientation(flags, mate.isNegativeStrand(), getInferredInsertSize(),
+                    getAlignmentStart(), getAlignmentEnd(), mate.getStart());
+        }
+    }
 
-            char s1 = isNegativeStrand() ? 'R' : 'F';
-            char s2 = mate.isNegativeStrand() ? 'R' : 'F';
-            char o1 = ' ';
-            char o2 = ' ';
-            if (isFirstOfPair()) {
-                o1 = '1';
-                o2 = '2';
-            } else if (isSecondOfPair()) {
-                o1 = '2';
-                o2 = '1';
-            }
+    /**
+     * Return the pair orientation of a raw record, as an alignment built from the record would report it.  Used to
+     * collect pair statistics for records that are not built into alignments.
+     */
+    public static String getPairOrientation(SAMRecord record) {
+        int flags = record.getFlags();
+        if ((flags & READ_PAIRED_FLAG) == 0 || (flags & READ_UNMAPPED_FLAG) != 0 || (flags & MATE_UNMAPPED_FLAG) != 0) {
+            return "";
+        }
+        Genome genome = GenomeManager.getInstance().getCurrentGenome();
+        String chr = record.getReferenceName();
+        String mateChr = record.getMateReferenceName();
+        if (genome != null) {
+            chr = genome.getCanonicalChrName(chr);
+            mateChr = genome.getCanonicalChrName(mateChr);
+        }
+        if (!chr.equals(mateChr)) {
+            return "";
+        }
+        return pairOrientation(flags, record.getMateNegativeStrandFlag(), record.getInferredInsertSize(),
+                record.getAlignmentStart() - 1, record.getAlignmentEnd(), record.getMateAlignmentStart() - 1);
+    }
+
+    static String pairOrientation(int flags, boolean mateNegativeStrand, int isize,
+                                          int alignmentStart, int alignmentEnd, int mateStart) {
+
+        char s1 = (flags & READ_STRAND_FLAG) != 0 ? 'R' : 'F';
+        char s2 = mateNegativeStrand ? 'R' : 'F';
+        char o1 = ' ';
+        char o2 = ' ';
+        if ((flags & FIRST_OF_PAIR_FLAG) != 0) {
+            o1 = '1';
+            o2 = '2';
+        } else if ((flags & SECOND_OF_PAIR_FLAG) != 0) {
+            o1 = '2';
+            o2 = '1';
+        }
 
-            final char[] tmp = new char[4];
-            int isize = getInferredInsertSize();
-            int estReadLen = getAlignmentEnd() - getAlignmentStart();
-            if (isize == 0) {
-                //isize not recorded.  Need to estimate.  This calculation was validated against an Illumina
-                // -> <- library bam.
-                int estMateEnd = getAlignmentStart() < mate.getStart() ?
-                        getMate().getStart() + estReadLen : mate.getStart() - estReadLen;
-                isize = estMateEnd - getAlignmentStart();
-            }
+        final char[] tmp = new char[4];
+        int estReadLen = alignmentEnd - alignmentStart;
+        if (isize == 0) {
+            //isize not recorded.  Need to estimate.  This calculation was validated against an Illumina
+            // -> <- library bam.
+            int estMateEnd = alignmentStart < mateStart ? mateStart + estReadLen : mateStart - estReadLen;
+            isize = estMateEnd - alignmentStart;
+        }
 
-            //if (isize > estReadLen) {
-            if (isize > 0) {
-                tmp[0] = s1;
-                tmp[1] = o1;
-                tmp[2] = s2;
-                tmp[3] = o2;
+        //if (isize > estReadLen) {
+        if (isize > 0) {
+            tmp[0] = s1;
+            tmp[1] = o1;
+            tmp[2] = s2;
+            tmp[3] = o2;
 
-            } else {
-                tmp[2] = s1;
-                tmp[3] = o1;
-                tmp[0] = s2;
-                tmp[1] = o2;
-            }
-            // }
-            pairOrientation = new String(tmp);
+        } else {
+            tmp[2] = s1;
+            tmp[3] = o1;
+            tmp[0] = s2;
+            tmp[1] = o2;
         }
+        // }
+        return new String(tmp);
     }
 
     public void setChr(String chr) {
@@ -192,6 +192,8 @@ public class SAMWriter {
                 next = alignments.next();
                 if (next instanceof SAMAlignment && passLocFilter(next)) {
                     nextAlignment = (SAMAlignment) next;
+                } else if (next instanceof CompactAlignment && passLocFilter(next)) {
+                    nextAlignment = ((CompactAlignment) next).materialize();
                 }
             }
         }
@@ -285,14 +287,13 @@ public class SAMWriter {
         checkExportableAlignmentFile(inlocator.getFormat());
 
         AlignmentReader reader = AlignmentReaderFactory.getReader(inlocator);
-        CloseableIterator<SAMAlignment> iter = reader.query(sequence, start, end, false);
-        final SAMFileHeader fileHeader = reader.getFileHeader();
-
-        SAMWriter writer = new SAMWriter(fileHeader);
-        int count = writer.writeToFile(new File(outPath), iter, true);
-        iter.close();
-
-        return count;
+        try (CloseableIterator<SAMAlignment> iter = reader.query(sequence, start, end, false)) {
+            final SAMFileHeader fileHeader = reader.getFileHeader();
+            SAMWriter writer = new SAMWriter(fileHeader);
+            return writer.writeToFile(new File(outPath), iter, true);
+        } finally {
+            reader.close();
+        }
     }
 
     private static void checkExportableAlignmentFile(String format) {
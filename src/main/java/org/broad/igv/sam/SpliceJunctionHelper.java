@@ -26,8 +26,6 @@
 
 package org.broad.igv.sam;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
 import org.apache.log4j.Logger;
 import org.broad.igv.feature.FeatureUtils;
 import org.broad.igv.feature.SpliceJunctionFeature;
@@ -37,12 +35,18 @@ import org.broad.igv.prefs.IGVPreferences;
 import org.broad.igv.prefs.PreferencesManager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * A helper class for computing splice junctions from alignments.
  * Junctions are filtered based on minimum flanking width on loading, so data
- * needs to be
+ * needs to be reloaded if that option changes.
+ * <p/>
+ * Junctions are accumulated per strand in a {@link JunctionTable}, keyed by junction start and end packed in a long,
+ * with the read count and histograms of flanking widths held in primitive arrays.  Feature objects are created on
+ * request, and only for junctions passing the minimum coverage filter, so changing the strand option or the
+ * minimum coverage does not require reloading.
  *
  * @author dhmay, jrobinso
  * @date Jul 3, 2011
@@ -51,12 +55,9 @@ public class SpliceJunctionHelper {
 
     static Logger log = Logger.getLogger(SpliceJunctionHelper.class);
 
-    List<SpliceJunctionFeature> allSpliceJunctionFeatures = new ArrayList<SpliceJunctionFeature>();
-    //  List<SpliceJunctionFeature> filteredSpliceJunctionFeatures = null;
-    List<SpliceJunctionFeature> filteredCombinedFeatures = null;
-
-    Table<Integer, Integer, SpliceJunctionFeature> posStartEndJunctionsMap = HashBasedTable.create();
-    Table<Integer, Integer, SpliceJunctionFeature> negStartEndJunctionsMap = HashBasedTable.create();
+    private final JunctionTable posJunctions = new JunctionTable();
+    private final JunctionTable negJunctions = new JunctionTable();
+    private String chr;
 
     private LoadOptions loadOptions;
 
@@ -66,25 +67,24 @@ public class SpliceJunctionHelper {
 
     public List<SpliceJunctionFeature> getFilteredJunctions(SpliceJunctionTrack.StrandOption strandOption) {
 
-        List<SpliceJunctionFeature> junctions;
+        int minDepth = loadOptions.minJunctionCoverage;
+        List<SpliceJunctionFeature> filteredJunctions = new ArrayList<>();
 
         switch (strandOption) {
             case FORWARD:
-                junctions = new ArrayList<>(posStartEndJunctionsMap.values());
+                posJunctions.addFeatures(chr, Strand.POSITIVE, minDepth, filteredJunctions);
                 break;
             case REVERSE:
-                junctions = new ArrayList<>(negStartEndJunctionsMap.values());
+                negJunctions.addFeatures(chr, Strand.NEGATIVE, minDepth, filteredJunctions);
                 break;
             case BOTH:
-                junctions = new ArrayList<>(posStartEndJunctionsMap.values());
-                junctions.addAll(negStartEndJunctionsMap.values());
+                posJunctions.addFeatures(chr, Strand.POSITIVE, minDepth, filteredJunctions);
+                negJunctions.addFeatures(chr, Strand.NEGATIVE, minDepth, filteredJunctions);
                 break;
             default:
-                junctions = combineStrandJunctionsMaps();
+                addCombinedFeatures(minDepth, filteredJunctions);
         }
 
-        List<SpliceJunctionFeature> filteredJunctions = filterJunctionList(this.loadOptions, junctions);
-
         FeatureUtils.sortFeatureList(filteredJunctions);
 
         return filteredJunctions;
@@ -110,11 +110,10 @@ public class SpliceJunctionHelper {
                 isNegativeStrand = alignment.isNegativeStrand(); // <= TODO -- this isn't correct for all libraries.
             }
         }
-        Table<Integer, Integer, SpliceJunctionFeature> startEndJunctionsTableThisStrand =
-                isNegativeStrand ? negStartEndJunctionsMap : posStartEndJunctionsMap;
+        JunctionTable junctionsThisStrand = isNegativeStrand ? negJunctions : posJunctions;
 
 
-        // For each gap marked "skip" (cigar N), create or add evidence to a splice junction
+        // For each gap marked "skip" (cigar N), add evidence to a splice junction
         List<Gap> gaps = alignment.getGaps();
         if (gaps != null) {
             for (Gap gap : gaps) {
@@ -127,20 +126,13 @@ public class SpliceJunctionHelper {
                             (spliceGap.getFlankingLeft() >= loadOptions.minReadFlankingWidth &&
                                     spliceGap.getFlankingRight() >= loadOptions.minReadFlankingWidth)) {
 
+                        if (chr == null) {
+                            chr = alignment.getChr();
+                        }
                         int junctionStart = spliceGap.getStart();
                         int junctionEnd = junctionStart + spliceGap.getnBases();
-                        int flankingStart = junctionStart - spliceGap.getFlankingLeft();
-                        int flankingEnd = junctionEnd + spliceGap.getFlankingRight();
-
-                        SpliceJunctionFeature junction = startEndJunctionsTableThisStrand.get(junctionStart, junctionEnd);
-
-                        if (junction == null) {
-                            junction = new SpliceJunctionFeature(alignment.getChr(), junctionStart, junctionEnd,
-                                    isNegativeStrand ? Strand.NEGATIVE : Strand.POSITIVE);
-                            startEndJunctionsTableThisStrand.put(junctionStart, junctionEnd, junction);
-                            allSpliceJunctionFeatures.add(junction);
-                        }
-                        junction.addRead(flankingStart, flankingEnd);
+                        junctionsThisStrand.addRead(junctionStart, junctionEnd,
+                                spliceGap.getFlankingLeft(), spliceGap.getFlankingRight());
                     }
 
                 }
@@ -148,70 +140,259 @@ public class SpliceJunctionHelper {
         }
     }
 
-    private static List<SpliceJunctionFeature> filterJunctionList(LoadOptions loadOptions, List<SpliceJunctionFeature> unfiltered) {
 
-        if (loadOptions.minJunctionCoverage > 1) {
-            List<SpliceJunctionFeature> coveredFeatures = new ArrayList<SpliceJunctionFeature>(unfiltered.size());
-            for (SpliceJunctionFeature feature : unfiltered) {
-                if (feature.getJunctionDepth() >= loadOptions.minJunctionCoverage) {
-                    coveredFeatures.add(feature);
-                }
-            }
-            return coveredFeatures;
-        } else {
-            return unfiltered;
+    /**
+     * Add precomputed junctions, for example from a {@link SpliceJunctionSidecar}, in place of computing them from
+     * alignments.  Junction depths and flanking region depths are added to any existing evidence.
+     */
+    public void addJunctions(String chr, List<SpliceJunctionFeature> junctions) {
+        if (this.chr == null) {
+            this.chr = chr;
+        }
+        for (SpliceJunctionFeature junction : junctions) {
+            JunctionTable table = junction.getStrand() == Strand.NEGATIVE ? negJunctions : posJunctions;
+            table.addJunction(junction);
         }
     }
 
-
     /**
      * Combine junctions from both strands.  Used for Sashimi plot.
      * Note: Flanking depth arrays are not combined.
      */
-    private List<SpliceJunctionFeature> combineStrandJunctionsMaps() {
+    private void addCombinedFeatures(int minDepth, List<SpliceJunctionFeature> features) {
+
+        // All + junctions, merging in the - junction at the same position
+        for (int i = 0; i < posJunctions.size; i++) {
+            long key = posJunctions.keys[i];
+            int n = negJunctions.find(key);
+            int depth = posJunctions.depths[i] + (n < 0 ? 0 : negJunctions.depths[n]);
+            if (depth >= minDepth) {
+                features.add(createCombinedFeature(key, depth));
+            }
+        }
+
+        // - junctions with no + junction
+        for (int i = 0; i < negJunctions.size; i++) {
+            long key = negJunctions.keys[i];
+            int depth = negJunctions.depths[i];
+            if (depth >= minDepth && posJunctions.find(key) < 0) {
+                features.add(createCombinedFeature(key, depth));
+            }
+        }
+    }
+
+    private SpliceJunctionFeature createCombinedFeature(long key, int depth) {
+        SpliceJunctionFeature feature = new SpliceJunctionFeature(chr, JunctionTable.getStart(key), JunctionTable.getEnd(key));
+        feature.setJunctionDepth(depth);
+        return feature;
+    }
+
+
+    void setLoadOptions(LoadOptions loadOptions) {
+        //Can't change this, need to reload everything
+        assert this.loadOptions.minReadFlankingWidth == loadOptions.minReadFlankingWidth;
+        this.loadOptions = loadOptions;
+
+    }
+
+    /**
+     * Junctions of one strand.  Junction i has key keys[i] (start << 32 | end) and was supported by depths[i] reads.
+     * For the flanking regions, leftFlanks[i][w] and rightFlanks[i][w] count the reads with a flanking width of
+     * w on the left (start) and right (end) side.  The flanking region depth arrays of {@link SpliceJunctionFeature}
+     * are cumulative sums of these histograms.
+     */
+    static class JunctionTable {
 
-        // Start with all + junctions
-        Table<Integer, Integer, SpliceJunctionFeature> combinedMap = HashBasedTable.create();
+        long[] keys = new long[64];
+        int[] depths = new int[64];
+        int[][] leftFlanks = new int[64][];
+        int[][] rightFlanks = new int[64][];
+        int[] maxLeftFlanks = new int[64];
+        int[] maxRightFlanks = new int[64];
+        int size;
 
-        for (SpliceJunctionFeature posFeature : posStartEndJunctionsMap.values()) {
-            final int junctionStart = posFeature.getJunctionStart();
-            final int junctionEnd = posFeature.getJunctionEnd();
+        // Open addressing index of junction number + 1, 0 is empty
+        private int[] index = new int[128];
 
-            SpliceJunctionFeature combinedFeature = new SpliceJunctionFeature(posFeature.getChr(), junctionStart, junctionEnd);
-            combinedFeature.setJunctionDepth(posFeature.getJunctionDepth());
-            combinedMap.put(junctionStart, junctionEnd, combinedFeature);
+        static long getKey(int start, int end) {
+            return ((long) start << 32) | (end & 0xFFFFFFFFL);
         }
 
+        static int getStart(long key) {
+            return (int) (key >> 32);
+        }
 
-        // Merge in - junctions
-        for (SpliceJunctionFeature negFeature: negStartEndJunctionsMap.values()) {
+        static int getEnd(long key) {
+            return (int) key;
+        }
 
-            int junctionStart = negFeature.getJunctionStart();
-            int junctionEnd = negFeature.getJunctionEnd();
+        void addRead(int junctionStart, int junctionEnd, int flankingLeft, int flankingRight) {
+            long key = getKey(junctionStart, junctionEnd);
+            int i = find(key);
+            if (i < 0) {
+                i = add(key);
+            }
+            depths[i]++;
+            leftFlanks[i] = increment(leftFlanks[i], flankingLeft, 1);
+            rightFlanks[i] = increment(rightFlanks[i], flankingRight, 1);
+            maxLeftFlanks[i] = Math.max(maxLeftFlanks[i], flankingLeft);
+            maxRightFlanks[i] = Math.max(maxRightFlanks[i], flankingRight);
+        }
 
-            SpliceJunctionFeature junction = combinedMap.get(junctionStart, junctionEnd);
+        /**
+         * Add the evidence of a junction feature, recovering the flanking width histograms from its depth arrays.
+         * This is the inverse of {@link #createFeature(String, Strand, int)}.  If the feature has no depth arrays
+         * all reads are assumed to span the full flanking regions.
+         */
+        void addJunction(SpliceJunctionFeature junction) {
+            long key = getKey(junction.getJunctionStart(), junction.getJunctionEnd());
+            int i = find(key);
+            if (i < 0) {
+                i = add(key);
+            }
+            int depth = junction.getJunctionDepth();
+            depths[i] += depth;
+
+            int leftLength = junction.getStartFlankingRegionLength();
+            int rightLength = junction.getEndFlankingRegionLength();
+            if (junction.hasFlankingRegionDepthArrays()) {
+                int[] startDepths = junction.getStartFlankingRegionDepthArray();
+                int[] endDepths = junction.getEndFlankingRegionDepthArray();
+                leftLength = startDepths.length;
+                rightLength = endDepths.length;
+
+                int counted = 0;
+                for (int w = leftLength; w > 0; w--) {
+                    int n = startDepths[leftLength - w] - counted;
+                    leftFlanks[i] = increment(leftFlanks[i], w, n);
+                    counted += n;
+                }
+                leftFlanks[i] = increment(leftFlanks[i], 0, depth - counted);
 
-            if (junction == null) {
-                // No existing (+) junction here, just add the (-) one\
-                SpliceJunctionFeature combinedFeature = new SpliceJunctionFeature(negFeature.getChr(), junctionStart, junctionEnd);
-                combinedFeature.setJunctionDepth(negFeature.getJunctionDepth());
-                combinedMap.put(junctionStart, junctionEnd, negFeature);
+                counted = 0;
+                for (int w = rightLength; w > 0; w--) {
+                    int n = endDepths[w - 1] - counted;
+                    rightFlanks[i] = increment(rightFlanks[i], w, n);
+                    counted += n;
+                }
+                rightFlanks[i] = increment(rightFlanks[i], 0, depth - counted);
             } else {
-                int newJunctionDepth = junction.getJunctionDepth() + negFeature.getJunctionDepth();
-                junction.setJunctionDepth(newJunctionDepth);
+                leftFlanks[i] = increment(leftFlanks[i], Math.max(0, leftLength), depth);
+                rightFlanks[i] = increment(rightFlanks[i], Math.max(0, rightLength), depth);
             }
+            maxLeftFlanks[i] = Math.max(maxLeftFlanks[i], leftLength);
+            maxRightFlanks[i] = Math.max(maxRightFlanks[i], rightLength);
         }
 
-        return new ArrayList<>(combinedMap.values());
-    }
+        private static int[] increment(int[] histogram, int width, int n) {
+            if (histogram == null) {
+                histogram = new int[Math.max(8, width + 1)];
+            } else if (width >= histogram.length) {
+                histogram = Arrays.copyOf(histogram, Math.max(2 * histogram.length, width + 1));
+            }
+            histogram[width] += n;
+            return histogram;
+        }
 
+        /**
+         * @return the junction number for the key, or -1 if there is none
+         */
+        int find(long key) {
+            int mask = index.length - 1;
+            int h = hash(key) & mask;
+            int i;
+            while ((i = index[h]) != 0) {
+                if (keys[i - 1] == key) {
+                    return i - 1;
+                }
+                h = (h + 1) & mask;
+            }
+            return -1;
+        }
 
-    void setLoadOptions(LoadOptions loadOptions) {
-        int oldMinJunctionCoverage = this.loadOptions.minJunctionCoverage;
-        //Can't change this, need to reload everything
-        assert this.loadOptions.minReadFlankingWidth == loadOptions.minReadFlankingWidth;
-        this.loadOptions = loadOptions;
+        private int add(long key) {
+            if (size == keys.length) {
+                int n = 2 * size;
+                keys = Arrays.copyOf(keys, n);
+                depths = Arrays.copyOf(depths, n);
+                leftFlanks = Arrays.copyOf(leftFlanks, n);
+                rightFlanks = Arrays.copyOf(rightFlanks, n);
+                maxLeftFlanks = Arrays.copyOf(maxLeftFlanks, n);
+                maxRightFlanks = Arrays.copyOf(maxRightFlanks, n);
+            }
+            int i = size++;
+            keys[i] = key;
+            if (2 * size > index.length) {
+                index = new int[2 * index.length];
+                for (int j = 0; j < size; j++) {
+                    insert(j);
+                }
+            } else {
+                insert(i);
+            }
+            return i;
+        }
 
+        private void insert(int i) {
+            int mask = index.length - 1;
+            int h = hash(keys[i]) & mask;
+            while (index[h] != 0) {
+                h = (h + 1) & mask;
+            }
+            index[h] = i + 1;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /**
+         * Create features for the junctions supported by at least minDepth reads
+         */
+        void addFeatures(String chr, Strand strand, int minDepth, List<SpliceJunctionFeature> features) {
+            for (int i = 0; i < size; i++) {
+                if (depths[i] >= minDepth) {
+                    features.add(createFeature(chr, strand, i));
+                }
+            }
+        }
+
+        SpliceJunctionFeature createFeature(String chr, Strand strand, int i) {
+
+            int junctionStart = getStart(keys[i]);
+            int junctionEnd = getEnd(keys[i]);
+            SpliceJunctionFeature feature = new SpliceJunctionFeature(chr, junctionStart, junctionEnd, strand);
+            feature.setJunctionDepth(depths[i]);
+
+            // Depth at position junctionStart - w is the number of reads with a left flanking width >= w
+            int[] startDepthArray = null;
+            int leftLength = maxLeftFlanks[i];
+            if (leftLength > 0) {
+                startDepthArray = new int[leftLength];
+                int count = 0;
+                for (int w = leftLength; w > 0; w--) {
+                    count += leftFlanks[i][w];
+                    startDepthArray[leftLength - w] = count;
+                }
+            }
+
+            // Depth at position junctionEnd + k is the number of reads with a right flanking width > k
+            int[] endDepthArray = null;
+            int rightLength = maxRightFlanks[i];
+            if (rightLength > 0) {
+                endDepthArray = new int[rightLength];
+                int count = 0;
+                for (int k = rightLength - 1; k >= 0; k--) {
+                    count += rightFlanks[i][k + 1];
+                    endDepthArray[k] = count;
+                }
+            }
+
+            feature.setFlankingRegionDepthArrays(startDepthArray, endDepthArray);
+
+            return feature;
+        }
     }
 
     public static class LoadOptions {
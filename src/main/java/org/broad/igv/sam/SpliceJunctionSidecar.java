@@ -0,0 +1,303 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import org.apache.log4j.Logger;
+import org.broad.igv.feature.BasicFeature;
+import org.broad.igv.feature.FeatureType;
+import org.broad.igv.feature.SpliceJunctionFeature;
+import org.broad.igv.feature.tribble.IGVBEDCodec;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.sam.reader.AlignmentReader;
+import org.broad.igv.sam.reader.AlignmentReaderFactory;
+import org.broad.igv.util.FileUtils;
+import org.broad.igv.util.HttpUtils;
+import org.broad.igv.util.ParsingUtils;
+import org.broad.igv.util.ResourceLocator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.broad.igv.prefs.Constants.*;
+
+/**
+ * Precomputed splice junctions for an alignment file, stored next to it as {@code <alignment file>.junctions.bed.gz}
+ * with a tabix index.  The file is a bgzipped junctions bed file, one record per junction and strand, with the
+ * junction depth as score and the flanking region depth arrays in the two extra columns written by
+ * {@link IGVBEDCodec}.  It can also be loaded on its own as a junction track.
+ * <p/>
+ * When present, the junctions of a loaded interval are read from this file instead of being computed from the
+ * alignments, and loads for which junctions are all that is displayed do not read the alignment file at all.  The
+ * header records the minimum flanking width and read filter settings the junctions were computed with, and the
+ * length and modification time of the alignment file.  The file is only used if all of these match the current
+ * settings and alignment file; otherwise junctions are computed from the alignments as usual.  The modification time
+ * is not checked for remote alignment files.  Created with "igvtools junctions".
+ * <p/>
+ * Sashimi plots do not avoid the alignment file.  They share the alignment track's data manager and draw exon
+ * coverage from its loaded intervals, so they read alignments whether or not this file exists; only their junctions
+ * come from it.  There is one file per alignment file, so a multi-sample plot reads one file per sample rather than
+ * a single file of per-sample counts.
+ */
+public class SpliceJunctionSidecar {
+
+    private static Logger log = Logger.getLogger(SpliceJunctionSidecar.class);
+
+    public static final String EXTENSION = ".junctions.bed.gz";
+
+    // Header keys, written as "#key=value" lines
+    private static final String MIN_FLANKING_WIDTH = "minFlankingWidth";
+    private static final String FILE_LENGTH = "alignmentFileLength";
+    private static final String FILE_LAST_MODIFIED = "alignmentFileLastModified";
+
+    private final String path;
+    private final Map<String, String> header;
+    private final boolean alignmentFileMatches;
+    private final AbstractFeatureReader<BasicFeature, ?> reader;
+
+    private SpliceJunctionSidecar(String path, String alignmentPath) throws IOException {
+        this.path = path;
+        this.header = readHeader(path);
+        this.alignmentFileMatches = matchesAlignmentFile(header, alignmentPath);
+        this.reader = AbstractFeatureReader.getFeatureReader(path, path + ".tbi",
+                new IGVBEDCodec(null, FeatureType.SPLICE_JUNCTION), true);
+    }
+
+    /**
+     * Return the junction file for the alignment file, or null if there is none
+     */
+    public static SpliceJunctionSidecar find(ResourceLocator locator) {
+        if (locator == null || locator.isHtsget() || locator.getPath().contains("?")) {
+            return null;
+        }
+        String path = locator.getPath() + EXTENSION;
+        try {
+            if (FileUtils.resourceExists(path) && FileUtils.resourceExists(path + ".tbi")) {
+                return new SpliceJunctionSidecar(path, locator.getPath());
+            }
+        } catch (Exception e) {
+            log.error("Error opening junction file " + path, e);
+        }
+        return null;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getMinFlankingWidth() {
+        String value = header.get(MIN_FLANKING_WIDTH);
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    /**
+     * @return true if the junctions were computed from the alignment file as it is now, with the current read filter
+     * preferences and the given minimum flanking width
+     */
+    public boolean isCurrent(int minFlankingWidth) {
+        if (!alignmentFileMatches) {
+            return false;
+        }
+        for (Map.Entry<String, String> e : getSettings(PreferencesManager.getPreferences(), minFlankingWidth).entrySet()) {
+            if (!e.getValue().equals(header.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Settings affecting the junctions computed, as recorded in the header.  Read filters are those applied when
+     * loading alignments for display.
+     */
+    static Map<String, String> getSettings(IGVPreferences prefs, int minFlankingWidth) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put(MIN_FLANKING_WIDTH, String.valueOf(minFlankingWidth));
+        settings.put("filterDuplicates", String.valueOf(prefs.getAsBoolean(SAM_FILTER_DUPLICATES)));
+        settings.put("filterFailedReads", String.valueOf(prefs.getAsBoolean(SAM_FILTER_FAILED_READS)));
+        settings.put("filterSecondaryAlignments", String.valueOf(prefs.getAsBoolean(SAM_FILTER_SECONDARY_ALIGNMENTS)));
+        settings.put("filterSupplementaryAlignments", String.valueOf(prefs.getAsBoolean(SAM_FILTER_SUPPLEMENTARY_ALIGNMENTS)));
+        settings.put("qualityThreshold", String.valueOf(prefs.getAsInt(SAM_QUALITY_THRESHOLD)));
+        settings.put("alignmentScoreThreshold", String.valueOf(prefs.getAsInt(SAM_ALIGNMENT_SCORE_THRESHOLD)));
+        String filterURL = prefs.get(SAM_FILTER_URL);
+        settings.put("readGroupFilter", prefs.getAsBoolean(SAM_FILTER_ALIGNMENTS) && filterURL != null ? filterURL.trim() : "");
+        return settings;
+    }
+
+    /**
+     * Return the junctions overlapping the interval, including their flanking regions.
+     *
+     * @param sequence sequence name as used in the alignment file
+     * @param start    0-based start
+     * @param end      0-based exclusive end
+     */
+    public synchronized List<SpliceJunctionFeature> getJunctions(String sequence, int start, int end) throws IOException {
+        List<SpliceJunctionFeature> junctions = new ArrayList<>();
+        try (CloseableTribbleIterator<BasicFeature> iter = reader.query(sequence, start + 1, end)) {
+            while (iter.hasNext()) {
+                BasicFeature f = iter.next();
+                if (f instanceof SpliceJunctionFeature) {
+                    junctions.add((SpliceJunctionFeature) f);
+                }
+            }
+        }
+        return junctions;
+    }
+
+    public synchronized void close() throws IOException {
+        reader.close();
+    }
+
+    private static Map<String, String> readHeader(String path) throws IOException {
+        Map<String, String> header = new HashMap<>();
+        try (BufferedReader br = ParsingUtils.openBufferedReader(path)) {
+            String line;
+            while ((line = br.readLine()) != null && (line.startsWith("#") || line.startsWith("track"))) {
+                int idx = line.indexOf('=');
+                if (line.startsWith("#") && idx > 0) {
+                    header.put(line.substring(1, idx).trim(), line.substring(idx + 1).trim());
+                }
+            }
+        }
+        return header;
+    }
+
+    private static boolean matchesAlignmentFile(Map<String, String> header, String alignmentPath) {
+        try {
+            long[] stat = getFileStat(alignmentPath);
+            if (!String.valueOf(stat[0]).equals(header.get(FILE_LENGTH))) {
+                return false;
+            }
+            return stat[1] < 0 || String.valueOf(stat[1]).equals(header.get(FILE_LAST_MODIFIED));
+        } catch (IOException e) {
+            log.error("Error checking alignment file " + alignmentPath, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the length and modification time of a file.  The modification time of a remote file is -1, as it need
+     * not match that of the file the junctions were computed from.
+     */
+    private static long[] getFileStat(String path) throws IOException {
+        if (HttpUtils.isRemoteURL(path)) {
+            return new long[]{HttpUtils.getInstance().getContentLength(new URL(path)), -1};
+        } else {
+            File file = new File(path);
+            return new long[]{file.length(), file.lastModified()};
+        }
+    }
+
+    /**
+     * Compute the splice junctions of a sorted alignment file and write them, with a tabix index, to outputPath.
+     * Alignments are filtered as for display, using the current filter preferences.
+     */
+    public static void write(String alignmentPath, String outputPath, int minFlankingWidth) throws IOException {
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        AlignmentTileLoader.RecordFilter recordFilter = new AlignmentTileLoader.RecordFilter(prefs);
+
+        SpliceJunctionHelper.LoadOptions loadOptions = new SpliceJunctionHelper.LoadOptions(1, minFlankingWidth);
+        IGVBEDCodec codec = new IGVBEDCodec(null, FeatureType.SPLICE_JUNCTION);
+        TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.BED);
+
+        AlignmentReader reader = null;
+        CloseableIterator<Alignment> iter = null;
+        BlockCompressedOutputStream out = null;
+        try {
+            reader = AlignmentReaderFactory.getReader(alignmentPath, false);
+            iter = reader.iterator();
+            out = new BlockCompressedOutputStream(new File(outputPath));
+            writeLine(out, "track graphType=junctions");
+            for (Map.Entry<String, String> e : getSettings(prefs, minFlankingWidth).entrySet()) {
+                writeLine(out, "#" + e.getKey() + "=" + e.getValue());
+            }
+            long[] stat = getFileStat(alignmentPath);
+            writeLine(out, "#" + FILE_LENGTH + "=" + stat[0]);
+            if (stat[1] >= 0) {
+                writeLine(out, "#" + FILE_LAST_MODIFIED + "=" + stat[1]);
+            }
+
+            String chr = null;
+            SpliceJunctionHelper helper = null;
+            while (iter.hasNext()) {
+                Alignment alignment = iter.next();
+                if (recordFilter.filter(alignment)) {
+                    continue;
+                }
+                if (!alignment.getChr().equals(chr)) {
+                    if (helper != null) {
+                        writeJunctions(helper, codec, indexCreator, out);
+                    }
+                    chr = alignment.getChr();
+                    helper = new SpliceJunctionHelper(loadOptions);
+                }
+                helper.addAlignment(alignment);
+            }
+            if (helper != null) {
+                writeJunctions(helper, codec, indexCreator, out);
+            }
+
+            Index index = indexCreator.finalizeIndex(out.getFilePointer());
+            out.close();
+            out = null;
+            index.write(new File(outputPath + ".tbi"));
+
+        } finally {
+            if (out != null) out.close();
+            if (iter != null) iter.close();
+            if (reader != null) reader.close();
+        }
+    }
+
+    private static void writeJunctions(SpliceJunctionHelper helper, IGVBEDCodec codec,
+                                       TabixIndexCreator indexCreator, BlockCompressedOutputStream out) throws IOException {
+        // Sorted by start, as required for the index
+        for (SpliceJunctionFeature junction : helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.BOTH)) {
+            // Tabix features are 1-based
+            Feature f = new SimpleFeature(junction.getChr(), junction.getStart() + 1, junction.getEnd());
+            indexCreator.addFeature(f, out.getFilePointer());
+            writeLine(out, codec.encode(junction));
+        }
+    }
+
+    private static void writeLine(BlockCompressedOutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
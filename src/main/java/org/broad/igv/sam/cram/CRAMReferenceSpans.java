@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.cram;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.cram.CRAIEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes the reference spans needed to decode a CRAM query, from the slice entries of the file's .crai index.
+ * <p/>
+ * htsjdk decodes every slice of every container addressed by the index chunks overlapping the query, and checks
+ * the reference MD5 of each over the slice's alignment span.  The spans returned here are the alignment spans of
+ * all slices in those containers, so a reference array holding correct bases over them decodes the query exactly
+ * as the full contig would.
+ */
+public class CRAMReferenceSpans {
+
+    // CRAI sequence id of multi-reference slices
+    private static final int MULTI_REF = -2;
+
+    private final CRAIEntry[] entries;
+    private final long[] containerOffsets;
+
+    public CRAMReferenceSpans(List<CRAIEntry> craiEntries) {
+        entries = craiEntries.toArray(new CRAIEntry[0]);
+        Arrays.sort(entries, Comparator.comparingLong(CRAIEntry::getContainerStartByteOffset));
+        containerOffsets = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            containerOffsets[i] = entries[i].getContainerStartByteOffset();
+        }
+    }
+
+    /**
+     * @param index      the reader's index (the .crai presented as a BAM index)
+     * @param sequenceId sequence index in the header
+     * @param start      query start, zero based
+     * @param end        query end
+     * @return merged zero based, half open spans as {start0, end0, start1, end1, ...}, in order, or null if the
+     * reference needed can not be scoped (e.g. the query touches multi-reference slices)
+     */
+    public int[] getSpans(BAMIndex index, int sequenceId, int start, int end) {
+
+        BAMFileSpan fileSpan = index.getSpanOverlapping(sequenceId, start + 1, end);
+        if (fileSpan == null) {
+            return new int[0];
+        }
+
+        List<int[]> spans = new ArrayList<>();
+        for (Chunk chunk : fileSpan.getChunks()) {
+            // CRAM virtual offsets are container offset << 16 | slice index
+            long first = chunk.getChunkStart() >>> 16;
+            long last = chunk.getChunkEnd() >>> 16;
+            for (int i = lowerBound(first); i < entries.length && containerOffsets[i] <= last; i++) {
+                CRAIEntry e = entries[i];
+                if (e.getSequenceId() == MULTI_REF) {
+                    return null;
+                }
+                if (e.getSequenceId() == sequenceId && e.getAlignmentSpan() > 0) {
+                    int s = Math.max(0, e.getAlignmentStart() - 1);
+                    spans.add(new int[]{s, s + e.getAlignmentSpan()});
+                }
+            }
+        }
+        return merge(spans);
+    }
+
+    private int lowerBound(long offset) {
+        int lo = 0;
+        int hi = containerOffsets.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (containerOffsets[mid] < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    static int[] merge(List<int[]> spans) {
+        spans.sort(Comparator.comparingInt(s -> s[0]));
+        int[] merged = new int[2 * spans.size()];
+        int n = 0;
+        for (int[] s : spans) {
+            if (n > 0 && s[0] <= merged[n - 1]) {
+                merged[n - 1] = Math.max(merged[n - 1], s[1]);
+            } else {
+                merged[n++] = s[0];
+                merged[n++] = s[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+}
@@ -39,11 +39,22 @@ import org.broad.igv.feature.genome.GenomeManager;
 import org.broad.igv.ui.IGV;
 import org.broad.igv.util.ObjectCache;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 /**
  * Provide a reference sequence for CRAM decompression.   The rule for calculating MD5 is
  * to remove any non-base symbols (like \n, sequence name or length and spaces) and upper case the rest.
+ * <p>
+ * If the reader has set the reference spans of the current query (see {@link CRAMReferenceSpans}), and the whole
+ * contig is not already cached on the heap, only those spans are copied onto the heap, from a read-only mapping of
+ * the contig (see {@link MappedReferenceStore}), which is written to disk the first time the contig is needed.  The
+ * array returned is still indexed by contig position, but is only long enough to reach the last span, and holds
+ * bases only within the spans.
+ * <p>
+ * Requests without spans need the whole contig as a heap array, so they are loaded through the genome as before and
+ * do not use the mapped store, which would only add a disk copy of the contig.
  */
 
 public class IGVReferenceSource implements CRAMReferenceSource {
@@ -56,6 +67,36 @@ public class IGVReferenceSource implements CRAMReferenceSource {
 
     static HashMap<String, Object> locks = new HashMap<>();
 
+    private final MappedReferenceStore referenceStore;
+
+    // Reference spans of the current query, set before each query on the reader owning this source
+    private volatile String querySequence;
+    private volatile int[] querySpans;
+
+    // Bases of the most recent span set, reused while later queries fall within it
+    private String regionChr;
+    private int[] regionSpans;
+    private byte[] regionBases;
+
+    public IGVReferenceSource() {
+        this(MappedReferenceStore.getInstance());
+    }
+
+    IGVReferenceSource(MappedReferenceStore referenceStore) {
+        this.referenceStore = referenceStore;
+    }
+
+    /**
+     * Set the reference spans needed by the next query, or null to load whole contigs
+     *
+     * @param sequenceName sequence name as in the file header
+     * @param spans        zero based, half open spans {start0, end0, start1, end1, ...} in order
+     */
+    public void setQuerySpans(String sequenceName, int[] spans) {
+        this.querySequence = sequenceName;
+        this.querySpans = spans;
+    }
+
     @Override
     public byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
 
@@ -66,21 +107,26 @@ public class IGVReferenceSource implements CRAMReferenceSource {
 
         byte[] bases = cachedSequences.get(chrName);
 
+        int[] spans = querySpans;
+        if (bases == null && spans != null && name.equals(querySequence)) {
+            bases = getRegionBases(currentGenome, chrName, chromosome.getLength(), spans);
+            if (bases != null) {
+                return bases;
+            }
+        }
+
         if (bases == null) {
             try {
                 Object lock = getLock(chrName);
 
                 synchronized (lock) {
 
-                    if (IGV.hasInstance()) IGV.getInstance().setStatusBarMessage("Loading sequence");
-                    bases = currentGenome.getSequence(chrName, 0, chromosome.getLength(), false);
-
-                    // CRAM spec requires upper case
-                    for (int i = 0; i < bases.length; i++) {
-                        if (bases[i] >= 97) bases[i] -= 32;
+                    bases = cachedSequences.get(chrName);
+                    if (bases == null) {
+                        if (IGV.hasInstance()) IGV.getInstance().setStatusBarMessage("Loading sequence");
+                        bases = loadSequence(currentGenome, chrName, chromosome.getLength());
+                        cachedSequences.put(chrName, bases);
                     }
-
-                    cachedSequences.put(chrName, bases);
                 }
             } finally {
                 if (IGV.hasInstance()) IGV.getInstance().setStatusBarMessage("");
@@ -90,6 +136,85 @@ public class IGVReferenceSource implements CRAMReferenceSource {
         return bases;
     }
 
+    /**
+     * Return an array holding the bases of the given spans, copied from the mapped contig, or fetched through the
+     * genome's sequence tile cache if the contig cannot be written to or read from disk
+     *
+     * @return the bases, or null if the sequence is not available
+     */
+    private synchronized byte[] getRegionBases(Genome genome, String chrName, int chrLength, int[] spans) {
+
+        if (chrName.equals(regionChr) && covers(regionSpans, spans)) {
+            return regionBases;
+        }
+
+        ByteBuffer mapped = null;
+        try {
+            mapped = referenceStore.getSequence(genome.getId(), chrName, chrLength,
+                    (start, end) -> genome.getSequence(chrName, start, end, false));
+        } catch (IOException e) {
+            log.error("Error reading CRAM reference from disk cache, loading directly", e);
+        }
+
+        int length = spans.length == 0 ? 0 : Math.min(chrLength, spans[spans.length - 1]);
+        byte[] bases = new byte[length];
+        for (int i = 0; i < spans.length; i += 2) {
+            int start = spans[i];
+            int end = Math.min(length, spans[i + 1]);
+            if (end <= start) continue;
+            if (mapped != null) {
+                // Already upper case
+                mapped.position(start);
+                mapped.get(bases, start, end - start);
+                continue;
+            }
+            byte[] seq = genome.getSequence(chrName, start, end, true);
+            if (seq == null || seq.length != end - start) {
+                return null;
+            }
+            // CRAM spec requires upper case
+            for (int j = 0; j < seq.length; j++) {
+                byte b = seq[j];
+                bases[start + j] = b >= 97 ? (byte) (b - 32) : b;
+            }
+        }
+
+        regionChr = chrName;
+        regionSpans = spans;
+        regionBases = bases;
+        return bases;
+    }
+
+    /**
+     * @return true if every span of {@code spans} lies within a span of {@code outer}
+     */
+    static boolean covers(int[] outer, int[] spans) {
+        if (outer == null) {
+            return false;
+        }
+        int j = 0;
+        for (int i = 0; i < spans.length; i += 2) {
+            while (j < outer.length && outer[j + 1] < spans[i + 1]) {
+                j += 2;
+            }
+            if (j == outer.length || outer[j] > spans[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] loadSequence(Genome genome, String chrName, int length) {
+
+        byte[] bases = genome.getSequence(chrName, 0, length, false);
+
+        // CRAM spec requires upper case
+        for (int i = 0; i < bases.length; i++) {
+            if (bases[i] >= 97) bases[i] -= 32;
+        }
+        return bases;
+    }
+
     static synchronized Object getLock(String chr) {
         Object lock = locks.get(chr);
         if (lock == null) {
@@ -103,6 +228,7 @@ public class IGVReferenceSource implements CRAMReferenceSource {
         @Override
         public void receiveEvent(Object event) {
             cachedSequences.clear();
+            MappedReferenceStore.getInstance().clear();
         }
     }
 
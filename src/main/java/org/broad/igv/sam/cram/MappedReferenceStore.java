@@ -0,0 +1,246 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.cram;
+
+import org.apache.log4j.Logger;
+import org.broad.igv.prefs.PreferencesManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.broad.igv.prefs.Constants.CRAM_REFERENCE_DISK_SIZE;
+import static org.broad.igv.prefs.Constants.CRAM_REFERENCE_MAPPED_SIZE;
+
+/**
+ * Disk backed store of CRAM reference sequences.  Each contig is written once, upper cased as required for the
+ * CRAM MD5 checks, to an uncompressed flat file and then served from a read-only memory mapping, so the sequence
+ * lives in the OS page cache rather than the Java heap.
+ * <p/>
+ * Mappings are evicted, least recently used first, when their total size exceeds CRAM.REFERENCE_MAPPED_SIZE (MB).
+ * Files are deleted, least recently used first, when the total on disk exceeds CRAM.REFERENCE_DISK_SIZE (MB).
+ * <p/>
+ * Used for span queries only (see {@link IGVReferenceSource}): callers copy the bases they need out of the mapping
+ * rather than the whole contig.
+ */
+public class MappedReferenceStore {
+
+    private static Logger log = Logger.getLogger(MappedReferenceStore.class);
+
+    static final String EXTENSION = ".ref";
+
+    /**
+     * Sequence is fetched and written in chunks of this size, so the contig is never held in the heap
+     */
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private static MappedReferenceStore instance;
+
+    public interface SequenceSource {
+        /**
+         * @return bases for the zero based, half open interval [start, end), or null if not available
+         */
+        byte[] getSequence(int start, int end);
+    }
+
+    private final File directory;
+
+    // Access ordered, eldest first
+    private final LinkedHashMap<String, MappedByteBuffer> mapped = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes = 0;
+
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    public static synchronized MappedReferenceStore getInstance() {
+        if (instance == null) {
+            instance = new MappedReferenceStore(ReferenceDiskCache.getCacheDirectory());
+        }
+        return instance;
+    }
+
+    public MappedReferenceStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Return the upper cased sequence of a contig as a read-only buffer, writing the contig file from
+     * {@code source} if it is not already on disk.
+     *
+     * @param length contig length.  A file of any other length is rewritten.
+     */
+    public ByteBuffer getSequence(String genomeId, String chr, int length, SequenceSource source) throws IOException {
+
+        String fileName = getFileName(genomeId, chr);
+
+        synchronized (locks.computeIfAbsent(fileName, k -> new Object())) {
+
+            MappedByteBuffer buffer = getMapped(fileName);
+            if (buffer == null) {
+                File file = new File(directory, fileName);
+                if (!file.exists() || file.length() != length) {
+                    write(file, length, source);
+                    checkDiskSize(file);
+                } else {
+                    file.setLastModified(System.currentTimeMillis());
+                }
+                buffer = map(file);
+                putMapped(fileName, buffer);
+            }
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * @return true if the contig is mapped or on disk, so {@link #getSequence} will not need to fetch it
+     */
+    public boolean isAvailable(String genomeId, String chr, int length) {
+        String fileName = getFileName(genomeId, chr);
+        if (getMapped(fileName) != null) {
+            return true;
+        }
+        File file = new File(directory, fileName);
+        return file.exists() && file.length() == length;
+    }
+
+    private synchronized MappedByteBuffer getMapped(String fileName) {
+        return mapped.get(fileName);
+    }
+
+    private synchronized void putMapped(String fileName, MappedByteBuffer buffer) {
+        MappedByteBuffer previous = mapped.put(fileName, buffer);
+        if (previous != null) {
+            mappedBytes -= previous.capacity();
+        }
+        mappedBytes += buffer.capacity();
+
+        // Mappings are released when the buffers are collected
+        long budget = (long) PreferencesManager.getPreferences().getAsInt(CRAM_REFERENCE_MAPPED_SIZE) * 1000000;
+        Iterator<Map.Entry<String, MappedByteBuffer>> iter = mapped.entrySet().iterator();
+        while (mappedBytes > budget && mapped.size() > 1) {
+            Map.Entry<String, MappedByteBuffer> eldest = iter.next();
+            mappedBytes -= eldest.getValue().capacity();
+            iter.remove();
+        }
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Release all mappings, e.g. on a genome change.  Files are kept.
+     */
+    public synchronized void clear() {
+        mapped.clear();
+        mappedBytes = 0;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Write the contig, upper cased, to a temporary file and move it into place
+     */
+    private void write(File file, int length, SequenceSource source) throws IOException {
+
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            for (int start = 0; start < length; start += CHUNK_SIZE) {
+                int end = Math.min(length, start + CHUNK_SIZE);
+                byte[] bases = source.getSequence(start, end);
+                if (bases == null || bases.length != end - start) {
+                    throw new IOException("Sequence not available for " + file.getName() + " " + start + "-" + end);
+                }
+                // CRAM spec requires upper case
+                for (int i = 0; i < bases.length; i++) {
+                    if (bases[i] >= 97) bases[i] -= 32;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(bases);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Delete least recently used contig files until the total is within budget.  The file just written, and files
+     * currently mapped, are kept.
+     */
+    private void checkDiskSize(File current) {
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+
+        long budget = (long) PreferencesManager.getPreferences().getAsInt(CRAM_REFERENCE_DISK_SIZE) * 1000000;
+        long totalSize = current.length();
+        for (File f : files) {
+            if (f.equals(current)) continue;
+            boolean inUse;
+            synchronized (this) {
+                inUse = mapped.containsKey(f.getName());
+            }
+            if (!inUse && totalSize + f.length() > budget) {
+                log.info("Deleting CRAM reference cache file " + f.getName());
+                f.delete();
+            } else {
+                totalSize += f.length();
+            }
+        }
+    }
+
+    static String getFileName(String genomeId, String chr) {
+        // genomeIds can be full paths and other illegal filename strings.
+        String name = chr.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (!name.equals(chr)) {
+            name += "-" + Integer.toHexString(chr.hashCode());
+        }
+        return genomeId.hashCode() + "-" + name + EXTENSION;
+    }
+}
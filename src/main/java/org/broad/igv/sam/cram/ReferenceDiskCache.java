@@ -94,7 +94,7 @@ public class ReferenceDiskCache {
 
     }
 
-    private static File getCacheDirectory() {
+    static File getCacheDirectory() {
 
         String rootDirectoryString = PreferencesManager.getPreferences().get(Constants.CRAM_CACHE_DIRECTORY);
 
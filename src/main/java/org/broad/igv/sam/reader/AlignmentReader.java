@@ -31,6 +31,7 @@
 package org.broad.igv.sam.reader;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.CloseableIterator;
 import org.broad.igv.sam.Alignment;
 
@@ -84,6 +85,17 @@ public interface AlignmentReader<T extends Alignment> {
      */
     CloseableIterator<T> query(final String sequence, final int start, final int end, final boolean contained) throws IOException;
 
+    /**
+     * Query the raw SAM records over a given range, for callers that decide which records are worth building into
+     * alignments.  Coordinates are as for {@link #query}.
+     *
+     * @return an iterator over the records, or null if this reader does not support record level queries for the
+     * range, in which case {@link #query} should be used.
+     */
+    default CloseableIterator<SAMRecord> queryRecords(final String sequence, final int start, final int end) throws IOException {
+        return null;
+    }
+
     default void cancelQuery() {};
 
     boolean hasIndex();
@@ -31,12 +31,17 @@ import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.util.CloseableIterator;
 import org.apache.log4j.Logger;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
 import org.broad.igv.sam.EmptyAlignmentIterator;
 import org.broad.igv.sam.SAMAlignment;
 import org.broad.igv.util.ResourceLocator;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.ToIntFunction;
+
+import static org.broad.igv.prefs.Constants.*;
 
 /**
  * Created by IntelliJ IDEA.
@@ -51,11 +56,14 @@ public class BAMReader implements AlignmentReader<SAMAlignment> {
     private SAMFileHeader header;
     private List<String> sequenceNames;
     private boolean indexed;
+    private boolean splittable;
     private Map<String, Long> sequenceDictionary;
     private SamReaderPool readerPool;
 
     public BAMReader(ResourceLocator locator, boolean requireIndex) throws IOException {
         this.indexed = requireIndex || locator.isHtsget();
+        // Splitting requires random access through an index, each sub-range opening its own reader
+        this.splittable = requireIndex && !locator.isHtsget();
         readerPool = new SamReaderPool(locator, requireIndex);
 
         SamReader reader =  readerPool.getReader();
@@ -74,7 +82,9 @@ public class BAMReader implements AlignmentReader<SAMAlignment> {
     public synchronized SAMFileHeader getFileHeader() {
         if (header == null) {
             try {
-                header = getSamReader().getFileHeader();
+                SamReader reader = getSamReader();
+                header = reader.getFileHeader();
+                readerPool.freeReader(reader);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -125,7 +135,21 @@ public class BAMReader implements AlignmentReader<SAMAlignment> {
 
 
     public CloseableIterator<SAMAlignment> iterator() throws IOException {
-        return new WrappedIterator(getSamReader().iterator());
+        final SamReader samReader = getSamReader();
+        final CloseableIterator<SAMRecord> iter;
+        try {
+            iter = samReader.iterator();
+        } catch (RuntimeException e) {
+            readerPool.freeReader(samReader);
+            throw e;
+        }
+        return new WrappedIterator(iter) {
+            @Override
+            public void close() {
+                super.close();
+                readerPool.freeReader(samReader);
+            }
+        };
     }
 
     public CloseableIterator<SAMAlignment> query(String sequence, int start, int end, boolean contained) {
@@ -133,8 +157,7 @@ public class BAMReader implements AlignmentReader<SAMAlignment> {
             return EMPTY_ITERATOR;
         } else {
             try {
-                SamReader samReader = getSamReader();
-                return new PicardIterator(samReader, sequence, start + 1, end, contained);
+                return query(sequence, start, end, contained, this::queryRange, SAMAlignment::getAlignmentStart);
             } catch (Exception e) {
                 log.error("Error querying for sequence: " + sequence, e);
                 return new EmptyAlignmentIterator();
@@ -142,6 +165,161 @@ public class BAMReader implements AlignmentReader<SAMAlignment> {
         }
     }
 
+    /**
+     * Query raw records, split across readers and decoded in parallel as for {@link #query}.  Only the read name is
+     * decoded in advance, the caller builds alignments for the records it keeps.
+     */
+    @Override
+    public CloseableIterator<SAMRecord> queryRecords(String sequence, int start, int end) throws IOException {
+        if (sequenceDictionary != null && !sequenceDictionary.containsKey(sequence)) {
+            return null;
+        }
+        return query(sequence, start, end, false, this::queryRecordRange, record -> record.getAlignmentStart() - 1);
+    }
+
+    /**
+     * A single range query on a given pooled reader, {@link #queryRange} or {@link #queryRecordRange}
+     */
+    private interface RangeQuery<T> {
+        CloseableIterator<T> query(SamReader samReader, String sequence, int start, int end, boolean contained);
+    }
+
+    /**
+     * Query a range, splitting it into sub-ranges queried concurrently on separate readers if it is large enough.
+     *
+     * @param startFunction 0-based alignment start of a result, used to drop duplicates across split points
+     */
+    private <T> CloseableIterator<T> query(String sequence, int start, int end, boolean contained,
+                                           RangeQuery<T> rangeQuery, ToIntFunction<T> startFunction) throws IOException {
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        int splitCount = prefs.getAsInt(SAM_SPLIT_QUERY_COUNT);
+        int minSplitSize = prefs.getAsInt(SAM_SPLIT_QUERY_MIN_SIZE);
+
+        // Split points must fall within the sequence, index bins do not extend past 2^29
+        Long length = getSequenceDictionary().get(sequence);
+        if (length != null && end > length) {
+            end = (int) Math.min(Integer.MAX_VALUE, length);
+        }
+
+        // Contained queries cannot be split, alignments spanning a split point would be lost
+        if (splittable && !contained && splitCount > 1 && (end - start) >= minSplitSize) {
+            int[] rangeStarts = SplitQueryIterator.splitRange(start, end, splitCount);
+            if (rangeStarts.length > 1) {
+                // Only the first reader may wait, extra readers are taken only if available now.  Waiting
+                // for several readers while holding others could deadlock concurrent queries at the pool limit.
+                List<SamReader> readers = new ArrayList<>(rangeStarts.length);
+                readers.add(getSamReader());
+                try {
+                    while (readers.size() < rangeStarts.length) {
+                        SamReader r = readerPool.tryGetReader();
+                        if (r == null) break;
+                        readers.add(r);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    for (SamReader r : readers) {
+                        readerPool.freeReader(r);
+                    }
+                    throw e;
+                }
+                if (readers.size() < rangeStarts.length) {
+                    rangeStarts = SplitQueryIterator.splitRange(start, end, readers.size());
+                    while (readers.size() > rangeStarts.length) {
+                        readerPool.freeReader(readers.remove(readers.size() - 1));
+                    }
+                }
+                if (rangeStarts.length > 1) {
+                    List<CloseableIterator<T>> iterators = new ArrayList<>(rangeStarts.length);
+                    try {
+                        for (int i = 0; i < rangeStarts.length; i++) {
+                            int rangeEnd = i < rangeStarts.length - 1 ? rangeStarts[i + 1] : end;
+                            iterators.add(rangeQuery.query(readers.get(i), sequence, rangeStarts[i], rangeEnd, contained));
+                        }
+                    } catch (RuntimeException e) {
+                        // The failed sub-range freed its own reader.  Close the earlier ones, free the later.
+                        for (CloseableIterator<T> iter : iterators) {
+                            iter.close();
+                        }
+                        for (int i = iterators.size() + 1; i < readers.size(); i++) {
+                            readerPool.freeReader(readers.get(i));
+                        }
+                        throw e;
+                    }
+                    return new SplitQueryIterator<>(iterators, rangeStarts, startFunction);
+                } else {
+                    return rangeQuery.query(readers.get(0), sequence, start, end, contained);
+                }
+            }
+        }
+        return rangeQuery.query(getSamReader(), sequence, start, end, contained);
+    }
+
+    /**
+     * Query a single range on a reader from the pool.  The reader is returned to the pool when the iterator is
+     * closed, or immediately if the query fails.
+     */
+    private CloseableIterator<SAMAlignment> queryRange(SamReader samReader, String sequence, int start, int end, boolean contained) {
+        CloseableIterator<SAMRecord> iter = null;
+        try {
+            readerPool.setQueryRegion(samReader, sequence, start, end);
+            int decodeThreads = PreferencesManager.getPreferences().getAsInt(SAM_DECODE_THREADS);
+            if (decodeThreads > 1) {
+                iter = samReader.query(sequence, start + 1, end, contained);
+                return new ParallelDecodeIterator<>(iter, decodeThreads, ParallelDecodeIterator::decodeAlignment,
+                        () -> readerPool.freeReader(samReader));
+            } else {
+                return new PicardIterator(samReader, sequence, start + 1, end, contained);
+            }
+        } catch (RuntimeException e) {
+            // A reader with an open iterator cannot be queried again
+            if (iter != null) {
+                iter.close();
+            }
+            readerPool.freeReader(samReader);
+            throw e;
+        }
+    }
+
+    /**
+     * Query raw records over a single range on a reader from the pool, as for {@link #queryRange}.
+     */
+    private CloseableIterator<SAMRecord> queryRecordRange(SamReader samReader, String sequence, int start, int end, boolean contained) {
+        CloseableIterator<SAMRecord> iter = null;
+        try {
+            readerPool.setQueryRegion(samReader, sequence, start, end);
+            iter = samReader.query(sequence, start + 1, end, contained);
+            int decodeThreads = PreferencesManager.getPreferences().getAsInt(SAM_DECODE_THREADS);
+            if (decodeThreads > 1) {
+                return new ParallelDecodeIterator<>(iter, decodeThreads, ParallelDecodeIterator::decodeReadName,
+                        () -> readerPool.freeReader(samReader));
+            } else {
+                final CloseableIterator<SAMRecord> recordIter = iter;
+                return new CloseableIterator<SAMRecord>() {
+                    @Override
+                    public void close() {
+                        recordIter.close();
+                        readerPool.freeReader(samReader);
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return recordIter.hasNext();
+                    }
+
+                    @Override
+                    public SAMRecord next() {
+                        return recordIter.next();
+                    }
+                };
+            }
+        } catch (RuntimeException e) {
+            if (iter != null) {
+                iter.close();
+            }
+            readerPool.freeReader(samReader);
+            throw e;
+        }
+    }
+
     static CloseableIterator<SAMAlignment> EMPTY_ITERATOR = new CloseableIterator<SAMAlignment>() {
         @Override
         public void close() {
@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.reader;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import org.apache.log4j.Logger;
+import org.broad.igv.sam.SAMAlignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Staged decoding pipeline for alignment queries.  A producer thread pulls raw records from the htsjdk iterator
+ * (which, with async IO enabled on the reader factory, inflates BGZF blocks on its own thread) and hands them
+ * in batches to a pool of decoder threads that build the {@link SAMAlignment} objects, or for raw record queries
+ * decode the fields every record needs.  The consumer -- the thread calling {@link #next()}, normally
+ * AlignmentTileLoader.loadTile -- receives results in exactly the order the underlying iterator produced them, so
+ * results are identical to the serial path.
+ * <p/>
+ * Only the work after htsjdk's iterator runs on the decoder threads: building alignments, which decodes the lazily
+ * parsed fields of a BAM record (CIGAR, bases, qualities, tags).  BGZF inflation and the parse of each record's
+ * fixed fields stay on the producer and async IO threads.  The pipeline is used only when SAM.DECODE_THREADS is
+ * greater than 1; with the default of 1 queries are decoded serially.
+ */
+public class ParallelDecodeIterator<T> implements CloseableIterator<T> {
+
+    private static Logger log = Logger.getLogger(ParallelDecodeIterator.class);
+
+    static final int BATCH_SIZE = 512;
+
+    private static ThreadPoolExecutor decoderPool;
+
+    private static final ExecutorService producerPool = Executors.newCachedThreadPool(daemonThreadFactory("alignment-reader"));
+
+    private final CloseableIterator<SAMRecord> iterator;
+    private final Function<SAMRecord, T> decoder;
+    private final Runnable onClose;
+    private final BlockingQueue<Future<List<T>>> batches;
+    private final Future<List<T>> endOfStream = CompletableFuture.completedFuture(Collections.emptyList());
+    private final CountDownLatch producerDone = new CountDownLatch(1);
+
+    private List<T> currentBatch = Collections.emptyList();
+    private int currentIndex = 0;
+    private boolean finished = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param iterator      source of raw records.  Only the producer thread touches this iterator after construction.
+     * @param decoderThreads number of decoder threads
+     * @param decoder       decodes a record, called on a decoder thread
+     * @param onClose       called once, after the producer has released the source iterator
+     */
+    public ParallelDecodeIterator(CloseableIterator<SAMRecord> iterator, int decoderThreads,
+                                  Function<SAMRecord, T> decoder, Runnable onClose) {
+        this.iterator = iterator;
+        this.decoder = decoder;
+        this.onClose = onClose;
+        // Bound the number of batches in flight so a slow consumer does not cause the whole query to be buffered
+        this.batches = new ArrayBlockingQueue<>(2 * decoderThreads + 1);
+        final ExecutorService decoders = getDecoderPool(decoderThreads);
+        producerPool.execute(() -> produce(decoders));
+    }
+
+    private void produce(ExecutorService decoders) {
+        try {
+            while (!closed && iterator.hasNext()) {
+                final List<SAMRecord> records = new ArrayList<>(BATCH_SIZE);
+                while (records.size() < BATCH_SIZE && iterator.hasNext()) {
+                    records.add(iterator.next());
+                }
+                offer(decoders.submit(() -> decode(records)));
+            }
+        } catch (Throwable t) {
+            CompletableFuture<List<T>> error = new CompletableFuture<>();
+            error.completeExceptionally(t);
+            offer(error);
+        } finally {
+            try {
+                iterator.close();
+            } catch (Exception e) {
+                log.error("Error closing alignment iterator", e);
+            }
+            offer(endOfStream);
+            producerDone.countDown();
+        }
+    }
+
+    private List<T> decode(List<SAMRecord> records) {
+        List<T> decoded = new ArrayList<>(records.size());
+        for (SAMRecord record : records) {
+            decoded.add(decoder.apply(record));
+        }
+        return decoded;
+    }
+
+    /**
+     * Build an alignment, forcing lazy decoding of the read name here rather than on the consumer thread
+     */
+    public static SAMAlignment decodeAlignment(SAMRecord record) {
+        SAMAlignment alignment = new SAMAlignment(record);
+        alignment.getReadName();
+        return alignment;
+    }
+
+    /**
+     * Decode the read name of a raw record, which downsampling needs for every record.  Other fields are left to be
+     * decoded by the consumer, for the records it keeps.
+     */
+    public static SAMRecord decodeReadName(SAMRecord record) {
+        record.getReadName();
+        return record;
+    }
+
+    /**
+     * Queue a batch, waiting for space while the consumer is still reading.  The producer is never interrupted, as
+     * interrupting a thread blocked in channel IO would close the file underlying a pooled reader.
+     */
+    private void offer(Future<List<T>> f) {
+        try {
+            while (!closed && !batches.offer(f, 100, TimeUnit.MILLISECONDS)) ;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean hasNext() {
+        while (!finished && currentIndex >= currentBatch.size()) {
+            try {
+                Future<List<T>> f = batches.take();
+                if (f == endOfStream) {
+                    finished = true;
+                } else {
+                    currentBatch = f.get();
+                    currentIndex = 0;
+                }
+            } catch (InterruptedException e) {
+                // Not the end of the data -- the caller must not mistake the partial result for a complete one
+                finished = true;
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Alignment query interrupted");
+            } catch (ExecutionException e) {
+                finished = true;
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+        return !finished;
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentBatch.get(currentIndex++);
+    }
+
+    public void close() {
+        if (closed) return;
+        closed = true;
+        batches.clear();
+        try {
+            producerDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Return the shared decoder pool, resized in place if the thread count preference has changed.  The pool is
+     * never replaced, as queries in flight may still be submitting to it.
+     */
+    private static synchronized ExecutorService getDecoderPool(int nThreads) {
+        if (decoderPool == null) {
+            decoderPool = new ThreadPoolExecutor(nThreads, nThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), daemonThreadFactory("alignment-decoder"));
+            decoderPool.allowCoreThreadTimeOut(true);
+        } else if (nThreads > decoderPool.getMaximumPoolSize()) {
+            decoderPool.setMaximumPoolSize(nThreads);
+            decoderPool.setCorePoolSize(nThreads);
+        } else if (nThreads < decoderPool.getMaximumPoolSize()) {
+            decoderPool.setCorePoolSize(nThreads);
+            decoderPool.setMaximumPoolSize(nThreads);
+        }
+        return decoderPool;
+    }
+
+    static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
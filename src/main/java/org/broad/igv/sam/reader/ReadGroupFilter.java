@@ -25,6 +25,8 @@
 
 package org.broad.igv.sam.reader;
 
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
 import htsjdk.tribble.readers.AsciiLineReader;
 import org.apache.log4j.Logger;
 import org.broad.igv.prefs.Constants;
@@ -66,6 +68,11 @@ public class ReadGroupFilter {
         return filteredReadGroups.contains(alignment.getReadGroup());
     }
 
+    public boolean filterRecord(SAMRecord record) {
+        SAMReadGroupRecord readGroup = record.getReadGroup();
+        return filteredReadGroups.contains(readGroup == null ? null : readGroup.getId());
+    }
+
 
     public static synchronized ReadGroupFilter getFilter() {
 
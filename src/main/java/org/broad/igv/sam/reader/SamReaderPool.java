@@ -1,12 +1,15 @@
 package org.broad.igv.sam.reader;
 
+import htsjdk.samtools.CRAMCRAIIndexer;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
-import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.seekablestream.SeekableMemoryStream;
 import org.apache.log4j.Logger;
 import org.broad.igv.exceptions.DataLoadException;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.sam.cram.CRAMReferenceSpans;
 import org.broad.igv.sam.cram.IGVReferenceSource;
 import org.broad.igv.ui.util.MessageUtils;
 import org.broad.igv.util.FileUtils;
@@ -15,61 +18,354 @@ import org.broad.igv.util.ResourceLocator;
 import org.broad.igv.util.URLUtils;
 import org.broad.igv.util.stream.IGVSeekableStreamFactory;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.broad.igv.prefs.Constants.*;
 
 /**
- * Simple pool for reusing SamReader instances.  The SamReader query object is not thread safe, so if triggering
+ * Pool for reusing SamReader instances.  The SamReader query object is not thread safe, so if triggering
  * multiple queries in parallel, which can easily occur in IGV,  a new SamReader instance is needed for each query.
  * When the query is completed "freeReader(reader)" is called which makes the reader available for future queries.
- * Its assumed that SamReader is lightweight, no attempt is made to limit the pool size or dispose of old instances.
- * In practice the pool will rarely grow to more than a few readers.
+ * <p>
+ * The number of open readers is limited both per pool (SAM.READER_POOL_SIZE) and across all pools
+ * (SAM.READER_POOL_GLOBAL_SIZE).  When a limit is reached getReader() waits for a reader to be freed, after first
+ * trying to close the longest idle reader of any pool to make room.  The wait is bounded by
+ * SAM.READER_POOL_WAIT_TIME seconds, so a reader that is never returned fails later loads instead of hanging them.
+ * Readers idle for longer than SAM.READER_POOL_IDLE_TIME seconds are closed by a background sweep.
+ * <p>
+ * The index path is resolved once per pool, and the contents of remote indexes are cached and shared by all
+ * readers of the same file rather than re-fetched for each new reader.  The cache is bounded by
+ * SAM.INDEX_CACHE_SIZE (MB).  Local indexes are memory mapped by htsjdk, and so are already shared through the OS
+ * page cache.
+ * <p>
+ * Pools are held until {@link #close()}, so the idle sweep can always reach their readers and release their slots.
  */
 public class SamReaderPool {
 
     private static Logger log = Logger.getLogger(SamReaderPool.class);
 
+    private static final long SWEEP_INTERVAL_SECONDS = 30;
+
+    // Strong references.  A pool dropped without close() would otherwise take its global slots with it.
+    private static final Set<SamReaderPool> pools = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    // Access ordered, guarded by itself
+    private static final LinkedHashMap<String, byte[]> remoteIndexCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long remoteIndexCacheBytes = 0;
+    private static final Map<String, CompletableFuture<byte[]>> remoteIndexDownloads = new HashMap<>();
+
+    private static final Object globalLock = new Object();
+    private static int globalOpenCount = 0;
+
+    private static final AtomicLong creationCount = new AtomicLong();
+    private static final AtomicLong reuseCount = new AtomicLong();
+    private static final AtomicLong waitTimeNanos = new AtomicLong();
+    private static final AtomicLong evictionCount = new AtomicLong();
+
+    private static ScheduledExecutorService sweeper;
+
     private ResourceLocator locator;
     private boolean requireIndex;
-    private List<SamReader> availableReaders;
+    private String indexPath;
+    private CRAMReferenceSpans cramReferenceSpans;
+    private boolean cramSpansLoaded = false;
+    private final Map<SamReader, IGVReferenceSource> referenceSources = Collections.synchronizedMap(new WeakHashMap<>());
+    private Deque<IdleReader> availableReaders;
+    private int openCount = 0;
+    private boolean closed = false;
 
     public SamReaderPool(ResourceLocator locator, boolean requireIndex) {
         this.locator = locator;
         this.requireIndex = requireIndex;
-        availableReaders = Collections.synchronizedList(new ArrayList<>());
+        availableReaders = new ArrayDeque<>();
+        pools.add(this);
+        startSweeper();
     }
 
-    public synchronized SamReader getReader() throws IOException {
-        if (availableReaders.size() > 0) {
-            return availableReaders.remove(0);
-        } else {
-            return createReader();
+    /**
+     * Return a reader, creating one if none are available.  Blocks if the pool or global limit has been reached
+     * until a reader is freed.
+     *
+     * @throws IOException if no reader is freed within SAM.READER_POOL_WAIT_TIME seconds
+     */
+    public SamReader getReader() throws IOException {
+        return getReader(true);
+    }
+
+    /**
+     * Return a reader if one is available or can be created without waiting, otherwise null.  Used for optional
+     * extra readers, such as the sub-ranges of a split query, which must not block while holding other readers.
+     */
+    public SamReader tryGetReader() throws IOException {
+        return getReader(false);
+    }
+
+    private SamReader getReader(boolean wait) throws IOException {
+
+        final long t0 = System.nanoTime();
+        while (true) {
+            boolean reserved = false;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Reader pool is closed: " + locator.getPath());
+                }
+                if (availableReaders.size() > 0) {
+                    // Most recently used first, its buffers and index pages are most likely to still be warm
+                    reuseCount.incrementAndGet();
+                    waitTimeNanos.addAndGet(System.nanoTime() - t0);
+                    return availableReaders.removeLast().reader;
+                }
+                if (openCount < getMaxPoolSize()) {
+                    openCount++;
+                    reserved = true;
+                }
+            }
+
+            if (reserved) {
+                if (acquireGlobalSlot()) {
+                    waitTimeNanos.addAndGet(System.nanoTime() - t0);
+                    try {
+                        SamReader reader = createReader();
+                        creationCount.incrementAndGet();
+                        return reader;
+                    } catch (IOException | RuntimeException e) {
+                        releaseSlot();
+                        throw e;
+                    }
+                } else {
+                    synchronized (this) {
+                        openCount--;
+                    }
+                }
+            }
+
+            if (!wait) {
+                return null;
+            }
+            long maxWaitSeconds = PreferencesManager.getPreferences().getAsInt(SAM_READER_POOL_WAIT_TIME);
+            if (maxWaitSeconds > 0 && System.nanoTime() - t0 > TimeUnit.SECONDS.toNanos(maxWaitSeconds)) {
+                throw new IOException("Timed out after " + maxWaitSeconds + " seconds waiting for a free reader for " +
+                        locator.getPath() + ".  All " + openCount + " readers for this file, or " +
+                        getOpenReaderCount() + " readers overall, are in use.");
+            }
+            synchronized (this) {
+                if (availableReaders.isEmpty()) {
+                    try {
+                        // Timed, as global slots freed by other pools do not notify this one
+                        this.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for a reader: " + locator.getPath());
+                    }
+                }
+            }
         }
     }
 
     public void freeReader(SamReader reader) {
-        availableReaders.add(reader);
+        // Reference spans apply to one query only
+        IGVReferenceSource referenceSource = referenceSources.get(reader);
+        if (referenceSource != null) {
+            referenceSource.setQuerySpans(null, null);
+        }
+        boolean closeReader;
+        synchronized (this) {
+            closeReader = closed;
+            if (!closed) {
+                availableReaders.addLast(new IdleReader(reader));
+                this.notifyAll();
+            }
+        }
+        if (closeReader) {
+            closeReader(reader);
+            releaseSlot();
+        }
     }
 
     public void close() throws IOException {
-        for (SamReader reader : availableReaders) {
+        List<IdleReader> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(availableReaders);
+            availableReaders.clear();
+        }
+        for (IdleReader r : toClose) {
+            closeReader(r.reader);
+            releaseSlot();
+        }
+        pools.remove(this);
+        log.debug(getMetrics());
+    }
+
+    private void releaseSlot() {
+        synchronized (this) {
+            openCount--;
+        }
+        synchronized (globalLock) {
+            globalOpenCount--;
+        }
+    }
+
+    private static boolean acquireGlobalSlot() {
+        int max = PreferencesManager.getPreferences().getAsInt(SAM_READER_POOL_GLOBAL_SIZE);
+        while (true) {
+            synchronized (globalLock) {
+                if (max <= 0 || globalOpenCount < max) {
+                    globalOpenCount++;
+                    return true;
+                }
+            }
+            if (!evictIdleReader(0)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Close the longest idle reader across all pools, if it has been idle for at least {@code minIdleMillis}.
+     * Pool locks are taken one at a time to avoid lock-order deadlocks between pools.
+     *
+     * @return true if a reader was closed
+     */
+    private static boolean evictIdleReader(long minIdleMillis) {
+        SamReaderPool oldestPool = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (SamReaderPool pool : getPools()) {
+            synchronized (pool) {
+                IdleReader r = pool.availableReaders.peekFirst();
+                if (r != null && r.lastUsed < oldestTime) {
+                    oldestTime = r.lastUsed;
+                    oldestPool = pool;
+                }
+            }
+        }
+        if (oldestPool == null || System.currentTimeMillis() - oldestTime < minIdleMillis) {
+            return false;
+        }
+        IdleReader evicted;
+        synchronized (oldestPool) {
+            evicted = oldestPool.availableReaders.pollFirst();
+        }
+        if (evicted == null) {
+            return true;   // Taken by another thread in the meantime, which also frees a slot or leaves the count as is
+        }
+        closeReader(evicted.reader);
+        oldestPool.releaseSlot();
+        evictionCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Close readers which have been idle longer than the idle time preference.
+     */
+    static void evictIdleReaders() {
+        long idleMillis = 1000L * PreferencesManager.getPreferences().getAsInt(SAM_READER_POOL_IDLE_TIME);
+        if (idleMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (SamReaderPool pool : getPools()) {
+            while (true) {
+                IdleReader r;
+                synchronized (pool) {
+                    r = pool.availableReaders.peekFirst();
+                    if (r == null || now - r.lastUsed < idleMillis) {
+                        break;
+                    }
+                    pool.availableReaders.pollFirst();
+                }
+                closeReader(r.reader);
+                pool.releaseSlot();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static List<SamReaderPool> getPools() {
+        synchronized (pools) {
+            return new ArrayList<>(pools);
+        }
+    }
+
+    private static void closeReader(SamReader reader) {
+        try {
             reader.close();
+        } catch (IOException e) {
+            log.error("Error closing SamReader", e);
+        }
+    }
+
+    private static int getMaxPoolSize() {
+        int max = PreferencesManager.getPreferences().getAsInt(SAM_READER_POOL_SIZE);
+        return max <= 0 ? Integer.MAX_VALUE : max;
+    }
+
+    private static synchronized void startSweeper() {
+        if (sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(ParallelDecodeIterator.daemonThreadFactory("reader-pool-sweeper"));
+            sweeper.scheduleWithFixedDelay(() -> {
+                try {
+                    evictIdleReaders();
+                } catch (Exception e) {
+                    log.error("Error evicting idle readers", e);
+                }
+            }, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    // Pool metrics, summed over all pools
+
+    public static long getCreationCount() {
+        return creationCount.get();
+    }
+
+    public static long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    public static long getWaitTimeMillis() {
+        return waitTimeNanos.get() / 1000000;
+    }
+
+    public static long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public static int getOpenReaderCount() {
+        synchronized (globalLock) {
+            return globalOpenCount;
         }
-        availableReaders.clear();
+    }
+
+    public static String getMetrics() {
+        return "SamReader pool: open=" + getOpenReaderCount() +
+                " creations=" + getCreationCount() +
+                " reuses=" + getReuseCount() +
+                " waitMs=" + getWaitTimeMillis() +
+                " evictions=" + getEvictionCount();
     }
 
     private SamReader createReader() throws IOException {
 
         boolean isLocal = locator.isLocal();
+        // With parallel decoding enabled, also inflate BGZF blocks asynchronously ahead of the record iterator
+        boolean asyncIO = PreferencesManager.getPreferences().getAsInt(SAM_DECODE_THREADS) > 1;
+        final IGVReferenceSource referenceSource = new IGVReferenceSource();
         final SamReaderFactory factory = SamReaderFactory.makeDefault().
-                referenceSource(new IGVReferenceSource()).
-                validationStringency(ValidationStringency.SILENT);
+                referenceSource(referenceSource).
+                validationStringency(ValidationStringency.SILENT).
+                setUseAsyncIo(asyncIO);
         SamInputResource resource;
 
         if (isLocal) {
@@ -98,20 +394,158 @@ public class SamReaderPool {
 
         if (requireIndex) {
 
-            String indexPath = getExplicitIndexPath(locator);
-            if (indexPath == null || indexPath.length() == 0) {
-                indexPath = getIndexPath(locator.getPath());
-            }
+            String indexPath = getIndexPath();
             if (isLocal) {
                 File indexFile = new File(indexPath);
                 resource = resource.index(indexFile);
             } else {
-                SeekableStream indexStream = IGVSeekableStreamFactory.getInstance().getStreamFor(HttpUtils.createURL(indexPath));
-                resource = resource.index(indexStream);
+                resource = resource.index(new SeekableMemoryStream(getRemoteIndex(indexPath), indexPath));
+            }
+        }
+
+        SamReader reader = factory.open(resource);
+        referenceSources.put(reader, referenceSource);
+        return reader;
+    }
+
+    /**
+     * For CRAM files indexed with a .crai, tell the reader's reference source which reference spans the query will
+     * need, so only those are fetched.  Otherwise the source loads whole contigs.
+     */
+    public void setQueryRegion(SamReader reader, String sequence, int start, int end) {
+
+        IGVReferenceSource referenceSource = referenceSources.get(reader);
+        if (referenceSource == null) {
+            return;
+        }
+        int[] spans = null;
+        try {
+            CRAMReferenceSpans cramSpans = getCRAMReferenceSpans();
+            int sequenceId = reader.getFileHeader().getSequenceIndex(sequence);
+            if (cramSpans != null && sequenceId >= 0 && reader.hasIndex()) {
+                spans = cramSpans.getSpans(reader.indexing().getIndex(), sequenceId, start, end);
+            }
+        } catch (Exception e) {
+            log.error("Error computing CRAM reference spans", e);
+        }
+        referenceSource.setQuerySpans(sequence, spans);
+    }
+
+    /**
+     * Read the .crai index, once per pool
+     *
+     * @return the reference span calculator, or null if the file is not a CRAM indexed with a .crai
+     */
+    private synchronized CRAMReferenceSpans getCRAMReferenceSpans() throws IOException {
+        if (!cramSpansLoaded) {
+            cramSpansLoaded = true;
+            if (requireIndex && !locator.isHtsget()) {
+                String path = getIndexPath();
+                if (path.toLowerCase().endsWith(".crai")) {
+                    try (InputStream is = locator.isLocal() ?
+                            new FileInputStream(path) :
+                            new ByteArrayInputStream(getRemoteIndex(path))) {
+                        cramReferenceSpans = new CRAMReferenceSpans(CRAMCRAIIndexer.readIndex(is).getCRAIEntries());
+                    }
+                }
+            }
+        }
+        return cramReferenceSpans;
+    }
+
+    /**
+     * Resolve the index path once per pool.  Guessing the path can involve several HTTP requests, or a dialog.
+     */
+    private synchronized String getIndexPath() throws IOException {
+        if (indexPath == null) {
+            String path = getExplicitIndexPath(locator);
+            if (path == null || path.length() == 0) {
+                path = getIndexPath(locator.getPath());
+            }
+            indexPath = path;
+        }
+        return indexPath;
+    }
+
+    /**
+     * Return the contents of a remote index, fetching it on first use.  The bytes are shared by all readers of the
+     * file, each reader wrapping them in its own stream.  The download runs outside the cache lock, so a slow index
+     * only delays readers of its own file, which wait for the one download in progress.
+     */
+    static byte[] getRemoteIndex(String indexPath) throws IOException {
+        CompletableFuture<byte[]> download;
+        boolean downloading = false;
+        synchronized (remoteIndexCache) {
+            byte[] bytes = remoteIndexCache.get(indexPath);
+            if (bytes != null) {
+                return bytes;
+            }
+            download = remoteIndexDownloads.get(indexPath);
+            if (download == null) {
+                download = new CompletableFuture<>();
+                remoteIndexDownloads.put(indexPath, download);
+                downloading = true;
             }
         }
 
-        return factory.open(resource);
+        if (downloading) {
+            try {
+                byte[] bytes = HttpUtils.getInstance().getContentsAsBytes(HttpUtils.createURL(indexPath), null);
+                synchronized (remoteIndexCache) {
+                    cacheRemoteIndex(indexPath, bytes);
+                    remoteIndexDownloads.remove(indexPath);
+                }
+                download.complete(bytes);
+                return bytes;
+            } catch (IOException | RuntimeException e) {
+                synchronized (remoteIndexCache) {
+                    remoteIndexDownloads.remove(indexPath);
+                }
+                download.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for index: " + indexPath);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error loading index: " + indexPath, cause);
+        }
+    }
+
+    /**
+     * Add an index to the cache, evicting the least recently used indexes beyond the size limit.  An index larger
+     * than the limit is not cached.  Call with the cache lock held.
+     */
+    static void cacheRemoteIndex(String indexPath, byte[] bytes) {
+        long budget = (long) PreferencesManager.getPreferences().getAsInt(SAM_INDEX_CACHE_SIZE) * 1000000;
+        if (bytes.length > budget) {
+            return;
+        }
+        byte[] previous = remoteIndexCache.put(indexPath, bytes);
+        remoteIndexCacheBytes += bytes.length - (previous == null ? 0 : previous.length);
+        Iterator<byte[]> iter = remoteIndexCache.values().iterator();
+        while (remoteIndexCacheBytes > budget && iter.hasNext()) {
+            remoteIndexCacheBytes -= iter.next().length;
+            iter.remove();
+        }
+    }
+
+    private static class IdleReader {
+        final SamReader reader;
+        final long lastUsed;
+
+        IdleReader(SamReader reader) {
+            this.reader = reader;
+            this.lastUsed = System.currentTimeMillis();
+        }
     }
 
     /**
@@ -0,0 +1,218 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.reader;
+
+import htsjdk.samtools.util.CloseableIterator;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Merges the results of a query that has been split into contiguous sub-ranges, each running concurrently on its
+ * own reader.  Results may be alignments or raw records.  Sub-range results are concatenated in order.  An alignment
+ * overlapping a split point is returned by
+ * every sub-range it overlaps, so sub-range i > 0 keeps only alignments that start at or after its own start -- the
+ * others were already returned by sub-range i - 1.  If the consuming thread is interrupted while waiting,
+ * {@link #hasNext()} throws a {@link CancellationException}.  As alignments are sorted by start within each sub-range, the
+ * concatenation is in coordinate order and identical to the result of the unsplit query.
+ */
+public class SplitQueryIterator<T> implements CloseableIterator<T> {
+
+    private static Logger log = Logger.getLogger(SplitQueryIterator.class);
+
+    static final int BATCH_SIZE = 512;
+
+    /**
+     * Batches each sub-range may read ahead of the consumer
+     */
+    static final int QUEUE_CAPACITY = 16;
+
+    private static final ExecutorService queryPool =
+            Executors.newCachedThreadPool(ParallelDecodeIterator.daemonThreadFactory("alignment-query"));
+
+    private final List<T> endOfRange = Collections.emptyList();
+    private final List<BlockingQueue<List<T>>> queues;
+    private final ToIntFunction<T> startFunction;
+    private final Throwable[] errors;
+    private final CountDownLatch done;
+
+    private int currentRange = 0;
+    private List<T> currentBatch = Collections.emptyList();
+    private int currentIndex = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param iterators   one iterator per sub-range, in coordinate order
+     * @param rangeStarts 0-based start of each sub-range
+     * @param startFunction 0-based alignment start of a result
+     */
+    public SplitQueryIterator(List<CloseableIterator<T>> iterators, int[] rangeStarts, ToIntFunction<T> startFunction) {
+        int n = iterators.size();
+        this.startFunction = startFunction;
+        this.queues = new ArrayList<>(n);
+        this.errors = new Throwable[n];
+        this.done = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+        for (int i = 0; i < n; i++) {
+            final int idx = i;
+            // The first sub-range keeps everything, including alignments starting before the query start
+            final int minStart = i == 0 ? Integer.MIN_VALUE : rangeStarts[i];
+            queryPool.execute(() -> drain(idx, iterators.get(idx), minStart));
+        }
+    }
+
+    /**
+     * Read all alignments for one sub-range.  Queues are bounded, as the consumer may keep only a fraction of the
+     * results (raw records read for downsampling).  Later sub-ranges read ahead by up to QUEUE_CAPACITY batches and
+     * then wait for the consumer to reach them.
+     */
+    private void drain(int idx, CloseableIterator<T> iter, int minStart) {
+        BlockingQueue<List<T>> queue = queues.get(idx);
+        try {
+            List<T> batch = new ArrayList<>(BATCH_SIZE);
+            while (!closed && iter.hasNext()) {
+                T alignment = iter.next();
+                if (startFunction.applyAsInt(alignment) >= minStart) {
+                    batch.add(alignment);
+                    if (batch.size() == BATCH_SIZE) {
+                        offer(queue, batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+            }
+            if (batch.size() > 0) {
+                offer(queue, batch);
+            }
+        } catch (Throwable t) {
+            errors[idx] = t;
+        } finally {
+            try {
+                iter.close();
+            } catch (Exception e) {
+                log.error("Error closing alignment iterator", e);
+            }
+            offer(queue, endOfRange);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Queue a batch, waiting for space while the iterator is open.  Query threads are never interrupted, as
+     * interrupting a thread blocked in channel IO would close the file underlying a pooled reader.
+     */
+    private void offer(BlockingQueue<List<T>> queue, List<T> batch) {
+        try {
+            while (!closed && !queue.offer(batch, 100, TimeUnit.MILLISECONDS)) ;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean hasNext() {
+        while (currentIndex >= currentBatch.size()) {
+            if (currentRange >= queues.size()) {
+                return false;
+            }
+            try {
+                List<T> batch = queues.get(currentRange).take();
+                if (batch == endOfRange) {
+                    Throwable t = errors[currentRange];
+                    if (t != null) {
+                        currentRange = queues.size();
+                        if (t instanceof RuntimeException) {
+                            throw (RuntimeException) t;
+                        } else {
+                            throw new RuntimeException(t);
+                        }
+                    }
+                    currentRange++;
+                } else {
+                    currentBatch = batch;
+                    currentIndex = 0;
+                }
+            } catch (InterruptedException e) {
+                // Not the end of the data -- the caller must not mistake the partial result for a complete one
+                Thread.currentThread().interrupt();
+                currentRange = queues.size();
+                throw new CancellationException("Alignment query interrupted");
+            }
+        }
+        return true;
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentBatch.get(currentIndex++);
+    }
+
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (BlockingQueue<List<T>> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Compute split points for the 0-based half-open range [start, end), dividing it into at most {@code maxParts}
+     * parts.  Interior split points are rounded to the 16 kb linear-index window used by BAI and CSI indexes, so
+     * adjacent sub-queries begin on different index bins and do not re-read the same compressed chunks.
+     *
+     * @return the 0-based start of each sub-range
+     */
+    public static int[] splitRange(int start, int end, int maxParts) {
+        final int window = 1 << 14;
+        int partSize = (end - start) / Math.max(1, maxParts);
+        List<Integer> starts = new ArrayList<>();
+        starts.add(start);
+        for (int i = 1; i < maxParts; i++) {
+            int s = start + i * partSize;
+            s = ((s + window / 2) / window) * window;
+            if (s > starts.get(starts.size() - 1) && s < end) {
+                starts.add(s);
+            }
+        }
+        int[] result = new int[starts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = starts.get(i);
+        }
+        return result;
+    }
+}
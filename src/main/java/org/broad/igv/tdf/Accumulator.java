@@ -33,6 +33,7 @@ import org.apache.commons.math3.stat.StatUtils;
 import org.apache.log4j.Logger;
 import org.broad.igv.track.WindowFunction;
 import org.broad.igv.util.collections.DownsampledDoubleArrayList;
+import org.broad.igv.util.stats.QuantileSketch;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -41,6 +42,9 @@ import java.util.Set;
  * Accumulator for a single window function.
  * <p/>
  * Estimating percentiles -- weighted average of multiple estimates
+ * <p/>
+ * Optionally, windows of more than SKETCH_THRESHOLD values estimate percentiles with a {@link QuantileSketch}
+ * rather than a downsampled list of values.  Smaller windows are always exact.
  *
  * @author jrobinso
  */
@@ -49,6 +53,7 @@ public class Accumulator {
     private static Logger log = Logger.getLogger(Accumulator.class);
 
     private static int MAX_VALUE_COUNT = 100000;
+    private static int SKETCH_THRESHOLD = 1000;
 
     boolean isFinished = false;
     WindowFunction windowFunction;
@@ -58,6 +63,8 @@ public class Accumulator {
     float value = Float.NaN;
 
     DownsampledDoubleArrayList valueList;  // List used to accumulate values for percentile calculations
+    boolean useSketch;
+    QuantileSketch sketch;
 
 
     // Optional -- keep some representative data and probe names for popup text
@@ -66,7 +73,15 @@ public class Accumulator {
     String[] repProbes;
 
     public Accumulator(WindowFunction windowFunction, int nRepValues) {
+        this(windowFunction, nRepValues, false);
+    }
+
+    /**
+     * @param useSketch estimate percentiles of windows with more than SKETCH_THRESHOLD values with a sketch
+     */
+    public Accumulator(WindowFunction windowFunction, int nRepValues, boolean useSketch) {
         this(windowFunction);
+        this.useSketch = useSketch;
         if (nRepValues > 0) {
             this.nRepValues = nRepValues;
             this.repData = new float[nRepValues];
@@ -115,8 +130,17 @@ public class Accumulator {
                 case absoluteMax:
                     value = Float.isNaN(value) ? v : Math.abs(v) > Math.abs(value) ? v : value;
                 default:
-                    if (valueList != null) {
+                    if (sketch != null) {
+                        sketch.add(v);
+                    } else if (valueList != null) {
                         valueList.add(v);
+                        if (useSketch && valueList.size() > SKETCH_THRESHOLD) {
+                            sketch = new QuantileSketch();
+                            for (int i = 0; i < valueList.size(); i++) {
+                                sketch.add((float) valueList.get(i));
+                            }
+                            valueList = null;
+                        }
                     }
             }
             nPts++;
@@ -133,6 +157,9 @@ public class Accumulator {
 
         if (windowFunction == WindowFunction.mean) {
             value = Float.isNaN(sum) ? Float.NaN : sum / basesCovered;
+        } else if (sketch != null) {
+            double p = this.getPercentile(windowFunction);
+            value = p > 0 ? sketch.getQuantile(p / 100) : Float.NaN;
         } else if (valueList != null) {
             if (valueList.size() == 0) {
                 value = Float.NaN;
@@ -151,6 +178,7 @@ public class Accumulator {
         }
 
         valueList = null;
+        sketch = null;
         isFinished = true;
 
     }
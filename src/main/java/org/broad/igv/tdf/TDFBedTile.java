@@ -33,6 +33,8 @@ import org.broad.igv.util.StringUtils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 /**
  * @author jrobinso
@@ -40,13 +42,27 @@ import java.nio.ByteBuffer;
 public class TDFBedTile implements TDFTile {
 
     int tileStart;
+    private int nPositions;
+    private int nSamples;
     private int[] start;
     private int[] end;
     private float[][] data;
     private String[] names;
+    // Read-only views used in place of start, end and data for view tiles
+    private IntBuffer startView;
+    private IntBuffer endView;
+    private FloatBuffer values;
 
     public TDFBedTile(ByteBuffer byteBuffer, int nSamples, TDFTile.Type type) throws IOException {
-        this.fill(byteBuffer, nSamples, type);
+        this(byteBuffer, nSamples, type, false);
+    }
+
+    /**
+     * @param view keep read-only views of the starts, ends and values in {@code byteBuffer} rather than copying
+     *             them.  Names are always decoded.
+     */
+    public TDFBedTile(ByteBuffer byteBuffer, int nSamples, TDFTile.Type type, boolean view) throws IOException {
+        this.fill(byteBuffer, nSamples, type, view);
     }
 
     public TDFBedTile(int tileStart, int[] start, int[] end, float[][] data) {
@@ -54,6 +70,8 @@ public class TDFBedTile implements TDFTile {
         this.start = start;
         this.end = end;
         this.data = data;
+        this.nPositions = start.length;
+        this.nSamples = data.length;
     }
 
     public TDFBedTile(int tileStart, int[] start, int[] end, float[][] data, String[] name) {
@@ -62,7 +80,7 @@ public class TDFBedTile implements TDFTile {
     }
 
     public int getSize() {
-        return start.length;
+        return nPositions;
     }
 
     public int getTileStart() {
@@ -74,11 +92,11 @@ public class TDFBedTile implements TDFTile {
     }
 
     public int getStartPosition(int idx) {
-        return start[idx];
+        return start != null ? start[idx] : startView.get(idx);
     }
 
     public int getEndPosition(int idx) {
-        return end[idx];
+        return end != null ? end[idx] : endView.get(idx);
     }
 
     public String getName(int idx) {
@@ -86,7 +104,7 @@ public class TDFBedTile implements TDFTile {
     }
 
     public float getValue(int row, int idx) {
-        return data[row][idx];
+        return data != null ? data[row][idx] : values.get(row * nPositions + idx);
     }
 
     public void writeTo(BufferedByteWriter fos) throws IOException {
@@ -95,23 +113,19 @@ public class TDFBedTile implements TDFTile {
         TDFTile.Type type = names == null ? TDFTile.Type.bed : TDFTile.Type.bedWithName;
         fos.putNullTerminatedString(type.toString());
 
-        int nPositions = start.length;
-        int nSamples = data.length;
-
-
         fos.putInt(nPositions);
 
         for (int i = 0; i < nPositions; i++) {
-            fos.putInt(start[i]);
+            fos.putInt(getStartPosition(i));
         }
         for (int i = 0; i < nPositions; i++) {
-            fos.putInt(end[i]);
+            fos.putInt(getEndPosition(i));
         }
 
         fos.putInt(nSamples);
-        for (int i = 0; i < data.length; i++) {
-            for (int j = 0; j < data[i].length; j++) {
-                fos.putFloat(data[i][j]);
+        for (int i = 0; i < nSamples; i++) {
+            for (int j = 0; j < nPositions; j++) {
+                fos.putFloat(getValue(i, j));
             }
         }
 
@@ -125,27 +139,25 @@ public class TDFBedTile implements TDFTile {
 
     }
 
-    private void fill(ByteBuffer byteBuffer, int nSamples, TDFTile.Type type) throws IOException {
+    private void fill(ByteBuffer byteBuffer, int nSamples, TDFTile.Type type, boolean view) throws IOException {
 
-        int nPositions = byteBuffer.getInt();
-        start = new int[nPositions];
-        for (int i = 0; i < nPositions; i++) {
-            start[i] = byteBuffer.getInt();
-        }
-        end = new int[nPositions];
-        for (int i = 0; i < nPositions; i++) {
-            end[i] = byteBuffer.getInt();
+        nPositions = byteBuffer.getInt();
+        if (view) {
+            startView = TileFactory.intView(byteBuffer, nPositions);
+            endView = TileFactory.intView(byteBuffer, nPositions);
+        } else {
+            start = TileFactory.getInts(byteBuffer, nPositions);
+            end = TileFactory.getInts(byteBuffer, nPositions);
         }
 
         int nS = byteBuffer.getInt();
         //assert (nS == nSamples);
+        this.nSamples = nS;
 
-        data = new float[nS][nPositions];
-        for (int row = 0; row < nS; row++) {
-            data[row] = new float[nPositions];
-            for (int i = 0; i < nPositions; i++) {
-                data[row][i] = byteBuffer.getFloat();
-            }
+        if (view) {
+            values = TileFactory.floatView(byteBuffer, nS * nPositions);
+        } else {
+            data = TileFactory.getFloats(byteBuffer, nS, nPositions);
         }
 
         // Optionally read feature names
@@ -159,16 +171,19 @@ public class TDFBedTile implements TDFTile {
 
     }
 
+    /**
+     * For view tiles this, {@link #getEnd()} and {@link #getData(int)} copy, prefer the per position accessors
+     */
     public int[] getStart() {
-        return start;
+        return start != null ? start : TileFactory.toArray(startView);
     }
 
     public int[] getEnd() {
-        return end;
+        return end != null ? end : TileFactory.toArray(endView);
     }
 
     public float[] getData(int trackNumber) {
-        return data[trackNumber];
+        return data != null ? data[trackNumber] : TileFactory.getRow(values, trackNumber, nPositions);
     }
 
     public String[] getNames() {
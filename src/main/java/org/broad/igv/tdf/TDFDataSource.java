@@ -42,6 +42,7 @@ import org.broad.igv.prefs.Constants;
 import org.broad.igv.prefs.PreferencesManager;
 import org.broad.igv.track.TrackType;
 import org.broad.igv.track.WindowFunction;
+import org.broad.igv.util.collections.LRUCache;
 
 import java.util.*;
 
@@ -56,7 +57,8 @@ public class TDFDataSource implements CoverageDataSource {
     int maxPrecomputedZoom = 6;
     private int trackNumber = 0;
     String trackName;
-    Map<String, List<LocusScore>> summaryScoreCache = Collections.synchronizedMap(new HashMap<>());
+    // Decoded tiles are cached in TDFTileCache, this holds scores derived from them
+    LRUCache<String, List<LocusScore>> summaryScoreCache = new LRUCache<>(100);
     Genome genome;
     WindowFunction windowFunction = WindowFunction.mean;
     List<WindowFunction> availableFunctions;
@@ -165,7 +167,9 @@ public class TDFDataSource implements CoverageDataSource {
 
     private List<LocusScore> getCachedSummaryScores(String querySeq, int zoom, int tileNumber, double tileWidth) {
 
-        String key = querySeq + "_" + zoom + "_" + tileNumber + "_" + windowFunction;
+        // Percentiles computed with and without the sketch differ, so the setting is part of the key
+        boolean useSketch = PreferencesManager.getPreferences().getAsBoolean(Constants.CHART_PERCENTILE_SKETCH);
+        String key = querySeq + "_" + zoom + "_" + tileNumber + "_" + windowFunction + "_" + useSketch;
 
         List<LocusScore> scores = summaryScoreCache.get(key);
         if (scores == null) {
@@ -332,7 +336,8 @@ public class TDFDataSource implements CoverageDataSource {
                 } else {
 
 
-                    Accumulator accumulator = new Accumulator(windowFunction, 5);
+                    boolean useSketch = PreferencesManager.getPreferences().getAsBoolean(Constants.CHART_PERCENTILE_SKETCH);
+                    Accumulator accumulator = new Accumulator(windowFunction, 5, useSketch);
                     int accumulatedStart = -1;
                     int accumulatedEnd = -1;
                     int lastEndBin = 0;
@@ -341,28 +346,25 @@ public class TDFDataSource implements CoverageDataSource {
                         int size = rawTile.getSize();
                         if (rawTile != null && size > 0) {
 
-                            int[] starts = rawTile.getStart();
-                            int[] ends = rawTile.getEnd();
-                            String[] features = rawTile.getNames();
-                            float[] values = rawTile.getData(trackNumber);
-
+                            // Per position accessors, the array getters copy for view tiles
                             // Loop through and bin scores for this interval.
                             for (int i = 0; i < size; i++) {
 
-                                if (starts[i] >= endLocation) {
+                                int start = rawTile.getStartPosition(i);
+                                if (start >= endLocation) {
                                     break;  // We're beyond the end of the requested interval
                                 }
 
 
-                                int s = Math.max(startLocation, starts[i]);
-                                int e = ends == null ? s + 1 : Math.min(endLocation, ends[i]);
-                                float v = values[i] * normalizationFactor;
+                                int s = Math.max(startLocation, start);
+                                int e = Math.min(endLocation, rawTile.getEndPosition(i));
+                                float v = rawTile.getValue(trackNumber, i) * normalizationFactor;
 
                                 if (e < startLocation || Float.isNaN(v)) {
                                     continue;
                                 }
 
-                                String probeName = features == null ? null : features[i];
+                                String probeName = rawTile.getName(i);
 
                                 // Compute bin numbers, relative to start of this tile
                                 int endBin = (int) ((e - startLocation) / scale);
@@ -372,7 +374,7 @@ public class TDFDataSource implements CoverageDataSource {
                                 if (endBin > lastEndBin || endBin > startBin) {
                                     if (accumulator.hasData()) {
                                         scores.add(getCompositeScore(accumulator, accumulatedStart, accumulatedEnd));
-                                        accumulator = new Accumulator(windowFunction, 5);
+                                        accumulator = new Accumulator(windowFunction, 5, useSketch);
                                     }
                                 }
 
@@ -31,6 +31,7 @@ package org.broad.igv.tdf;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 
 /**
  * @author jrobinso
@@ -40,10 +41,20 @@ public class TDFFixedTile implements TDFTile {
     int tileStart;
     double span;
     int start;
+    int nPositions;
     float[][] data;
+    // Read-only view of nSamples * nPositions values, used in place of data for view tiles
+    FloatBuffer values;
 
     public TDFFixedTile(ByteBuffer byteBuffer, int nSamples) throws IOException {
-        this.fill(byteBuffer, nSamples);
+        this(byteBuffer, nSamples, false);
+    }
+
+    /**
+     * @param view keep a read-only view of the values in {@code byteBuffer} rather than copying them
+     */
+    public TDFFixedTile(ByteBuffer byteBuffer, int nSamples, boolean view) throws IOException {
+        this.fill(byteBuffer, nSamples, view);
     }
 
     public TDFFixedTile(int tileStart, int start, double span, float[][] data) {
@@ -51,6 +62,7 @@ public class TDFFixedTile implements TDFTile {
         this.span = span;
         this.data = data;
         this.start = start;
+        this.nPositions = data == null ? 0 : data[0].length;
     }
 
     public int getTileStart() {
@@ -74,11 +86,11 @@ public class TDFFixedTile implements TDFTile {
     }
 
     public float getValue(int row, int idx) {
-        return data[row][idx];
+        return data != null ? data[row][idx] : values.get(row * nPositions + idx);
     }
 
     public int getSize() {
-        return (data == null ? 0 : data[0].length);
+        return nPositions;
     }
 
 
@@ -90,28 +102,30 @@ public class TDFFixedTile implements TDFTile {
         fos.putInt(getSize());
         fos.putInt(start);
         fos.putFloat((float) span);
-        for (int i = 0; i < data.length; i++) {
-            for (int j = 0; j < data[i].length; j++) {
-                fos.putFloat(data[i][j]);
+        int nSamples = data != null ? data.length : values.capacity() / Math.max(1, nPositions);
+        for (int i = 0; i < nSamples; i++) {
+            for (int j = 0; j < nPositions; j++) {
+                fos.putFloat(getValue(i, j));
             }
         }
 
     }
 
     public void fill(ByteBuffer byteBuffer, int nSamples) throws IOException {
+        fill(byteBuffer, nSamples, false);
+    }
 
-        int nPositions = byteBuffer.getInt();
+    private void fill(ByteBuffer byteBuffer, int nSamples, boolean view) throws IOException {
+
+        nPositions = byteBuffer.getInt();
         start = byteBuffer.getInt();
         span = byteBuffer.getFloat();
 
-        data = new float[nSamples][nPositions];
-        for (int sample = 0; sample < nSamples; sample++) {
-            data[sample] = new float[nPositions];
-            for (int i = 0; i < nPositions; i++) {
-                data[sample][i] = byteBuffer.getFloat();
-            }
+        if (view) {
+            values = TileFactory.floatView(byteBuffer, nSamples * nPositions);
+        } else {
+            data = TileFactory.getFloats(byteBuffer, nSamples, nPositions);
         }
-
     }
 
 
@@ -121,7 +135,7 @@ public class TDFFixedTile implements TDFTile {
      * @return
      */
     public int[] getStart() {
-        int nPts = data[0].length;
+        int nPts = nPositions;
         int[] startArray = new int[nPts];
         for (int i = 0; i < nPts; i++) {
             startArray[i] = start + (int) (i * span);
@@ -130,7 +144,7 @@ public class TDFFixedTile implements TDFTile {
     }
 
     public int[] getEnd() {
-        int nPts = data[0].length;
+        int nPts = nPositions;
         int[] endArray = new int[nPts];
         for (int i = 0; i < nPts; i++) {
             endArray[i] = start + (int) ((i + 1) * span);
@@ -138,8 +152,11 @@ public class TDFFixedTile implements TDFTile {
         return endArray;
     }
 
+    /**
+     * For view tiles this copies the row, prefer {@link #getValue(int, int)}
+     */
     public float[] getData(int trackNumber) {
-        return data[trackNumber];  //To change body of implemented methods use File | Settings | File Templates.
+        return data != null ? data[trackNumber] : TileFactory.getRow(values, trackNumber, nPositions);
     }
 
     public String[] getNames() {
@@ -37,18 +37,30 @@ import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.track.TrackType;
 import org.broad.igv.track.WindowFunction;
 import org.broad.igv.util.CompressionUtils;
+import org.broad.igv.util.FileUtils;
 import org.broad.igv.util.ResourceLocator;
 import org.broad.igv.util.StringUtils;
-import org.broad.igv.util.collections.LRUCache;
+import org.broad.igv.util.collections.ConcurrentLRUCache;
 import org.broad.igv.util.stream.IGVSeekableStreamFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Reader for TDF files.  Reads are not serialized: a local file is read with positional reads on a shared
+ * {@link FileChannel}, other files with a pool of independent seekable streams, so tiles for several tracks or
+ * frames backed by the same file can be fetched and inflated in parallel.
+ *
  * @author jrobinso
  */
 public class TDFReader {
@@ -56,7 +68,17 @@ public class TDFReader {
     static final Logger log = Logger.getLogger(TDFReader.class);
     public static final int GZIP_FLAG = 0x1;
 
-    private SeekableStream seekableStream = null;
+    /**
+     * Maximum number of idle remote streams kept for reuse
+     */
+    static final int MAX_IDLE_STREAMS = 8;
+
+    // Inflaters are not thread safe, give each thread its own
+    private static final ThreadLocal<CompressionUtils> compressionUtils = ThreadLocal.withInitial(CompressionUtils::new);
+
+    private ByteSource byteSource;
+    // Identifies this file, and for local files its version, in the shared tile cache
+    private String cacheKey;
     private int version;
     private Map<String, IndexEntry> datasetIndex;
     private Map<String, IndexEntry> groupIndex;
@@ -64,18 +86,20 @@ public class TDFReader {
     private String trackLine;
     private String[] trackNames;
     private String genomeId;
-    LRUCache<String, TDFGroup> groupCache = new LRUCache(20);
-    LRUCache<String, TDFDataset> datasetCache = new LRUCache(20);
-    TDFTile wgTile;
+    ConcurrentLRUCache<String, TDFGroup> groupCache = new ConcurrentLRUCache<>(20);
+    ConcurrentLRUCache<String, TDFDataset> datasetCache = new ConcurrentLRUCache<>(20);
+    volatile TDFTile wgTile;
 
-    Map<WindowFunction, Double> valueCache = new HashMap();
+    Map<WindowFunction, Double> valueCache = Collections.synchronizedMap(new HashMap<>());
     private List<WindowFunction> windowFunctions;
     ResourceLocator locator;
 
     boolean compressed = false;
 
-    Set<String> chrNames;
-    private final CompressionUtils compressionUtils;
+    // Keep decoded tiles as views of the inflated buffer, see TileFactory
+    boolean tileViews;
+
+    volatile Set<String> chrNames;
 
     //private String path;
 
@@ -92,7 +116,8 @@ public class TDFReader {
         this.locator = locator;
         try {
             log.debug("Getting stream");
-            seekableStream = IGVSeekableStreamFactory.getInstance().getStreamFor(locator.getPath());
+            byteSource = createByteSource(locator.getPath());
+            cacheKey = createCacheKey(locator.getPath());
             log.debug("Reading header");
             readHeader();
             log.debug("Done reading header");
@@ -101,12 +126,30 @@ public class TDFReader {
             log.error("Error loading file: " + locator.getPath(), ex);
             throw new DataLoadException("Error loading file: " + ex.toString(), locator.getPath());
         }
-        compressionUtils = new CompressionUtils();
+    }
+
+    private static ByteSource createByteSource(String path) throws IOException {
+        File file = new File(path);
+        if (!FileUtils.isRemote(path) && !path.endsWith(".list") && file.isFile()) {
+            return new FileChannelSource(file);
+        } else {
+            return new StreamPoolSource(path);
+        }
+    }
+
+    private static String createCacheKey(String path) {
+        File file = new File(path);
+        if (!FileUtils.isRemote(path) && file.isFile()) {
+            // A regenerated file must not be served stale tiles
+            return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+        } else {
+            return path;
+        }
     }
 
     public void close() {
         try {
-            seekableStream.close();
+            byteSource.close();
         } catch (IOException e) {
             log.error("Error closing reader for: " + getPath(), e);
         }
@@ -190,6 +233,9 @@ public class TDFReader {
         }
 
 
+        // With several samples per file each track reads one row of a tile, so decode rows only on access
+        tileViews = trackNames.length > 1;
+
         readMasterIndex(idxPosition, idxByteCount);
 
     }
@@ -243,30 +289,23 @@ public class TDFReader {
         return ds;
     }
 
-    public synchronized TDFDataset getDataset(String name) {
+    public TDFDataset getDataset(String name) {
 
-        if (datasetCache.containsKey(name)) {
-            return datasetCache.get(name);
+        TDFDataset cached = datasetCache.get(name);
+        if (cached != null) {
+            return cached;
         }
 
         try {
-            if (datasetIndex.containsKey(name)) {
-                IndexEntry ie = datasetIndex.get(name);
-                long position = ie.position;
-                int nBytes = ie.nBytes;
-
-                //fis.seek(position);
-                //byte[] buffer = new byte[nBytes];
-                //readFully(buffer);
-                byte[] buffer = readBytes(position, nBytes);
+            IndexEntry ie = datasetIndex.get(name);
+            if (ie != null) {
+                byte[] buffer = readBytes(ie.position, ie.nBytes);
                 ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
                 byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
-                TDFDataset ds = new TDFDataset(name, byteBuffer, this);
-                datasetCache.put(name, ds);
-                return ds;
+                // If another thread read the same dataset first use its copy, tiles are cached per dataset
+                return datasetCache.cacheIfAbsent(name, new TDFDataset(name, byteBuffer, this));
             } else {
-                datasetCache.put(name, null);
                 return null;
             }
 
@@ -284,9 +323,10 @@ public class TDFReader {
         return groupIndex.keySet();
     }
 
-    public synchronized TDFGroup getGroup(String name) {
-        if (groupCache.containsKey(name)) {
-            return groupCache.get(name);
+    public TDFGroup getGroup(String name) {
+        TDFGroup cached = groupCache.get(name);
+        if (cached != null) {
+            return cached;
         }
 
         try {
@@ -294,18 +334,11 @@ public class TDFReader {
             long position = ie.position;
             int nBytes = ie.nBytes;
 
-            //fis.seek(position);
-            //byte[] buffer = new byte[nBytes];
-            //readFully(buffer);
             byte[] buffer = readBytes(position, nBytes);
             ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
             byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
-            TDFGroup group = new TDFGroup(name, byteBuffer);
-
-            groupCache.put(name, group);
-
-            return group;
+            return groupCache.cacheIfAbsent(name, new TDFGroup(name, byteBuffer));
 
         } catch (IOException ex) {
             log.error("Error reading group: " + name, ex);
@@ -313,8 +346,33 @@ public class TDFReader {
         }
     }
 
+    /**
+     * Return a tile, from the shared {@link TDFTileCache} if possible, otherwise reading it and adding it to the cache.
+     */
+    public TDFTile getTile(TDFDataset ds, int tileNumber) {
+        TDFTileCache cache = TDFTileCache.getInstance();
+        TDFTile tile = cache.get(cacheKey, ds.getName(), tileNumber);
+        if (tile == null) {
+            tile = readTile(ds, tileNumber);
+            if (tile != null) {
+                cache.put(cacheKey, ds.getName(), tileNumber, tile, trackNames.length);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Remove the tiles of a dataset from the shared cache
+     */
+    void clearTiles(TDFDataset ds) {
+        TDFTileCache.getInstance().remove(cacheKey, ds.getName());
+    }
+
     // TODO -- move to dataset class
 
+    /**
+     * Read and decode a tile, bypassing the cache
+     */
     public TDFTile readTile(TDFDataset ds, int tileNumber) {
 
         try {
@@ -337,11 +395,11 @@ public class TDFReader {
             //readFully(buffer);
             byte[] buffer = readBytes(position, nBytes);
             if (compressed) {
-                buffer = compressionUtils.decompress(buffer);
+                buffer = compressionUtils.get().decompress(buffer);
 
             }
 
-            return TileFactory.createTile(buffer, trackNames.length);
+            return TileFactory.createTile(ByteBuffer.wrap(buffer), trackNames.length, tileViews);
         } catch (IOException ex) {
             String tileName = ds.getName() + "[" + tileNumber + "]";
             log.error("Error reading data tile: " + tileName, ex);
@@ -432,11 +490,11 @@ public class TDFReader {
     }
 
 
-    public synchronized byte[] readBytes(long position, int nBytes) throws IOException {
-        seekableStream.seek(position);
-        byte[] buffer = new byte[nBytes];
-        int read = seekableStream.read(buffer, 0, nBytes);
-        return buffer;
+    /**
+     * Read {@code nBytes} starting at {@code position}.  Safe to call from multiple threads concurrently.
+     */
+    public byte[] readBytes(long position, int nBytes) throws IOException {
+        return byteSource.read(position, nBytes);
     }
 
     /**
@@ -456,14 +514,15 @@ public class TDFReader {
     public Set<String> getChromosomeNames() {
         if (chrNames == null) {
             ///DatasetIndex /chr1/z0/mean=org.broad.igv.tdf.TDFReader$IndexEntry@6a493b65
-            chrNames = new HashSet();
+            Set<String> names = new HashSet<>();
             for (String key : datasetIndex.keySet()) {
                 String[] tokens = Globals.forwardSlashPattern.split(key);
                 int nTokens = tokens.length;
                 if (nTokens > 1) {
-                    chrNames.add(tokens[1]);
+                    names.add(tokens[1]);
                 }
             }
+            chrNames = names;
         }
         return chrNames;
     }
@@ -503,6 +562,7 @@ public class TDFReader {
 
     public TDFTile getWholeGenomeTile(Genome genome, WindowFunction wf) {
 
+        TDFTile wgTile = this.wgTile;
         if (wgTile == null) {
 
             int binCount = 700;
@@ -518,13 +578,11 @@ public class TDFReader {
                 List<TDFTile> chrTiles = chrDataset.getTiles();
                 chrDataset.clearCache(); // Don't cache these
                 for (TDFTile t : chrTiles) {
-                    int[] chrStart = t.getStart();
-                    int[] chrEnd = t.getEnd();
 
-                    for (int p = 0; p < chrStart.length; p++) {
+                    for (int p = 0; p < t.getSize(); p++) {
 
-                        int gStart = genome.getGenomeCoordinate(chrName, chrStart[p]);
-                        int gEnd = genome.getGenomeCoordinate(chrName, chrEnd[p]);
+                        int gStart = genome.getGenomeCoordinate(chrName, t.getStartPosition(p));
+                        int gEnd = genome.getGenomeCoordinate(chrName, t.getEndPosition(p));
 
                         int binStart = (int) (gStart / binSize);
                         int binEnd = Math.min(binCount - 1, (int) (gEnd / binSize));
@@ -539,7 +597,7 @@ public class TDFReader {
                                 }
 
                                 int basesCovered = Math.min(gEnd, binEnd) - Math.max(gStart, binStart);
-                                acc.add(basesCovered, t.getData(n)[p], null);
+                                acc.add(basesCovered, t.getValue(n, p), null);
                             }
                         }
                     }
@@ -562,8 +620,151 @@ public class TDFReader {
 
             //    public TDFFixedTile(int tileStart, int start, double span, float[][] data) {
             wgTile = new TDFFixedTile(0, 0, binSize, data);
-
+            this.wgTile = wgTile;
         }
         return wgTile;
     }
+
+    /**
+     * Source of file bytes that supports concurrent positional reads
+     */
+    interface ByteSource {
+
+        /**
+         * Read up to {@code nBytes} starting at {@code position}.  The array is {@code nBytes} long; if the end of
+         * the file is reached first the remainder is zero.
+         */
+        byte[] read(long position, int nBytes) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Local files.  Positional reads on a FileChannel do not move the channel's position and may proceed
+     * concurrently.
+     */
+    static class FileChannelSource implements ByteSource {
+
+        private final File file;
+        private volatile FileChannel channel;
+        private volatile boolean closed = false;
+
+        FileChannelSource(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        public byte[] read(long position, int nBytes) throws IOException {
+            while (true) {
+                FileChannel ch = channel;
+                try {
+                    byte[] bytes = new byte[nBytes];
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while (buffer.hasRemaining()) {
+                        int n = ch.read(buffer, position + buffer.position());
+                        if (n < 0) {
+                            break;
+                        }
+                    }
+                    return bytes;
+                } catch (ClosedChannelException e) {
+                    // Interrupting any reading thread closes the channel for all of them.  Reopen it, and retry
+                    // unless this thread was the one interrupted.
+                    if (closed) {
+                        throw e;
+                    }
+                    reopen(ch);
+                    if (e instanceof ClosedByInterruptException) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private synchronized void reopen(FileChannel failed) throws IOException {
+            if (!closed && channel == failed) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Remote and other non-file sources.  Each read borrows its own stream, so concurrent reads issue independent
+     * range requests rather than queueing on one stream.  Up to MAX_IDLE_STREAMS streams are kept for reuse.
+     */
+    static class StreamPoolSource implements ByteSource {
+
+        private final String path;
+        private final ConcurrentLinkedQueue<SeekableStream> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private volatile boolean closed = false;
+
+        StreamPoolSource(String path) throws IOException {
+            this.path = path;
+            release(IGVSeekableStreamFactory.getInstance().getStreamFor(path));
+        }
+
+        public byte[] read(long position, int nBytes) throws IOException {
+            SeekableStream stream = acquire();
+            boolean ok = false;
+            try {
+                stream.seek(position);
+                byte[] buffer = new byte[nBytes];
+                int offset = 0;
+                while (offset < nBytes) {
+                    int n = stream.read(buffer, offset, nBytes - offset);
+                    if (n <= 0) {
+                        break;
+                    }
+                    offset += n;
+                }
+                ok = true;
+                return buffer;
+            } finally {
+                if (ok) {
+                    release(stream);
+                } else {
+                    // State of the stream is unknown after an error
+                    stream.close();
+                }
+            }
+        }
+
+        private SeekableStream acquire() throws IOException {
+            SeekableStream stream = idle.poll();
+            if (stream != null) {
+                idleCount.decrementAndGet();
+                return stream;
+            }
+            return IGVSeekableStreamFactory.getInstance().getStreamFor(path);
+        }
+
+        private void release(SeekableStream stream) throws IOException {
+            if (!closed && idleCount.incrementAndGet() <= MAX_IDLE_STREAMS) {
+                idle.offer(stream);
+                if (closed && idle.remove(stream)) {
+                    // Raced with close()
+                    idleCount.decrementAndGet();
+                    stream.close();
+                }
+            } else {
+                idleCount.decrementAndGet();
+                stream.close();
+            }
+        }
+
+        public void close() throws IOException {
+            closed = true;
+            SeekableStream stream;
+            while ((stream = idle.poll()) != null) {
+                idleCount.decrementAndGet();
+                stream.close();
+            }
+        }
+    }
 }
\ No newline at end of file
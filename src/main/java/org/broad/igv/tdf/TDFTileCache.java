@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.tdf;
+
+import org.broad.igv.prefs.PreferencesManager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.broad.igv.prefs.Constants.TDF_TILE_CACHE_SIZE;
+
+/**
+ * Process-wide cache of decoded TDF tiles, shared by all readers.  Entries are keyed by file, dataset and tile
+ * number and evicted least recently used first when their estimated size exceeds TDF.TILE_CACHE_SIZE (MB).
+ * <p/>
+ * Lookups and insertions hold the cache lock only briefly; tiles are read and inflated outside it, so two threads
+ * missing on the same tile may both read it.
+ */
+public class TDFTileCache {
+
+    private static TDFTileCache instance;
+
+    // Access ordered, eldest first
+    private final LinkedHashMap<Key, Entry> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private final long budget;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public static synchronized TDFTileCache getInstance() {
+        if (instance == null) {
+            instance = new TDFTileCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @param budget maximum estimated bytes held, or -1 to follow the TDF.TILE_CACHE_SIZE preference
+     */
+    TDFTileCache(long budget) {
+        this.budget = budget;
+    }
+
+    private TDFTileCache() {
+        this(-1);
+    }
+
+    /**
+     * @return the cached tile, or null if it is not in the cache
+     */
+    public TDFTile get(String file, String dataset, int tileNumber) {
+        Entry e;
+        synchronized (this) {
+            e = tiles.get(new Key(file, dataset, tileNumber));
+        }
+        if (e == null) {
+            missCount.incrementAndGet();
+            return null;
+        } else {
+            hitCount.incrementAndGet();
+            return e.tile;
+        }
+    }
+
+    public void put(String file, String dataset, int tileNumber, TDFTile tile, int nTracks) {
+        long budget = getBudget();
+        Entry entry = new Entry(tile, estimateBytes(tile, nTracks));
+        if (entry.bytes > budget) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = tiles.put(new Key(file, dataset, tileNumber), entry);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += entry.bytes;
+            trim(budget);
+        }
+    }
+
+    /**
+     * Remove all tiles of a dataset
+     */
+    public synchronized void remove(String file, String dataset) {
+        Iterator<Map.Entry<Key, Entry>> iter = tiles.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key, Entry> e = iter.next();
+            if (e.getKey().file.equals(file) && e.getKey().dataset.equals(dataset)) {
+                bytes -= e.getValue().bytes;
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    private void trim(long budget) {
+        Iterator<Entry> iter = tiles.values().iterator();
+        while (bytes > budget && iter.hasNext()) {
+            Entry eldest = iter.next();
+            bytes -= eldest.bytes;
+            iter.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private long getBudget() {
+        return budget >= 0 ? budget :
+                (long) PreferencesManager.getPreferences().getAsInt(TDF_TILE_CACHE_SIZE) * 1000000;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return fraction of lookups served from the cache
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long n = hits + missCount.get();
+        return n == 0 ? 0 : ((double) hits) / n;
+    }
+
+    /**
+     * @return estimated bytes held by cached tiles
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+
+    /**
+     * Rough heap footprint of a decoded tile
+     */
+    static long estimateBytes(TDFTile tile, int nTracks) {
+        long n = tile.getSize();
+        long size = 64 + n * 4 * nTracks + nTracks * 16;
+        if (tile instanceof TDFVaryTile) {
+            size += n * 4;
+        } else if (tile instanceof TDFBedTile) {
+            size += n * 8;
+            String[] names = tile.getNames();
+            if (names != null) {
+                for (String name : names) {
+                    size += name == null ? 8 : 48 + 2 * name.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static class Key {
+        final String file;
+        final String dataset;
+        final int tileNumber;
+
+        Key(String file, String dataset, int tileNumber) {
+            this.file = file;
+            this.dataset = dataset;
+            this.tileNumber = tileNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return tileNumber == key.tileNumber && file.equals(key.file) && dataset.equals(key.dataset);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, dataset, tileNumber);
+        }
+    }
+
+    private static class Entry {
+        final TDFTile tile;
+        final long bytes;
+
+        Entry(TDFTile tile, long bytes) {
+            this.tile = tile;
+            this.bytes = bytes;
+        }
+    }
+}
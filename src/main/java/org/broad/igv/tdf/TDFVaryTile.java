@@ -31,6 +31,8 @@ package org.broad.igv.tdf;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 /**
  * @author jrobinso
@@ -39,11 +41,22 @@ public class TDFVaryTile implements TDFTile {
 
     int tileStart;
     double span;
+    int nPositions;
     int[] start;
     float[][] data;
+    // Read-only views used in place of start and data for view tiles
+    IntBuffer startView;
+    FloatBuffer values;
 
     public TDFVaryTile(ByteBuffer byteBuffer, int nSamples) throws IOException {
-        this.fill(byteBuffer, nSamples);
+        this(byteBuffer, nSamples, false);
+    }
+
+    /**
+     * @param view keep read-only views of the starts and values in {@code byteBuffer} rather than copying them
+     */
+    public TDFVaryTile(ByteBuffer byteBuffer, int nSamples, boolean view) throws IOException {
+        this.fill(byteBuffer, nSamples, view);
     }
 
     public TDFVaryTile(int tileStart, double span, int[] start, float[][] data) {
@@ -51,11 +64,12 @@ public class TDFVaryTile implements TDFTile {
         this.span = span;
         this.start = start;
         this.data = data;
+        this.nPositions = start.length;
     }
 
 
     public int getSize() {
-        return start.length;
+        return nPositions;
     }
 
     public int getTileStart() {
@@ -63,11 +77,11 @@ public class TDFVaryTile implements TDFTile {
     }
 
     public int getStartPosition(int idx) {
-        return start[idx];
+        return start != null ? start[idx] : startView.get(idx);
     }
 
     public int getEndPosition(int idx) {
-        return (int) (start[idx] + span);
+        return (int) (getStartPosition(idx) + span);
     }
 
     public String getName(int idx) {
@@ -75,7 +89,7 @@ public class TDFVaryTile implements TDFTile {
     }
 
     public float getValue(int row, int idx) {
-        return data[row][idx];
+        return data != null ? data[row][idx] : values.get(row * nPositions + idx);
     }
 
     public void writeTo(BufferedByteWriter fos) throws IOException {
@@ -86,62 +100,66 @@ public class TDFVaryTile implements TDFTile {
         fos.putInt(tileStart);
         fos.putFloat((float) span);
 
-        int nPositions = start.length;
-        int nSamples = data.length;
+        int nSamples = data != null ? data.length : values.capacity() / Math.max(1, nPositions);
 
         fos.putInt(nPositions);
 
         for (int i = 0; i < nPositions; i++) {
-            fos.putInt(start[i]);
+            fos.putInt(getStartPosition(i));
         }
 
         fos.putInt(nSamples);
-        for (int i = 0; i < data.length; i++) {
-            for (int j = 0; j < data[i].length; j++) {
-                fos.putFloat(data[i][j]);
+        for (int i = 0; i < nSamples; i++) {
+            for (int j = 0; j < nPositions; j++) {
+                fos.putFloat(getValue(i, j));
             }
         }
     }
 
     public void fill(ByteBuffer byteBuffer, int nSamples) throws IOException {
+        fill(byteBuffer, nSamples, false);
+    }
+
+    private void fill(ByteBuffer byteBuffer, int nSamples, boolean view) throws IOException {
 
         tileStart = byteBuffer.getInt();
         span = byteBuffer.getFloat();
 
-        int nPositions = byteBuffer.getInt();
-        start = new int[nPositions];
-        for (int i = 0; i < nPositions; i++) {
-            start[i] = byteBuffer.getInt();
+        nPositions = byteBuffer.getInt();
+        if (view) {
+            startView = TileFactory.intView(byteBuffer, nPositions);
+        } else {
+            start = TileFactory.getInts(byteBuffer, nPositions);
         }
 
         int nS = byteBuffer.getInt();
         assert (nS == nSamples);
 
-        data = new float[nS][nPositions];
-        for (int row = 0; row < nS; row++) {
-            data[row] = new float[nPositions];
-            for (int i = 0; i < nPositions; i++) {
-                data[row][i] = byteBuffer.getFloat();
-            }
+        if (view) {
+            values = TileFactory.floatView(byteBuffer, nS * nPositions);
+        } else {
+            data = TileFactory.getFloats(byteBuffer, nS, nPositions);
         }
-
     }
 
 
+    /**
+     * For view tiles this and {@link #getData(int)} copy, prefer the per position accessors
+     */
     public int[] getStart() {
-        return start;
+        return start != null ? start : TileFactory.toArray(startView);
     }
 
     public int[] getEnd() {
-        int [] end = new int[start.length];
+        int [] end = new int[nPositions];
         for(int i=0; i<end.length; i++) {
-            end[i] = (int) (start[i] + span);
+            end[i] = (int) (getStartPosition(i) + span);
         }
         return end;
     }
 
     public float[] getData(int trackNumber) {
-        return data[trackNumber];  //To change body of implemented methods use File | Settings | File Templates.
+        return data != null ? data[trackNumber] : TileFactory.getRow(values, trackNumber, nPositions);
     }
 
     public String[] getNames() {
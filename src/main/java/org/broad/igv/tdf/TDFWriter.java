@@ -66,7 +66,9 @@ public class TDFWriter {
     Map<String, IndexEntry> groupIndex = new LinkedHashMap();
     long indexPositionPosition;
     boolean compressed;
-    private final CompressionUtils compressionUtils;
+
+    // Deflaters are not thread safe, tiles may be encoded on several threads
+    private static final ThreadLocal<CompressionUtils> compressionUtils = ThreadLocal.withInitial(CompressionUtils::new);
 
     public TDFWriter(File f,
                      String genomeId,
@@ -101,8 +103,6 @@ public class TDFWriter {
             log.error("Error opening output stream to file: " + file, ex);
             throw new DataLoadException("Error creating file", "" + file);
         }
-
-        compressionUtils = new CompressionUtils();
     }
 
     private void writeHeader(String genomeId,
@@ -244,26 +244,8 @@ public class TDFWriter {
             throw new java.lang.NoSuchFieldError("Dataset: " + dsId + " doese not exist.  " +
                     "Call createDataset first");
         }
-        long pos = bytesWritten;
-
         if (tileNumber < dataset.tilePositions.length) {
-            dataset.tilePositions[tileNumber] = pos;
-
-            // Write the tile contents to a byte buffer first,  so we can optionally gzip it
-
-
-            BufferedByteWriter buffer = new BufferedByteWriter();
-            tile.writeTo(buffer);
-
-            byte[] bytes = buffer.getBytes();
-            if (compressed) {
-                bytes = compressionUtils.compress(bytes);
-            }
-
-            write(bytes);
-            int nBytes = bytes.length;
-
-            dataset.tileSizes[tileNumber] = nBytes;
+            writeEncodedTile(dataset, tileNumber, encodeTile(tile));
         } else {
             // The occasional tile number == tile array size is expected, but tile
             // numbers larger than that are not
@@ -275,6 +257,35 @@ public class TDFWriter {
 
     }
 
+    /**
+     * Serialize, and optionally compress, a tile for {@link #writeEncodedTile}.  Safe to call from multiple threads
+     * concurrently.
+     */
+    public byte[] encodeTile(TDFTile tile) throws IOException {
+
+        // Write the tile contents to a byte buffer first,  so we can optionally gzip it
+        BufferedByteWriter buffer = new BufferedByteWriter();
+        tile.writeTo(buffer);
+
+        byte[] bytes = buffer.getBytes();
+        if (compressed) {
+            bytes = compressionUtils.get().compress(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Append a tile encoded by {@link #encodeTile} and record its position in the dataset.  Tile numbers past the
+     * end of the dataset are ignored, as in {@link #writeTile}.
+     */
+    public void writeEncodedTile(TDFDataset dataset, int tileNumber, byte[] bytes) throws IOException {
+        if (tileNumber < dataset.tilePositions.length) {
+            dataset.tilePositions[tileNumber] = bytesWritten;
+            write(bytes);
+            dataset.tileSizes[tileNumber] = bytes.length;
+        }
+    }
+
     private void writeGroups() throws IOException {
         for (TDFGroup group : groupCache.values()) {
             long position = bytesWritten;
@@ -32,19 +32,34 @@ package org.broad.igv.tdf;
 
 import org.broad.igv.util.StringUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 /**
+ * Decodes serialized tiles.  Starts, ends and values are bulk copied from little-endian views of the buffer, or
+ * optionally not copied at all: a "view" tile keeps read-only views of the buffer and decodes values on access,
+ * which for multi-sample files avoids decoding the rows of every sample not being drawn.
+ *
  * @author jrobinso
  */
 public class TileFactory {
 
     public static TDFTile createTile(byte[] buffer, int nSamples) throws IOException {
+        return createTile(ByteBuffer.wrap(buffer), nSamples, false);
+    }
+
+    /**
+     * @param byteBuffer serialized tile, heap or direct.  Read from its position; the byte order is set to
+     *                   little-endian.
+     * @param view       if true the tile keeps read-only views of {@code byteBuffer} rather than copies.  The buffer
+     *                   contents must not be modified afterwards.
+     */
+    public static TDFTile createTile(ByteBuffer byteBuffer, int nSamples, boolean view) throws IOException {
 
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
         byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
         String typeString = StringUtils.readString(byteBuffer);
@@ -52,16 +67,71 @@ public class TileFactory {
 
         switch (type) {
             case fixedStep:
-                return new TDFFixedTile(byteBuffer, nSamples);
+                return new TDFFixedTile(byteBuffer, nSamples, view);
             case variableStep:
-                return new TDFVaryTile(byteBuffer, nSamples);
+                return new TDFVaryTile(byteBuffer, nSamples, view);
             case bed:
             case bedWithName:
-                return new TDFBedTile(byteBuffer, nSamples, type);
+                return new TDFBedTile(byteBuffer, nSamples, type, view);
             default:
                 throw new RuntimeException("Unknown tile type: " + type.toString());
         }
     }
 
+    static int[] getInts(ByteBuffer byteBuffer, int n) {
+        int[] values = new int[n];
+        byteBuffer.asIntBuffer().get(values);
+        byteBuffer.position(byteBuffer.position() + 4 * n);
+        return values;
+    }
+
+    static float[][] getFloats(ByteBuffer byteBuffer, int nRows, int n) {
+        float[][] values = new float[nRows][];
+        FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
+        for (int row = 0; row < nRows; row++) {
+            values[row] = new float[n];
+            floatBuffer.get(values[row]);
+        }
+        byteBuffer.position(byteBuffer.position() + 4 * nRows * n);
+        return values;
+    }
+
+    static IntBuffer intView(ByteBuffer byteBuffer, int n) {
+        IntBuffer view = slice(byteBuffer, 4 * n).asIntBuffer();
+        return view.asReadOnlyBuffer();
+    }
 
+    static FloatBuffer floatView(ByteBuffer byteBuffer, int n) {
+        FloatBuffer view = slice(byteBuffer, 4 * n).asFloatBuffer();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy a row out of a view of {@code nRows * n} floats
+     */
+    static float[] getRow(FloatBuffer values, int row, int n) {
+        float[] data = new float[n];
+        FloatBuffer dup = values.duplicate();
+        dup.position(row * n);
+        dup.get(data);
+        return data;
+    }
+
+    static int[] toArray(IntBuffer values) {
+        int[] data = new int[values.capacity()];
+        values.duplicate().get(data);
+        return data;
+    }
+
+    private static ByteBuffer slice(ByteBuffer byteBuffer, int nBytes) {
+        if (byteBuffer.remaining() < nBytes) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = byteBuffer.slice();
+        slice.limit(nBytes);
+        // A slice is always big-endian
+        slice.order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.position(byteBuffer.position() + nBytes);
+        return slice;
+    }
 }
@@ -34,14 +34,18 @@ import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.sam.*;
 import org.broad.igv.sam.reader.AlignmentReader;
 import org.broad.igv.sam.reader.AlignmentReaderFactory;
+import org.broad.igv.sam.reader.BAMReader;
 import org.broad.igv.tools.parsers.DataConsumer;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class to compute coverage on an alignment or feature file.  This class is designed to be instantiated and executed
- * from a single thread.
+ * from a single thread, although it can use several threads internally (see {@link #setThreads(int)}).
  */
 public class CoverageCounter {
 
@@ -148,23 +152,39 @@ public class CoverageCounter {
     private Locus queryInterval;
 
     /**
-     * Data buffer to pass data to the "consumer" (preprocessor).
+     * Number of data columns passed to the "consumer" (preprocessor).
      */
-    private float[] buffer;
+    private int columnCount;
+
+    /**
+     * Number of threads used to count an indexed file.  If 1 the file is counted in a single pass.
+     */
+    private int threads = 1;
 
-    private final static Set<Byte> nucleotidesKeep = new HashSet<Byte>();
     public static final byte DEL = 126;
     public static final byte INS = 127;
     private final static byte[] nucleotides = new byte[]{'A', 'C', 'G', 'T', 'N', DEL, INS};
 
+    /**
+     * Index of each base in the per-window base counts.  Bases other than the above share the last index.
+     */
+    private final static byte[] baseIndex = new byte[256];
+    private final static int BASE_SLOTS = nucleotides.length + 1;
+
+    /**
+     * Minimum number of windows held by a {@link ReadCounter}
+     */
+    private final static int MIN_WINDOW_SLOTS = 64;
+
     /**
      * Whether to write wig data to standard out (stdout)
      */
     private boolean writeStdOut;
 
     static {
-        for (byte b : nucleotides) {
-            nucleotidesKeep.add(b);
+        Arrays.fill(baseIndex, (byte) nucleotides.length);
+        for (int i = 0; i < nucleotides.length; i++) {
+            baseIndex[nucleotides[i]] = (byte) i;
         }
     }
 
@@ -202,7 +222,7 @@ public class CoverageCounter {
         int multiplier = outputBases ? nucleotides.length : 1;
         int datacols = (outputSeparate ? 2 : 1) * multiplier;
 
-        buffer = new float[datacols];
+        columnCount = datacols;
     }
 
     public void setPreExtFactor(int preExtFactor) {
@@ -213,6 +233,13 @@ public class CoverageCounter {
         this.postExtFactor = postExtFactor;
     }
 
+    /**
+     * Set the number of threads used to count an indexed BAM or CRAM file.  Chromosomes are counted in parallel.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
     /**
      * Take additional optional command line arguments and parse them
      *
@@ -272,7 +299,8 @@ public class CoverageCounter {
     /**
      * Parse and "count" the alignment file.  The main method.
      * <p/>
-     * This method is not thread safe due to the use of the member variable "buffer".
+     * If more than one thread is set (see {@link #setThreads(int)}) and the file is an indexed BAM or CRAM file, each
+     * chromosome is counted independently.  Otherwise the file is counted in a single pass.
      *
      * @throws IOException
      */
@@ -283,16 +311,23 @@ public class CoverageCounter {
         int tolerance = (int) (windowSize * (Math.floor(maxExtFactor / windowSize) + 2));
         consumer.setSortTolerance(tolerance);
 
+        if (threads > 1 && queryInterval == null) {
+            AlignmentReader reader = AlignmentReaderFactory.getReader(alignmentFile, false);
+            if (reader instanceof BAMReader && reader.hasIndex()) {
+                parseParallel(reader, tolerance);
+                return;
+            }
+            reader.close();
+        }
+
         AlignmentReader reader = null;
         CloseableIterator<Alignment> iter = null;
 
-        String lastChr = "";
-        ReadCounter counter = null;
-
         WigWriter wigWriter = null;
         if (wigFile != null || writeStdOut) {
             wigWriter = new WigWriter(wigFile, windowSize);
         }
+        CountingPass pass = new CountingPass(createOutput(wigWriter), tolerance);
 
         try {
 
@@ -305,179 +340,388 @@ public class CoverageCounter {
             }
 
             while (iter != null && iter.hasNext()) {
-                Alignment alignment = iter.next();
-                if (passFilter(alignment)) {
-                    //Sort into the read strand or first-in-pair strand,
-                    //depending on input flag. Note that this can
-                    //be very unreliable depending on data
-                    Strand strand;
-                    if (firstInPair) {
-                        strand = alignment.getFirstOfPairStrand();
-                    } else if (secondInPair) {
-                        strand = alignment.getSecondOfPairStrand();
-                    } else {
-                        strand = alignment.getReadStrand();
-                    }
-                    if (strand.equals(Strand.NONE)) {
-                        //TODO move this into passFilter, or move passFilter here
-                        continue;
-                    }
-                    boolean readNegStrand = alignment.isNegativeStrand();
+                pass.add(iter.next());
+            }
+            totalCount = pass.count;
+            consumer.setAttribute("totalCount", String.valueOf(totalCount));
+            consumer.parsingComplete();
 
-                    totalCount++;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
 
-                    String alignmentChr = alignment.getChr();
+            pass.close();
+            if (iter != null) {
+                iter.close();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+            if (wigWriter != null) {
+                wigWriter.close();
+            }
 
-                    // Close all counters with position < alignment.getStart()
-                    if (alignmentChr.equals(lastChr)) {
-                        if (counter != null) {
-                            counter.closeBucketsBefore(alignment.getAlignmentStart() - tolerance, wigWriter);
-                        }
-                    } else {  // New chromosome
-                        if (counter != null) {
-                            counter.closeBucketsBefore(Integer.MAX_VALUE, wigWriter);
-                        }
-                        counter = new ReadCounter(alignmentChr);
-                        lastChr = alignmentChr;
+        }
+    }
+
+    /**
+     * Count each chromosome of an indexed file on its own thread.  Closed buckets are spilled to a temporary file per
+     * chromosome, and the files are replayed to the consumer in the order of the file's sequence dictionary, which
+     * for a sorted file is the order a single pass would produce them.  The output is therefore identical.
+     */
+    private void parseParallel(AlignmentReader reader, int tolerance) throws IOException {
+
+        WigWriter wigWriter = null;
+        ExecutorService executor = null;
+        List<Future<Partition>> futures = new ArrayList<>();
+
+        try {
+            if (wigFile != null || writeStdOut) {
+                wigWriter = new WigWriter(wigFile, windowSize);
+            }
+            BucketOutput output = createOutput(wigWriter);
+
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "igvtools-count");
+                t.setDaemon(true);
+                return t;
+            });
+
+            Map<String, Long> dictionary = reader.getSequenceDictionary();
+            for (String chr : (List<String>) reader.getSequenceNames()) {
+                Long length = dictionary == null ? null : dictionary.get(chr);
+                int end = length == null ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, length);
+                futures.add(executor.submit(() -> countPartition(reader, chr, end, tolerance)));
+            }
+
+            for (Future<Partition> future : futures) {
+                Partition partition = future.get();
+                totalCount += partition.count;
+                partition.replay(output);
+            }
+
+            consumer.setAttribute("totalCount", String.valueOf(totalCount));
+            consumer.parsingComplete();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (Future<Partition> future : futures) {
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        future.get().delete();
+                    } catch (Exception e) {
+                        // Reported above
                     }
+                }
+            }
+            reader.close();
+            if (wigWriter != null) {
+                wigWriter.close();
+            }
+        }
+    }
 
-                    AlignmentBlock[] blocks = alignment.getAlignmentBlocks();
+    private Partition countPartition(AlignmentReader reader, String chr, int end, int tolerance) throws IOException {
 
-                    if (blocks != null && !pairedCoverage) {
-                        for (AlignmentBlock block : blocks) {
+        Partition partition = new Partition();
+        CloseableIterator<Alignment> iter = null;
+        try {
+            iter = reader.query(chr, 0, end, false);
+            CountingPass pass = new CountingPass(partition, tolerance);
+            while (iter.hasNext()) {
+                pass.add(iter.next());
+            }
+            pass.close();
+            partition.count = pass.count;
+            partition.finish();
+            return partition;
+        } catch (IOException | RuntimeException e) {
+            partition.delete();
+            throw e;
+        } finally {
+            if (iter != null) {
+                iter.close();
+            }
+        }
+    }
 
-                            if (!block.isSoftClip()) {
+    private BucketOutput createOutput(WigWriter wigWriter) {
+        return (chr, start, end, data) -> {
+            consumer.addData(chr, start, end, data, null);
+            if (wigWriter != null) {
+                wigWriter.addData(chr, start, end, data);
+            }
+        };
+    }
 
-                                int blockStart = block.getStart();
-                                int blockEnd = block.getEnd();
+    /**
+     * Filter and count alignments from a single sorted stream.  A new {@link ReadCounter} is started at each change of
+     * chromosome, closed buckets are passed to the output.
+     */
+    private class CountingPass {
 
+        final BucketOutput output;
+        final int tolerance;
+        String lastChr = "";
+        ReadCounter counter = null;
+        int count = 0;
 
-                                int adjustedStart = block.getStart();
-                                int adjustedEnd = block.getEnd();
+        CountingPass(BucketOutput output, int tolerance) {
+            this.output = output;
+            this.tolerance = tolerance;
+        }
 
+        void add(Alignment alignment) throws IOException {
 
-                                if (preExtFactor > 0) {
-                                    if (readNegStrand) {
-                                        adjustedEnd = blockEnd + preExtFactor;
-                                    } else {
-                                        adjustedStart = Math.max(0, blockStart - preExtFactor);
-                                    }
-                                }
+            if (!passFilter(alignment)) {
+                return;
+            }
 
-                                // If both postExtFactor and extFactor are specified, postExtFactor takes precedence
-                                if (postExtFactor > 0) {
-                                    if (readNegStrand) {
-                                        adjustedStart = Math.max(0, blockEnd - postExtFactor);
-                                    } else {
-                                        adjustedEnd = blockStart + postExtFactor;
-                                    }
-
-                                } else if (extFactor > 0) {
-                                    // Standard extension option -- extend read on 3' end
-                                    if (readNegStrand) {
-                                        adjustedStart = Math.max(0, adjustedStart - extFactor);
-                                    } else {
-                                        adjustedEnd += extFactor;
-                                    }
-                                }
+            //Sort into the read strand or first-in-pair strand,
+            //depending on input flag. Note that this can
+            //be very unreliable depending on data
+            Strand strand;
+            if (firstInPair) {
+                strand = alignment.getFirstOfPairStrand();
+            } else if (secondInPair) {
+                strand = alignment.getSecondOfPairStrand();
+            } else {
+                strand = alignment.getReadStrand();
+            }
+            if (strand.equals(Strand.NONE)) {
+                //TODO move this into passFilter, or move passFilter here
+                return;
+            }
+            boolean readNegStrand = alignment.isNegativeStrand();
 
+            count++;
 
-                                if (queryInterval != null) {
-                                    adjustedStart = Math.max(queryInterval.getStart() - 1, adjustedStart);
-                                    adjustedEnd = Math.min(queryInterval.getEnd(), adjustedEnd);
-                                }
+            String alignmentChr = alignment.getChr();
 
-                                ByteSubarray bases = block.getBases();
-                                if(bases != null) {
-                                    for (int pos = adjustedStart; pos < adjustedEnd; pos++) {
-                                        byte base = 0;
-                                        int baseIdx = pos - blockStart;
-                                        if (bases != null && baseIdx >= 0 && baseIdx < bases.length) {
-                                            base = bases.getByte(baseIdx);
-                                        }
-                                        //int idx = pos - blockStart;
-                                        //byte quality = (idx >= 0 && idx < block.qualities.length) ?
-                                        //block.qualities[pos - blockStart] : (byte) 0;
-                                        counter.incrementCount(pos, base, strand);
-                                    }
-                                }
+            // Close all counters with position < alignment.getStart()
+            if (alignmentChr.equals(lastChr)) {
+                if (counter != null) {
+                    counter.closeBucketsBefore(alignment.getAlignmentStart() - tolerance, output);
+                }
+            } else {  // New chromosome
+                if (counter != null) {
+                    counter.closeBucketsBefore(Integer.MAX_VALUE, output);
+                }
+                counter = new ReadCounter(alignmentChr);
+                lastChr = alignmentChr;
+            }
+
+            AlignmentBlock[] blocks = alignment.getAlignmentBlocks();
+
+            if (blocks != null && !pairedCoverage) {
+                for (AlignmentBlock block : blocks) {
+
+                    if (!block.isSoftClip()) {
+
+                        int blockStart = block.getStart();
+                        int blockEnd = block.getEnd();
+
+
+                        int adjustedStart = block.getStart();
+                        int adjustedEnd = block.getEnd();
+
+
+                        if (preExtFactor > 0) {
+                            if (readNegStrand) {
+                                adjustedEnd = blockEnd + preExtFactor;
+                            } else {
+                                adjustedStart = Math.max(0, blockStart - preExtFactor);
                             }
                         }
 
-                        final AlignmentBlock[] insertions = alignment.getInsertions();
-                        if (insertions != null) {
-                            for (AlignmentBlock insBlock : insertions) {
-                                int pos = insBlock.getStart();
-                                if (queryInterval == null || (pos >= queryInterval.getStart() && pos <= queryInterval.getEnd()))
-                                    counter.incrementInsertion(pos, strand);
+                        // If both postExtFactor and extFactor are specified, postExtFactor takes precedence
+                        if (postExtFactor > 0) {
+                            if (readNegStrand) {
+                                adjustedStart = Math.max(0, blockEnd - postExtFactor);
+                            } else {
+                                adjustedEnd = blockStart + postExtFactor;
                             }
-                        }
 
-                        // Count deletions
-                        List<Gap> gaps = alignment.getGaps();
-                        if (gaps != null) {
-                            for (Gap gap : gaps) {
-                                if (gap.getType() == SAMAlignment.DELETION) {
-                                    int adjustedStart = gap.getStart();
-                                    int adjustedEnd = gap.getStart() + gap.getnBases();
-                                    if (queryInterval != null) {
-                                        adjustedStart = Math.max(queryInterval.getStart() - 1, adjustedStart);
-                                        adjustedEnd = Math.min(queryInterval.getEnd(), adjustedEnd);
-                                    }
-                                    for (int pos = adjustedStart; pos < adjustedEnd; pos++) {
-                                        counter.incrementDeletion(pos, strand);
-                                    }
-                                }
+                        } else if (extFactor > 0) {
+                            // Standard extension option -- extend read on 3' end
+                            if (readNegStrand) {
+                                adjustedStart = Math.max(0, adjustedStart - extFactor);
+                            } else {
+                                adjustedEnd += extFactor;
                             }
                         }
 
 
-                    } else {
-                        int adjustedStart = alignment.getAlignmentStart();
-                        int adjustedEnd = pairedCoverage ?
-                                adjustedStart + Math.abs(alignment.getInferredInsertSize()) :
-                                alignment.getAlignmentEnd();
-
-                        if (readNegStrand) {
-                            adjustedStart = Math.max(0, adjustedStart - extFactor);
-                        } else {
-                            adjustedEnd += extFactor;
-                        }
-
                         if (queryInterval != null) {
                             adjustedStart = Math.max(queryInterval.getStart() - 1, adjustedStart);
                             adjustedEnd = Math.min(queryInterval.getEnd(), adjustedEnd);
                         }
 
+                        ByteSubarray bases = block.getBases();
+                        if(bases != null) {
+                            for (int pos = adjustedStart; pos < adjustedEnd; pos++) {
+                                byte base = 0;
+                                int baseIdx = pos - blockStart;
+                                if (bases != null && baseIdx >= 0 && baseIdx < bases.length) {
+                                    base = bases.getByte(baseIdx);
+                                }
+                                //int idx = pos - blockStart;
+                                //byte quality = (idx >= 0 && idx < block.qualities.length) ?
+                                //block.qualities[pos - blockStart] : (byte) 0;
+                                counter.incrementCount(pos, base, strand);
+                            }
+                        }
+                    }
+                }
 
-                        for (int pos = adjustedStart; pos < adjustedEnd; pos++) {
-                            counter.incrementCount(pos, (byte) 'N', strand);
+                final AlignmentBlock[] insertions = alignment.getInsertions();
+                if (insertions != null) {
+                    for (AlignmentBlock insBlock : insertions) {
+                        int pos = insBlock.getStart();
+                        if (queryInterval == null || (pos >= queryInterval.getStart() && pos <= queryInterval.getEnd()))
+                            counter.incrementInsertion(pos, strand);
+                    }
+                }
+
+                // Count deletions
+                List<Gap> gaps = alignment.getGaps();
+                if (gaps != null) {
+                    for (Gap gap : gaps) {
+                        if (gap.getType() == SAMAlignment.DELETION) {
+                            int adjustedStart = gap.getStart();
+                            int adjustedEnd = gap.getStart() + gap.getnBases();
+                            if (queryInterval != null) {
+                                adjustedStart = Math.max(queryInterval.getStart() - 1, adjustedStart);
+                                adjustedEnd = Math.min(queryInterval.getEnd(), adjustedEnd);
+                            }
+                            for (int pos = adjustedStart; pos < adjustedEnd; pos++) {
+                                counter.incrementDeletion(pos, strand);
+                            }
                         }
                     }
+                }
+
+
+            } else {
+                int adjustedStart = alignment.getAlignmentStart();
+                int adjustedEnd = pairedCoverage ?
+                        adjustedStart + Math.abs(alignment.getInferredInsertSize()) :
+                        alignment.getAlignmentEnd();
+
+                if (readNegStrand) {
+                    adjustedStart = Math.max(0, adjustedStart - extFactor);
+                } else {
+                    adjustedEnd += extFactor;
+                }
 
+                if (queryInterval != null) {
+                    adjustedStart = Math.max(queryInterval.getStart() - 1, adjustedStart);
+                    adjustedEnd = Math.min(queryInterval.getEnd(), adjustedEnd);
                 }
 
-            }
-            consumer.setAttribute("totalCount", String.valueOf(totalCount));
-            consumer.parsingComplete();
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
+                for (int pos = adjustedStart; pos < adjustedEnd; pos++) {
+                    counter.incrementCount(pos, (byte) 'N', strand);
+                }
+            }
+        }
 
+        void close() throws IOException {
             if (counter != null) {
-                counter.closeBucketsBefore(Integer.MAX_VALUE, wigWriter);
+                counter.closeBucketsBefore(Integer.MAX_VALUE, output);
+                counter = null;
             }
-            if (iter != null) {
-                iter.close();
+        }
+    }
+
+    /**
+     * Receiver of closed buckets.  The data array is reused and must be copied if retained.
+     */
+    interface BucketOutput {
+        void addData(String chr, int start, int end, float[] data) throws IOException;
+    }
+
+    /**
+     * Buckets from one chromosome, spilled to a temporary file until they can be passed on in order.  Each record is
+     * start, end and the data columns.  A change of chromosome name is recorded inline with a marker in place of
+     * the start.
+     */
+    private class Partition implements BucketOutput {
+
+        private static final int CHR_MARKER = Integer.MIN_VALUE;
+        private static final int END_MARKER = Integer.MIN_VALUE + 1;
+
+        File file;
+        DataOutputStream out;
+        String lastChr;
+        int count;
+
+        public void addData(String chr, int start, int end, float[] data) throws IOException {
+            if (out == null) {
+                file = File.createTempFile("igvtools-count", ".tmp");
+                file.deleteOnExit();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
             }
-            if (reader != null) {
-                reader.close();
+            if (!chr.equals(lastChr)) {
+                out.writeInt(CHR_MARKER);
+                out.writeUTF(chr);
+                lastChr = chr;
             }
-            if (wigWriter != null) {
-                wigWriter.close();
+            out.writeInt(start);
+            out.writeInt(end);
+            for (float f : data) {
+                out.writeFloat(f);
             }
+        }
 
+        void finish() throws IOException {
+            if (out != null) {
+                out.writeInt(END_MARKER);
+                out.close();
+                out = null;
+            }
+        }
+
+        void replay(BucketOutput output) throws IOException {
+            if (file == null) {
+                return;
+            }
+            float[] data = new float[columnCount];
+            String chr = null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                int start;
+                while ((start = in.readInt()) != END_MARKER) {
+                    if (start == CHR_MARKER) {
+                        chr = in.readUTF();
+                        continue;
+                    }
+                    int end = in.readInt();
+                    for (int i = 0; i < data.length; i++) {
+                        data[i] = in.readFloat();
+                    }
+                    output.addData(chr, start, end, data);
+                }
+            }
+            delete();
+        }
+
+        void delete() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                out = null;
+            }
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
         }
     }
 
@@ -492,7 +736,7 @@ public class CoverageCounter {
         if (prefix == null) {
             prefix = "";
         }
-        String[] trackNames = new String[this.buffer.length];
+        String[] trackNames = new String[columnCount];
         String[] strandArr;
         if (outputSeparate) {
             strandArr = new String[]{"Positive Strand", "Negative Strand"};
@@ -522,16 +766,50 @@ public class CoverageCounter {
         this.writeStdOut = writeStdOut;
     }
 
+    /**
+     * Counts for the open windows of one chromosome, held in a circular buffer of primitive arrays indexed by window
+     * index.  The buffer covers the windows from the lowest open window to the highest touched one, which for sorted
+     * input is bounded by the span of an alignment plus its extension.  It grows if an alignment spans more windows.
+     * Closed windows are cleared and reused, so counting allocates nothing per position.
+     */
     class ReadCounter {
 
         String chr;
+
         /**
-         * Map of window index -> counter
+         * Window index of the lowest open window, and one past the highest touched window.  Empty if equal.
          */
-        TreeMap<Integer, Counter> counts = new TreeMap<Integer, Counter>();
+        int lo = 0;
+        int hi = 0;
+
+        // Circular buffer, window idx is at slot idx & mask
+        int mask;
+        boolean[] touched;
+        int[] totalCounts;
+        int[] strandCounts;    // slot * NUM_STRANDS + strand
+        int[] baseCounts;      // (slot * NUM_STRANDS + strand) * BASE_SLOTS + base index
+
+        /**
+         * Data buffer to pass data to the output
+         */
+        float[] buffer = new float[columnCount];
 
         ReadCounter(String chr) {
             this.chr = chr;
+            int maxExtFactor = Math.max(extFactor, Math.max(preExtFactor, postExtFactor));
+            allocate(Integer.highestOneBit(Math.max(MIN_WINDOW_SLOTS, 2 * ((maxExtFactor + 1000) / windowSize + 2)) - 1) << 1);
+        }
+
+        private void allocate(int capacity) {
+            mask = capacity - 1;
+            touched = new boolean[capacity];
+            totalCounts = new int[capacity];
+            if (outputSeparate) {
+                strandCounts = new int[capacity * NUM_STRANDS];
+            }
+            if (outputBases) {
+                baseCounts = new int[capacity * NUM_STRANDS * BASE_SLOTS];
+            }
         }
 
         /**
@@ -540,42 +818,91 @@ public class CoverageCounter {
          * @param strand   - which strand to increment count. Should be POSITIVE or NEGATIVE
          */
         void incrementCount(int position, byte base, Strand strand) {
-            final Counter counter = getCounterForPosition(position);
+            int slot = getSlotForPosition(position);
             int strandNum = strand.equals(Strand.POSITIVE) ? 0 : 1;
-            counter.increment(base, strandNum);
+            if (outputBases) {
+                incrementNucleotide(slot, base, strandNum);
+            }
+            if (outputSeparate) {
+                strandCounts[slot * NUM_STRANDS + strandNum]++;
+            }
+            totalCounts[slot]++;
         }
 
         void incrementDeletion(int position, Strand strand) {
-            final Counter counter = getCounterForPosition(position);
+            int slot = getSlotForPosition(position);
             int strandNum = strand.equals(Strand.POSITIVE) ? 0 : 1;
             if (outputBases) {
-                counter.incrementNucleotide(DEL, strandNum);
+                incrementNucleotide(slot, DEL, strandNum);
             }
         }
 
         void incrementInsertion(int position, Strand strand) {
             // Insertions are between 2 bases, we increment the counter for the position preceding the insertion
-            final Counter counter = getCounterForPosition(position-1);
+            int slot = getSlotForPosition(position - 1);
             int strandNum = strand.equals(Strand.POSITIVE) ? 0 : 1;
             if (outputBases) {
-                counter.incrementNucleotide(INS, strandNum);
+                incrementNucleotide(slot, INS, strandNum);
             }
-
         }
 
+        /**
+         * Increment the nucleotide counts.  Bases other than A, C, G, T, N, deletion and insertion are counted
+         * together, and not output.
+         */
+        private void incrementNucleotide(int slot, byte base, int strandNum) {
+            baseCounts[(slot * NUM_STRANDS + strandNum) * BASE_SLOTS + baseIndex[base & 0xFF]]++;
+        }
 
-        private Counter getCounterForPosition(int position) {
+        /**
+         * Return the buffer slot of the window containing the position, marking the window as touched.
+         */
+        private int getSlotForPosition(int position) {
             int idx = position / windowSize;
-            return getCounter(idx);
+            if (lo == hi) {
+                lo = idx;
+                hi = idx + 1;
+            } else if (idx < lo || idx >= hi) {
+                int newLo = Math.min(lo, idx);
+                int newHi = Math.max(hi, idx + 1);
+                if (newHi - newLo > mask + 1) {
+                    grow(newLo, newHi);
+                }
+                lo = newLo;
+                hi = newHi;
+            }
+            int slot = idx & mask;
+            touched[slot] = true;
+            return slot;
         }
 
-        private Counter getCounter(int idx) {
-            if (!counts.containsKey(idx)) {
-                counts.put(idx, new Counter());
+        private void grow(int newLo, int newHi) {
+            int oldMask = mask;
+            boolean[] oldTouched = touched;
+            int[] oldTotalCounts = totalCounts;
+            int[] oldStrandCounts = strandCounts;
+            int[] oldBaseCounts = baseCounts;
+
+            allocate(Integer.highestOneBit(newHi - newLo - 1) << 1);
+
+            for (int idx = lo; idx < hi; idx++) {
+                int from = idx & oldMask;
+                int to = idx & mask;
+                touched[to] = oldTouched[from];
+                totalCounts[to] = oldTotalCounts[from];
+                if (outputSeparate) {
+                    System.arraycopy(oldStrandCounts, from * NUM_STRANDS, strandCounts, to * NUM_STRANDS, NUM_STRANDS);
+                }
+                if (outputBases) {
+                    int n = NUM_STRANDS * BASE_SLOTS;
+                    System.arraycopy(oldBaseCounts, from * n, baseCounts, to * n, n);
+                }
             }
-            return counts.get(idx);
         }
 
+        private int getBaseCount(int slot, int baseIdx, int strandNum) {
+            return baseCounts[(slot * NUM_STRANDS + strandNum) * BASE_SLOTS + baseIdx];
+        }
 
         /**
          * Close (finalize) all buckets before the given position.  Called when we are sure this position will not be
@@ -583,177 +910,90 @@ public class CoverageCounter {
          *
          * @param position - genomic position
          */
-        void closeBucketsBefore(int position, WigWriter wigWriter) {
-            List<Integer> bucketsToClose = new ArrayList<Integer>();
+        void closeBucketsBefore(int position, BucketOutput output) throws IOException {
 
             int bucket = position / windowSize;
-            for (Map.Entry<Integer, Counter> entry : counts.entrySet()) {
-                if (entry.getKey() < bucket) {
-
-                    // Divide total count by window size.  This is the average count per
-                    // base over the window,  so for example 30x coverage remains 30x irrespective of window size.
-                    int bucketStartPosition = entry.getKey() * windowSize;
-                    int bucketEndPosition = bucketStartPosition + windowSize;
-
-                    if (genome != null) {
-                        Chromosome chromosome = genome.getChromosome(chr);
-                        if (chromosome != null) {
-                            bucketEndPosition = Math.min(bucketEndPosition, chromosome.getLength());
-                        }
-                    }
-                    int bucketSize = bucketEndPosition - bucketStartPosition;
+            int end = Math.min(hi, bucket);
+            for (int idx = lo; idx < end; idx++) {
 
-                    final Counter counter = entry.getValue();
+                int slot = idx & mask;
+                if (!touched[slot]) {
+                    continue;
+                }
 
-                    int col = 0;
+                // Divide total count by window size.  This is the average count per
+                // base over the window,  so for example 30x coverage remains 30x irrespective of window size.
+                int bucketStartPosition = idx * windowSize;
+                int bucketEndPosition = bucketStartPosition + windowSize;
 
-                    //Not outputting base info, just totals
-                    if (!outputBases) {
-                        if (outputSeparate) {
-                            //Output strand specific information, if applicable
-                            for (int strandNum : output_strands) {
-                                buffer[col] = ((float) counter.getCount(strandNum)) / bucketSize;
-                                col++;
-                            }
+                if (genome != null) {
+                    Chromosome chromosome = genome.getChromosome(chr);
+                    if (chromosome != null) {
+                        bucketEndPosition = Math.min(bucketEndPosition, chromosome.getLength());
+                    }
+                }
+                int bucketSize = bucketEndPosition - bucketStartPosition;
+
+                int col = 0;
 
-                        } else {
-                            buffer[col] = ((float) counter.getTotalCounts()) / bucketSize;
+                //Not outputting base info, just totals
+                if (!outputBases) {
+                    if (outputSeparate) {
+                        //Output strand specific information, if applicable
+                        for (int strandNum : output_strands) {
+                            buffer[col] = ((float) strandCounts[slot * NUM_STRANDS + strandNum]) / bucketSize;
                             col++;
                         }
 
-                        //Output counts of each base
                     } else {
-                        if (outputSeparate) {
-                            for (int strandNum : output_strands) {
-                                for (byte base : nucleotides) {
-                                    buffer[col] = ((float) counter.getBaseCount(base, strandNum)) / bucketSize;
-                                    col++;
-                                }
-                            }
-                        } else {
-                            for (byte base : nucleotides) {
-                                buffer[col] = ((float) counter.getBaseCount(base)) / bucketSize;
+                        buffer[col] = ((float) totalCounts[slot]) / bucketSize;
+                        col++;
+                    }
+
+                    //Output counts of each base
+                } else {
+                    if (outputSeparate) {
+                        for (int strandNum : output_strands) {
+                            for (int b = 0; b < nucleotides.length; b++) {
+                                buffer[col] = ((float) getBaseCount(slot, b, strandNum)) / bucketSize;
                                 col++;
                             }
                         }
+                    } else {
+                        for (int b = 0; b < nucleotides.length; b++) {
+                            int count = 0;
+                            for (int strandNum = 0; strandNum < NUM_STRANDS; strandNum++) {
+                                count += getBaseCount(slot, b, strandNum);
+                            }
+                            buffer[col] = ((float) count) / bucketSize;
+                            col++;
+                        }
                     }
-
-
-                    consumer.addData(chr, bucketStartPosition, bucketEndPosition, buffer, null);
-
-                    if (wigWriter != null) {
-                        wigWriter.addData(chr, bucketStartPosition, bucketEndPosition, buffer);
-                    }
-
-
-                    bucketsToClose.add(entry.getKey());
                 }
-            }
-
-            for (Integer key : bucketsToClose) {
-                counts.remove(key);
-            }
-
-
-        }
-
-    }
-
-
-    /**
-     * Class for counting nucleotides and strands over an interval.
-     */
 
-    class Counter {
-        /**
-         * The total number of counts on this Counter. Will
-         * be the sum of baseCount over the second index.
-         */
-        int[] strandCount;
-        int totalCount = 0;
-        //int qualityCount = 0;
-
-        //String chr;
-        //int start;
-        //int end;
-        //byte[] ref;
-        /**
-         * The number of times a particular base has been encountered (ie # of reads of that base)
-         */
-        //int[][] baseCount = new int[NUM_STRANDS][];
-
-        private Map<Byte, Integer>[] baseTypeCounts;
+                output.addData(chr, bucketStartPosition, bucketEndPosition, buffer);
 
-        Counter() {
-            //this.chr = chr;
-            //this.start = start;
-            //this.end = end;
-
-            if (outputBases) {
-                baseTypeCounts = new HashMap[NUM_STRANDS];
-                for (int ii = 0; ii < NUM_STRANDS; ii++) {
-                    baseTypeCounts[ii] = new HashMap<Byte, Integer>();
-                }
+                clear(slot);
             }
 
-            if (outputSeparate) {
-                strandCount = new int[NUM_STRANDS];
+            if (end > lo) {
+                lo = end;
+                if (lo == hi) {
+                    lo = hi = 0;
+                }
             }
         }
 
-
-        int getCount(int strand) {
-            return strandCount[strand];
-        }
-
-        public int getTotalCounts() {
-            return totalCount;
-        }
-
-        void increment(byte base, int strand) {
-
-            if (outputBases) {
-                incrementNucleotide(base, strand);
-            }
-
+        private void clear(int slot) {
+            touched[slot] = false;
+            totalCounts[slot] = 0;
             if (outputSeparate) {
-                this.strandCount[strand]++;
-            }
-
-            this.totalCount++;
-        }
-
-        /**
-         * Increment the nucleotide counts.
-         *
-         * @param base   65, 67, 71, 84, 78, 126, 127
-         *               aka A, C, G, T, N, deletion, insertion.
-         *               Anything else is stored as 0
-         * @param strand index of strand, 0 for positive and 1 for negative
-         */
-        private void incrementNucleotide(byte base, int strand) {
-            Map<Byte, Integer> btc = baseTypeCounts[strand];
-            if (!nucleotidesKeep.contains(base)) {
-                base = 0;
-            }
-
-            int orig = 0;
-            if (btc.containsKey(base)) {
-                orig = btc.get(base);
+                Arrays.fill(strandCounts, slot * NUM_STRANDS, (slot + 1) * NUM_STRANDS, 0);
             }
-            btc.put(base, orig + 1);
-        }
-
-        public int getBaseCount(byte base, int strand) {
-            return baseTypeCounts[strand].containsKey(base) ? baseTypeCounts[strand].get(base) : 0;
-        }
-
-        public int getBaseCount(byte base) {
-            int count = 0;
-            for (int strand = 0; strand < NUM_STRANDS; strand++) {
-                count += getBaseCount(base, strand);
+            if (outputBases) {
+                int n = NUM_STRANDS * BASE_SLOTS;
+                Arrays.fill(baseCounts, slot * n, (slot + 1) * n, 0);
             }
-            return count;
         }
     }
 
@@ -61,6 +61,7 @@ import org.broad.igv.feature.tribble.GFFCodec;
 import org.broad.igv.feature.tribble.IGVBEDCodec;
 import org.broad.igv.feature.tribble.MUTCodec;
 import org.broad.igv.maf.MAFtoSAM;
+import org.broad.igv.sam.SpliceJunctionSidecar;
 import org.broad.igv.sam.reader.AlignmentIndexer;
 import org.broad.igv.tdf.TDFUtils;
 import org.broad.igv.tools.converters.BamToBed;
@@ -100,6 +101,7 @@ public class IgvTools {
     static final String CMD_COUNT = "count";
     static final String CMD_SORT = "sort";
     static final String CMD_INDEX = "index";
+    static final String CMD_JUNCTIONS = "junctions";
     static final String CMD_FORMATEXP = "formatexp";
     static final String CMD_VERSION = "version";
     static final String CMD_GUI = "gui";
@@ -136,6 +138,7 @@ public class IgvTools {
             "index   index an alignment file",
             "toTDF    convert an input file (cn, gct, wig) to tiled data format (tdf)",
             "count   compute coverage density for an alignment file",
+            "junctions  precompute splice junctions for an alignment file",
             "formatexp  center, scale, and log2 normalize an expression file",
             "gui      Start the gui",
             "help <command>     display this help message, or help on a specific command",
@@ -176,12 +179,17 @@ public class IgvTools {
     private static CmdLineParser.Option minMapQualityOpt = null;
     private static CmdLineParser.Option includeDupsOpt = null;
     private static CmdLineParser.Option pairedCoverageOpt = null;
+    private static CmdLineParser.Option threadsOpt = null;
+    private static CmdLineParser.Option percentileSketchOpt = null;
 
     // options for index
     private static CmdLineParser.Option indexTypeOption = null;
     private static CmdLineParser.Option binSizeOption = null;
     private static CmdLineParser.Option outputDirOption = null;
 
+    // options for junctions
+    private static CmdLineParser.Option minFlankingWidthOption = null;
+
     // MAF to SAM
     private static CmdLineParser.Option noSATag = null;
     private static CmdLineParser.Option combineAlignments = null;
@@ -189,6 +197,9 @@ public class IgvTools {
     // Trackline
     private static CmdLineParser.Option colorOption = null;
 
+    // Estimate percentiles of large windows with a sketch in toTDF and count
+    private boolean percentileSketch = false;
+
     /**
      * The general usage string
      */
@@ -348,6 +359,8 @@ public class IgvTools {
                 boolean isGCT = typeString.endsWith("gct") || typeString.equals("mage-tab");
                 String wfsString = (String) parser.getOptionValue(windowFunctions);
                 Collection<WindowFunction> wfList = parseWFS(wfsString, isGCT);
+                int threads = (Integer) parser.getOptionValue(threadsOpt, 1);
+                percentileSketch = (Boolean) parser.getOptionValue(percentileSketchOpt, false);
 
 
                 if (command.equals(CMD_COUNT)) {
@@ -370,10 +383,11 @@ public class IgvTools {
                     int windowSizeValue = (Integer) parser.getOptionValue(windowSizeOption, WINDOW_SIZE);
                     doCount(ifile, ofile, genomeId, maxZoomValue, wfList, windowSizeValue, extFactorValue,
                             preFactorValue, posFactorValue,
-                            trackLine, queryString, minMapQuality, countFlags);
+                            trackLine, queryString, minMapQuality, countFlags, threads);
                 } else {
                     String probeFile = (String) parser.getOptionValue(probeFileOption, PROBE_FILE);
-                    toTDF(typeString, ifile, ofile, probeFile, genomeId, maxZoomValue, wfList, tmpDirName, maxRecords);
+                    toTDF(typeString, ifile, ofile, probeFile, genomeId, maxZoomValue, wfList, tmpDirName, maxRecords,
+                            threads);
                 }
 
             } else if (command.equals(CMD_SORT)) {
@@ -386,6 +400,10 @@ public class IgvTools {
                 int binSize = (Integer) parser.getOptionValue(binSizeOption, defaultBinSize);
                 String outputDir = (String) parser.getOptionValue(outputDirOption, null);
                 doIndex(ifile, typeString, outputDir, indexType, binSize);
+            } else if (command.equals(CMD_JUNCTIONS)) {
+                String ofile = nonOptionArgs.length > 2 ? nonOptionArgs[2] : ifile + SpliceJunctionSidecar.EXTENSION;
+                int minFlankingWidth = (Integer) parser.getOptionValue(minFlankingWidthOption, 0);
+                doJunctions(ifile, ofile, minFlankingWidth);
             } else if (command.equals(CMD_FORMATEXP)) {
                 validateArgsLength(nonOptionArgs, 3, basic_syntax);
                 File inputFile = new File(nonOptionArgs[1]);
@@ -575,6 +593,8 @@ public class IgvTools {
             // general options
             windowFunctions = parser.addStringOption('f', "windowFunctions");
             maxZoomOption = parser.addIntegerOption('z', "maxZoom");
+            threadsOpt = parser.addIntegerOption("threads");
+            percentileSketchOpt = parser.addBooleanOption("percentileSketch");
 
             // extended options for coverage
             if (command.equals(CMD_COUNT) || command.equals(CMD_BAMTOBED)) {
@@ -606,6 +626,10 @@ public class IgvTools {
             outputDirOption = parser.addStringOption("outputDir");
         }
 
+        if (command.equals(CMD_JUNCTIONS)) {
+            minFlankingWidthOption = parser.addIntegerOption("minFlankingWidth");
+        }
+
         if (command.equals(CMD_MAFTOSAM)) {
             // MAF to SAM
             noSATag = parser.addBooleanOption("noSATag");
@@ -664,9 +688,27 @@ public class IgvTools {
 
     }
 
+    /**
+     * Estimate median and percentiles of windows with many values with a streaming sketch, rather than from stored
+     * values, in subsequent toTDF and count conversions.
+     */
+    public void setPercentileSketch(boolean percentileSketch) {
+        this.percentileSketch = percentileSketch;
+    }
+
     public void toTDF(String typeString, String ifile, String ofile, String probeFile, String genomeId, int maxZoomValue,
                       Collection<WindowFunction> windowFunctions, String tmpDirName, int maxRecords)
             throws IOException, PreprocessingException {
+        toTDF(typeString, ifile, ofile, probeFile, genomeId, maxZoomValue, windowFunctions, tmpDirName, maxRecords, 1);
+    }
+
+    /**
+     * Convert a sorted data file to TDF, building zoom levels and compressing tiles on {@code threads} threads.  The
+     * file written is the same for any number of threads.
+     */
+    public void toTDF(String typeString, String ifile, String ofile, String probeFile, String genomeId, int maxZoomValue,
+                      Collection<WindowFunction> windowFunctions, String tmpDirName, int maxRecords, int threads)
+            throws IOException, PreprocessingException {
 
         if (!ifile.endsWith(".affective.csv")) validateIsTilable(typeString);
 
@@ -722,6 +764,8 @@ public class IgvTools {
         File outputFile = new File(ofile);
         try {
             Preprocessor p = new Preprocessor(outputFile, genome, windowFunctions, nLines, null);
+            p.setThreads(threads);
+            p.setPercentileSketch(percentileSketch);
             if (inputFileOrDir.isDirectory() || inputFileOrDir.getName().endsWith(".list")) {
                 p.setSizeEstimate(0);
                 List<File> files = getFilesFromDirOrList(inputFileOrDir);
@@ -832,6 +876,19 @@ public class IgvTools {
                         Collection<WindowFunction> windowFunctions, int windowSizeValue,
                         int extFactorValue, int preExtFactorValue, int postExtFactorValue,
                         String trackLine, String queryString, int minMapQuality, int countFlags) throws IOException {
+        doCount(ifile, ofile, genomeId, maxZoomValue, windowFunctions, windowSizeValue, extFactorValue,
+                preExtFactorValue, postExtFactorValue, trackLine, queryString, minMapQuality, countFlags, 1);
+    }
+
+    /**
+     * Compute coverage as above, counting the chromosomes of an indexed BAM or CRAM file on {@code threads}
+     * threads.  The output is the same for any number of threads.
+     */
+    public void doCount(String ifile, String ofile, String genomeId, int maxZoomValue,
+                        Collection<WindowFunction> windowFunctions, int windowSizeValue,
+                        int extFactorValue, int preExtFactorValue, int postExtFactorValue,
+                        String trackLine, String queryString, int minMapQuality, int countFlags,
+                        int threads) throws IOException {
 
 
 //        log.info("Computing coverage.  File = " + ifile);
@@ -875,12 +932,15 @@ public class IgvTools {
             Preprocessor p = new Preprocessor(tdfFile, genome, windowFunctions, -1, null);
 
             p.setSkipZeroes(true);
+            p.setThreads(threads);
+            p.setPercentileSketch(percentileSketch);
 
             CoverageCounter counter = new CoverageCounter(ifile, p, windowSizeValue, extFactorValue, wigFile,
                     genome, queryString, minMapQuality, countFlags);
             counter.setWriteStdOut(wigStdOut);
             counter.setPreExtFactor(preExtFactorValue);
             counter.setPosExtFactor(postExtFactorValue);
+            counter.setThreads(threads);
 
             String prefix = FilenameUtils.getName(ifile);
             String[] tracknames = counter.getTrackNames(prefix + " ");
@@ -1113,6 +1173,23 @@ public class IgvTools {
         }
     }
 
+    /**
+     * Precompute the splice junctions of a sorted alignment file.  IGV uses the output in place of computing
+     * junctions from the alignments if it is found next to the alignment file, with the name generated by
+     * appending ".junctions.bed.gz".  A tabix index is written alongside.  The output is ignored once the alignment
+     * file, the minimum flanking width, or the read filter preferences differ from those it was computed with.
+     *
+     * @param ifile            alignment file
+     * @param ofile            output file
+     * @param minFlankingWidth minimum flanking width of reads counted for a junction
+     * @throws IOException
+     */
+    public void doJunctions(String ifile, String ofile, int minFlankingWidth) throws IOException {
+        userMessageWriter.println("Computing splice junctions " + ifile + "  -> " + ofile);
+        SpliceJunctionSidecar.write(ifile, ofile, minFlankingWidth);
+        userMessageWriter.println("Done");
+    }
+
     public void doSort(String ifile, String ofile, String tmpDirName, int maxRecords) {
 
         userMessageWriter.println("Sorting " + ifile + "  -> " + ofile);
@@ -33,11 +33,16 @@ import org.broad.igv.util.collections.DoubleArrayList;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.log4j.Logger;
 import org.broad.igv.track.WindowFunction;
+import org.broad.igv.util.stats.QuantileSketch;
 
 import java.util.*;
 
 /**
  * Estimating percentiles -- weighted average of multiple estimates
+ * <p/>
+ * Optionally, windows of more than SKETCH_THRESHOLD values estimate percentiles with a {@link QuantileSketch}
+ * instead, which bounds memory per window at the cost of a small rank error (see the sketch for bounds).  Smaller
+ * windows are always exact.
  *
  * @author jrobinso
  */
@@ -45,6 +50,7 @@ public class ListAccumulator {
 
     static Set<WindowFunction> PERCENTILE_WINDOW_FUNCTIONS = new HashSet();
     public static int MAX_VALUE_COUNT = 100000;
+    public static int SKETCH_THRESHOLD = 1000;
     private static Logger log = Logger.getLogger(ListAccumulator.class);
 
     static {
@@ -62,6 +68,8 @@ public class ListAccumulator {
     List<WindowFunction> quantileFunctions;
     Map<WindowFunction, List<PercentileValue>> percentiles = new HashMap();
     DoubleArrayList values = null;
+    boolean useSketch;
+    QuantileSketch sketch = null;
     float sum = 0.0f;
     int basesCovered = 0;
     int nPts = 0;
@@ -78,6 +86,14 @@ public class ListAccumulator {
 
 
     public ListAccumulator(Collection<WindowFunction> windowFunctions) {
+        this(windowFunctions, false);
+    }
+
+    /**
+     * @param useSketch estimate percentiles of windows with more than SKETCH_THRESHOLD values with a sketch
+     */
+    public ListAccumulator(Collection<WindowFunction> windowFunctions, boolean useSketch) {
+        this.useSketch = useSketch;
         this.windowFunctions = new ArrayList(windowFunctions);
         quantileFunctions = new ArrayList();
         for (WindowFunction wf : windowFunctions) {
@@ -97,9 +113,17 @@ public class ListAccumulator {
             sum += w*v;
             basesCovered +=w;
             nPts++;
-            if (values != null) {
+            if (sketch != null) {
+                sketch.add(v);
+            } else if (values != null) {
                 values.add(v);
-                if (values.size() > MAX_VALUE_COUNT) {
+                if (useSketch && values.size() > SKETCH_THRESHOLD) {
+                    sketch = new QuantileSketch();
+                    for (int i = 0; i < values.size(); i++) {
+                        sketch.add((float) values.get(i));
+                    }
+                    values = null;
+                } else if (values.size() > MAX_VALUE_COUNT) {
                     computePercentiles();
                     values.clear();
                 }
@@ -117,11 +141,15 @@ public class ListAccumulator {
         mean = Float.isNaN(sum) ? Float.NaN : sum / basesCovered;
 
         absoluteMax = Math.abs(min) > Math.abs(max) ? min : max;
-        if (values != null) {
+        if (!quantileFunctions.isEmpty()) {
             if (nPts == 1) {
                 for (WindowFunction wf : quantileFunctions) {
                     setValue(wf, mean);
                 }
+            } else if (sketch != null) {
+                for (WindowFunction wf : quantileFunctions) {
+                    setValue(wf, sketch.getQuantile(getPercentile(wf) / 100));
+                }
             } else {
                 if (values.size() > 1) {
                     computePercentiles();
@@ -147,6 +175,7 @@ public class ListAccumulator {
             }
         }
         values = null;
+        sketch = null;
         isFinished = true;
 
     }
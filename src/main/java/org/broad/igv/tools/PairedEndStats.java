@@ -79,10 +79,10 @@ public class PairedEndStats {
         AlignmentReader reader = null;
         try {
             reader = AlignmentReaderFactory.getReader(bamFile, false);
-            final CloseableIterator<Alignment> alignmentCloseableIterator = reader.iterator();
-            PairedEndStats stats = compute(alignmentCloseableIterator, .1, 99.9);
-            alignmentCloseableIterator.close();
-            return stats;
+            // Closing the iterator returns its reader to the pool
+            try (CloseableIterator<Alignment> alignmentCloseableIterator = reader.iterator()) {
+                return compute(alignmentCloseableIterator, .1, 99.9);
+            }
 
         } catch (IOException e) {
             log.error("Error reading sam file: " + e.getMessage(), e);
@@ -99,9 +99,8 @@ public class PairedEndStats {
     }
 
     public static PairedEndStats compute(AlignmentReader reader, String chr, int start, int end) {
-        try {
-            PairedEndStats stats = compute(reader.query(chr, start, end, false), .1, 99.9);
-            return stats;
+        try (CloseableIterator<Alignment> iter = reader.query(chr, start, end, false)) {
+            return compute(iter, .1, 99.9);
         } catch (IOException e) {
             log.error("Error computing alignment stats: " + e.getMessage(), e);
             return null;
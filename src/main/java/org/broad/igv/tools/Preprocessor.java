@@ -43,6 +43,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * @author jrobinso
@@ -75,6 +77,9 @@ public class Preprocessor implements DataConsumer {
     List<String> chromosomes = new ArrayList();
     Set<String> visitedChromosomes = new HashSet();
     Map<String, String> attributes = new HashMap();
+    private int threads = 1;
+    private boolean percentileSketch = false;
+    private Pipeline pipeline;
 
     List<WindowFunction> allDataFunctions = Arrays.asList(
             WindowFunction.mean,
@@ -203,28 +208,44 @@ public class Preprocessor implements DataConsumer {
         }
 
 
-        // Add to raw data
-        rawData.addData(start, end, data, name);
-
-        // Zoom levels
-        for (Zoom zl : zoomLevels) {
-            zl.addData(start, end, data);
-        }
-
         // Whole genome
         long offset = genome.getCumulativeOffset(chr);
         int gStart = (int) ((offset + start) / 1000);
         int gEnd = Math.max(gStart + 1, (int) ((offset + end) / 1000));
 
-
         // Don't include "chrM" in the whole genome view or stats
-        if (genomeZoom != null && !(chr.equals("chrM") || chr.equals("M") || chr.equals("MT"))) {
-            genomeZoom.addData(gStart, gEnd, data);
-            for (int i = 0; i < data.length; i++) {
-                allDataStats.add(gEnd - gStart, data[i]);
+        boolean inGenome = genomeZoom != null && !(chr.equals("chrM") || chr.equals("M") || chr.equals("MT"));
+
+        if (pipeline != null) {
+            pipeline.addData(start, end, data, name, inGenome, gStart, gEnd);
+        } else {
+
+            // Add to raw data
+            rawData.addData(start, end, data, name);
+
+            // Zoom levels
+            for (Zoom zl : zoomLevels) {
+                zl.addData(start, end, data);
+            }
+
+            if (inGenome) {
+                genomeZoom.addData(gStart, gEnd, data);
+                for (int i = 0; i < data.length; i++) {
+                    allDataStats.add(gEnd - gStart, data[i]);
+                }
             }
         }
 
+        // Update progress -- assume uniform distribution
+        if (statusMonitor != null && sizeEstimate > 0) {
+            int p = (int) ((100.0 * nPtsProcessed) / (1.5 * sizeEstimate));
+            if (p > percentComplete) {
+                percentComplete = p;
+                statusMonitor.setPercentComplete(percentComplete);
+            }
+        }
+        nPtsProcessed++;
+
         lastStartPosition = start;
 
     }
@@ -254,13 +275,9 @@ public class Preprocessor implements DataConsumer {
             chromosomes.add(chr);
 
             log.info("Processing chromosome " + chr);
-            if (zoomLevels != null) {
-                for (Zoom zl : zoomLevels) {
-                    zl.close();
-                }
-            }
-            if (rawData != null) {
-                rawData.close();
+            closeLevels(false);
+            if (threads > 1 && pipeline == null) {
+                pipeline = new Pipeline(threads);
             }
 
             currentChr = chr;
@@ -314,22 +331,15 @@ public class Preprocessor implements DataConsumer {
             writer.getRootGroup().setAttribute(entry.getKey(), entry.getValue());
         }
 
-        if (zoomLevels != null) {
-            for (Zoom zl : zoomLevels) {
-                zl.close();
-            }
-        }
-
-        if (genomeZoom != null) {
-            genomeZoom.close();
-        }
-
+        closeLevels(true);
         if (rawData == null) {
             // TODO -- delete .tdf file?
             log.warn("No features were found that matched chromosomes in genome: " + genome.getId());
-        } else {
-            rawData.close();
         }
+        if (pipeline != null) {
+            pipeline.finish();
+        }
+
         // Record max/min
         allDataStats.finish();
         TDFGroup group = writer.getGroup("/");
@@ -377,12 +387,74 @@ public class Preprocessor implements DataConsumer {
         this.nZoom = nZoom;
     }
 
+    /**
+     * @param threads number of threads for building zoom levels and compressing tiles.  1 (the default) builds
+     *                everything on the calling thread.  The file written is the same for any number of threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param percentileSketch estimate median and percentiles of large windows with a streaming sketch, rather than
+     *                         from stored values.  Must be set before data is added.
+     */
+    public void setPercentileSketch(boolean percentileSketch) {
+        this.percentileSketch = percentileSketch;
+        allDataStats = new ListAccumulator(allDataFunctions, percentileSketch);
+    }
+
+    /**
+     * Close the levels of the current chromosome, and optionally the whole genome level.  Tiles are written in the
+     * order zoom levels, whole genome, raw.
+     */
+    private void closeLevels(boolean closeGenome) {
+        List<Level> levels = new ArrayList<>();
+        if (zoomLevels != null) {
+            levels.addAll(Arrays.asList(zoomLevels));
+        }
+        if (closeGenome && genomeZoom != null) {
+            levels.add(genomeZoom);
+        }
+        if (rawData != null) {
+            levels.add(rawData);
+        }
+        if (pipeline != null) {
+            pipeline.close(levels);
+        } else {
+            for (Level level : levels) {
+                level.close();
+            }
+        }
+    }
+
+    /**
+     * Base class for the raw and zoom level datasets of a chromosome.  Closed tiles are written immediately, or
+     * when building on the pipeline handed to the collector of the task processing the level.
+     */
+    abstract class Level {
+
+        // Pipeline only.  Tasks for a level run one at a time, in order.
+        CompletableFuture<?> chain = CompletableFuture.completedFuture(null);
+        TileCollector collector;
+
+        abstract void close();
+
+        void emit(TDFDataset dataset, int tileNumber, TDFTile tile) throws IOException {
+            if (collector == null) {
+                writer.writeTile(dataset.getName(), tileNumber, tile);
+            } else {
+                collector.add(dataset, tileNumber, tile);
+            }
+        }
+    }
+
 
     /**
      * Class representing a tile of raw (as opposed to summarized) data.
      */
     class RawTile {
-        String dsName;
+        Raw raw;
         int tileNumber;
         int tileStart;
         int tileEnd;
@@ -391,8 +463,8 @@ public class Preprocessor implements DataConsumer {
         ArrayList<String> nameList;
         FloatArrayList[] dataArray;
 
-        RawTile(String dsName, int tileNumber, int start, int end) {
-            this.dsName = dsName;
+        RawTile(Raw raw, int tileNumber, int start, int end) {
+            this.raw = raw;
             this.tileNumber = tileNumber;
             this.tileStart = start;
             this.tileEnd = end;
@@ -447,7 +519,7 @@ public class Preprocessor implements DataConsumer {
 
                     String[] n = nameList == null ? null : nameList.toArray(new String[]{});
                     TDFBedTile tile = new TDFBedTile(tileStart, s, e, d, n);
-                    writer.writeTile(dsName, tileNumber, tile);
+                    raw.emit(raw.dataset, tileNumber, tile);
                     startArray.clear();
                     endArray.clear();
                     for (int i = 0; i < dataArray.length; i++) {
@@ -464,7 +536,7 @@ public class Preprocessor implements DataConsumer {
     /**
      * Class representing the raw dataset
      */
-    class Raw {
+    class Raw extends Level {
 
 
         String chr;
@@ -509,21 +581,11 @@ public class Preprocessor implements DataConsumer {
             for (int t = startTileNumber; t <= endTileNumber; t++) {
                 RawTile tile = activeTiles.get(t);
                 if (tile == null) {
-                    tile = new RawTile(dsName, t, t * tileWidth, (t + 1) * tileWidth);
+                    tile = new RawTile(this, t, t * tileWidth, (t + 1) * tileWidth);
                     activeTiles.put(t, tile);
                 }
                 tile.addData(start, end, data, name);
             }
-
-            // Update progress -- assume uniform distribution
-            if (statusMonitor != null && sizeEstimate > 0) {
-                int p = (int) ((100.0 * nPtsProcessed) / (1.5 * sizeEstimate));
-                if (p > percentComplete) {
-                    percentComplete = p;
-                    statusMonitor.setPercentComplete(percentComplete);
-                }
-            }
-            nPtsProcessed++;
         }
 
         void close() {
@@ -539,7 +601,7 @@ public class Preprocessor implements DataConsumer {
     /**
      * Class representing all the data for a particular zoom level.
      */
-    class Zoom {
+    class Zoom extends Level {
 
         int level;
         int tileWidth;
@@ -581,7 +643,7 @@ public class Preprocessor implements DataConsumer {
             for (int i = startTile; i <= endTile; i++) {
                 Tile t = activeTiles.get(i);
                 if (t == null) {
-                    t = new Tile(datasets, level, i, 700, tileWidth);
+                    t = new Tile(this, i, 700, tileWidth);
                     activeTiles.put(i, t);
                 }
                 t.addData(start, end, data);
@@ -609,12 +671,14 @@ public class Preprocessor implements DataConsumer {
         int nBins;
         int nonEmptyBins;
         ListAccumulator[][] accumulators;
+        Zoom zoom;
         Map<WindowFunction, TDFDataset> datasets;
 
-        Tile(Map<WindowFunction, TDFDataset> datasets, int zoomLevel, int tileNumber, int nBins, int tileWidth) {
+        Tile(Zoom zoom, int tileNumber, int nBins, int tileWidth) {
             this.totalCount = 0;
-            this.datasets = datasets;
-            this.zoomLevel = zoomLevel;
+            this.zoom = zoom;
+            this.datasets = zoom.datasets;
+            this.zoomLevel = zoom.level;
             this.tileNumber = tileNumber;
             this.tileStart = tileNumber * tileWidth;
             this.nBins = nBins;
@@ -648,7 +712,7 @@ public class Preprocessor implements DataConsumer {
 
                 for (int b = startBin; b <= endBin; b++) {
                     if (accumulators[t][b] == null) {
-                        accumulators[t][b] = new ListAccumulator(datasets.keySet());
+                        accumulators[t][b] = new ListAccumulator(datasets.keySet(), percentileSketch);
                     }
                     accumulators[t][b].add(end - start, data[t]);
                 }
@@ -709,9 +773,10 @@ public class Preprocessor implements DataConsumer {
                     tile = new TDFFixedTile(tileStart, tileStart, binWidth, data);
                 }
 
-                String dsName = datasets.get(wf).getName();
+                TDFDataset dataset = datasets.get(wf);
+                String dsName = dataset.getName();
                 try {
-                    writer.writeTile(dsName, tileNumber, tile);
+                    zoom.emit(dataset, tileNumber, tile);
                 } catch (IOException exc) {
                     log.error("Error writing tile: " + dsName + " [" + tileNumber + "]", exc);
                     throw new PreprocessingException(exc.getMessage());
@@ -772,4 +837,261 @@ public class Preprocessor implements DataConsumer {
             return filename.substring(idx).toLowerCase();
         }
     }
+
+    /**
+     * Builds the raw, zoom, and whole genome levels concurrently.  Records are handed to the levels in batches, and
+     * each level processes its batches in order on a shared pool, so levels are built in parallel with each other
+     * and with parsing.  Tiles closed while processing a batch are encoded and compressed on the pool, and appended
+     * to the file by a single writer thread in the order the sequential path writes them.  The file is therefore
+     * identical to one written on a single thread.
+     */
+    class Pipeline {
+
+        static final int BATCH_SIZE = 4096;
+
+        final ExecutorService pool;
+        final ExecutorService writerService;
+        final ArrayDeque<Future<?>> pendingWrites = new ArrayDeque<>();
+        final int maxPendingWrites;
+        long nextEvent = 0;
+        Batch batch;
+
+        Pipeline(int threads) {
+            pool = newPool(threads, "tdf-preprocess");
+            writerService = newPool(1, "tdf-writer");
+            maxPendingWrites = 2 * threads;
+        }
+
+        void addData(int start, int end, float[] data, String name, boolean inGenome, int gStart, int gEnd) {
+            if (batch == null) {
+                batch = new Batch(nextEvent);
+            }
+            // Parsers reuse their data arrays
+            batch.add(start, end, data.clone(), name, inGenome, gStart, gEnd);
+            nextEvent++;
+            if (batch.size == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch == null) {
+                return;
+            }
+            final Batch b = batch;
+            batch = null;
+
+            // Capture the current levels, the fields move on with the next chromosome
+            final Raw raw = rawData;
+            final Zoom[] zooms = zoomLevels;
+            final Zoom gZoom = genomeZoom;
+
+            List<CompletableFuture<List<PendingTile>>> results = new ArrayList<>();
+            results.add(submit(raw, 0, collector -> {
+                for (int i = 0; i < b.size; i++) {
+                    collector.event = b.firstEvent + i;
+                    raw.addData(b.start[i], b.end[i], b.data[i], b.name[i]);
+                }
+            }));
+            for (int z = 0; z < zooms.length; z++) {
+                final Zoom zoom = zooms[z];
+                results.add(submit(zoom, 1 + z, collector -> {
+                    for (int i = 0; i < b.size; i++) {
+                        collector.event = b.firstEvent + i;
+                        zoom.addData(b.start[i], b.end[i], b.data[i]);
+                    }
+                }));
+            }
+            if (gZoom != null && b.hasGenomeData) {
+                results.add(submit(gZoom, 1 + zooms.length, collector -> {
+                    for (int i = 0; i < b.size; i++) {
+                        if (b.inGenome[i]) {
+                            collector.event = b.firstEvent + i;
+                            gZoom.addData(b.gStart[i], b.gEnd[i], b.data[i]);
+                            for (int j = 0; j < b.data[i].length; j++) {
+                                allDataStats.add(b.gEnd[i] - b.gStart[i], b.data[i][j]);
+                            }
+                        }
+                    }
+                }));
+            }
+            write(results);
+        }
+
+        /**
+         * Close the levels, in the order given
+         */
+        void close(List<Level> levels) {
+            flush();
+            final long event = nextEvent++;
+            List<CompletableFuture<List<PendingTile>>> results = new ArrayList<>();
+            for (int i = 0; i < levels.size(); i++) {
+                final Level level = levels.get(i);
+                results.add(submit(level, i, collector -> {
+                    collector.event = event;
+                    level.close();
+                }));
+            }
+            write(results);
+        }
+
+        /**
+         * Wait for all tiles to be written and release the threads
+         */
+        void finish() {
+            flush();
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    await(pendingWrites.poll());
+                }
+            } finally {
+                pool.shutdown();
+                writerService.shutdown();
+            }
+        }
+
+        CompletableFuture<List<PendingTile>> submit(Level level, int rank, Consumer<TileCollector> task) {
+            CompletableFuture<List<PendingTile>> result = level.chain.thenApplyAsync(ignored -> {
+                TileCollector collector = new TileCollector(rank);
+                level.collector = collector;
+                try {
+                    task.accept(collector);
+                } finally {
+                    level.collector = null;
+                }
+                return collector.tiles;
+            }, pool);
+            level.chain = result;
+            return result;
+        }
+
+        void write(List<CompletableFuture<List<PendingTile>>> results) {
+            Future<?> f = writerService.submit(() -> {
+                List<PendingTile> tiles = new ArrayList<>();
+                for (CompletableFuture<List<PendingTile>> r : results) {
+                    tiles.addAll(r.join());
+                }
+                // Stable, tiles from the same level and event keep the order they were closed in
+                tiles.sort(Comparator.comparingLong((PendingTile t) -> t.event).thenComparingInt(t -> t.rank));
+
+                List<Future<byte[]>> encoded = new ArrayList<>(tiles.size());
+                for (PendingTile t : tiles) {
+                    encoded.add(pool.submit(() -> writer.encodeTile(t.tile)));
+                }
+                for (int i = 0; i < tiles.size(); i++) {
+                    PendingTile t = tiles.get(i);
+                    writer.writeEncodedTile(t.dataset, t.tileNumber, encoded.get(i).get());
+                }
+                return null;
+            });
+            pendingWrites.add(f);
+
+            // Bound the work in flight, and surface failures early
+            while (pendingWrites.size() > maxPendingWrites ||
+                    (!pendingWrites.isEmpty() && pendingWrites.peek().isDone())) {
+                await(pendingWrites.poll());
+            }
+        }
+
+        void await(Future<?> f) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                writerService.shutdownNow();
+                throw new PreprocessingException("Preprocessing Halted.");
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                writerService.shutdownNow();
+                Throwable cause = e.getCause();
+                while ((cause instanceof CompletionException || cause instanceof ExecutionException) &&
+                        cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                log.error("Error writing tiles", cause);
+                throw new PreprocessingException(cause.getMessage());
+            }
+        }
+    }
+
+    private static ExecutorService newPool(int threads, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        // Idle threads exit if preprocessing is abandoned without finish()
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * A batch of records for the pipeline
+     */
+    static class Batch {
+        final long firstEvent;
+        int size = 0;
+        boolean hasGenomeData = false;
+        final int[] start = new int[Pipeline.BATCH_SIZE];
+        final int[] end = new int[Pipeline.BATCH_SIZE];
+        final float[][] data = new float[Pipeline.BATCH_SIZE][];
+        final String[] name = new String[Pipeline.BATCH_SIZE];
+        final boolean[] inGenome = new boolean[Pipeline.BATCH_SIZE];
+        final int[] gStart = new int[Pipeline.BATCH_SIZE];
+        final int[] gEnd = new int[Pipeline.BATCH_SIZE];
+
+        Batch(long firstEvent) {
+            this.firstEvent = firstEvent;
+        }
+
+        void add(int start, int end, float[] data, String name, boolean inGenome, int gStart, int gEnd) {
+            this.start[size] = start;
+            this.end[size] = end;
+            this.data[size] = data;
+            this.name[size] = name;
+            this.inGenome[size] = inGenome;
+            this.gStart[size] = gStart;
+            this.gEnd[size] = gEnd;
+            hasGenomeData |= inGenome;
+            size++;
+        }
+    }
+
+    /**
+     * Tiles closed by a level task, tagged with the record or close event that closed them and the rank of the
+     * level within it.
+     */
+    static class TileCollector {
+        final int rank;
+        long event;
+        final List<PendingTile> tiles = new ArrayList<>();
+
+        TileCollector(int rank) {
+            this.rank = rank;
+        }
+
+        void add(TDFDataset dataset, int tileNumber, TDFTile tile) {
+            tiles.add(new PendingTile(event, rank, dataset, tileNumber, tile));
+        }
+    }
+
+    static class PendingTile {
+        final long event;
+        final int rank;
+        final TDFDataset dataset;
+        final int tileNumber;
+        final TDFTile tile;
+
+        PendingTile(long event, int rank, TDFDataset dataset, int tileNumber, TDFTile tile) {
+            this.event = event;
+            this.rank = rank;
+            this.dataset = dataset;
+            this.tileNumber = tileNumber;
+            this.tile = tile;
+        }
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.util.collections;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache that can be read and written concurrently without a global lock.  Unlike {@link LRUCache} the
+ * recency order is approximate: each entry records a logical access time, and when the cache grows past its maximum
+ * size the least recently accessed entries are removed.  Null keys and values are not allowed.
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    public ConcurrentLRUCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cached value, or null if there is none
+     */
+    public V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) {
+            return null;
+        }
+        e.lastAccess = clock.incrementAndGet();
+        return e.value;
+    }
+
+    public void put(K key, V value) {
+        map.put(key, new Entry<>(value, clock.incrementAndGet()));
+        trim();
+    }
+
+    /**
+     * Cache {@code value} unless another thread has already cached a value for the key.
+     *
+     * @return the value held by the cache after the call, which is {@code value} unless a value was already present
+     */
+    public V cacheIfAbsent(K key, V value) {
+        Entry<V> entry = new Entry<>(value, clock.incrementAndGet());
+        Entry<V> current = map.putIfAbsent(key, entry);
+        if (current != null) {
+            current.lastAccess = entry.lastAccess;
+            return current.value;
+        }
+        trim();
+        return value;
+    }
+
+    public V remove(K key) {
+        Entry<V> e = map.remove(key);
+        return e == null ? null : e.value;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    private void trim() {
+        if (map.size() <= maxEntries) {
+            return;
+        }
+        // Eviction is rare, a scan is cheap for the small caches this is used for
+        synchronized (this) {
+            while (map.size() > maxEntries) {
+                K eldestKey = null;
+                Entry<V> eldest = null;
+                Iterator<Map.Entry<K, Entry<V>>> iter = map.entrySet().iterator();
+                while (iter.hasNext()) {
+                    Map.Entry<K, Entry<V>> e = iter.next();
+                    if (eldest == null || e.getValue().lastAccess < eldest.lastAccess) {
+                        eldestKey = e.getKey();
+                        eldest = e.getValue();
+                    }
+                }
+                if (eldest == null) {
+                    break;
+                }
+                map.remove(eldestKey, eldest);
+            }
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        volatile long lastAccess;
+
+        Entry(V value, long lastAccess) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
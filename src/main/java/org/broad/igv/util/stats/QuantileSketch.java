@@ -0,0 +1,200 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.util.stats;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile estimate in bounded memory.  This is a KLL sketch (Karnin, Lang and Liberty, "Optimal Quantile
+ * Approximation in Streams", 2016).
+ * <p/>
+ * Values are held in a stack of compactors, where a value on level h stands for 2^h inputs.  When a level is full it
+ * is sorted and every other value, starting at a random offset, is promoted to the next level.  Level capacities
+ * shrink by 2/3 below the top level, so about 3k values are retained however many are added.  Every promotion keeps
+ * the total weight equal to the number of values added.
+ * <p/>
+ * Error bounds: the rank of the value returned by {@link #getQuantile(double)} is within about 1.7% of n of the
+ * requested rank, with 99% confidence, for the default k = 200.  The rank error scales roughly as 1/k.  Until k
+ * values have been added nothing is compacted, and the result is the exact nearest rank value.  The bound is on rank,
+ * not value; in a sparse tail of the distribution the value error can be larger.  The random offsets come from a
+ * fixed seed, so the same input always gives the same estimate.
+ *
+ * @see <a href="https://arxiv.org/abs/1603.05346">arXiv:1603.05346</a>
+ */
+public class QuantileSketch {
+
+    public static final int DEFAULT_K = 200;
+
+    private static final double CAPACITY_RATIO = 2.0 / 3.0;
+    private static final int MIN_CAPACITY = 8;
+
+    private final int k;
+    private float[][] levels;
+    private int[] sizes;
+    private long n = 0;
+    private long randomState = 0x9E3779B97F4A7C15L;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k accuracy parameter, the capacity of the top level.  Memory is about 3k floats.
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY);
+        }
+        this.k = k;
+        levels = new float[][]{new float[k]};
+        sizes = new int[1];
+    }
+
+    /**
+     * Add a value.  NaN values are ignored.
+     */
+    public void add(float v) {
+        if (Float.isNaN(v)) {
+            return;
+        }
+        if (sizes[0] >= capacity(0)) {
+            compress();
+        }
+        append(0, v);
+        n++;
+    }
+
+    /**
+     * @return number of values added
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * @return number of values currently retained
+     */
+    public int getRetainedSize() {
+        int total = 0;
+        for (int size : sizes) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Estimate the value at quantile q, using the nearest rank definition.
+     *
+     * @param q quantile, between 0 and 1
+     * @return estimated value, or NaN if no values have been added
+     */
+    public float getQuantile(double q) {
+        if (n == 0) {
+            return Float.NaN;
+        }
+
+        // Sort values together with their level, packed as (ordered float bits, level)
+        long[] keys = new long[getRetainedSize()];
+        int idx = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                int bits = Float.floatToIntBits(levels[h][i]);
+                bits ^= (bits >> 31) & 0x7fffffff;
+                keys[idx++] = ((long) bits << 8) | h;
+            }
+        }
+        Arrays.sort(keys);
+
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long cumulativeWeight = 0;
+        for (long key : keys) {
+            cumulativeWeight += 1L << (key & 0xff);
+            if (cumulativeWeight >= rank) {
+                return toFloat(key);
+            }
+        }
+        return toFloat(keys[keys.length - 1]);
+    }
+
+    private static float toFloat(long key) {
+        int bits = (int) (key >> 8);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return Float.intBitsToFloat(bits);
+    }
+
+    private int capacity(int level) {
+        int depth = levels.length - level - 1;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+    }
+
+    /**
+     * Compact the lowest full level, and any levels its promotions fill in turn
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length && sizes[h] >= capacity(h); h++) {
+            if (h == levels.length - 1) {
+                levels = Arrays.copyOf(levels, levels.length + 1);
+                levels[h + 1] = new float[MIN_CAPACITY];
+                sizes = Arrays.copyOf(sizes, sizes.length + 1);
+            }
+            compact(h);
+        }
+    }
+
+    private void compact(int h) {
+        float[] items = levels[h];
+        int size = sizes[h];
+        Arrays.sort(items, 0, size);
+
+        // With an odd count the largest value stays on this level
+        int pairs = size / 2;
+        int offset = nextBit();
+        for (int i = 0; i < pairs; i++) {
+            append(h + 1, items[2 * i + offset]);
+        }
+        if (size % 2 == 1) {
+            items[0] = items[size - 1];
+            sizes[h] = 1;
+        } else {
+            sizes[h] = 0;
+        }
+    }
+
+    private void append(int h, float v) {
+        if (sizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], Math.max(MIN_CAPACITY, 2 * levels[h].length));
+        }
+        levels[h][sizes[h]++] = v;
+    }
+
+    // xorshift64
+    private int nextBit() {
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 7;
+        randomState ^= randomState << 17;
+        return (int) (randomState >>> 63);
+    }
+}
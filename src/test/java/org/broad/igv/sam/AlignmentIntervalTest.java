@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AlignmentIntervalTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Test
+    public void testLayoutCache() {
+
+        AlignmentInterval interval = new AlignmentInterval("chr1", 1000, 2000, createAlignments(), null, null, null);
+        AlignmentTrack.RenderOptions renderOptions = new AlignmentTrack.RenderOptions();
+
+        renderOptions.setGroupByOption(AlignmentTrack.GroupOption.NONE);
+        interval.packAlignments(renderOptions);
+        PackedAlignments ungrouped = interval.getPackedAlignments();
+
+        renderOptions.setGroupByOption(AlignmentTrack.GroupOption.STRAND);
+        interval.packAlignments(renderOptions);
+        PackedAlignments byStrand = interval.getPackedAlignments();
+        assertNotSame(ungrouped, byStrand);
+        assertEquals(2, byStrand.size());
+
+        // Switching back reuses the earlier layouts
+        renderOptions.setGroupByOption(AlignmentTrack.GroupOption.NONE);
+        interval.packAlignments(renderOptions);
+        assertSame(ungrouped, interval.getPackedAlignments());
+        renderOptions.setGroupByOption(AlignmentTrack.GroupOption.STRAND);
+        interval.packAlignments(renderOptions);
+        assertSame(byStrand, interval.getPackedAlignments());
+
+        // Pairing is part of the key
+        renderOptions.setViewPairs(true);
+        interval.packAlignments(renderOptions);
+        assertNotSame(byStrand, interval.getPackedAlignments());
+        renderOptions.setViewPairs(false);
+
+        // An explicit repack discards cached layouts
+        interval.repackAlignments(renderOptions);
+        assertNotSame(byStrand, interval.getPackedAlignments());
+
+        // Pair orientation groups follow the expected orientation of each library
+        PEStats stats = new PEStats("null");
+        renderOptions.peStats.put("null", stats);
+        renderOptions.setGroupByOption(AlignmentTrack.GroupOption.PAIR_ORIENTATION);
+        interval.packAlignments(renderOptions);
+        PackedAlignments byOrientation = interval.getPackedAlignments();
+        interval.packAlignments(renderOptions);
+        assertSame(byOrientation, interval.getPackedAlignments());
+        stats.orientation = PEStats.Orientation.RF;
+        interval.packAlignments(renderOptions);
+        assertNotSame(byOrientation, interval.getPackedAlignments());
+
+        // Haplotype layouts depend on clustering, not only options, and are never reused
+        renderOptions.setGroupByOption(AlignmentTrack.GroupOption.HAPLOTYPE);
+        interval.packAlignments(renderOptions);
+        PackedAlignments byHaplotype = interval.getPackedAlignments();
+        interval.packAlignments(renderOptions);
+        assertNotSame(byHaplotype, interval.getPackedAlignments());
+    }
+
+    private static List<Alignment> createAlignments() {
+        List<Alignment> alignments = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            SAMRecord record = new SAMRecord(null);
+            record.setReadName("read" + i);
+            record.setReferenceName("chr1");
+            record.setAlignmentStart(1000 + 5 * i);
+            record.setCigarString("50M");
+            record.setReadNegativeStrandFlag(i % 2 == 0);
+            alignments.add(new SAMAlignment(record));
+        }
+        return alignments;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.broad.igv.sam;
+
+import org.broad.igv.Globals;
+import org.broad.igv.feature.Range;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.ui.panel.ReferenceFrame;
+import org.broad.igv.util.ResourceLocator;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.broad.igv.prefs.Constants.SAM_PREFETCH;
+import static org.junit.Assert.*;
+
+public class AlignmentPrefetcherTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Test
+    public void testClearDropsPrefetched() throws Exception {
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldPrefetch = prefs.get(SAM_PREFETCH);
+        prefs.put(SAM_PREFETCH, "true");
+        try {
+            AlignmentDataManager manager = new AlignmentDataManager(
+                    new ResourceLocator(TestUtils.DATA_DIR + "bam/gstt1_sample.bam"), null);
+            AlignmentPrefetcher prefetcher = manager.getPrefetcher();
+            assertNotNull(prefetcher);
+            AlignmentTrack.RenderOptions renderOptions = new AlignmentTrack.RenderOptions();
+
+            // Pan right across a loaded interval, the interval beyond it is prefetched
+            AlignmentInterval loaded = new AlignmentInterval("chr22", 24366000, 24376200, new ArrayList<>(), null, null, null);
+            TestFrame frame = new TestFrame("chr22", 24370000, 4000);
+            prefetcher.frameChecked(frame, loaded, renderOptions);
+            long prefetchCount = AlignmentPrefetcher.getPrefetchCount();
+            frame.origin = 24371000;
+            prefetcher.frameChecked(frame, loaded, renderOptions);
+
+            long timeout = System.currentTimeMillis() + 30000;
+            while (AlignmentPrefetcher.getPrefetchCount() == prefetchCount && System.currentTimeMillis() < timeout) {
+                Thread.sleep(20);
+            }
+            assertEquals(prefetchCount + 1, AlignmentPrefetcher.getPrefetchCount());
+
+            // A reload, for example after a preference change, must not be served from the prefetched interval
+            manager.clear();
+            frame.origin = 24376000;
+            assertNull(prefetcher.take(frame));
+        } finally {
+            prefs.put(SAM_PREFETCH, oldPrefetch);
+        }
+    }
+
+    private static class TestFrame extends ReferenceFrame {
+
+        final String chr;
+        double origin;
+        final int width;
+
+        TestFrame(String chr, double origin, int width) {
+            super("prefetch-test");
+            this.chr = chr;
+            this.origin = origin;
+            this.width = width;
+        }
+
+        @Override
+        public String getChrName() {
+            return chr;
+        }
+
+        @Override
+        public double getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public int getChromosomeLength() {
+            return 50000000;
+        }
+
+        @Override
+        public Range getCurrentRange() {
+            return new Range(chr, (int) origin, (int) origin + width);
+        }
+    }
+}
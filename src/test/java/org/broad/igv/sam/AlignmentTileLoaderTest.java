@@ -157,4 +157,88 @@ public class AlignmentTileLoaderTest extends AbstractHeadlessTest {
 
     }
 
+    /**
+     * Test that the parallel decode pipeline returns the same tile contents, in the same order, as the serial path.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testParallelDecode() throws Exception {
+        String path = TestUtils.DATA_DIR + "bam/gstt1_sample.bam";
+        String sequence = "chr22";
+        int start = 24376039;
+        int end = 24376625;
+
+        String oldThreads = PreferencesManager.getPreferences().get(Constants.SAM_DECODE_THREADS);
+        try {
+            PreferencesManager.getPreferences().put(Constants.SAM_DECODE_THREADS, "1");
+            List<Alignment> expected = loadAlignments(path, sequence, start, end);
+
+            PreferencesManager.getPreferences().put(Constants.SAM_DECODE_THREADS, "4");
+            List<Alignment> actual = loadAlignments(path, sequence, start, end);
+
+            assertTrue("No alignments loaded", expected.size() > 0);
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Alignment e = expected.get(i);
+                Alignment a = actual.get(i);
+                assertEquals(e.getReadName(), a.getReadName());
+                assertEquals(e.getStart(), a.getStart());
+                assertEquals(e.getEnd(), a.getEnd());
+                assertEquals(e.getCigarString(), a.getCigarString());
+                assertEquals(e.getMappingQuality(), a.getMappingQuality());
+            }
+        } finally {
+            PreferencesManager.getPreferences().put(Constants.SAM_DECODE_THREADS, oldThreads);
+        }
+    }
+
+    /**
+     * Test that reads discarded by downsampling, which are counted from the raw records without building alignments,
+     * give the same coverage as a load without downsampling.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDownsampledCounts() throws Exception {
+        String path = TestUtils.DATA_DIR + "bam/gstt1_sample.bam";
+        String sequence = "chr22";
+        int start = 24376039;
+        int end = 24376625;
+
+        AlignmentTileLoader.AlignmentTile expected = loadTile(path, sequence, start, end,
+                new AlignmentDataManager.DownsampleOptions(false, 50, 100));
+        AlignmentTileLoader.AlignmentTile actual = loadTile(path, sequence, start, end,
+                new AlignmentDataManager.DownsampleOptions(true, 50, 2));
+
+        assertTrue("No reads discarded", actual.getAlignments().size() < expected.getAlignments().size());
+        assertTrue(actual.getDownsampledIntervals().size() > 0);
+
+        AlignmentCounts e = expected.getCounts();
+        AlignmentCounts a = actual.getCounts();
+        for (int pos = start; pos < end; pos++) {
+            assertEquals(e.getTotalCount(pos), a.getTotalCount(pos));
+            assertEquals(e.getTotalQuality(pos), a.getTotalQuality(pos));
+            assertEquals(e.getDelCount(pos), a.getDelCount(pos));
+            assertEquals(e.getInsCount(pos), a.getInsCount(pos));
+            for (byte b : new byte[]{'A', 'C', 'G', 'T', 'N'}) {
+                assertEquals(e.getPosCount(pos, b), a.getPosCount(pos, b));
+                assertEquals(e.getNegCount(pos, b), a.getNegCount(pos, b));
+            }
+        }
+    }
+
+    private List<Alignment> loadAlignments(String path, String sequence, int start, int end) throws Exception {
+        return loadTile(path, sequence, start, end, new AlignmentDataManager.DownsampleOptions(false, 50, 100)).getAlignments();
+    }
+
+    private AlignmentTileLoader.AlignmentTile loadTile(String path, String sequence, int start, int end,
+                                                       AlignmentDataManager.DownsampleOptions downsampleOptions) throws Exception {
+        AlignmentReader reader = AlignmentReaderFactory.getReader(new ResourceLocator(path));
+        AlignmentTileLoader loader = new AlignmentTileLoader(reader);
+        AlignmentTileLoader.AlignmentTile tile = loader.loadTile(sequence, start, end, null, downsampleOptions, null, null);
+        loader.close();
+        return tile;
+    }
+
 }
@@ -0,0 +1,191 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import org.broad.igv.Globals;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarAlignmentStoreTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkRoundTrip(TestUtils.DATA_DIR + "bam/gstt1_sample.bam");
+        // Includes unsigned array (ML) tags
+        checkRoundTrip(TestUtils.DATA_DIR + "bam/chr20_mod_call_sample.bam");
+    }
+
+    private void checkRoundTrip(String path) throws Exception {
+
+        List<SAMAlignment> alignments = readAlignments(path);
+        assertTrue(alignments.size() > 0);
+
+        ColumnarAlignmentStore store = new ColumnarAlignmentStore();
+        List<CompactAlignment> views = new ArrayList<>();
+        for (SAMAlignment alignment : alignments) {
+            views.add(store.add(alignment));
+        }
+        assertEquals(alignments.size(), store.size());
+
+        for (int i = 0; i < alignments.size(); i++) {
+            SAMAlignment expected = alignments.get(i);
+            CompactAlignment view = views.get(i);
+            assertEquals(expected.getReadName(), view.getReadName());
+            assertEquals(expected.getStart(), view.getStart());
+            assertEquals(expected.getEnd(), view.getEnd());
+            assertEquals(expected.getAlignmentStart(), view.getAlignmentStart());
+            assertEquals(expected.getAlignmentEnd(), view.getAlignmentEnd());
+            assertEquals(expected.getMappingQuality(), view.getMappingQuality());
+            assertEquals(expected.isNegativeStrand(), view.isNegativeStrand());
+            assertEquals(expected.isPaired(), view.isPaired());
+            assertEquals(expected.getCigarString(), view.getCigarString());
+            assertEquals(expected.getChr(), view.getChr());
+            if (expected.getMate() != null) {
+                assertEquals(expected.getMate().positionString(), view.getMate().positionString());
+            }
+
+            SAMRecord record = expected.getRecord();
+            assertEquals(record.getSAMString(), view.materialize().getRecord().getSAMString());
+            if (record.hasAttribute("ML")) {
+                assertTrue(view.materialize().getRecord().isUnsignedArrayAttribute("ML"));
+            }
+            assertBlocksEqual(expected.getAlignmentBlocks(), view.getAlignmentBlocks());
+            assertBlocksEqual(expected.getInsertions(), view.getInsertions());
+            assertEquals(gapString(expected.getGaps()), gapString(view.getGaps()));
+            assertEquals(expected.getReadSequence(), view.getReadSequence());
+            assertEquals(expected.getPairOrientation(), view.getPairOrientation());
+            assertEquals(expected.getFirstOfPairStrand(), view.getFirstOfPairStrand());
+            assertEquals(expected.getSecondOfPairStrand(), view.getSecondOfPairStrand());
+            assertEquals(expected.getReadGroup(), view.getReadGroup());
+            assertEquals(expected.getSample(), view.getSample());
+            for (SAMRecord.SAMTagAndValue tv : record.getAttributes()) {
+                Object value = view.getAttribute(tv.tag);
+                // Tags are decoded once per view, not on each call
+                assertSame(tv.tag, value, view.getAttribute(tv.tag));
+                if (tv.value.getClass().isArray()) {
+                    assertEquals(tv.tag, arrayString(tv.value), arrayString(value));
+                } else {
+                    assertEquals(tv.tag, tv.value, value);
+                }
+            }
+            int mid = (expected.getAlignmentStart() + expected.getAlignmentEnd()) / 2;
+            assertEquals(expected.getBase(mid), view.getBase(mid));
+            assertEquals(expected.getPhred(mid), view.getPhred(mid));
+            BaseModificationSet expectedMods = expected.getBaseModificationSet();
+            BaseModificationSet mods = view.getBaseModificationSet();
+            assertEquals(expectedMods == null, mods == null);
+        }
+    }
+
+    private static void assertBlocksEqual(AlignmentBlock[] expected, AlignmentBlock[] blocks) {
+        assertEquals(expected.length, blocks.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getStart(), blocks[i].getStart());
+            assertEquals(expected[i].getLength(), blocks[i].getLength());
+            assertEquals(expected[i].getBases().getString(), blocks[i].getBases().getString());
+            assertEquals(expected[i].isSoftClip(), blocks[i].isSoftClip());
+        }
+    }
+
+    private static String gapString(List<Gap> gaps) {
+        if (gaps == null) {
+            return "";
+        }
+        StringBuilder buf = new StringBuilder();
+        for (Gap gap : gaps) {
+            buf.append(gap.getStart()).append(gap.getnBases()).append(gap.getType()).append(';');
+        }
+        return buf.toString();
+    }
+
+    private static String arrayString(Object array) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < java.lang.reflect.Array.getLength(array); i++) {
+            buf.append(java.lang.reflect.Array.get(array, i)).append(',');
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+
+        List<SAMAlignment> alignments = readAlignments(TestUtils.DATA_DIR + "bam/gstt1_sample.bam");
+        ColumnarAlignmentStore store = new ColumnarAlignmentStore();
+        List<Alignment> kept = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < alignments.size(); i++) {
+            CompactAlignment view = store.add(alignments.get(i));
+            if (i % 3 == 0) {
+                kept.add(view);
+                expected.add(alignments.get(i).getRecord().getSAMString());
+            }
+        }
+        ((CompactAlignment) kept.get(0)).setMateSequence("ACGT");
+        kept.get(1).setHaplotypeName("H2");
+        kept.get(1).setHapDistance(7);
+
+        ColumnarAlignmentStore.compact(kept);
+
+        CompactAlignment first = (CompactAlignment) kept.get(0);
+        assertNotSame(store, first.store);
+        assertEquals(kept.size(), first.store.size());
+        assertEquals("ACGT", first.store.getMateSequence(first.index));
+        assertNull(first.getHaplotypeName());
+        assertEquals("H2", kept.get(1).getHaplotypeName());
+        assertEquals(7, kept.get(1).getHapDistance());
+        for (int i = 0; i < kept.size(); i++) {
+            assertEquals(expected.get(i), ((CompactAlignment) kept.get(i)).materialize().getRecord().getSAMString());
+        }
+    }
+
+    private static List<SAMAlignment> readAlignments(String path) throws Exception {
+        List<SAMAlignment> alignments = new ArrayList<>();
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(path))) {
+            for (SAMRecord record : reader) {
+                if (!record.getReadUnmappedFlag()) {
+                    alignments.add(new SAMAlignment(record));
+                }
+            }
+        }
+        return alignments;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import org.broad.igv.Globals;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactAlignmentCountsTest {
+
+    private static List<SAMAlignment> alignments;
+    private static int start;
+    private static int end;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Globals.setHeadless(true);
+        alignments = new ArrayList<>();
+        start = Integer.MAX_VALUE;
+        end = 0;
+        String path = TestUtils.DATA_DIR + "bam/gstt1_sample.bam";
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(path))) {
+            for (SAMRecord record : reader) {
+                if (!record.getReadUnmappedFlag()) {
+                    SAMAlignment alignment = new SAMAlignment(record);
+                    alignments.add(alignment);
+                    start = Math.min(start, alignment.getStart());
+                    end = Math.max(end, alignment.getEnd());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesDenseCounts() {
+
+        DenseAlignmentCounts dense = new DenseAlignmentCounts(start, end, null);
+        CompactAlignmentCounts compact = new CompactAlignmentCounts(start, end, null, true, true);
+        for (Alignment a : alignments) {
+            dense.incCounts(a);
+            compact.incCounts(a);
+        }
+
+        for (int pos = start - 10; pos < end + 10; pos++) {
+            assertEquals(dense.getTotalCount(pos), compact.getTotalCount(pos));
+            assertEquals(dense.getTotalQuality(pos), compact.getTotalQuality(pos));
+            assertEquals(dense.getDelCount(pos), compact.getDelCount(pos));
+            assertEquals(dense.getInsCount(pos), compact.getInsCount(pos));
+            for (char c : BaseAlignmentCounts.nucleotides) {
+                byte b = (byte) c;
+                assertEquals(dense.getCount(pos, b), compact.getCount(pos, b));
+                assertEquals(dense.getPosCount(pos, b), compact.getPosCount(pos, b));
+                assertEquals(dense.getNegCount(pos, b), compact.getNegCount(pos, b));
+                assertEquals(dense.getQuality(pos, b), compact.getQuality(pos, b));
+            }
+            assertEquals(dense.getValueStringAt(pos), compact.getValueStringAt(pos));
+        }
+        for (int s = start; s < end; s += 37) {
+            assertEquals(dense.getMaxCount(s, s + 500), compact.getMaxCount(s, s + 500));
+        }
+
+        // Depth here is well below 256, so quality sums are the only cells wider than a byte
+        long denseBytes = 20L * 4 * (end - start);
+        assertTrue(compact.getAllocatedBytes() < denseBytes / 2);
+    }
+
+    @Test
+    public void testWithoutStrandOrQuality() {
+
+        CompactAlignmentCounts full = new CompactAlignmentCounts(start, end, null, true, true);
+        CompactAlignmentCounts compact = new CompactAlignmentCounts(start, end, null, false, false);
+        for (Alignment a : alignments) {
+            full.incCounts(a);
+            compact.incCounts(a);
+        }
+        assertTrue(compact.getAllocatedBytes() < full.getAllocatedBytes());
+
+        for (int pos = start; pos < end; pos++) {
+            assertEquals(full.getTotalCount(pos), compact.getTotalCount(pos));
+            assertEquals(full.getTotalCount(pos), compact.getTotalQuality(pos));
+            for (char c : BaseAlignmentCounts.nucleotides) {
+                byte b = (byte) c;
+                int count = full.getCount(pos, b);
+                assertEquals(count, compact.getCount(pos, b));
+                assertEquals(count, compact.getPosCount(pos, b) + compact.getNegCount(pos, b));
+                assertEquals(count, compact.getQuality(pos, b));
+            }
+        }
+    }
+
+    @Test
+    public void testCellPromotion() {
+
+        int length = 3 * CompactAlignmentCounts.CHUNK_SIZE + 17;
+        CompactAlignmentCounts.Cells cells = new CompactAlignmentCounts.Cells(length);
+        int[] expected = new int[length];
+        assertEquals(0, cells.getAllocatedBytes());
+
+        Random random = new Random(7);
+        for (int n = 0; n < 20000; n++) {
+            int i = random.nextInt(length);
+            int delta = random.nextInt(100);
+            expected[i] += delta;
+            assertEquals(expected[i], cells.add(i, delta));
+        }
+        // Push single cells past the short range, and below zero
+        int last = length - 1;
+        for (int n = 0; n < 1000; n++) {
+            expected[0] += 100;
+            cells.add(0, 100);
+        }
+        expected[last] -= 1000;
+        cells.add(last, -1000);
+
+        for (int i = 0; i < length; i++) {
+            assertEquals(expected[i], cells.get(i));
+        }
+    }
+}
@@ -25,9 +25,13 @@
 
 package org.broad.igv.sam;
 
+import htsjdk.samtools.SAMRecord;
 import org.broad.igv.AbstractHeadlessTest;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * @author jacob
  * @date 2013-Oct-31
@@ -56,6 +60,51 @@ public class DenseAlignmentCountsTest extends AbstractHeadlessTest {
         tstGetMaxCount(0, fullIntervals, extraLength);
     }
 
+    /**
+     * Counting a raw record must give the same result as counting the alignment built from it
+     */
+    @Test
+    public void testRecordCounts() throws Exception {
+        int start = 100;
+        int end = 140;
+        String[] cigars = {"20M", "5S10M2I5M3D5M", "3H4M2P3I4M10N6M", "2M1D2M1D4=2X3S", "6S10M", "12M"};
+        int[] starts = {95, 100, 104, 110, 135, 90};
+
+        DenseAlignmentCounts expected = new DenseAlignmentCounts(start, end, null);
+        DenseAlignmentCounts actual = new DenseAlignmentCounts(start, end, null);
+        for (int i = 0; i < cigars.length; i++) {
+            SAMRecord record = new SAMRecord(null);
+            record.setReadName("read" + i);
+            record.setReferenceName("chr1");
+            record.setAlignmentStart(starts[i] + 1);
+            record.setCigarString(cigars[i]);
+            record.setReadNegativeStrandFlag(i % 2 == 1);
+            int length = record.getCigar().getReadLength();
+            byte[] bases = new byte[length];
+            byte[] qualities = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bases[j] = (byte) "ACGTN".charAt((i + j) % 5);
+                qualities[j] = (byte) (10 + j);
+            }
+            record.setReadBases(bases);
+            record.setBaseQualities(qualities);
+
+            expected.incCounts(new SAMAlignment(record));
+            assertTrue(actual.incCounts(record));
+        }
+
+        for (int pos = start; pos < end; pos++) {
+            assertEquals(expected.getTotalCount(pos), actual.getTotalCount(pos));
+            assertEquals(expected.getTotalQuality(pos), actual.getTotalQuality(pos));
+            assertEquals(expected.getDelCount(pos), actual.getDelCount(pos));
+            assertEquals(expected.getInsCount(pos), actual.getInsCount(pos));
+            for (byte b : new byte[]{'A', 'C', 'G', 'T', 'N'}) {
+                assertEquals(expected.getNegCount(pos, b), actual.getNegCount(pos, b));
+                assertEquals(expected.getPosCount(pos, b), actual.getPosCount(pos, b));
+            }
+        }
+    }
+
     private void tstGetMaxCount(int start, int fullIntervals, int extraLength){
         int mci = DenseAlignmentCounts.MAX_COUNT_INTERVAL;
         int end = start + fullIntervals*mci + extraLength;
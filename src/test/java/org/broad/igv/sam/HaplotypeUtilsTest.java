@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class HaplotypeUtilsTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Test
+    public void testLabelAlignments() {
+
+        int[] positions = {102, 105, 110};
+        List<Alignment> alignments = new ArrayList<>();
+        alignments.add(createAlignment(100, "20M", "AAGAAAAAAACAAAAAAAAA"));
+        alignments.add(createAlignment(100, "20M", "aagaaaaaaacaaaaaaaaa"));
+        // Deletion over position 105
+        alignments.add(createAlignment(100, "4M2D14M", "AATAAAAACAAAAAAAAA"));
+        // Does not span the region
+        alignments.add(createAlignment(104, "10M", "AAAAAAAAAA"));
+
+        HaplotypeUtils.Haplotypes haplotypes = HaplotypeUtils.labelAlignments(101, 111, positions, alignments);
+        assertEquals(2, haplotypes.size());
+
+        // Most frequent first
+        assertEquals(2, haplotypes.alignments.get(0).size());
+        assertEquals("gac", haplotypes.labels[0].toLabel(3));
+        assertEquals("t_c", haplotypes.labels[1].toLabel(3));
+    }
+
+    /**
+     * Labels with the same number of alignments keep the order they were first seen in
+     */
+    @Test
+    public void testLabelOrderTies() {
+
+        int[] positions = {100, 101};
+        List<Alignment> alignments = new ArrayList<>();
+        alignments.add(createAlignment(100, "2M", "TT"));
+        alignments.add(createAlignment(100, "2M", "GA"));
+        alignments.add(createAlignment(100, "2M", "AC"));
+        alignments.add(createAlignment(100, "2M", "GA"));
+
+        HaplotypeUtils.Haplotypes haplotypes = HaplotypeUtils.labelAlignments(100, 102, positions, alignments);
+        assertEquals("ga", haplotypes.labels[0].toLabel(2));
+        assertEquals("tt", haplotypes.labels[1].toLabel(2));
+        assertEquals("ac", haplotypes.labels[2].toLabel(2));
+    }
+
+    @Test
+    public void testDistance() {
+
+        // Spans a word boundary
+        int n = 70;
+        HaplotypeUtils.Haplotype h1 = new HaplotypeUtils.Haplotype(n);
+        HaplotypeUtils.Haplotype h2 = new HaplotypeUtils.Haplotype(n);
+        for (int i = 0; i < n; i++) {
+            // Both have a gap at 69
+            if (i == 69) continue;
+            h1.set(i, i % 4);
+            // Different bases at 3 and 66, a gap in h2 only at 5 and 67
+            if (i == 5 || i == 67) continue;
+            h2.set(i, i == 3 || i == 66 ? (i + 1) % 4 : i % 4);
+        }
+
+        assertEquals(0, h1.distance(h1));
+        assertEquals(4, h1.distance(h2));
+        assertEquals(4, h2.distance(h1));
+        assertEquals(HaplotypeUtils.GAP, h2.get(67));
+        assertEquals(3, h2.get(66));
+    }
+
+    /**
+     * Cluster labels for two fixed data sets, as assigned by earlier versions
+     */
+    @Test
+    public void testPinnedLabels() {
+        assertEquals("223213331133221233323223133122112221211131233231331211122333", clusterReads(5));
+        assertEquals("122212123113312122111231112111132212332211123231131111211233", clusterReads(11));
+    }
+
+    /**
+     * Cluster 60 reads drawn from 3 random haplotypes over 16 variant positions, with 15% errors including N
+     *
+     * @return the cluster number of each read
+     */
+    private static String clusterReads(int seed) {
+
+        Random random = new Random(seed);
+        int[] positions = new int[16];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = 100 + 10 * i;
+        }
+        String[] haplotypes = new String[3];
+        for (int h = 0; h < 3; h++) {
+            char[] bases = new char[300];
+            Arrays.fill(bases, 'A');
+            for (int p : positions) {
+                bases[p] = "ACGT".charAt(random.nextInt(4));
+            }
+            haplotypes[h] = new String(bases);
+        }
+        List<Alignment> alignments = new ArrayList<>();
+        for (int n = 0; n < 60; n++) {
+            char[] bases = haplotypes[random.nextInt(3)].substring(90, 260).toCharArray();
+            for (int i = 0; i < bases.length; i++) {
+                if (random.nextDouble() < 0.15) {
+                    bases[i] = "ACGTN".charAt(random.nextInt(5));
+                }
+            }
+            alignments.add(createAlignment(90, "170M", new String(bases)));
+        }
+
+        HaplotypeUtils.Haplotypes labeled = HaplotypeUtils.labelAlignments(positions[0] - 1,
+                positions[positions.length - 1] + 1, positions, alignments);
+        int[] clusters = HaplotypeUtils.cluster(labeled.labels, labeled.n, 3);
+
+        Map<Alignment, Integer> clusterMap = new IdentityHashMap<>();
+        for (int i = 0; i < labeled.size(); i++) {
+            for (Alignment a : labeled.alignments.get(i)) {
+                clusterMap.put(a, clusters[i] + 1);
+            }
+        }
+        StringBuilder buf = new StringBuilder();
+        for (Alignment a : alignments) {
+            buf.append(clusterMap.get(a));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Reads from two haplotypes, with sequencing errors, are separated
+     */
+    @Test
+    public void testCluster() {
+
+        Random random = new Random(3);
+        int[] positions = new int[40];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = 1000 + 25 * i;
+        }
+        char[][] haplotypes = new char[2][2200];
+        for (int i = 0; i < 2200; i++) {
+            haplotypes[0][i] = haplotypes[1][i] = 'A';
+        }
+        for (int p : positions) {
+            haplotypes[1][p] = 'G';
+        }
+
+        List<Alignment> alignments = new ArrayList<>();
+        Map<Alignment, Integer> truth = new HashMap<>();
+        for (int n = 0; n < 400; n++) {
+            int h = random.nextInt(2);
+            char[] bases = new char[1200];
+            for (int i = 0; i < bases.length; i++) {
+                bases[i] = random.nextDouble() < 0.1 ? "ACGT".charAt(random.nextInt(4)) : haplotypes[h][900 + i];
+            }
+            Alignment a = createAlignment(900, "1200M", new String(bases));
+            alignments.add(a);
+            truth.put(a, h);
+        }
+
+        HaplotypeUtils.Haplotypes labeled = HaplotypeUtils.labelAlignments(positions[0] - 1,
+                positions[positions.length - 1] + 1, positions, alignments);
+        int[] clusters = HaplotypeUtils.cluster(labeled.labels, labeled.n, 2);
+
+        int[][] confusion = new int[2][2];
+        for (int i = 0; i < labeled.size(); i++) {
+            for (Alignment a : labeled.alignments.get(i)) {
+                confusion[truth.get(a)][clusters[i]]++;
+            }
+        }
+        assertTrue((confusion[0][0] == 0 && confusion[1][1] == 0) || (confusion[0][1] == 0 && confusion[1][0] == 0));
+    }
+
+    private static Alignment createAlignment(int start, String cigar, String bases) {
+        SAMRecord record = new SAMRecord(null);
+        record.setReadName("read");
+        record.setReferenceName("chr1");
+        record.setAlignmentStart(start + 1);
+        record.setCigarString(cigar);
+        record.setReadBases(bases.getBytes());
+        return new SAMAlignment(record);
+    }
+}
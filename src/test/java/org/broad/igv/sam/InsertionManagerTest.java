@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.broad.igv.feature.genome.GenomeManager;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class InsertionManagerTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Before
+    public void setUp() {
+        // Chromosome names are made canonical with the current genome, which may have been loaded by another test
+        GenomeManager.getInstance().setCurrentGenome(null);
+        InsertionManager.getInstance().clear();
+    }
+
+    @Test
+    public void testProcessAlignments() {
+
+        Random random = new Random(11);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        InsertionManager manager = InsertionManager.getInstance();
+
+        // Two tiles, the first large enough to be collected in parallel
+        for (int nAlignments : new int[]{5 * InsertionManager.CHUNK_SIZE + 7, 500}) {
+            List<Alignment> alignments = new ArrayList<>();
+            for (int i = 0; i < nAlignments; i++) {
+                int start = 1 + random.nextInt(100000);
+                int m1 = 1 + random.nextInt(50);
+                int ins = 1 + random.nextInt(20);
+                int m2 = 1 + random.nextInt(50);
+                alignments.add(createAlignment(start, m1 + "M" + ins + "I" + m2 + "M", m1 + ins + m2));
+                // Insertion is between bases, at the 0 based end of the first block
+                expected.merge(start - 1 + m1, ins, Math::max);
+            }
+            manager.processAlignments("chr1", alignments);
+        }
+
+        List<InsertionMarker> all = manager.getInsertions("chr1", 0, Integer.MAX_VALUE);
+        assertEquals(expected.size(), all.size());
+        Iterator<Map.Entry<Integer, Integer>> iter = expected.entrySet().iterator();
+        for (InsertionMarker marker : all) {
+            Map.Entry<Integer, Integer> e = iter.next();
+            assertEquals((int) e.getKey(), marker.position);
+            assertEquals((int) e.getValue(), marker.size);
+        }
+
+        for (int n = 0; n < 100; n++) {
+            double start = random.nextInt(100000) + random.nextDouble();
+            double end = start + random.nextInt(5000);
+            List<InsertionMarker> markers = manager.getInsertions("chr1", start, end);
+            Collection<Integer> positions = expected.subMap((int) Math.ceil(start), true, (int) Math.floor(end), true).keySet();
+            assertEquals(positions.size(), markers.size());
+            int i = 0;
+            for (Integer p : positions) {
+                assertEquals((int) p, markers.get(i++).position);
+            }
+        }
+
+        int selected = expected.firstKey();
+        manager.setSelected("chr1", selected);
+        assertEquals(selected, manager.getSelectedInsertion("chr1").position);
+        assertNull(manager.getInsertions("chr2", 0, 100));
+    }
+
+    private static SAMAlignment createAlignment(int start, String cigar, int readLength) {
+        SAMRecord record = new SAMRecord(null);
+        record.setReadName("r" + start);
+        record.setReferenceName("chr1");
+        record.setAlignmentStart(start);
+        record.setCigarString(cigar);
+        char[] bases = new char[readLength];
+        Arrays.fill(bases, 'A');
+        record.setReadString(new String(bases));
+        return new SAMAlignment(record);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MateResolverTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    /**
+     * Far more pending pairs than the former 1000 entry cache, in random order, all resolved
+     */
+    @Test
+    public void testResolvesAllPairs() {
+
+        int nPairs = 20000;
+        List<SAMAlignment> mapped = new ArrayList<>();
+        List<SAMAlignment> records = new ArrayList<>();
+        for (int i = 0; i < nPairs; i++) {
+            String name = "read" + i;
+            SAMAlignment m = createAlignment(name, true, "ACGT");
+            mapped.add(m);
+            records.add(m);
+            records.add(createAlignment(name, false, "TTTT" + i));
+            if (i % 10 == 0) {
+                // Supplementary alignment of the mapped read
+                SAMAlignment s = createAlignment(name, true, "ACGT");
+                mapped.add(s);
+                records.add(s);
+            }
+        }
+        Collections.shuffle(records, new Random(3));
+
+        MateResolver resolver = new MateResolver();
+        for (SAMAlignment a : records) {
+            resolver.add(a);
+        }
+
+        for (SAMAlignment m : mapped) {
+            assertEquals("TTTT" + m.getReadName().substring(4), m.mateSequence);
+        }
+        // Only unmapped mates remain
+        assertEquals(nPairs, resolver.size());
+    }
+
+    @Test
+    public void testReplace() {
+        SAMAlignment m = createAlignment("r1", true, "ACGT");
+        SAMAlignment copy = createAlignment("r1", true, "ACGT");
+        MateResolver resolver = new MateResolver();
+        resolver.add(m);
+        resolver.replace(m, copy);
+        resolver.add(createAlignment("r1", false, "GGGG"));
+        assertNull(m.mateSequence);
+        assertEquals("GGGG", copy.mateSequence);
+    }
+
+    @Test
+    public void testIgnoresPairsInSameState() {
+        MateResolver resolver = new MateResolver();
+        SAMRecord record = new SAMRecord(null);
+        record.setReadName("r1");
+        record.setReadPairedFlag(true);
+        record.setReadString("ACGT");
+        record.setReferenceName("chr1");
+        record.setMateReferenceName("chr1");
+        record.setAlignmentStart(100);
+        record.setCigarString("4M");
+        record.setMateAlignmentStart(200);
+        resolver.add(new SAMAlignment(record));
+        assertEquals(0, resolver.size());
+    }
+
+    private static SAMAlignment createAlignment(String name, boolean mapped, String sequence) {
+        SAMRecord record = new SAMRecord(null);
+        record.setReadName(name);
+        record.setReadPairedFlag(true);
+        record.setReadString(sequence);
+        record.setReferenceName("chr1");
+        record.setMateReferenceName("chr1");
+        record.setReadUnmappedFlag(!mapped);
+        record.setMateUnmappedFlag(mapped);
+        record.setAlignmentStart(100);
+        record.setMateAlignmentStart(100);
+        if (mapped) {
+            record.setCigarString(sequence.length() + "M");
+        }
+        return new SAMAlignment(record);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.*;
+import org.broad.igv.util.TestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RawTagsTest {
+
+    /**
+     * Tags found in the undecoded binary data match the decoded attributes, for files with read groups, base
+     * modification (MM/ML, including B arrays) and YC tags
+     */
+    @Test
+    public void testMatchesDecodedAttributes() throws Exception {
+        for (String file : Arrays.asList("gstt1_sample.bam", "chr20_mod_call_sample.bam", "yc_tags.bam")) {
+            int nRecords = 0;
+            try (SamReader reader = SamReaderFactory.makeDefault()
+                    .validationStringency(ValidationStringency.SILENT)
+                    .open(new File(TestUtils.DATA_DIR + "bam/" + file))) {
+                for (SAMRecord record : reader) {
+                    assertTrue(record instanceof BAMRecord);
+                    boolean[] has = new boolean[4];
+                    String[] tags = {"MM", "ML", "YC", "NM"};
+                    for (int i = 0; i < tags.length; i++) {
+                        has[i] = RawTags.hasTag(record, tags[i]);
+                    }
+                    String readGroup = RawTags.getString(record, "RG");
+                    String library = RawTags.getLibrary(record);
+
+                    // Raw lookups leave the binary data in place
+                    assertNotNull(((BAMRecord) record).getVariableBinaryRepresentation());
+
+                    for (int i = 0; i < tags.length; i++) {
+                        assertEquals(file + " " + tags[i], record.getAttribute(tags[i]) != null, has[i]);
+                    }
+                    assertEquals(record.getStringAttribute("RG"), readGroup);
+                    SAMReadGroupRecord rg = record.getReadGroup();
+                    assertEquals(rg == null ? null : rg.getLibrary(), library);
+                    nRecords++;
+                }
+            }
+            assertTrue(nRecords > 0);
+        }
+    }
+
+    @Test
+    public void testFind() {
+        // XA:Z:ab, XB:B:s,1,2, XC:i:5
+        byte[] data = {'X', 'A', 'Z', 'a', 'b', 0,
+                'X', 'B', 'B', 's', 2, 0, 0, 0, 1, 0, 2, 0,
+                'X', 'C', 'i', 5, 0, 0, 0};
+        assertEquals(2, RawTags.find(data, 0, "XA"));
+        assertEquals(8, RawTags.find(data, 0, "XB"));
+        assertEquals(20, RawTags.find(data, 0, "XC"));
+        assertEquals(-1, RawTags.find(data, 0, "XD"));
+
+        // Truncated block
+        assertEquals(-2, RawTags.find(Arrays.copyOf(data, data.length - 2), 0, "XD"));
+    }
+}
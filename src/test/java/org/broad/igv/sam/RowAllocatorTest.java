@@ -0,0 +1,170 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RowAllocatorTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    /**
+     * Compare layouts with the previous PriorityQueue based packer.  Reads are crowded into a small range with
+     * a few lengths so there are many start and end ties.
+     */
+    @Test
+    public void testIdenticalLayout() {
+        for (long seed = 0; seed < 20; seed++) {
+            List<Alignment> alignments = randomAlignments(new Random(seed), 2000);
+            for (boolean viewPairs : new boolean[]{false, true}) {
+                AlignmentTrack.RenderOptions renderOptions = new AlignmentTrack.RenderOptions();
+                renderOptions.setViewPairs(viewPairs);
+                AlignmentInterval interval = new AlignmentInterval("chr1", 1000, 3000, alignments, null, null, null);
+
+                List<Row> rows = new AlignmentPacker().packAlignments(interval, renderOptions).get("");
+                List<List<Alignment>> expected = referencePack(alignments, viewPairs);
+
+                assertEquals(expected.size(), rows.size());
+                for (int r = 0; r < rows.size(); r++) {
+                    List<Alignment> row = rows.get(r).alignments;
+                    assertEquals(expected.get(r).size(), row.size());
+                    for (int i = 0; i < row.size(); i++) {
+                        assertEquals(describe(expected.get(r).get(i)), describe(row.get(i)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReuse() {
+        RowAllocator allocator = new RowAllocator();
+        for (int n : new int[]{5000, 10, 3000}) {
+            List<Alignment> alignments = randomAlignments(new Random(n), n);
+            allocator.reset(1000, 10000, Integer.MAX_VALUE);
+            for (Alignment a : alignments) {
+                assertTrue(allocator.add(a));
+            }
+            List<Row> rows = new ArrayList<>();
+            allocator.allocate(rows);
+            int count = 0;
+            for (Row row : rows) {
+                count += row.alignments.size();
+                for (int i = 1; i < row.alignments.size(); i++) {
+                    assertTrue(row.alignments.get(i).getStart() >=
+                            row.alignments.get(i - 1).getEnd() + AlignmentPacker.MIN_ALIGNMENT_SPACING);
+                }
+            }
+            assertEquals(n, count);
+        }
+    }
+
+    private static String describe(Alignment a) {
+        return a.getReadName() + ":" + a.getStart() + "-" + a.getEnd() + ":" + a.getClass().getSimpleName();
+    }
+
+    private static List<Alignment> randomAlignments(Random random, int n) {
+        int[] lengths = {50, 100, 150};
+        List<Alignment> alignments = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            SAMRecord record = new SAMRecord(null);
+            record.setReadName("read" + random.nextInt(n / 2 + 1));
+            record.setReferenceName("chr1");
+            record.setAlignmentStart(1000 + random.nextInt(2000));
+            record.setCigarString(lengths[random.nextInt(lengths.length)] + "M");
+            record.setReadPairedFlag(true);
+            record.setMateReferenceName("chr1");
+            record.setMateAlignmentStart(1000 + random.nextInt(2000));
+            alignments.add(new SAMAlignment(record));
+        }
+        alignments.sort(Comparator.comparingInt(Alignment::getStart));
+        return alignments;
+    }
+
+    /**
+     * The packing algorithm as implemented before RowAllocator
+     */
+    private static List<List<Alignment>> referencePack(List<Alignment> alList, boolean viewPairs) {
+
+        Comparator<Alignment> lengthComparator = (row1, row2) ->
+                (row2.getEnd() - row2.getStart()) - (row1.getEnd() - row2.getStart());
+
+        int rangeStart = alList.get(0).getStart();
+        int rangeEnd = rangeStart;
+        for (Alignment a : alList) rangeEnd = Math.max(rangeEnd, a.getEnd());
+
+        Map<String, PairedAlignment> pairs = new HashMap<>();
+        TreeMap<Integer, PriorityQueue<Alignment>> buckets = new TreeMap<>();
+        int totalCount = 0;
+        for (Alignment al : alList) {
+            Alignment alignment = al;
+            if (viewPairs && al.isPrimary() && al.isPaired() && al.getMate().isMapped()) {
+                PairedAlignment pair = pairs.get(al.getReadName());
+                if (pair == null) {
+                    pair = new PairedAlignment(al);
+                    pairs.put(al.getReadName(), pair);
+                    alignment = pair;
+                } else {
+                    pair.setSecondAlignment(al);
+                    pairs.remove(al.getReadName());
+                    continue;
+                }
+            }
+            int bucketNumber = Math.max(0, al.getStart() - rangeStart);
+            buckets.computeIfAbsent(bucketNumber, k -> new PriorityQueue<>(5, lengthComparator)).add(alignment);
+            totalCount++;
+        }
+
+        List<List<Alignment>> rows = new ArrayList<>();
+        int allocatedCount = 0;
+        while (allocatedCount < totalCount) {
+            List<Alignment> row = new ArrayList<>();
+            int nextStart = rangeStart;
+            while (true) {
+                Map.Entry<Integer, PriorityQueue<Alignment>> e = buckets.ceilingEntry(nextStart - rangeStart);
+                if (e == null) break;
+                Alignment alignment = e.getValue().remove();
+                if (e.getValue().isEmpty()) buckets.remove(e.getKey());
+                row.add(alignment);
+                allocatedCount++;
+                nextStart = alignment.getEnd() + AlignmentPacker.MIN_ALIGNMENT_SPACING;
+                if (nextStart > rangeEnd) break;
+            }
+            if (row.size() > 0) rows.add(row);
+        }
+        return rows;
+    }
+}
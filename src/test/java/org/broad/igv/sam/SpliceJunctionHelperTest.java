@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.broad.igv.feature.SpliceJunctionFeature;
+import org.broad.igv.feature.Strand;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SpliceJunctionHelperTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    /**
+     * Junction depths and flanking region depth arrays match those built read by read with
+     * {@link SpliceJunctionFeature#addRead(int, int)}
+     */
+    @Test
+    public void testJunctionsMatchAddRead() {
+
+        Random random = new Random(7);
+        SpliceJunctionHelper helper = new SpliceJunctionHelper(new SpliceJunctionHelper.LoadOptions(1, 0));
+        Map<String, SpliceJunctionFeature> expected = new HashMap<>();
+
+        for (int n = 0; n < 2000; n++) {
+            int left = 1 + random.nextInt(60);
+            int intron = 100 * (1 + random.nextInt(3));
+            int right = 1 + random.nextInt(60);
+            int start = 1000 + 100 * random.nextInt(3) - left;
+            boolean negative = random.nextBoolean();
+
+            SAMRecord record = new SAMRecord(null);
+            record.setReadName("read" + n);
+            record.setReferenceName("chr1");
+            record.setAlignmentStart(start + 1);
+            record.setCigarString(left + "M" + intron + "N" + right + "M");
+            record.setReadNegativeStrandFlag(negative);
+            record.setReadBases(new byte[left + right]);
+            helper.addAlignment(new SAMAlignment(record));
+
+            int junctionStart = start + left;
+            int junctionEnd = junctionStart + intron;
+            String key = (negative ? "-" : "+") + junctionStart + "-" + junctionEnd;
+            SpliceJunctionFeature feature = expected.get(key);
+            if (feature == null) {
+                feature = new SpliceJunctionFeature("chr1", junctionStart, junctionEnd,
+                        negative ? Strand.NEGATIVE : Strand.POSITIVE);
+                expected.put(key, feature);
+            }
+            feature.addRead(junctionStart - left, junctionEnd + right);
+        }
+
+        List<SpliceJunctionFeature> junctions = helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.BOTH);
+        assertEquals(expected.size(), junctions.size());
+        for (SpliceJunctionFeature junction : junctions) {
+            String key = (junction.getStrand() == Strand.NEGATIVE ? "-" : "+") +
+                    junction.getJunctionStart() + "-" + junction.getJunctionEnd();
+            SpliceJunctionFeature e = expected.get(key);
+            assertNotNull(key, e);
+            assertEquals(e.getStart(), junction.getStart());
+            assertEquals(e.getEnd(), junction.getEnd());
+            assertEquals(e.getJunctionDepth(), junction.getJunctionDepth());
+            assertArrayEquals(e.getStartFlankingRegionDepthArray(), junction.getStartFlankingRegionDepthArray());
+            assertArrayEquals(e.getEndFlankingRegionDepthArray(), junction.getEndFlankingRegionDepthArray());
+        }
+
+        // Sorted by start
+        for (int i = 1; i < junctions.size(); i++) {
+            assertTrue(junctions.get(i - 1).getStart() <= junctions.get(i).getStart());
+        }
+    }
+
+    @Test
+    public void testStrandOptionsAndMinCoverage() {
+
+        SpliceJunctionHelper helper = new SpliceJunctionHelper(new SpliceJunctionHelper.LoadOptions(1, 0));
+        addRead(helper, 100, "10M50N10M", false);
+        addRead(helper, 100, "10M50N10M", false);
+        addRead(helper, 100, "10M50N10M", true);
+        addRead(helper, 200, "10M80N10M", true);
+
+        assertEquals(1, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.FORWARD).size());
+        assertEquals(2, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.REVERSE).size());
+        assertEquals(3, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.BOTH).size());
+
+        List<SpliceJunctionFeature> combined = helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.COMBINE);
+        assertEquals(2, combined.size());
+        assertEquals(3, combined.get(0).getJunctionDepth());
+        assertEquals(1, combined.get(1).getJunctionDepth());
+        assertEquals(210, combined.get(1).getJunctionStart());
+        assertEquals(290, combined.get(1).getJunctionEnd());
+
+        // Filter applies to the combined depth
+        helper.setLoadOptions(new SpliceJunctionHelper.LoadOptions(2, 0));
+        assertEquals(1, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.FORWARD).size());
+        assertEquals(0, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.REVERSE).size());
+        assertEquals(1, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.COMBINE).size());
+    }
+
+    private static void addRead(SpliceJunctionHelper helper, int start, String cigar, boolean negative) {
+        SAMRecord record = new SAMRecord(null);
+        record.setReadName("read");
+        record.setReferenceName("chr1");
+        record.setAlignmentStart(start + 1);
+        record.setCigarString(cigar);
+        record.setReadNegativeStrandFlag(negative);
+        record.setReadBases(new byte[record.getCigar().getReadLength()]);
+        helper.addAlignment(new SAMAlignment(record));
+    }
+}
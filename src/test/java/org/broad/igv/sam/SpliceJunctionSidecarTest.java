@@ -0,0 +1,193 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam;
+
+import htsjdk.samtools.SAMRecord;
+import org.broad.igv.Globals;
+import org.broad.igv.feature.SpliceJunctionFeature;
+import org.broad.igv.feature.Strand;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.util.ResourceLocator;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.*;
+
+import static org.broad.igv.prefs.Constants.SAM_FILTER_DUPLICATES;
+import static org.junit.Assert.*;
+
+public class SpliceJunctionSidecarTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    /**
+     * Junctions read back from the sidecar are those computed from the alignments, including flanking depths
+     */
+    @Test
+    public void testWriteAndQuery() throws Exception {
+
+        File samFile = tmp.newFile("spliced.sam");
+        Map<String, SpliceJunctionHelper> expected = new HashMap<>();
+        writeSam(samFile, expected);
+
+        String sidecarPath = samFile.getAbsolutePath() + SpliceJunctionSidecar.EXTENSION;
+        SpliceJunctionSidecar.write(samFile.getAbsolutePath(), sidecarPath, 0);
+        assertTrue(new File(sidecarPath + ".tbi").exists());
+
+        SpliceJunctionSidecar sidecar = SpliceJunctionSidecar.find(new ResourceLocator(samFile.getAbsolutePath()));
+        assertNotNull(sidecar);
+        assertEquals(0, sidecar.getMinFlankingWidth());
+
+        for (String chr : Arrays.asList("chr1", "chr2")) {
+            List<SpliceJunctionFeature> expectedJunctions =
+                    expected.get(chr).getFilteredJunctions(SpliceJunctionTrack.StrandOption.BOTH);
+
+            // Loading junctions into a helper reproduces the junctions computed from reads
+            SpliceJunctionHelper helper = new SpliceJunctionHelper(new SpliceJunctionHelper.LoadOptions(1, 0));
+            helper.addJunctions(chr, sidecar.getJunctions(chr, 0, 100000));
+            assertJunctionsEqual(expectedJunctions, helper.getFilteredJunctions(SpliceJunctionTrack.StrandOption.BOTH));
+
+            // Query returns only overlapping junctions
+            List<SpliceJunctionFeature> junctions = sidecar.getJunctions(chr, 5000, 5100);
+            for (SpliceJunctionFeature f : junctions) {
+                assertTrue(f.getEnd() > 5000 && f.getStart() < 5100);
+            }
+            int overlapping = 0;
+            for (SpliceJunctionFeature f : expectedJunctions) {
+                if (f.getEnd() > 5000 && f.getStart() < 5100) overlapping++;
+            }
+            assertEquals(overlapping, junctions.size());
+        }
+        sidecar.close();
+    }
+
+    /**
+     * The sidecar is only current for the settings and alignment file it was written from
+     */
+    @Test
+    public void testIsCurrent() throws Exception {
+
+        File samFile = tmp.newFile("current.sam");
+        writeSam(samFile, new HashMap<>());
+        String sidecarPath = samFile.getAbsolutePath() + SpliceJunctionSidecar.EXTENSION;
+        SpliceJunctionSidecar.write(samFile.getAbsolutePath(), sidecarPath, 0);
+
+        ResourceLocator locator = new ResourceLocator(samFile.getAbsolutePath());
+        SpliceJunctionSidecar sidecar = SpliceJunctionSidecar.find(locator);
+        assertTrue(sidecar.isCurrent(0));
+        assertFalse(sidecar.isCurrent(5));
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        boolean filterDuplicates = prefs.getAsBoolean(SAM_FILTER_DUPLICATES);
+        try {
+            prefs.put(SAM_FILTER_DUPLICATES, !filterDuplicates);
+            assertFalse(sidecar.isCurrent(0));
+        } finally {
+            prefs.put(SAM_FILTER_DUPLICATES, filterDuplicates);
+        }
+        assertTrue(sidecar.isCurrent(0));
+        sidecar.close();
+
+        // Alignment file modified since the sidecar was written
+        assertTrue(samFile.setLastModified(samFile.lastModified() - 60000));
+        sidecar = SpliceJunctionSidecar.find(locator);
+        assertFalse(sidecar.isCurrent(0));
+        sidecar.close();
+    }
+
+    @Test
+    public void testFindMissing() throws Exception {
+        File samFile = tmp.newFile("nojunctions.sam");
+        assertNull(SpliceJunctionSidecar.find(new ResourceLocator(samFile.getAbsolutePath())));
+    }
+
+    private static void writeSam(File samFile, Map<String, SpliceJunctionHelper> expected) throws Exception {
+        Random random = new Random(11);
+        try (PrintWriter pw = new PrintWriter(samFile)) {
+            pw.println("@HD\tVN:1.6\tSO:coordinate");
+            pw.println("@SQ\tSN:chr1\tLN:100000");
+            pw.println("@SQ\tSN:chr2\tLN:100000");
+            for (String chr : Arrays.asList("chr1", "chr2")) {
+                SpliceJunctionHelper helper = new SpliceJunctionHelper(new SpliceJunctionHelper.LoadOptions(1, 0));
+                expected.put(chr, helper);
+                int start = 1000;
+                for (int n = 0; n < 3000; n++) {
+                    start += random.nextInt(5);
+                    int left = 1 + random.nextInt(50);
+                    int intron = 100 * (1 + random.nextInt(4));
+                    int right = 1 + random.nextInt(50);
+                    boolean negative = random.nextBoolean();
+                    String cigar = left + "M" + intron + "N" + right + "M";
+                    char[] bases = new char[left + right];
+                    Arrays.fill(bases, 'A');
+                    pw.println("read" + n + "\t" + (negative ? 16 : 0) + "\t" + chr + "\t" + (start + 1) + "\t60\t" +
+                            cigar + "\t*\t0\t0\t" + new String(bases) + "\t*");
+
+                    SAMRecord record = new SAMRecord(null);
+                    record.setReadName("read" + n);
+                    record.setReferenceName(chr);
+                    record.setAlignmentStart(start + 1);
+                    record.setCigarString(cigar);
+                    record.setReadNegativeStrandFlag(negative);
+                    record.setReadBases(new byte[left + right]);
+                    helper.addAlignment(new SAMAlignment(record));
+                }
+            }
+        }
+    }
+
+    private static void assertJunctionsEqual(List<SpliceJunctionFeature> expected, List<SpliceJunctionFeature> actual) {
+        assertEquals(expected.size(), actual.size());
+        Map<String, SpliceJunctionFeature> byKey = new HashMap<>();
+        for (SpliceJunctionFeature f : expected) {
+            byKey.put(key(f), f);
+        }
+        for (SpliceJunctionFeature junction : actual) {
+            SpliceJunctionFeature e = byKey.get(key(junction));
+            assertNotNull(key(junction), e);
+            assertEquals(e.getStart(), junction.getStart());
+            assertEquals(e.getEnd(), junction.getEnd());
+            assertEquals(e.getJunctionDepth(), junction.getJunctionDepth());
+            assertArrayEquals(e.getStartFlankingRegionDepthArray(), junction.getStartFlankingRegionDepthArray());
+            assertArrayEquals(e.getEndFlankingRegionDepthArray(), junction.getEndFlankingRegionDepthArray());
+        }
+    }
+
+    private static String key(SpliceJunctionFeature f) {
+        return (f.getStrand() == Strand.NEGATIVE ? "-" : "+") + f.getJunctionStart() + "-" + f.getJunctionEnd();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.cram;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.cram.ref.ReferenceSource;
+import org.broad.igv.util.TestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CRAMReferenceSpansTest {
+
+    private static final String CRAM = TestUtils.DATA_DIR + "cram/cram_with_crai_index.cram";
+    private static final String FASTA = TestUtils.DATA_DIR + "cram/hg19mini.fasta";
+
+    /**
+     * Decoding with bases only over the computed spans gives the same records as the full reference
+     */
+    @Test
+    public void testSpansDecodeQuery() throws Exception {
+
+        CRAMReferenceSpans cramSpans;
+        try (InputStream is = new FileInputStream(CRAM + ".crai")) {
+            cramSpans = new CRAMReferenceSpans(CRAMCRAIIndexer.readIndex(is).getCRAIEntries());
+        }
+
+        ReferenceSource fullReference = new ReferenceSource(new File(FASTA));
+        SpanReferenceSource spanReference = new SpanReferenceSource(fullReference);
+
+        try (SamReader fullReader = open(fullReference);
+             SamReader spanReader = open(spanReference)) {
+
+            for (SAMSequenceRecord seq : fullReader.getFileHeader().getSequenceDictionary().getSequences()) {
+                int start = 0;
+                int end = seq.getSequenceLength();
+                int[] spans = cramSpans.getSpans(spanReader.indexing().getIndex(), seq.getSequenceIndex(), start, end);
+                assertNotNull(spans);
+                for (int i = 0; i < spans.length; i += 2) {
+                    assertTrue(spans[i] < spans[i + 1]);
+                    assertTrue(i == 0 || spans[i] > spans[i - 1]);
+                }
+                spanReference.spans = spans;
+
+                List<String> expected = query(fullReader, seq.getSequenceName(), start, end);
+                List<String> actual = query(spanReader, seq.getSequenceName(), start, end);
+                assertEquals(expected, actual);
+                if (spans.length > 0) {
+                    assertTrue(spans[spans.length - 1] < seq.getSequenceLength());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMergeAndCover() {
+        List<int[]> spans = new ArrayList<>(Arrays.asList(new int[]{50, 60}, new int[]{0, 10}, new int[]{5, 20}, new int[]{20, 30}));
+        int[] merged = CRAMReferenceSpans.merge(spans);
+        assertArrayEquals(new int[]{0, 30, 50, 60}, merged);
+
+        assertTrue(IGVReferenceSource.covers(merged, new int[]{2, 8, 52, 60}));
+        assertFalse(IGVReferenceSource.covers(merged, new int[]{25, 55}));
+        assertFalse(IGVReferenceSource.covers(merged, new int[]{55, 61}));
+        assertFalse(IGVReferenceSource.covers(null, new int[]{0, 1}));
+    }
+
+    private static SamReader open(CRAMReferenceSource referenceSource) {
+        return SamReaderFactory.makeDefault().referenceSource(referenceSource).
+                validationStringency(ValidationStringency.SILENT).
+                open(SamInputResource.of(new File(CRAM)).index(new File(CRAM + ".crai")));
+    }
+
+    private static List<String> query(SamReader reader, String chr, int start, int end) {
+        List<String> records = new ArrayList<>();
+        try (SAMRecordIterator iter = reader.query(chr, start + 1, end, false)) {
+            while (iter.hasNext()) {
+                records.add(iter.next().getSAMString());
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reference holding bases only over the current spans, as IGVReferenceSource does for region queries
+     */
+    private static class SpanReferenceSource implements CRAMReferenceSource {
+
+        final CRAMReferenceSource full;
+        int[] spans;
+
+        SpanReferenceSource(CRAMReferenceSource full) {
+            this.full = full;
+        }
+
+        @Override
+        public byte[] getReferenceBases(SAMSequenceRecord record, boolean tryNameVariants) {
+            byte[] bases = full.getReferenceBases(record, tryNameVariants);
+            byte[] region = new byte[spans.length == 0 ? 0 : spans[spans.length - 1]];
+            for (int i = 0; i < spans.length; i += 2) {
+                System.arraycopy(bases, spans[i], region, spans[i], spans[i + 1] - spans[i]);
+            }
+            return region;
+        }
+    }
+}
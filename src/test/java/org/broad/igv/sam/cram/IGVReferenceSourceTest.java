@@ -28,19 +28,26 @@ package org.broad.igv.sam.cram;
 import htsjdk.samtools.*;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.CloseableIterator;
+import org.broad.igv.Globals;
 import org.broad.igv.feature.genome.Genome;
 import org.broad.igv.feature.genome.GenomeManager;
 import org.broad.igv.util.stream.IGVSeekableBufferedStream;
 import org.broad.igv.util.stream.IGVSeekableStreamFactory;
+import org.broad.igv.util.TestUtils;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 
 /**
@@ -49,6 +56,14 @@ import static junit.framework.Assert.assertTrue;
 
 public class IGVReferenceSourceTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
     @Before
     public void setUp() throws Exception {
 
@@ -89,6 +104,56 @@ public class IGVReferenceSourceTest {
         assertEquals('G', bases[27198882]);
     }
 
+    /**
+     * Query spans are honored even when the whole contig is already on disk
+     */
+    @Test
+    public void testSpansFromMappedContig() throws Exception {
+
+        Genome genome = GenomeManager.getInstance().loadGenome(TestUtils.DATA_DIR + "cram/hg19mini.fasta", null);
+        MappedReferenceStore store = new MappedReferenceStore(folder.newFolder());
+        store.getSequence(genome.getId(), "1", 16000, (start, end) -> genome.getSequence("1", start, end, false));
+        assertTrue(store.isAvailable(genome.getId(), "1", 16000));
+
+        IGVReferenceSource refSource = new IGVReferenceSource(store);
+        IGVReferenceSource.cachedSequences.clear();
+        refSource.setQuerySpans("1", new int[]{1000, 2000, 5000, 6000});
+        byte[] bases = refSource.getReferenceBases(new SAMSequenceRecord("1", 16000), false);
+
+        assertEquals(6000, bases.length);
+        assertEquals(0, bases[2500]);
+        byte[] expected = genome.getSequence("1", 5000, 6000, false);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(Character.toUpperCase((char) expected[i]), (char) bases[5000 + i]);
+        }
+        assertNull(IGVReferenceSource.cachedSequences.get("1"));
+    }
+
+    /**
+     * Span queries write the contig to the store; whole contig requests are loaded through the genome only
+     */
+    @Test
+    public void testStoreUsedForSpansOnly() throws Exception {
+
+        Genome genome = GenomeManager.getInstance().loadGenome(TestUtils.DATA_DIR + "cram/hg19mini.fasta", null);
+        MappedReferenceStore store = new MappedReferenceStore(folder.newFolder());
+        IGVReferenceSource refSource = new IGVReferenceSource(store);
+        IGVReferenceSource.cachedSequences.clear();
+
+        byte[] bases = refSource.getReferenceBases(new SAMSequenceRecord("1", 16000), false);
+        assertEquals(16000, bases.length);
+        assertFalse(store.isAvailable(genome.getId(), "1", 16000));
+
+        IGVReferenceSource.cachedSequences.clear();
+        refSource.setQuerySpans("1", new int[]{1000, 2000});
+        byte[] spanBases = refSource.getReferenceBases(new SAMSequenceRecord("1", 16000), false);
+        assertTrue(store.isAvailable(genome.getId(), "1", 16000));
+        assertEquals(2000, spanBases.length);
+        for (int i = 1000; i < 2000; i++) {
+            assertEquals(bases[i], spanBases[i]);
+        }
+    }
+
 //    @Test
 //    public void testCompressedTiming() throws Exception {
 //
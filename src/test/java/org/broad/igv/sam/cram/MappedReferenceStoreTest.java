@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.cram;
+
+import org.broad.igv.Globals;
+import org.broad.igv.prefs.Constants;
+import org.broad.igv.prefs.PreferencesManager;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MappedReferenceStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String oldMappedSize;
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+        oldMappedSize = PreferencesManager.getPreferences().get(Constants.CRAM_REFERENCE_MAPPED_SIZE);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        PreferencesManager.getPreferences().put(Constants.CRAM_REFERENCE_MAPPED_SIZE, oldMappedSize);
+    }
+
+    @Test
+    public void testWriteAndMap() throws Exception {
+
+        int length = 2 * MappedReferenceStore.CHUNK_SIZE + 123;
+        byte[] sequence = randomSequence(length, 5);
+        AtomicInteger fetches = new AtomicInteger();
+        MappedReferenceStore.SequenceSource source = (start, end) -> {
+            fetches.incrementAndGet();
+            byte[] bases = new byte[end - start];
+            System.arraycopy(sequence, start, bases, 0, bases.length);
+            return bases;
+        };
+
+        File dir = folder.newFolder();
+        MappedReferenceStore store = new MappedReferenceStore(dir);
+        ByteBuffer buffer = store.getSequence("hg38", "chr1", length, source);
+        assertEquals(3, fetches.get());
+        assertEquals(length, buffer.remaining());
+        assertFalse(buffer.hasArray());
+        for (int i = 0; i < length; i++) {
+            assertEquals(Character.toUpperCase((char) sequence[i]), (char) buffer.get(i));
+        }
+
+        // Served from the mapping, then from the file
+        store.getSequence("hg38", "chr1", length, source);
+        store.clear();
+        assertEquals(0, store.getMappedBytes());
+        new MappedReferenceStore(dir).getSequence("hg38", "chr1", length, source);
+        assertEquals(3, fetches.get());
+
+        // A file of the wrong length is rewritten
+        store.getSequence("hg38", "chr1", length - 1, source);
+        assertEquals(6, fetches.get());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+
+        PreferencesManager.getPreferences().put(Constants.CRAM_REFERENCE_MAPPED_SIZE, "1");
+        int length = 600000;
+        byte[] sequence = randomSequence(length, 7);
+        MappedReferenceStore.SequenceSource source = (start, end) -> {
+            byte[] bases = new byte[end - start];
+            System.arraycopy(sequence, start, bases, 0, bases.length);
+            return bases;
+        };
+
+        MappedReferenceStore store = new MappedReferenceStore(folder.newFolder());
+        store.getSequence("g", "chr1", length, source);
+        assertEquals(length, store.getMappedBytes());
+        store.getSequence("g", "chr2", length, source);
+        // Budget is 1 MB, so only the most recent contig stays mapped
+        assertEquals(length, store.getMappedBytes());
+    }
+
+    private static byte[] randomSequence(int length, long seed) {
+        byte[] bases = "acgtnACGTN".getBytes();
+        Random random = new Random(seed);
+        byte[] sequence = new byte[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = bases[random.nextInt(bases.length)];
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.reader;
+
+import htsjdk.samtools.SamReader;
+import org.broad.igv.Globals;
+import org.broad.igv.prefs.Constants;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.util.ResourceLocator;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SamReaderPoolTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Test
+    public void testPoolLimit() throws Exception {
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldSize = prefs.get(Constants.SAM_READER_POOL_SIZE);
+        prefs.put(Constants.SAM_READER_POOL_SIZE, "1");
+
+        SamReaderPool pool = new SamReaderPool(new ResourceLocator(TestUtils.DATA_DIR + "bam/gstt1_sample.bam"), true);
+        try {
+            long creations = SamReaderPool.getCreationCount();
+            long reuses = SamReaderPool.getReuseCount();
+
+            SamReader reader = pool.getReader();
+            assertNotNull(reader);
+            assertEquals(creations + 1, SamReaderPool.getCreationCount());
+
+            // Pool is at its limit, no reader is available without waiting
+            assertNull(pool.tryGetReader());
+
+            pool.freeReader(reader);
+            SamReader reader2 = pool.getReader();
+            assertSame(reader, reader2);
+            assertEquals(reuses + 1, SamReaderPool.getReuseCount());
+            pool.freeReader(reader2);
+
+        } finally {
+            pool.close();
+            prefs.put(Constants.SAM_READER_POOL_SIZE, oldSize);
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldIdleTime = prefs.get(Constants.SAM_READER_POOL_IDLE_TIME);
+        prefs.put(Constants.SAM_READER_POOL_IDLE_TIME, "1");
+
+        SamReaderPool pool = new SamReaderPool(new ResourceLocator(TestUtils.DATA_DIR + "bam/gstt1_sample.bam"), true);
+        try {
+            long evictions = SamReaderPool.getEvictionCount();
+            pool.freeReader(pool.getReader());
+
+            Thread.sleep(1100);
+            SamReaderPool.evictIdleReaders();
+            assertTrue(SamReaderPool.getEvictionCount() > evictions);
+
+        } finally {
+            pool.close();
+            prefs.put(Constants.SAM_READER_POOL_IDLE_TIME, oldIdleTime);
+        }
+    }
+
+    /**
+     * A pool at its limit gives up with an IOException rather than waiting forever for a reader that is never freed
+     */
+    @Test
+    public void testBoundedWait() throws Exception {
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldSize = prefs.get(Constants.SAM_READER_POOL_SIZE);
+        String oldWait = prefs.get(Constants.SAM_READER_POOL_WAIT_TIME);
+        prefs.put(Constants.SAM_READER_POOL_SIZE, "1");
+        prefs.put(Constants.SAM_READER_POOL_WAIT_TIME, "1");
+
+        SamReaderPool pool = new SamReaderPool(new ResourceLocator(TestUtils.DATA_DIR + "bam/gstt1_sample.bam"), true);
+        try {
+            SamReader reader = pool.getReader();
+            long t0 = System.currentTimeMillis();
+            try {
+                pool.getReader();
+                fail("Expected a timeout");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("Timed out"));
+            }
+            assertTrue(System.currentTimeMillis() - t0 < 5000);
+            pool.freeReader(reader);
+
+        } finally {
+            pool.close();
+            prefs.put(Constants.SAM_READER_POOL_SIZE, oldSize);
+            prefs.put(Constants.SAM_READER_POOL_WAIT_TIME, oldWait);
+        }
+    }
+
+    /**
+     * The idle readers of a pool dropped without close() are still closed, and their global slots released
+     */
+    @Test
+    public void testUnclosedPoolReleasesSlots() throws Exception {
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldIdleTime = prefs.get(Constants.SAM_READER_POOL_IDLE_TIME);
+        prefs.put(Constants.SAM_READER_POOL_IDLE_TIME, "1");
+        try {
+            int open = SamReaderPool.getOpenReaderCount();
+            SamReaderPool pool = new SamReaderPool(new ResourceLocator(TestUtils.DATA_DIR + "bam/gstt1_sample.bam"), true);
+            pool.freeReader(pool.getReader());
+            assertEquals(open + 1, SamReaderPool.getOpenReaderCount());
+            pool = null;
+
+            System.gc();
+            Thread.sleep(1100);
+            SamReaderPool.evictIdleReaders();
+            assertEquals(open, SamReaderPool.getOpenReaderCount());
+
+        } finally {
+            prefs.put(Constants.SAM_READER_POOL_IDLE_TIME, oldIdleTime);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.sam.reader;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import org.broad.igv.Globals;
+import org.broad.igv.prefs.Constants;
+import org.broad.igv.prefs.IGVPreferences;
+import org.broad.igv.prefs.PreferencesManager;
+import org.broad.igv.sam.SAMAlignment;
+import org.broad.igv.util.ResourceLocator;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SplitQueryIteratorTest {
+
+    private static final String BAM = TestUtils.DATA_DIR + "bam/BAMFileIndexTest/index_test.bam";
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    @Test
+    public void testSplitRange() {
+        int start = 24300000;
+        int end = 24450000;
+        int[] starts = SplitQueryIterator.splitRange(start, end, 4);
+
+        assertEquals(4, starts.length);
+        assertEquals(start, starts[0]);
+        for (int i = 1; i < starts.length; i++) {
+            assertEquals("Split point not aligned to index window", 0, starts[i] % 16384);
+            assertTrue(starts[i] > starts[i - 1]);
+            assertTrue(starts[i] < end);
+        }
+    }
+
+    @Test
+    public void testSplitSmallRange() {
+        // Range smaller than an index window, all split points round to the same position
+        int[] starts = SplitQueryIterator.splitRange(100, 5000, 4);
+        assertArrayEquals(new int[]{100}, starts);
+    }
+
+    /**
+     * A split query returns the same alignments, in the same order, as a single query.  Alignments spanning a split
+     * point are returned once, and the merged stream is in coordinate order.
+     */
+    @Test
+    public void testSplitQueryMatchesSingleQuery() throws Exception {
+
+        String chr = "chr1";
+        List<SAMAlignment> all = query(chr, 0, Integer.MAX_VALUE, 1);
+
+        // Center a query on an index window boundary spanned by an alignment, so the split point falls inside it
+        int splitPoint = -1;
+        for (SAMAlignment a : all) {
+            int boundary = (a.getEnd() / 16384) * 16384;
+            if (boundary > a.getStart() && boundary < a.getEnd()) {
+                splitPoint = boundary;
+                break;
+            }
+        }
+        assertTrue("No alignment spans an index window boundary", splitPoint > 0);
+
+        int start = splitPoint - 100000;
+        int end = splitPoint + 100000;
+        assertArrayEquals(new int[]{start, splitPoint}, SplitQueryIterator.splitRange(start, end, 2));
+
+        List<SAMAlignment> single = query(chr, start, end, 1);
+        List<SAMAlignment> split = query(chr, start, end, 2);
+        assertSame(single, split);
+
+        int spanning = 0;
+        for (SAMAlignment a : split) {
+            if (a.getStart() < splitPoint && a.getEnd() > splitPoint) spanning++;
+        }
+        assertTrue(spanning > 0);
+
+        // Whole chromosome, several split points
+        assertSame(all, query(chr, 0, Integer.MAX_VALUE, 4));
+    }
+
+    /**
+     * Raw record queries, as used when downsampling, are split and decoded in parallel with the same result as a
+     * single alignment query
+     */
+    @Test
+    public void testSplitRecordQueryMatchesSingleQuery() throws Exception {
+
+        String chr = "chr1";
+        List<SAMAlignment> all = query(chr, 0, Integer.MAX_VALUE, 1);
+
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldThreads = prefs.get(Constants.SAM_DECODE_THREADS);
+        List<SAMRecord> records;
+        try {
+            prefs.put(Constants.SAM_DECODE_THREADS, "2");
+            records = queryRecords(chr, 0, Integer.MAX_VALUE, 4);
+        } finally {
+            prefs.put(Constants.SAM_DECODE_THREADS, oldThreads);
+        }
+
+        assertTrue(all.size() > 0);
+        assertEquals(all.size(), records.size());
+        for (int i = 0; i < all.size(); i++) {
+            SAMAlignment e = all.get(i);
+            SAMRecord r = records.get(i);
+            assertEquals(e.getReadName(), r.getReadName());
+            assertEquals(e.getStart(), r.getAlignmentStart() - 1);
+            assertEquals(e.getRecord().getFlags(), r.getFlags());
+            assertEquals(e.getCigarString(), r.getCigarString());
+        }
+    }
+
+    /**
+     * Later sub-ranges read ahead of the consumer by a bounded number of batches
+     */
+    @Test
+    public void testReadAheadIsBounded() throws Exception {
+        int n = 100 * SplitQueryIterator.BATCH_SIZE;
+        CountingIterator first = new CountingIterator(0, n);
+        CountingIterator second = new CountingIterator(n, n);
+        SplitQueryIterator<Integer> iter = new SplitQueryIterator<>(Arrays.asList(first, second), new int[]{0, n}, i -> i);
+        try {
+            assertTrue(iter.hasNext());
+            Thread.sleep(500);
+            int limit = (SplitQueryIterator.QUEUE_CAPACITY + 2) * SplitQueryIterator.BATCH_SIZE;
+            assertTrue(second.count.get() <= limit);
+
+            int expected = 0;
+            while (iter.hasNext()) {
+                assertEquals(expected++, (int) iter.next());
+            }
+            assertEquals(2 * n, expected);
+        } finally {
+            iter.close();
+        }
+    }
+
+    /**
+     * An interrupted consumer gets an exception, not a silently truncated result
+     */
+    @Test
+    public void testInterruptIsNotEndOfData() throws Exception {
+        CountingIterator endless = new CountingIterator(0, Integer.MAX_VALUE);
+        SplitQueryIterator<Integer> iter = new SplitQueryIterator<>(Arrays.asList(endless), new int[]{0}, i -> i);
+        try {
+            Thread.currentThread().interrupt();
+            iter.hasNext();
+            fail("Expected CancellationException");
+        } catch (CancellationException e) {
+            // The interrupt flag is restored for the caller
+            assertTrue(Thread.interrupted());
+        } finally {
+            iter.close();
+        }
+    }
+
+    private static class CountingIterator implements CloseableIterator<Integer> {
+        final AtomicInteger count = new AtomicInteger();
+        final int start;
+        final int size;
+
+        CountingIterator(int start, int size) {
+            this.start = start;
+            this.size = size;
+        }
+
+        public boolean hasNext() {
+            return count.get() < size;
+        }
+
+        public Integer next() {
+            return start + count.getAndIncrement();
+        }
+
+        public void close() {
+        }
+    }
+
+    private static void assertSame(List<SAMAlignment> expected, List<SAMAlignment> actual) {
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SAMAlignment e = expected.get(i);
+            SAMAlignment a = actual.get(i);
+            assertEquals(e.getReadName(), a.getReadName());
+            assertEquals(e.getStart(), a.getStart());
+            assertEquals(e.getEnd(), a.getEnd());
+            assertEquals(e.getRecord().getFlags(), a.getRecord().getFlags());
+            assertEquals(e.getCigarString(), a.getCigarString());
+            if (i > 0) {
+                assertTrue(a.getStart() >= actual.get(i - 1).getStart());
+            }
+        }
+    }
+
+    private static List<SAMAlignment> query(String chr, int start, int end, int splitCount) throws Exception {
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldCount = prefs.get(Constants.SAM_SPLIT_QUERY_COUNT);
+        String oldMinSize = prefs.get(Constants.SAM_SPLIT_QUERY_MIN_SIZE);
+        prefs.put(Constants.SAM_SPLIT_QUERY_COUNT, String.valueOf(splitCount));
+        prefs.put(Constants.SAM_SPLIT_QUERY_MIN_SIZE, "1");
+        BAMReader reader = new BAMReader(new ResourceLocator(BAM), true);
+        List<SAMAlignment> alignments = new ArrayList<>();
+        try (CloseableIterator<SAMAlignment> iter = reader.query(chr, start, end, false)) {
+            if (splitCount > 1) {
+                assertTrue(iter instanceof SplitQueryIterator);
+            }
+            while (iter.hasNext()) {
+                alignments.add(iter.next());
+            }
+        } finally {
+            reader.close();
+            prefs.put(Constants.SAM_SPLIT_QUERY_COUNT, oldCount);
+            prefs.put(Constants.SAM_SPLIT_QUERY_MIN_SIZE, oldMinSize);
+        }
+        return alignments;
+    }
+
+    private static List<SAMRecord> queryRecords(String chr, int start, int end, int splitCount) throws Exception {
+        IGVPreferences prefs = PreferencesManager.getPreferences();
+        String oldCount = prefs.get(Constants.SAM_SPLIT_QUERY_COUNT);
+        String oldMinSize = prefs.get(Constants.SAM_SPLIT_QUERY_MIN_SIZE);
+        prefs.put(Constants.SAM_SPLIT_QUERY_COUNT, String.valueOf(splitCount));
+        prefs.put(Constants.SAM_SPLIT_QUERY_MIN_SIZE, "1");
+        BAMReader reader = new BAMReader(new ResourceLocator(BAM), true);
+        List<SAMRecord> records = new ArrayList<>();
+        try (CloseableIterator<SAMRecord> iter = reader.queryRecords(chr, start, end)) {
+            assertTrue(iter instanceof SplitQueryIterator);
+            while (iter.hasNext()) {
+                records.add(iter.next());
+            }
+        } finally {
+            reader.close();
+            prefs.put(Constants.SAM_SPLIT_QUERY_COUNT, oldCount);
+            prefs.put(Constants.SAM_SPLIT_QUERY_MIN_SIZE, oldMinSize);
+        }
+        return records;
+    }
+}
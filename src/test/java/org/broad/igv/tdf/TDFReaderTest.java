@@ -26,9 +26,16 @@
 package org.broad.igv.tdf;
 
 import org.broad.igv.util.ResourceLocator;
+import org.broad.igv.util.TestUtils;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
@@ -70,4 +77,51 @@ public class TDFReaderTest {
         assertNotNull(tile);
 
     }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+
+        String path = TestUtils.DATA_DIR + "tdf/hg18_var_sample.wig.v2.1.30.tdf";
+
+        // Expected tiles, read on one thread
+        List<TDFTile> expected = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        TDFReader reader = TDFReader.getReader(path);
+        for (String name : reader.getDatasetNames()) {
+            TDFDataset ds = reader.getDataset(name);
+            for (int t = 0; t < ds.nTiles; t++) {
+                TDFTile tile = reader.readTile(ds, t);
+                if (tile != null) {
+                    expected.add(tile);
+                    names.add(name + "_" + t);
+                }
+            }
+        }
+        reader.close();
+        assertTrue(expected.size() > 10);
+
+        TDFReader concurrentReader = TDFReader.getReader(path);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<TDFTile>> futures = new ArrayList<>();
+            for (int repeat = 0; repeat < 4; repeat++) {
+                for (String key : names) {
+                    int idx = key.lastIndexOf('_');
+                    String name = key.substring(0, idx);
+                    int t = Integer.parseInt(key.substring(idx + 1));
+                    futures.add(executor.submit(() -> concurrentReader.readTile(concurrentReader.getDataset(name), t)));
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                TDFTile e = expected.get(i % expected.size());
+                TDFTile tile = futures.get(i).get();
+                assertTrue(Arrays.equals(e.getStart(), tile.getStart()));
+                assertTrue(Arrays.equals(e.getEnd(), tile.getEnd()));
+                assertTrue(Arrays.equals(e.getData(0), tile.getData(0)));
+            }
+        } finally {
+            executor.shutdown();
+            concurrentReader.close();
+        }
+    }
 }
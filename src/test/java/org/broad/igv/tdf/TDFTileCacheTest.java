@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.tdf;
+
+import org.broad.igv.util.TestUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TDFTileCacheTest {
+
+    @Test
+    public void testEviction() {
+
+        float[][] data = new float[1][700];
+        TDFTile tile = new TDFFixedTile(0, 0, 10, data);
+        long tileBytes = TDFTileCache.estimateBytes(tile, 1);
+
+        TDFTileCache cache = new TDFTileCache(3 * tileBytes);
+        cache.put("file", "/chr1/z0/mean", 0, tile, 1);
+        cache.put("file", "/chr1/z0/mean", 1, tile, 1);
+        cache.put("file", "/chr1/z0/mean", 2, tile, 1);
+        assertEquals(3 * tileBytes, cache.getBytes());
+
+        // Touch tile 0, so tile 1 is evicted next
+        assertSame(tile, cache.get("file", "/chr1/z0/mean", 0));
+        cache.put("file", "/chr1/z0/mean", 3, tile, 1);
+
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("file", "/chr1/z0/mean", 1));
+        assertNotNull(cache.get("file", "/chr1/z0/mean", 0));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.remove("file", "/chr1/z0/mean");
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testSharedAcrossReaders() {
+
+        String path = TestUtils.DATA_DIR + "tdf/hg18_var_sample.wig.v2.1.30.tdf";
+        TDFTileCache cache = TDFTileCache.getInstance();
+        cache.clear();
+
+        TDFReader reader1 = TDFReader.getReader(path);
+        String dsName = reader1.getDatasetNames().iterator().next();
+        TDFTile tile = reader1.getDataset(dsName).getTile(0);
+        assertNotNull(tile);
+        long bytes = cache.getBytes();
+        assertTrue(bytes > 0);
+
+        // A second reader of the same file is served from the cache
+        long hits = cache.getHitCount();
+        TDFReader reader2 = TDFReader.getReader(path);
+        assertSame(tile, reader2.getDataset(dsName).getTile(0));
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(bytes, cache.getBytes());
+
+        reader1.close();
+        reader2.close();
+    }
+}
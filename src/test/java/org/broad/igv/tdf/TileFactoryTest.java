@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.tdf;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileFactoryTest {
+
+    static final int N_SAMPLES = 3;
+    static final int N_POSITIONS = 50;
+
+    @Test
+    public void testFixedTile() throws Exception {
+        checkTile(new TDFFixedTile(1000, 1000, 25, randomData()));
+    }
+
+    @Test
+    public void testVaryTile() throws Exception {
+        checkTile(new TDFVaryTile(1000, 25, starts(), randomData()));
+    }
+
+    @Test
+    public void testBedTile() throws Exception {
+        int[] start = starts();
+        int[] end = new int[N_POSITIONS];
+        String[] names = new String[N_POSITIONS];
+        for (int i = 0; i < N_POSITIONS; i++) {
+            end[i] = start[i] + 10 + i;
+            names[i] = "feature" + i;
+        }
+        checkTile(new TDFBedTile(1000, start, end, randomData()));
+        checkTile(new TDFBedTile(1000, start, end, randomData(), names));
+    }
+
+    private void checkTile(TDFTile expected) throws Exception {
+
+        BufferedByteWriter writer = new BufferedByteWriter();
+        expected.writeTo(writer);
+        byte[] bytes = writer.getBytes();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+
+        TDFTile[] tiles = {
+                TileFactory.createTile(bytes, N_SAMPLES),
+                TileFactory.createTile(ByteBuffer.wrap(bytes), N_SAMPLES, true),
+                TileFactory.createTile(direct, N_SAMPLES, true)
+        };
+
+        for (TDFTile tile : tiles) {
+            assertEquals(expected.getClass(), tile.getClass());
+            assertEquals(N_POSITIONS, tile.getSize());
+            assertArrayEquals(expected.getStart(), tile.getStart());
+            assertArrayEquals(expected.getEnd(), tile.getEnd());
+            assertArrayEquals(expected.getNames(), tile.getNames());
+            for (int i = 0; i < N_POSITIONS; i++) {
+                assertEquals(expected.getStartPosition(i), tile.getStartPosition(i));
+                assertEquals(expected.getEndPosition(i), tile.getEndPosition(i));
+                assertEquals(expected.getName(i), tile.getName(i));
+            }
+            for (int s = 0; s < N_SAMPLES; s++) {
+                assertArrayEquals(expected.getData(s), tile.getData(s), 0);
+                for (int i = 0; i < N_POSITIONS; i++) {
+                    assertEquals(expected.getValue(s, i), tile.getValue(s, i), 0);
+                }
+            }
+
+            // A view tile can be written back out unchanged
+            BufferedByteWriter rewriter = new BufferedByteWriter();
+            tile.writeTo(rewriter);
+            assertArrayEquals(bytes, rewriter.getBytes());
+        }
+    }
+
+    private static float[][] randomData() {
+        Random random = new Random(1);
+        float[][] data = new float[N_SAMPLES][N_POSITIONS];
+        for (int s = 0; s < N_SAMPLES; s++) {
+            for (int i = 0; i < N_POSITIONS; i++) {
+                data[s][i] = random.nextFloat();
+            }
+        }
+        return data;
+    }
+
+    private static int[] starts() {
+        int[] start = new int[N_POSITIONS];
+        for (int i = 0; i < N_POSITIONS; i++) {
+            start[i] = 1000 + 25 * i;
+        }
+        return start;
+    }
+}
@@ -270,4 +270,35 @@ public class AccumulatorTest {
 
     }
 
+
+    /**
+     * With the sketch, small windows are exact and large windows are within the sketch's rank error
+     */
+    @Test
+    public void testPercentileSketch() {
+        List<WindowFunction> percentiles = Arrays.asList(WindowFunction.median, WindowFunction.percentile10,
+                WindowFunction.percentile98);
+
+        ListAccumulator exact = new ListAccumulator(percentiles);
+        ListAccumulator sketched = new ListAccumulator(percentiles, true);
+        for (int i = 0; i < ListAccumulator.SKETCH_THRESHOLD; i++) {
+            float v = (float) Math.random();
+            exact.add(1, v);
+            sketched.add(1, v);
+        }
+        exact.finish();
+        sketched.finish();
+        for (WindowFunction wf : percentiles) {
+            assertEquals(exact.getValue(wf), sketched.getValue(wf), 0);
+        }
+
+        sketched = new ListAccumulator(percentiles, true);
+        for (int i = 0; i < numberOfPoints; i++) {
+            sketched.add(1, (float) Math.random());
+        }
+        sketched.finish();
+        for (WindowFunction wf : percentiles) {
+            assertEquals(values.get(wf), sketched.getValue(wf), 0.03);
+        }
+    }
 }
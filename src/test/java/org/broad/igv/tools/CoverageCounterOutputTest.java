@@ -0,0 +1,163 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.tools;
+
+import org.broad.igv.Globals;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.feature.genome.GenomeManager;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoverageCounterOutputTest {
+
+    private static Genome genome;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        Globals.setHeadless(true);
+        genome = GenomeManager.getInstance().loadGenome(TestUtils.DATA_DIR + "cram/hg19mini.fasta", null);
+    }
+
+    /**
+     * Wig and TDF (consumer) output match those of the implementation before the window buffer became circular.
+     * Reads span the wrap point of the buffer, some are long enough to make it grow, and bases include IUPAC codes
+     * and '='.  Expected values are MD5 digests of the output of the earlier implementation for the same input.
+     */
+    @Test
+    public void testMatchesPreviousImplementation() throws Exception {
+
+        File samFile = new File(TestUtils.TMP_OUTPUT_DIR, "coverageCounterReads.sam");
+        samFile.deleteOnExit();
+        writeSam(samFile, 17);
+
+        int[] countFlags = {0, CoverageCounter.STRANDS_BY_READ, CoverageCounter.STRANDS_BY_FIRST_IN_PAIR,
+                CoverageCounter.BASES, CoverageCounter.BASES + CoverageCounter.STRANDS_BY_READ,
+                CoverageCounter.INCLUDE_DUPS};
+        int[][] windowAndExtension = {{1, 0}, {25, 0}, {25, 50}};
+        String[][] expected = {
+                // windowSize 1, extension 0; windowSize 25, extension 0; windowSize 25, extension 50
+                {"e18ad0adf31b8a9f5d79dc3da26c7649", "28f449908722855df908433b13e462c7", "327ff573ed5387c66232f7f4f80245bb"},
+                {"d89eedcfb4bac71dce36987ebf533f4f", "9810bc9e372b86a961fa4bc0aa00879a", "67e90cca5751959de3bd077a55b1e40e"},
+                {"501591e7b3db950be62920caa57cc800", "c23d22fb58ca70bae0da83b55324be52", "f0fa098f8ad6d4ea53eb4832018af846"},
+                {"b099c8a588340c345a296f3123916189", "30fa1aa53e69bd34f16cb9d9a7f6703c", "b0d1f4138b11800dd63ce3e2d25d885b"},
+                {"ecd1f3b896065fa18ce37be5e3583662", "c151191a528b880bc7527baeb0a6275f", "27e27cd557885494c40ecc1917b80587"},
+                {"12ae2c3fb7d2ed3afc791b98bcce4525", "2b19e9bf01fab443f6e0d3f003cf6db2", "0ae783aca4722cda922ab9ea0fa97aa4"}};
+
+        for (int f = 0; f < countFlags.length; f++) {
+            for (int w = 0; w < windowAndExtension.length; w++) {
+                File wigFile = new File(TestUtils.TMP_OUTPUT_DIR, "coverageCounterReads.wig");
+                wigFile.deleteOnExit();
+                CoverageCounterParallelTest.RecordingConsumer consumer = new CoverageCounterParallelTest.RecordingConsumer();
+                CoverageCounter counter = new CoverageCounter(samFile.getAbsolutePath(), consumer,
+                        windowAndExtension[w][0], windowAndExtension[w][1], wigFile, genome, null, 0, countFlags[f]);
+                counter.parse();
+
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                for (String record : consumer.records) {
+                    md5.update((record + "\n").getBytes());
+                }
+                md5.update(Files.readAllBytes(wigFile.toPath()));
+                String digest = String.format("%032x", new BigInteger(1, md5.digest()));
+
+                assertEquals("flags=" + countFlags[f] + " windowSize=" + windowAndExtension[w][0] +
+                        " extension=" + windowAndExtension[w][1], expected[f][w], digest);
+            }
+        }
+    }
+
+    /**
+     * Write a sorted SAM file of random reads on chromosomes 1 and 2, with clips, insertions, deletions and splices,
+     * mixed strands, paired and duplicate flags, and about 5% of bases other than ACGT.
+     */
+    private static void writeSam(File file, long seed) throws IOException {
+
+        Random random = new Random(seed);
+        String[] cigars = {"100M", "10S80M10S", "40M2I58M", "50M3D50M", "30M500N70M"};
+        String otherBases = "NRYKMSWBDHV=";
+
+        List<String[]> reads = new ArrayList<>();
+        for (String chr : new String[]{"1", "2"}) {
+            int n = chr.equals("1") ? 400 : 100;
+            for (int i = 0; i < n; i++) {
+                String cigar = cigars[random.nextInt(cigars.length)];
+                reads.add(new String[]{chr, String.valueOf(1 + random.nextInt(chr.equals("1") ? 12000 : 2000)), cigar});
+            }
+        }
+        // Wider than the initial buffer, so it grows
+        reads.add(new String[]{"1", "2500", "3500M"});
+        reads.add(new String[]{"1", "300", "50M4000N50M"});
+        reads.sort(Comparator.comparing((String[] r) -> r[0]).thenComparingInt(r -> Integer.parseInt(r[1])));
+
+        int[] flags = {0, 16, 0x1 | 0x2 | 0x40, 0x1 | 0x2 | 0x40 | 0x10, 0x1 | 0x2 | 0x80, 0x1 | 0x2 | 0x80 | 0x10, 0x400};
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
+            pw.println("@HD\tVN:1.4\tSO:coordinate");
+            for (String chr : new String[]{"1", "2"}) {
+                pw.println("@SQ\tSN:" + chr + "\tLN:" + genome.getChromosome(chr).getLength());
+            }
+            int count = 0;
+            for (String[] read : reads) {
+                int length = readLength(read[2]);
+                StringBuilder bases = new StringBuilder(length);
+                for (int i = 0; i < length; i++) {
+                    bases.append(random.nextDouble() < 0.05 ?
+                            otherBases.charAt(random.nextInt(otherBases.length())) : "ACGT".charAt(random.nextInt(4)));
+                }
+                int flag = flags[random.nextInt(flags.length)];
+                boolean paired = (flag & 0x1) != 0;
+                pw.println("read" + (count++) + "\t" + flag + "\t" + read[0] + "\t" + read[1] + "\t60\t" + read[2] +
+                        "\t" + (paired ? "=\t" + read[1] : "*\t0") + "\t0\t" + bases + "\t*");
+            }
+        }
+    }
+
+    private static int readLength(String cigar) {
+        int length = 0;
+        Matcher m = Pattern.compile("(\\d+)([MIDNS])").matcher(cigar);
+        while (m.find()) {
+            if ("MIS".indexOf(m.group(2)) >= 0) {
+                length += Integer.parseInt(m.group(1));
+            }
+        }
+        return length;
+    }
+}
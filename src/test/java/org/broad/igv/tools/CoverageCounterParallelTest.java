@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2015 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.tools;
+
+import org.broad.igv.Globals;
+import org.broad.igv.tools.parsers.DataConsumer;
+import org.broad.igv.track.TrackType;
+import org.broad.igv.util.TestUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CoverageCounterParallelTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    /**
+     * Counting chromosomes in parallel passes exactly the same data, in the same order, to the consumer
+     */
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+
+        String bamFile = TestUtils.DATA_DIR + "bam/BAMFileIndexTest/index_test.bam";
+
+        int[] countFlags = {0, CoverageCounter.STRANDS_BY_READ + CoverageCounter.BASES};
+        int[] windowSizes = {1, 25};
+        for (int flags : countFlags) {
+            for (int windowSize : windowSizes) {
+                RecordingConsumer sequential = count(bamFile, windowSize, flags, 1);
+                RecordingConsumer parallel = count(bamFile, windowSize, flags, 4);
+
+                assertTrue(sequential.chromosomes.size() > 1);
+                assertEquals(sequential.totalCount, parallel.totalCount);
+                assertEquals(sequential.records.size(), parallel.records.size());
+                for (int i = 0; i < sequential.records.size(); i++) {
+                    assertEquals(sequential.records.get(i), parallel.records.get(i));
+                }
+            }
+        }
+    }
+
+    private static RecordingConsumer count(String file, int windowSize, int flags, int threads) throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        CoverageCounter counter = new CoverageCounter(file, consumer, windowSize, 0, null, null, null, 0, flags);
+        counter.setThreads(threads);
+        counter.parse();
+        return consumer;
+    }
+
+    static class RecordingConsumer implements DataConsumer {
+
+        List<String> records = new ArrayList<>();
+        Set<String> chromosomes = new HashSet<>();
+        String totalCount;
+
+        public void addData(String chr, int start, int end, float[] data, String name) {
+            chromosomes.add(chr);
+            records.add(chr + ":" + start + "-" + end + " " + Arrays.toString(data));
+        }
+
+        public void setAttribute(String key, String value) {
+            if (key.equals("totalCount")) {
+                totalCount = value;
+            }
+        }
+
+        public void setType(String type) {
+        }
+
+        public void parsingComplete() {
+        }
+
+        public void setTrackParameters(TrackType trackType, String trackLine, String[] trackNames) {
+        }
+
+        public void setTrackParameters(TrackType trackType, String trackLine, String[] trackNames, boolean b) {
+        }
+
+        public void setSortTolerance(int tolerance) {
+        }
+    }
+}
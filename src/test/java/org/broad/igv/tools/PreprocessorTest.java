@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.tools;
+
+import org.broad.igv.Globals;
+import org.broad.igv.feature.Chromosome;
+import org.broad.igv.feature.genome.Genome;
+import org.broad.igv.track.TrackType;
+import org.broad.igv.track.WindowFunction;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PreprocessorTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        Globals.setHeadless(true);
+    }
+
+    /**
+     * Building on several threads writes exactly the same file as building on one
+     */
+    @Test
+    public void testThreadedMatchesSequential() throws Exception {
+
+        Genome genome = new Genome("test", Arrays.asList(
+                new Chromosome(0, "chr1", 2000000),
+                new Chromosome(1, "chr2", 1000000),
+                new Chromosome(2, "chrM", 16000)));
+
+        byte[] sequential = preprocess(genome, 1);
+        byte[] threaded = preprocess(genome, 4);
+
+        assertTrue(sequential.length > 0);
+        assertArrayEquals(sequential, threaded);
+    }
+
+    private static byte[] preprocess(Genome genome, int threads) throws Exception {
+
+        File file = File.createTempFile("PreprocessorTest", ".tdf");
+        try {
+            List<WindowFunction> wfs = Arrays.asList(WindowFunction.mean, WindowFunction.median, WindowFunction.max);
+            Preprocessor p = new Preprocessor(file, genome, wfs, -1, null);
+            p.setNZoom(4);
+            p.setThreads(threads);
+            p.setTrackParameters(TrackType.OTHER, null, new String[]{"a", "b"});
+
+            Random random = new Random(42);
+            for (Chromosome chr : genome.getChromosomes()) {
+                int start = 0;
+                int n = 0;
+                while (start < chr.getLength()) {
+                    int end = start + 1 + random.nextInt(200);
+                    float[] data = {random.nextFloat(), (float) random.nextGaussian()};
+                    p.addData(chr.getName(), start, end, data, "f" + n);
+                    start = end + random.nextInt(100);
+                    n++;
+                }
+            }
+            p.finish();
+            return Files.readAllBytes(file.toPath());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2007-2021 Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.broad.igv.util.stats;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testEmpty() {
+        assertTrue(Float.isNaN(new QuantileSketch().getQuantile(0.5)));
+    }
+
+    /**
+     * Below k values nothing is compacted, and quantiles are exact nearest rank values
+     */
+    @Test
+    public void testExactWhenSmall() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 100; i >= -99; i--) {
+            sketch.add(i);
+        }
+        assertEquals(200, sketch.getN());
+        assertEquals(-99, sketch.getQuantile(0), 0);
+        assertEquals(0, sketch.getQuantile(0.5), 0);
+        assertEquals(80, sketch.getQuantile(0.9), 0);
+        assertEquals(100, sketch.getQuantile(1), 0);
+    }
+
+    @Test
+    public void testRankError() {
+        int n = 1000000;
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i - n / 2;
+        }
+        Random random = new Random(1);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            float tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+
+        QuantileSketch sketch = new QuantileSketch();
+        for (float v : values) {
+            sketch.add(v);
+        }
+        assertEquals(n, sketch.getN());
+        assertTrue(sketch.getRetainedSize() < 4 * QuantileSketch.DEFAULT_K);
+
+        for (double q : new double[]{0.02, 0.1, 0.5, 0.9, 0.98}) {
+            // Values are ranks offset by n/2
+            double rank = (sketch.getQuantile(q) + n / 2) / n;
+            assertEquals(q, rank, 0.017);
+        }
+    }
+
+    @Test
+    public void testDeterministic() {
+        QuantileSketch s1 = new QuantileSketch();
+        QuantileSketch s2 = new QuantileSketch();
+        Random random = new Random(2);
+        for (int i = 0; i < 100000; i++) {
+            float v = (float) random.nextGaussian();
+            s1.add(v);
+            s2.add(v);
+        }
+        assertEquals(s1.getQuantile(0.5), s2.getQuantile(0.5), 0);
+        assertEquals(s1.getQuantile(0.98), s2.getQuantile(0.98), 0);
+    }
+}